@@ -0,0 +1,147 @@
+/**
+ *
+ */
+package codemining.lm.tsg.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+
+import codemining.ast.TreeNode;
+import codemining.ast.java.AbstractJavaTreeExtractor;
+import codemining.ast.java.BinaryJavaAstTreeExtractor;
+import codemining.ast.java.JavaAstTreeExtractor;
+import codemining.languagetools.ParseType;
+import codemining.lm.tsg.TSGNode;
+
+import com.google.common.collect.Lists;
+
+/**
+ * The corpus used by the benchmarks. It contains the ASTs of a fixed set of
+ * Java files bundled with the benchmarks, so that results are comparable
+ * across versions of the code.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public final class BenchmarkCorpus {
+
+    /**
+     * The bundled files, under the corpus resource directory.
+     */
+    private static final String[] CORPUS_FILES = { "BlockCollapsedGibbsSampler.txt", "CFGPrior.txt",
+            "ContextFreeGrammar.txt", "NodeTypeInformation.txt", "TSGrammar.txt", "TreeNode.txt" };
+
+    /**
+     * The fraction of the nodes that are initially marked as roots.
+     */
+    public static final double PERCENT_ROOTS_INIT = .9;
+
+    /**
+     * The seed used for marking roots, so that all runs sample the same
+     * trees.
+     */
+    private static final long SEED = 42;
+
+    /**
+     * Return the tree format with the given name.
+     *
+     * @param name
+     *            "java" or "binary"
+     * @return
+     */
+    public static AbstractJavaTreeExtractor getFormat(final String name) {
+        if (name.equals("java")) {
+            return new JavaAstTreeExtractor();
+        } else if (name.equals("binary")) {
+            return new BinaryJavaAstTreeExtractor(new JavaAstTreeExtractor());
+        }
+        throw new IllegalArgumentException("Unknown format " + name);
+    }
+
+    /**
+     * Return the ASTs of the bundled files, one per file.
+     *
+     * @param format
+     * @return
+     * @throws IOException
+     */
+    public static List<TreeNode<Integer>> getTrees(final AbstractJavaTreeExtractor format) throws IOException {
+        final List<TreeNode<Integer>> trees = Lists.newArrayList();
+        for (final String file : CORPUS_FILES) {
+            try (final InputStream in = BenchmarkCorpus.class.getResourceAsStream("corpus/" + file)) {
+                final String code = IOUtils.toString(in, StandardCharsets.UTF_8.name());
+                trees.add(format.getTree(code, ParseType.COMPILATION_UNIT));
+            }
+        }
+        return trees;
+    }
+
+    /**
+     * Return the ASTs of the bundled files as TSG trees, where a fixed
+     * pseudo-random subset of the nodes are roots.
+     *
+     * @param format
+     * @return
+     * @throws IOException
+     */
+    public static List<TreeNode<TSGNode>> getTsgTrees(final AbstractJavaTreeExtractor format) throws IOException {
+        final Random random = new Random(SEED);
+        final List<TreeNode<TSGNode>> trees = Lists.newArrayList();
+        for (final TreeNode<Integer> tree : getTrees(format)) {
+            final TreeNode<TSGNode> tsgTree = TSGNode.convertTree(tree, 0);
+            final ArrayDeque<TreeNode<TSGNode>> toVisit = new ArrayDeque<TreeNode<TSGNode>>();
+            toVisit.push(tsgTree);
+            while (!toVisit.isEmpty()) {
+                final TreeNode<TSGNode> node = toVisit.pop();
+                if (node != tsgTree && !node.isLeaf()) {
+                    node.getData().isRoot = random.nextDouble() < PERCENT_ROOTS_INIT;
+                }
+                for (final List<TreeNode<TSGNode>> childProperty : node.getChildrenByProperty()) {
+                    for (final TreeNode<TSGNode> child : childProperty) {
+                        toVisit.push(child);
+                    }
+                }
+            }
+            trees.add(tsgTree);
+        }
+        return trees;
+    }
+
+    /**
+     * Return all the nodes of the given trees that are neither leaves nor
+     * the tree roots, i.e. the sampling sites.
+     *
+     * @param trees
+     * @return
+     */
+    public static List<TreeNode<TSGNode>> getSamplingSites(final List<TreeNode<TSGNode>> trees) {
+        final List<TreeNode<TSGNode>> sites = Lists.newArrayList();
+        for (final TreeNode<TSGNode> tree : trees) {
+            final ArrayDeque<TreeNode<TSGNode>> toVisit = new ArrayDeque<TreeNode<TSGNode>>();
+            toVisit.push(tree);
+            while (!toVisit.isEmpty()) {
+                final TreeNode<TSGNode> node = toVisit.pop();
+                for (final List<TreeNode<TSGNode>> childProperty : node.getChildrenByProperty()) {
+                    for (final TreeNode<TSGNode> child : childProperty) {
+                        if (!child.isLeaf()) {
+                            sites.add(child);
+                            toVisit.push(child);
+                        }
+                    }
+                }
+            }
+        }
+        return sites;
+    }
+
+    private BenchmarkCorpus() {
+        // Utility class
+    }
+
+}
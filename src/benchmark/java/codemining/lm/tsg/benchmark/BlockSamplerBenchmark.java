@@ -0,0 +1,77 @@
+/**
+ *
+ */
+package codemining.lm.tsg.benchmark;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import codemining.ast.TreeNode;
+import codemining.ast.java.AbstractJavaTreeExtractor;
+import codemining.lm.tsg.FormattedTSGrammar;
+import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.samplers.blocked.BlockCollapsedGibbsSampler;
+
+/**
+ * Benchmark of sampling a single block of nodes with the
+ * {@link BlockCollapsedGibbsSampler}. Each invocation samples the next site
+ * of a fixed, shuffled sequence of all the sampling sites of the corpus. The
+ * state of the sampler evolves as in normal sampling.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BlockSamplerBenchmark {
+
+    @Param({ "java", "binary" })
+    public String format;
+
+    private BlockCollapsedGibbsSampler sampler;
+
+    private List<TreeNode<TSGNode>> sites;
+
+    private int nextSite = 0;
+
+    @Benchmark
+    public void sampleAt() {
+        sampler.sampleAt(sites.get(nextSite));
+        nextSite = (nextSite + 1) % sites.size();
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        final AbstractJavaTreeExtractor treeFormat = BenchmarkCorpus.getFormat(format);
+        sampler = new BlockCollapsedGibbsSampler(100, 10, new FormattedTSGrammar(treeFormat),
+                new FormattedTSGrammar(treeFormat));
+        for (final TreeNode<TSGNode> tree : BenchmarkCorpus.getTsgTrees(treeFormat)) {
+            sampler.addTree(tree, true);
+        }
+        sampler.lockSamplerData();
+
+        // Sample the nodes of the corpus, not the (mutable) input trees
+        sites = BenchmarkCorpus.getSamplingSites(sampler.getTreeCorpus());
+        Collections.shuffle(sites, new Random(42));
+    }
+
+}
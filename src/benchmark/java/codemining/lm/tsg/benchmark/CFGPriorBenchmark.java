@@ -0,0 +1,79 @@
+/**
+ *
+ */
+package codemining.lm.tsg.benchmark;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import codemining.ast.TreeNode;
+import codemining.ast.java.AbstractJavaTreeExtractor;
+import codemining.lm.tsg.FormattedTSGrammar;
+import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.samplers.CFGPrior;
+import codemining.lm.tsg.samplers.blocked.BlockCollapsedGibbsSampler;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Benchmark of computing the CFG prior of the rules of the benchmark corpus.
+ * The rules are mutable, so the locked prior does not cache the rule
+ * probabilities in their nodes.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CFGPriorBenchmark {
+
+    @Param({ "java", "binary" })
+    public String format;
+
+    private CFGPrior prior;
+
+    /**
+     * All the rules of the corpus trees.
+     */
+    private List<TreeNode<TSGNode>> rules;
+
+    @Benchmark
+    public void getTreeCFLog2Probability(final Blackhole bh) {
+        for (final TreeNode<TSGNode> rule : rules) {
+            bh.consume(prior.getTreeCFLog2Probability(rule));
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        final AbstractJavaTreeExtractor treeFormat = BenchmarkCorpus.getFormat(format);
+        final BlockCollapsedGibbsSampler sampler = new BlockCollapsedGibbsSampler(100, 10,
+                new FormattedTSGrammar(treeFormat), new FormattedTSGrammar(treeFormat));
+        rules = Lists.newArrayList();
+        for (final TreeNode<TSGNode> tree : BenchmarkCorpus.getTsgTrees(treeFormat)) {
+            sampler.addTree(tree, true);
+            rules.addAll(TSGNode.getAllRootsOf(tree));
+        }
+        sampler.lockSamplerData();
+        prior = sampler.getPrior();
+    }
+
+}
@@ -0,0 +1,78 @@
+/**
+ *
+ */
+package codemining.lm.tsg.benchmark;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import codemining.ast.TreeNode;
+import codemining.lm.tsg.TSGNode;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Benchmarks of the extraction of TSG rules from the trees of the benchmark
+ * corpus.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TSGNodeBenchmark {
+
+    @Param({ "java", "binary" })
+    public String format;
+
+    private List<TreeNode<TSGNode>> trees;
+
+    /**
+     * All the root nodes of the corpus trees.
+     */
+    private List<TreeNode<TSGNode>> roots;
+
+    @Benchmark
+    public void getAllRootsOf(final Blackhole bh) {
+        for (final TreeNode<TSGNode> tree : trees) {
+            bh.consume(TSGNode.getAllRootsOf(tree));
+        }
+    }
+
+    @Benchmark
+    public void getSubTreeFromRoot(final Blackhole bh) {
+        for (final TreeNode<TSGNode> root : roots) {
+            bh.consume(TSGNode.getSubTreeFromRoot(root));
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        trees = BenchmarkCorpus.getTsgTrees(BenchmarkCorpus.getFormat(format));
+        roots = Lists.newArrayList(trees);
+        for (final TreeNode<TSGNode> site : BenchmarkCorpus.getSamplingSites(trees)) {
+            if (site.getData().isRoot) {
+                roots.add(site);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+/**
+ *
+ */
+package codemining.lm.tsg.benchmark;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import codemining.ast.TreeNode;
+import codemining.ast.java.AbstractJavaTreeExtractor;
+import codemining.lm.tsg.FormattedTSGrammar;
+import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.TSGrammar;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Benchmarks of adding, removing and counting the rules of the benchmark
+ * corpus in a {@link TSGrammar}.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TSGrammarBenchmark {
+
+    @Param({ "java", "binary" })
+    public String format;
+
+    /**
+     * All the rules of the corpus trees.
+     */
+    private List<TreeNode<TSGNode>> rules;
+
+    /**
+     * A grammar containing all the rules.
+     */
+    private TSGrammar<TSGNode> grammar;
+
+    /**
+     * Add all the rules to the grammar and then remove them, so that the
+     * grammar is the same before and after each invocation.
+     *
+     * @param bh
+     */
+    @Benchmark
+    public void addRemoveTree(final Blackhole bh) {
+        for (final TreeNode<TSGNode> rule : rules) {
+            grammar.addTree(rule);
+        }
+        for (final TreeNode<TSGNode> rule : rules) {
+            bh.consume(grammar.removeTree(rule));
+        }
+    }
+
+    @Benchmark
+    public void countTreeOccurences(final Blackhole bh) {
+        for (final TreeNode<TSGNode> rule : rules) {
+            bh.consume(grammar.countTreeOccurences(rule));
+        }
+    }
+
+    @Benchmark
+    public void countTreesWithRoot(final Blackhole bh) {
+        for (final TreeNode<TSGNode> rule : rules) {
+            bh.consume(grammar.countTreesWithRoot(rule.getData()));
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        final AbstractJavaTreeExtractor treeFormat = BenchmarkCorpus.getFormat(format);
+        rules = Lists.newArrayList();
+        for (final TreeNode<TSGNode> tree : BenchmarkCorpus.getTsgTrees(treeFormat)) {
+            rules.addAll(TSGNode.getAllRootsOf(tree));
+        }
+        grammar = new FormattedTSGrammar(treeFormat);
+        for (final TreeNode<TSGNode> rule : rules) {
+            grammar.addTree(rule);
+        }
+    }
+
+}
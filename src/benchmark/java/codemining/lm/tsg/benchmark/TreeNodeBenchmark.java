@@ -0,0 +1,119 @@
+/**
+ *
+ */
+package codemining.lm.tsg.benchmark;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import codemining.ast.TreeNode;
+import codemining.ast.java.AbstractJavaTreeExtractor;
+import codemining.lm.tsg.TSGNode;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Benchmarks of the {@link TreeNode} operations over the trees of the whole
+ * benchmark corpus. Each invocation visits all the files of the corpus.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TreeNodeBenchmark {
+
+    @Param({ "java", "binary" })
+    public String format;
+
+    /**
+     * The mutable trees of the corpus.
+     */
+    private List<TreeNode<Integer>> trees;
+
+    /**
+     * Deep copies of the trees, so that equals() cannot short-circuit on
+     * identity.
+     */
+    private List<TreeNode<Integer>> copies;
+
+    /**
+     * The TSG rule at the root of each tree, i.e. a prefix of the tree.
+     */
+    private List<TreeNode<Integer>> rootRules;
+
+    @Benchmark
+    public void equals(final Blackhole bh) {
+        for (int i = 0; i < trees.size(); i++) {
+            bh.consume(trees.get(i).equals(copies.get(i)));
+        }
+    }
+
+    @Benchmark
+    public void getTreeSize(final Blackhole bh) {
+        for (final TreeNode<Integer> tree : trees) {
+            bh.consume(tree.getTreeSize());
+        }
+    }
+
+    @Benchmark
+    public void hashCode(final Blackhole bh) {
+        for (final TreeNode<Integer> tree : trees) {
+            bh.consume(tree.hashCode());
+        }
+    }
+
+    @Benchmark
+    public void isPartialSupertreeOf(final Blackhole bh) {
+        for (int i = 0; i < trees.size(); i++) {
+            bh.consume(trees.get(i).isPartialSupertreeOf(rootRules.get(i)));
+        }
+    }
+
+    @Benchmark
+    public void partialMatch(final Blackhole bh) {
+        for (int i = 0; i < trees.size(); i++) {
+            bh.consume(trees.get(i).partialMatch(rootRules.get(i), false));
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        final AbstractJavaTreeExtractor treeFormat = BenchmarkCorpus.getFormat(format);
+        trees = BenchmarkCorpus.getTrees(treeFormat);
+        copies = Lists.newArrayList();
+        for (final TreeNode<Integer> tree : trees) {
+            copies.add(tree.deepCopy());
+        }
+        rootRules = Lists.newArrayList();
+        for (final TreeNode<TSGNode> tsgTree : BenchmarkCorpus.getTsgTrees(treeFormat)) {
+            rootRules.add(TSGNode.tsgTreeToInt(TSGNode.getSubTreeFromRoot(tsgTree)));
+        }
+    }
+
+    @Benchmark
+    public void toImmutable(final Blackhole bh) {
+        for (final TreeNode<Integer> tree : trees) {
+            bh.consume(tree.toImmutable());
+        }
+    }
+
+}
@@ -10,8 +10,6 @@ import codemining.languagetools.ParseType;
 import com.esotericsoftware.kryo.DefaultSerializer;
 import com.esotericsoftware.kryo.serializers.JavaSerializer;
 import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
-import com.google.common.collect.Maps;
 
 /**
  * An abstract class for extracting tree nodes from code.
@@ -37,8 +35,7 @@ public abstract class AbstractTreeExtractor implements Serializable {
 	protected final BiMap<Integer, AstNodeSymbol> nodeAlphabet;
 
 	public AbstractTreeExtractor() {
-		final BiMap<Integer, AstNodeSymbol> base = HashBiMap.create();
-		nodeAlphabet = Maps.synchronizedBiMap(base);
+		nodeAlphabet = new SymbolAlphabet();
 	}
 
 	protected AbstractTreeExtractor(final BiMap<Integer, AstNodeSymbol> alphabet) {
@@ -67,21 +64,27 @@ public abstract class AbstractTreeExtractor implements Serializable {
 
 	/**
 	 * Return the id of the symbol, or create a new one. This will lock the
-	 * symbol and thus the id will remain right.
+	 * symbol and thus the id will remain right. Lookups of existing symbols do
+	 * not lock when the alphabet is a {@link SymbolAlphabet}.
 	 *
 	 * @param symbol
 	 * @return
 	 */
-	public synchronized int getOrAddSymbolId(final AstNodeSymbol symbol) {
-		final Integer id = nodeAlphabet.inverse().get(symbol);
-		if (id != null) {
-			return id;
-		} else {
-			symbol.lockFromChanges();
-			final int currentSymboId = nextSymbolId;
-			nextSymbolId++;
-			nodeAlphabet.put(currentSymboId, symbol);
-			return currentSymboId;
+	public int getOrAddSymbolId(final AstNodeSymbol symbol) {
+		if (nodeAlphabet instanceof SymbolAlphabet) {
+			return ((SymbolAlphabet) nodeAlphabet).getOrAddId(symbol);
+		}
+		synchronized (this) {
+			final Integer id = nodeAlphabet.inverse().get(symbol);
+			if (id != null) {
+				return id;
+			} else {
+				symbol.lockFromChanges();
+				final int currentSymboId = nextSymbolId;
+				nextSymbolId++;
+				nodeAlphabet.put(currentSymboId, symbol);
+				return currentSymboId;
+			}
 		}
 	}
 
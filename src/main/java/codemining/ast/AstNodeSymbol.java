@@ -58,11 +58,36 @@ public class AstNodeSymbol implements Serializable {
 		}
 	};
 
+	/**
+	 * Put the given value in the map, returning the map that should be used
+	 * from now on. Empty and single entry maps are immutable and shared, so
+	 * that the common case of symbols with at most one simple property or
+	 * annotation does not allocate a TreeMap.
+	 *
+	 * @param map
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	private static SortedMap<String, Object> putInMap(
+			final SortedMap<String, Object> map, final String key,
+			final Object value) {
+		if (map.isEmpty()) {
+			return ImmutableSortedMap.<String, Object> of(key, value);
+		} else if (map instanceof ImmutableSortedMap) {
+			final SortedMap<String, Object> mutableMap = Maps.newTreeMap(map);
+			mutableMap.put(key, value);
+			return mutableMap;
+		}
+		map.put(key, value);
+		return map;
+	}
+
 	/**
 	 * A map of annotations to their respective values. Annotations are not
 	 * structural properties of the node
 	 */
-	private SortedMap<String, Object> annotations = Maps.newTreeMap();
+	private SortedMap<String, Object> annotations = ImmutableSortedMap.of();
 
 	/**
 	 * A list of the child properties that contain the node children
@@ -77,19 +102,34 @@ public class AstNodeSymbol implements Serializable {
 	/**
 	 * A map of properties to their respective values
 	 */
-	private SortedMap<String, Object> simplePropValues = Maps.newTreeMap();
+	private SortedMap<String, Object> simplePropValues = ImmutableSortedMap.of();
+
+	/**
+	 * True if the symbol cannot change anymore.
+	 */
+	private boolean isLocked = false;
+
+	/**
+	 * The cached hash code, 0 if it has not been computed. It is reset when
+	 * the symbol changes.
+	 */
+	private transient int hash = 0;
 
 	public AstNodeSymbol(final int type) {
 		nodeType = type;
 	}
 
 	public synchronized void addAnnotation(final String annotation, final Object value) {
-		annotations.put(checkNotNull(annotation), checkNotNull(value));
+		checkNotLocked();
+		annotations = putInMap(annotations, checkNotNull(annotation), checkNotNull(value));
+		hash = 0;
 	}
 
 	public synchronized void addChildProperty(final String propertyName) {
 		checkNotNull(propertyName);
+		checkNotLocked();
 		childProperties.add(propertyName);
+		hash = 0;
 	}
 
 	/**
@@ -101,7 +141,15 @@ public class AstNodeSymbol implements Serializable {
 	public synchronized void addSimpleProperty(final String propertyName, final Object value) {
 		checkNotNull(propertyName);
 		checkNotNull(value);
-		simplePropValues.put(propertyName, value);
+		checkNotLocked();
+		simplePropValues = putInMap(simplePropValues, propertyName, value);
+		hash = 0;
+	}
+
+	private void checkNotLocked() {
+		if (isLocked) {
+			throw new UnsupportedOperationException("Symbol is locked from changes");
+		}
 	}
 
 	@Override
@@ -114,7 +162,7 @@ public class AstNodeSymbol implements Serializable {
 		}
 		final AstNodeSymbol other = (AstNodeSymbol) obj;
 
-		if (nodeType != other.nodeType) {
+		if (nodeType != other.nodeType || hashCode() != other.hashCode()) {
 			return false;
 		}
 
@@ -151,17 +199,29 @@ public class AstNodeSymbol implements Serializable {
 
 	@Override
 	public int hashCode() {
-		return Objects.hashCode(nodeType, simplePropValues, childProperties, annotations);
+		int h = hash;
+		if (h == 0) {
+			h = Objects.hashCode(nodeType, simplePropValues, childProperties, annotations);
+			hash = h;
+		}
+		return h;
 	}
 
 	public final boolean hasSimpleProperty(final String property) {
 		return simplePropValues.containsKey(property);
 	}
 
-	public void lockFromChanges() {
+	/**
+	 * Lock the symbol so that it cannot change. This is done when the symbol
+	 * is added to an alphabet.
+	 */
+	public synchronized void lockFromChanges() {
 		childProperties = ImmutableList.copyOf(childProperties);
 		simplePropValues = ImmutableSortedMap.copyOf(simplePropValues);
 		annotations = ImmutableSortedMap.copyOf(annotations);
+		isLocked = true;
+		hash = 0;
+		hashCode();
 	}
 
 	public final int nChildProperties() {
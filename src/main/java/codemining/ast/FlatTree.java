@@ -0,0 +1,567 @@
+/**
+ *
+ */
+package codemining.ast;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+import com.esotericsoftware.kryo.DefaultSerializer;
+import com.esotericsoftware.kryo.serializers.JavaSerializer;
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+
+/**
+ * A compact, array-backed representation of a tree. Nodes are identified by
+ * their index in pre-order (the root is always 0) and all structural
+ * information is kept in primitive arrays, so that a whole corpus can be held
+ * in memory without the per-node object overhead of {@link TreeNode}.
+ *
+ * The children of a node are stored per property, in the same order as in
+ * {@link TreeNode#getChildrenByProperty()}. Since nodes are numbered in
+ * pre-order, the subtree of node i occupies the index range [i,
+ * getSubtreeEnd(i)).
+ *
+ * Optionally, a flat tree may carry a root flag per node, as used by TSG
+ * trees.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+@DefaultSerializer(JavaSerializer.class)
+public final class FlatTree implements Serializable {
+
+    private static final long serialVersionUID = -2311546215813412570L;
+
+    /**
+     * Create a flat tree from a tree of integer symbols.
+     *
+     * @param tree
+     * @return
+     */
+    public static FlatTree create(final TreeNode<Integer> tree) {
+        return create(tree, symbol -> symbol, null);
+    }
+
+    /**
+     * Create a flat tree from the given tree.
+     *
+     * @param tree
+     *            the tree to flatten
+     * @param symbolOf
+     *            a function returning the integer symbol of each node's data
+     * @param isRoot
+     *            a predicate returning the root flag of each node's data, or
+     *            null if no root flags should be stored.
+     * @return
+     */
+    public static <T extends Serializable> FlatTree create(final TreeNode<T> tree, final ToIntFunction<T> symbolOf,
+            final Predicate<T> isRoot) {
+        checkNotNull(tree);
+        checkNotNull(symbolOf);
+        final int nNodes = tree.getTreeSize();
+
+        final int[] symbols = new int[nNodes];
+        final int[] parents = new int[nNodes];
+        final BitSet rootFlags = isRoot == null ? null : new BitSet(nNodes);
+
+        // First pass: number nodes in pre-order and record their parents
+        final ArrayDeque<TreeNode<T>> toVisit = new ArrayDeque<TreeNode<T>>();
+        final ArrayDeque<Integer> parentOfVisit = new ArrayDeque<Integer>();
+        toVisit.push(tree);
+        parentOfVisit.push(-1);
+
+        int nextIndex = 0;
+        int nSlots = 0;
+        while (!toVisit.isEmpty()) {
+            final TreeNode<T> current = toVisit.pop();
+            final int currentIndex = nextIndex;
+            nextIndex++;
+
+            symbols[currentIndex] = symbolOf.applyAsInt(current.getData());
+            parents[currentIndex] = parentOfVisit.pop();
+            nSlots += current.nProperties();
+            if (rootFlags != null && isRoot.test(current.getData())) {
+                rootFlags.set(currentIndex);
+            }
+
+            // Push in reverse, so that children are popped in order
+            final List<List<TreeNode<T>>> children = current.getChildrenByProperty();
+            for (int i = children.size() - 1; i >= 0; i--) {
+                final List<TreeNode<T>> childrenForProperty = children.get(i);
+                for (int j = childrenForProperty.size() - 1; j >= 0; j--) {
+                    toVisit.push(childrenForProperty.get(j));
+                    parentOfVisit.push(currentIndex);
+                }
+            }
+        }
+        checkArgument(nextIndex == nNodes, "Tree size does not match the number of nodes visited");
+
+        // Second pass: compute the property slots and the child ranges
+        final int[] propertyOffsets = new int[nNodes + 1];
+        final int[] childOffsets = new int[nSlots + 1];
+        final int[] nextChildPosition = new int[nNodes];
+        final int[] children = new int[Math.max(nNodes - 1, 0)];
+
+        final ArrayDeque<TreeNode<T>> toCount = new ArrayDeque<TreeNode<T>>();
+        toCount.push(tree);
+        int currentNode = 0;
+        int currentSlot = 0;
+        int currentChildPosition = 0;
+        while (!toCount.isEmpty()) {
+            final TreeNode<T> current = toCount.pop();
+            propertyOffsets[currentNode] = currentSlot;
+            nextChildPosition[currentNode] = currentChildPosition;
+
+            final List<List<TreeNode<T>>> nodeChildren = current.getChildrenByProperty();
+            for (int i = 0; i < nodeChildren.size(); i++) {
+                childOffsets[currentSlot] = currentChildPosition;
+                currentChildPosition += nodeChildren.get(i).size();
+                currentSlot++;
+            }
+            for (int i = nodeChildren.size() - 1; i >= 0; i--) {
+                final List<TreeNode<T>> childrenForProperty = nodeChildren.get(i);
+                for (int j = childrenForProperty.size() - 1; j >= 0; j--) {
+                    toCount.push(childrenForProperty.get(j));
+                }
+            }
+            currentNode++;
+        }
+        propertyOffsets[nNodes] = currentSlot;
+        childOffsets[nSlots] = currentChildPosition;
+
+        // Children of a node appear in pre-order exactly in (property, index)
+        // order, so they can be filled in sequentially.
+        for (int i = 1; i < nNodes; i++) {
+            final int parent = parents[i];
+            children[nextChildPosition[parent]] = i;
+            nextChildPosition[parent]++;
+        }
+
+        final int[] subtreeEnds = new int[nNodes];
+        for (int i = 0; i < nNodes; i++) {
+            subtreeEnds[i] = i + 1;
+        }
+        for (int i = nNodes - 1; i > 0; i--) {
+            final int parent = parents[i];
+            if (subtreeEnds[i] > subtreeEnds[parent]) {
+                subtreeEnds[parent] = subtreeEnds[i];
+            }
+        }
+
+        return new FlatTree(symbols, parents, subtreeEnds, propertyOffsets, childOffsets, children, rootFlags);
+    }
+
+    /**
+     * The symbol of each node.
+     */
+    private final int[] symbols;
+
+    /**
+     * The parent of each node. The root has -1.
+     */
+    private final int[] parents;
+
+    /**
+     * The (exclusive) end index of the subtree of each node.
+     */
+    private final int[] subtreeEnds;
+
+    /**
+     * The first property slot of each node. The slots of node i are
+     * [propertyOffsets[i], propertyOffsets[i+1]).
+     */
+    private final int[] propertyOffsets;
+
+    /**
+     * The first position in children of each property slot. The children of
+     * slot s are [childOffsets[s], childOffsets[s+1]).
+     */
+    private final int[] childOffsets;
+
+    /**
+     * The node indexes of the children, grouped by property slot.
+     */
+    private final int[] children;
+
+    /**
+     * The root flags (if any).
+     */
+    private final BitSet rootFlags;
+
+    private FlatTree(final int[] symbols, final int[] parents, final int[] subtreeEnds, final int[] propertyOffsets,
+            final int[] childOffsets, final int[] children, final BitSet rootFlags) {
+        this.symbols = symbols;
+        this.parents = parents;
+        this.subtreeEnds = subtreeEnds;
+        this.propertyOffsets = propertyOffsets;
+        this.childOffsets = childOffsets;
+        this.children = children;
+        this.rootFlags = rootFlags;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final FlatTree other = (FlatTree) obj;
+        if (symbols.length != other.symbols.length) {
+            return false;
+        }
+        // The children array is fully determined by the node order and the
+        // slot sizes, so there is no need to compare it.
+        return Arrays.equals(symbols, other.symbols) && Arrays.equals(propertyOffsets, other.propertyOffsets)
+                && Arrays.equals(childOffsets, other.childOffsets) && Objects.equal(rootFlags, other.rootFlags);
+    }
+
+    /**
+     * Visit the children of a node, in property order.
+     *
+     * @param node
+     * @param visitor
+     */
+    public void forEachChild(final int node, final IntConsumer visitor) {
+        final int start = childOffsets[propertyOffsets[node]];
+        final int end = childOffsets[propertyOffsets[node + 1]];
+        for (int i = start; i < end; i++) {
+            visitor.accept(children[i]);
+        }
+    }
+
+    /**
+     * Visit all nodes of the subtree rooted at the given node in pre-order.
+     * This is a simple scan over the node range.
+     *
+     * @param node
+     * @param visitor
+     */
+    public void forEachNodeInSubtree(final int node, final IntConsumer visitor) {
+        final int end = subtreeEnds[node];
+        for (int i = node; i < end; i++) {
+            visitor.accept(i);
+        }
+    }
+
+    /**
+     * Return the i-th child of the node in the given property.
+     *
+     * @param node
+     * @param i
+     * @param propertyId
+     * @return
+     */
+    public int getChild(final int node, final int i, final int propertyId) {
+        final int slot = propertyOffsets[node] + checkElementIndex(propertyId, nProperties(node));
+        return children[childOffsets[slot] + checkElementIndex(i, childOffsets[slot + 1] - childOffsets[slot])];
+    }
+
+    /**
+     * Return the parent of the node, or -1 if this is the root.
+     *
+     * @param node
+     * @return
+     */
+    public int getParent(final int node) {
+        return parents[node];
+    }
+
+    /**
+     * Return the (exclusive) end of the pre-order range of the subtree rooted
+     * at node.
+     *
+     * @param node
+     * @return
+     */
+    public int getSubtreeEnd(final int node) {
+        return subtreeEnds[node];
+    }
+
+    /**
+     * Return the symbol of the given node.
+     *
+     * @param node
+     * @return
+     */
+    public int getSymbol(final int node) {
+        return symbols[node];
+    }
+
+    /**
+     * Return the size of the whole tree.
+     *
+     * @return
+     */
+    public int getTreeSize() {
+        return symbols.length;
+    }
+
+    /**
+     * Return the size of the subtree rooted at the given node.
+     *
+     * @param node
+     * @return
+     */
+    public int getTreeSize(final int node) {
+        return subtreeEnds[node] - node;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(symbols) + Arrays.hashCode(childOffsets);
+    }
+
+    /**
+     * @return true if this tree carries root flags.
+     */
+    public boolean hasRootFlags() {
+        return rootFlags != null;
+    }
+
+    /**
+     * Return true if the node is a leaf.
+     *
+     * @param node
+     * @return
+     */
+    public boolean isLeaf(final int node) {
+        return subtreeEnds[node] == node + 1;
+    }
+
+    /**
+     * Return the root flag of the node.
+     *
+     * @param node
+     * @return
+     */
+    public boolean isRoot(final int node) {
+        checkArgument(rootFlags != null, "This tree does not carry root flags");
+        return rootFlags.get(checkElementIndex(node, symbols.length));
+    }
+
+    /**
+     * Return the number of children of a node for the given property.
+     *
+     * @param node
+     * @param propertyId
+     * @return
+     */
+    public int nChildren(final int node, final int propertyId) {
+        final int slot = propertyOffsets[node] + checkElementIndex(propertyId, nProperties(node));
+        return childOffsets[slot + 1] - childOffsets[slot];
+    }
+
+    /**
+     * Return the number of properties of a node.
+     *
+     * @param node
+     * @return
+     */
+    public int nProperties(final int node) {
+        return propertyOffsets[node + 1] - propertyOffsets[node];
+    }
+
+    /**
+     * Returns true if this tree partially matches the other tree, with the
+     * same semantics as
+     * {@link TreeNode#partialMatch(TreeNode, boolean)} when nodes are compared
+     * by their symbol.
+     *
+     * @param other
+     * @param requireAllChildren
+     * @return
+     */
+    public boolean partialMatch(final FlatTree other, final boolean requireAllChildren) {
+        return partialMatch(0, other, 0, requireAllChildren);
+    }
+
+    /**
+     * Returns true if the subtree at thisNode partially matches the subtree of
+     * the other tree at otherNode. Symbol equality is used for comparing nodes.
+     *
+     * @param thisNode
+     * @param other
+     * @param otherNode
+     * @param requireAllChildren
+     * @return
+     */
+    public boolean partialMatch(final int thisNode, final FlatTree other, final int otherNode,
+            final boolean requireAllChildren) {
+        // The stack needs at most as many entries as there are nodes here
+        final int[] thisStack = new int[getTreeSize(thisNode)];
+        final int[] otherStack = new int[thisStack.length];
+        int stackSize = 0;
+        thisStack[stackSize] = thisNode;
+        otherStack[stackSize] = otherNode;
+        stackSize++;
+
+        while (stackSize > 0) {
+            stackSize--;
+            final int currentThis = thisStack[stackSize];
+            final int currentOther = otherStack[stackSize];
+
+            if (symbols[currentThis] != other.symbols[currentOther]) {
+                return false;
+            }
+            final int nProperties = nProperties(currentThis);
+            if (nProperties != other.nProperties(currentOther)) {
+                return false;
+            }
+
+            boolean hasChildren = false;
+            boolean sizesSame = true;
+            final int thisFirstSlot = propertyOffsets[currentThis];
+            final int otherFirstSlot = other.propertyOffsets[currentOther];
+            for (int i = 0; i < nProperties; i++) {
+                final int thisStart = childOffsets[thisFirstSlot + i];
+                final int thisSize = childOffsets[thisFirstSlot + i + 1] - thisStart;
+                final int otherStart = other.childOffsets[otherFirstSlot + i];
+                final int otherSize = other.childOffsets[otherFirstSlot + i + 1] - otherStart;
+
+                if (thisSize != otherSize) {
+                    sizesSame = false;
+                }
+                if (thisSize > 0) {
+                    hasChildren = true;
+                }
+
+                if (thisSize > otherSize && !requireAllChildren) {
+                    return false;
+                } else if (requireAllChildren && hasChildren && !sizesSame) {
+                    return false;
+                }
+
+                for (int j = 0; j < thisSize; j++) {
+                    thisStack[stackSize] = children[thisStart + j];
+                    otherStack[stackSize] = other.children[otherStart + j];
+                    stackSize++;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Set the root flag of the node.
+     *
+     * @param node
+     * @param isRoot
+     */
+    public void setRoot(final int node, final boolean isRoot) {
+        checkArgument(rootFlags != null, "This tree does not carry root flags");
+        rootFlags.set(checkElementIndex(node, symbols.length), isRoot);
+    }
+
+    /**
+     * Returns true if the subtree rooted at thisNode is structurally equal
+     * (symbols, properties and children) to the subtree of the other tree at
+     * otherNode. Root flags are not compared.
+     *
+     * @param thisNode
+     * @param other
+     * @param otherNode
+     * @return
+     */
+    public boolean subtreeEquals(final int thisNode, final FlatTree other, final int otherNode) {
+        final int size = getTreeSize(thisNode);
+        if (size != other.getTreeSize(otherNode)) {
+            return false;
+        }
+        // Pre-order numbering makes the two subtrees isomorphic iff they
+        // match node-by-node in their ranges.
+        for (int k = 0; k < size; k++) {
+            final int thisCurrent = thisNode + k;
+            final int otherCurrent = otherNode + k;
+            if (symbols[thisCurrent] != other.symbols[otherCurrent]) {
+                return false;
+            }
+            final int nProperties = nProperties(thisCurrent);
+            if (nProperties != other.nProperties(otherCurrent)) {
+                return false;
+            }
+            final int thisFirstSlot = propertyOffsets[thisCurrent];
+            final int otherFirstSlot = other.propertyOffsets[otherCurrent];
+            for (int i = 0; i < nProperties; i++) {
+                if (childOffsets[thisFirstSlot + i + 1] - childOffsets[thisFirstSlot + i] != other.childOffsets[otherFirstSlot
+                        + i + 1]
+                        - other.childOffsets[otherFirstSlot + i]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Convert this flat tree to a tree of integer symbols.
+     *
+     * @return
+     */
+    public TreeNode<Integer> toTree() {
+        return toTree(node -> symbols[node]);
+    }
+
+    /**
+     * Convert this flat tree to a TreeNode tree, creating the data of each
+     * node from its index.
+     *
+     * @param dataOf
+     *            a function that returns the data of a node given its index
+     * @return
+     */
+    public <T extends Serializable> TreeNode<T> toTree(final IntFunction<T> dataOf) {
+        final int nNodes = symbols.length;
+        final List<TreeNode<T>> nodes = Lists.newArrayListWithCapacity(nNodes);
+        for (int i = 0; i < nNodes; i++) {
+            nodes.add(TreeNode.create(dataOf.apply(i), nProperties(i)));
+        }
+        for (int i = 0; i < nNodes; i++) {
+            final TreeNode<T> current = nodes.get(i);
+            final int firstSlot = propertyOffsets[i];
+            final int nProperties = nProperties(i);
+            for (int propertyId = 0; propertyId < nProperties; propertyId++) {
+                for (int j = childOffsets[firstSlot + propertyId]; j < childOffsets[firstSlot + propertyId + 1]; j++) {
+                    current.addChildNode(nodes.get(children[j]), propertyId);
+                }
+            }
+        }
+        return nodes.get(0);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < symbols.length; i++) {
+            int depth = 0;
+            for (int parent = parents[i]; parent >= 0; parent = parents[parent]) {
+                depth++;
+            }
+            for (int d = 0; d < depth; d++) {
+                sb.append(TreeNode.SUB_NODE_STRING_PREFIX);
+            }
+            sb.append(symbols[i]);
+            if (rootFlags != null && rootFlags.get(i)) {
+                sb.append(" (Root)");
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
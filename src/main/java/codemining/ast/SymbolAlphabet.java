@@ -0,0 +1,291 @@
+/**
+ *
+ */
+package codemining.ast;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.esotericsoftware.kryo.DefaultSerializer;
+import com.esotericsoftware.kryo.serializers.JavaSerializer;
+import com.google.common.collect.BiMap;
+
+/**
+ * A thread-safe alphabet of AST node symbols. Looking up the id of an
+ * existing symbol or the symbol of an id does not lock, so that many threads
+ * can extract trees concurrently. Only the insertion of new symbols is
+ * serialized. Ids are assigned densely and never change.
+ *
+ * Mappings cannot be removed.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+@DefaultSerializer(JavaSerializer.class)
+public class SymbolAlphabet extends AbstractMap<Integer, AstNodeSymbol>
+		implements BiMap<Integer, AstNodeSymbol>, Serializable {
+
+	/**
+	 * The inverse view of the alphabet.
+	 *
+	 */
+	private final class Inverse extends AbstractMap<AstNodeSymbol, Integer>
+			implements BiMap<AstNodeSymbol, Integer> {
+
+		@Override
+		public boolean containsKey(final Object key) {
+			return ids.containsKey(key);
+		}
+
+		@Override
+		public boolean containsValue(final Object value) {
+			return SymbolAlphabet.this.containsKey(value);
+		}
+
+		@Override
+		public Set<Entry<AstNodeSymbol, Integer>> entrySet() {
+			return Collections.unmodifiableMap(ids).entrySet();
+		}
+
+		@Override
+		public Integer forcePut(final AstNodeSymbol key, final Integer value) {
+			throw new UnsupportedOperationException(
+					"Symbols cannot be remapped");
+		}
+
+		@Override
+		public Integer get(final Object key) {
+			return ids.get(key);
+		}
+
+		@Override
+		public BiMap<Integer, AstNodeSymbol> inverse() {
+			return SymbolAlphabet.this;
+		}
+
+		@Override
+		public Integer put(final AstNodeSymbol key, final Integer value) {
+			final Integer previousId = ids.get(key);
+			SymbolAlphabet.this.put(value, key);
+			return previousId;
+		}
+
+		@Override
+		public int size() {
+			return ids.size();
+		}
+
+		@Override
+		public Set<Integer> values() {
+			return SymbolAlphabet.this.keySet();
+		}
+	}
+
+	private static final long serialVersionUID = 5406000719311519154L;
+
+	private static final int INITIAL_CAPACITY = 256;
+
+	/**
+	 * The id of each symbol.
+	 */
+	private final ConcurrentHashMap<AstNodeSymbol, Integer> ids = new ConcurrentHashMap<AstNodeSymbol, Integer>();
+
+	/**
+	 * The symbol of each id. The array is only replaced (and its elements
+	 * written) while holding the lock of this object and is always written
+	 * after its elements, so that readers see a consistent array.
+	 */
+	private volatile AstNodeSymbol[] symbols = new AstNodeSymbol[INITIAL_CAPACITY];
+
+	/**
+	 * The next id to assign.
+	 */
+	private int nextId = 0;
+
+	public SymbolAlphabet() {
+	}
+
+	/**
+	 * Create an alphabet that contains the given mappings.
+	 *
+	 * @param alphabet
+	 */
+	public SymbolAlphabet(final Map<Integer, AstNodeSymbol> alphabet) {
+		putAll(alphabet);
+	}
+
+	@Override
+	public boolean containsKey(final Object key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public boolean containsValue(final Object value) {
+		return ids.containsKey(value);
+	}
+
+	@Override
+	public Set<Entry<Integer, AstNodeSymbol>> entrySet() {
+		return new AbstractSet<Entry<Integer, AstNodeSymbol>>() {
+
+			@Override
+			public Iterator<Entry<Integer, AstNodeSymbol>> iterator() {
+				final AstNodeSymbol[] currentSymbols = symbols;
+				return new Iterator<Entry<Integer, AstNodeSymbol>>() {
+					int nextPos = findNext(0);
+
+					private int findNext(final int from) {
+						int pos = from;
+						while (pos < currentSymbols.length
+								&& currentSymbols[pos] == null) {
+							pos++;
+						}
+						return pos;
+					}
+
+					@Override
+					public boolean hasNext() {
+						return nextPos < currentSymbols.length;
+					}
+
+					@Override
+					public Entry<Integer, AstNodeSymbol> next() {
+						if (!hasNext()) {
+							throw new NoSuchElementException();
+						}
+						final Entry<Integer, AstNodeSymbol> entry = new SimpleImmutableEntry<Integer, AstNodeSymbol>(
+								nextPos, currentSymbols[nextPos]);
+						nextPos = findNext(nextPos + 1);
+						return entry;
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return ids.size();
+			}
+		};
+	}
+
+	@Override
+	public AstNodeSymbol forcePut(final Integer key, final AstNodeSymbol value) {
+		throw new UnsupportedOperationException("Symbols cannot be remapped");
+	}
+
+	@Override
+	public AstNodeSymbol get(final Object key) {
+		if (!(key instanceof Integer)) {
+			return null;
+		}
+		final int id = (Integer) key;
+		final AstNodeSymbol[] currentSymbols = symbols;
+		if (id < 0 || id >= currentSymbols.length) {
+			return null;
+		}
+		return currentSymbols[id];
+	}
+
+	/**
+	 * Return the id of the given symbol or -1 if it is not in the alphabet.
+	 *
+	 * @param symbol
+	 * @return
+	 */
+	public int getId(final AstNodeSymbol symbol) {
+		final Integer id = ids.get(symbol);
+		if (id == null) {
+			return -1;
+		}
+		return id;
+	}
+
+	/**
+	 * Return the id of the symbol, adding it to the alphabet if it does not
+	 * exist. New symbols are locked from changes, so that their id remains
+	 * valid.
+	 *
+	 * @param symbol
+	 * @return
+	 */
+	public int getOrAddId(final AstNodeSymbol symbol) {
+		final Integer id = ids.get(symbol);
+		if (id != null) {
+			return id;
+		}
+		synchronized (this) {
+			final Integer addedId = ids.get(symbol);
+			if (addedId != null) {
+				return addedId;
+			}
+			symbol.lockFromChanges();
+			final int newId = nextId;
+			store(newId, symbol);
+			return newId;
+		}
+	}
+
+	@Override
+	public BiMap<AstNodeSymbol, Integer> inverse() {
+		return new Inverse();
+	}
+
+	@Override
+	public synchronized AstNodeSymbol put(final Integer key,
+			final AstNodeSymbol value) {
+		checkNotNull(key);
+		checkNotNull(value);
+		checkArgument(key >= 0, "Symbol ids cannot be negative");
+		final Integer existingId = ids.get(value);
+		if (existingId != null) {
+			checkArgument(existingId.equals(key), "value already present: %s",
+					value);
+			return value;
+		}
+		final AstNodeSymbol previous = get(key);
+		checkArgument(previous == null,
+				"Symbol id %s is already mapped to %s", key, previous);
+		store(key, value);
+		return null;
+	}
+
+	@Override
+	public int size() {
+		return ids.size();
+	}
+
+	/**
+	 * Store the given mapping. Must be called while holding the lock.
+	 *
+	 * @param id
+	 * @param symbol
+	 */
+	private void store(final int id, final AstNodeSymbol symbol) {
+		AstNodeSymbol[] currentSymbols = symbols;
+		if (id >= currentSymbols.length) {
+			currentSymbols = Arrays.copyOf(currentSymbols,
+					Math.max(2 * currentSymbols.length, id + 1));
+		}
+		currentSymbols[id] = symbol;
+		symbols = currentSymbols;
+		ids.put(symbol, id);
+		nextId = Math.max(nextId, id + 1);
+	}
+
+	@Override
+	public Set<AstNodeSymbol> values() {
+		return Collections.unmodifiableSet(ids.keySet());
+	}
+
+}
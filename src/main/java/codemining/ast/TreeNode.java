@@ -142,6 +142,43 @@ public final class TreeNode<T extends Serializable> implements Serializable {
      */
     public static final String SUB_NODE_STRING_PREFIX = "-";
 
+    /**
+     * The multiplier used when combining structural hashes.
+     */
+    private static final int HASH_MULTIPLIER = 31;
+
+    /**
+     * A constant mixed into the structural hash at the start of each property,
+     * so that moving a child to another property changes the hash.
+     */
+    private static final int PROPERTY_HASH_SEED = 17;
+
+    /**
+     * Combine a structural hash with a child's hash. The structural hash of a
+     * node starts with the hash of its data, calls
+     * {@link #combinePropertyHash(int)} at the start of each property and this
+     * function for each child in that property. This allows computing the hash
+     * of a (virtual) tree without materializing it.
+     *
+     * @param hash
+     * @param childHash
+     * @return
+     */
+    public static int combineChildHash(final int hash, final int childHash) {
+        return HASH_MULTIPLIER * hash + childHash;
+    }
+
+    /**
+     * Combine a structural hash with the start of a new property.
+     *
+     * @see #combineChildHash(int, int)
+     * @param hash
+     * @return
+     */
+    public static int combinePropertyHash(final int hash) {
+        return HASH_MULTIPLIER * hash + PROPERTY_HASH_SEED;
+    }
+
     /**
      * Copy the children (and all (grand+)children) to the given toNode. This
      * will copy only the structure. The data will be the same.
@@ -252,6 +289,26 @@ public final class TreeNode<T extends Serializable> implements Serializable {
      */
     private final T nodeData;
 
+    /**
+     * True if the data of this immutable tree is not expected to change, so
+     * that its structural hash can be cached. False for mutable trees and for
+     * trees created by {@link #toImmutableStructure()}.
+     */
+    private final boolean immutableData;
+
+    /**
+     * The structural hash of a tree with immutable data. Computed on creation
+     * and lazily after deserialization (0 means not computed). Other trees do
+     * not use this field.
+     */
+    private transient int cachedHashCode;
+
+    /**
+     * The size of an immutable tree (0 means not computed). Mutable trees do
+     * not use this field.
+     */
+    private transient int cachedTreeSize;
+
     /**
      * Construct a Node give its data.
      *
@@ -260,6 +317,7 @@ public final class TreeNode<T extends Serializable> implements Serializable {
      */
     private TreeNode(final T name, final int nProperties) {
         nodeData = name;
+        immutableData = false;
         childrenProperties = Lists.newArrayListWithCapacity(nProperties);
         for (int i = 0; i < nProperties; i++) {
             final List<TreeNode<T>> childrenElements = Lists.newArrayList();
@@ -272,10 +330,19 @@ public final class TreeNode<T extends Serializable> implements Serializable {
      *
      * @param name
      * @param children
+     * @param immutableData
+     *            if the data is not expected to change, so the hash is cached
      */
-    private TreeNode(final T name, final List<List<TreeNode<T>>> children) {
+    private TreeNode(final T name, final List<List<TreeNode<T>>> children, final boolean immutableData) {
         nodeData = name;
         this.childrenProperties = ImmutableList.copyOf(children);
+        this.immutableData = immutableData;
+        // The children are already immutable, so this is linear in the number
+        // of direct children.
+        if (immutableData) {
+            cachedHashCode = computeStructureHash();
+        }
+        cachedTreeSize = computeTreeSize();
     }
 
     /**
@@ -332,6 +399,12 @@ public final class TreeNode<T extends Serializable> implements Serializable {
         if (!Objects.equal(nodeData, other.nodeData)) {
             return false;
         }
+        if (isImmutable() && other.isImmutable() && getTreeSize() != other.getTreeSize()) {
+            return false;
+        }
+        if (immutableData && other.immutableData && hashCode() != other.hashCode()) {
+            return false;
+        }
 
         final ArrayDeque<NodePair<T>> stack = new ArrayDeque<NodePair<T>>();
         stack.push(new NodePair<T>(this, other));
@@ -362,9 +435,16 @@ public final class TreeNode<T extends Serializable> implements Serializable {
                     final TreeNode<T> thisChild = thisChildrenByProperty.get(j);
                     final TreeNode<T> otherChild = otherChildrenByProperty.get(j);
 
+                    if (thisChild == otherChild) {
+                        continue; // Shared subtree, nothing to compare
+                    }
                     if (!Objects.equal(otherChild.getData(), thisChild.getData())) {
                         return false;
                     }
+                    if (thisChild.immutableData && otherChild.immutableData
+                            && thisChild.hashCode() != otherChild.hashCode()) {
+                        return false;
+                    }
 
                     stack.push(new NodePair<T>(thisChild, otherChild));
                 }
@@ -544,6 +624,12 @@ public final class TreeNode<T extends Serializable> implements Serializable {
      * @return
      */
     public int getTreeSize() {
+        if (isImmutable()) {
+            if (cachedTreeSize == 0) {
+                cachedTreeSize = computeTreeSize();
+            }
+            return cachedTreeSize;
+        }
         final ArrayDeque<TreeNode<T>> toLook = new ArrayDeque<TreeNode<T>>();
         int size = 1;
         toLook.push(this);
@@ -560,13 +646,70 @@ public final class TreeNode<T extends Serializable> implements Serializable {
         return size;
     }
 
+    /**
+     * Compute the structural hash of this node, using the hashes of the
+     * children. For children with immutable data these are cached.
+     *
+     * @return
+     */
+    private int computeStructureHash() {
+        int hash = nodeData == null ? 0 : nodeData.hashCode();
+        for (final List<TreeNode<T>> childrenForProperty : childrenProperties) {
+            hash = combinePropertyHash(hash);
+            for (final TreeNode<T> child : childrenForProperty) {
+                hash = combineChildHash(hash, child.hashCode());
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Compute the tree size using the sizes of the children. For immutable
+     * children these are cached.
+     *
+     * @return
+     */
+    private int computeTreeSize() {
+        int size = 1;
+        for (final List<TreeNode<T>> childrenForProperty : childrenProperties) {
+            for (final TreeNode<T> child : childrenForProperty) {
+                size += child.getTreeSize();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the hash of the full tree structure (data and children of all
+     * properties). Trees created by {@link #toImmutable()} return a cached
+     * value, so their data should not be modified afterwards. Use
+     * {@link #toImmutableStructure()} for trees whose data may change.
+     */
     @Override
     public int hashCode() {
-        if (childrenProperties.size() > 0) {
-            return Objects.hashCode(nodeData, childrenProperties.get(0).hashCode());
-        } else {
-            return Objects.hashCode(nodeData);
+        if (!immutableData) {
+            return computeStructureHash();
+        }
+        if (cachedHashCode == 0) {
+            cachedHashCode = computeStructureHash();
         }
+        return cachedHashCode;
+    }
+
+    /**
+     * @return true if this node was created by {@link #toImmutable()}, so
+     *         that its structural hash is cached.
+     */
+    public boolean hasImmutableData() {
+        return immutableData;
+    }
+
+    /**
+     * @return true if this node was created by {@link #toImmutable()} or
+     *         {@link #toImmutableStructure()}.
+     */
+    public boolean isImmutable() {
+        return childrenProperties instanceof ImmutableList;
     }
 
     /**
@@ -778,20 +921,37 @@ public final class TreeNode<T extends Serializable> implements Serializable {
     }
 
     /**
-     * Return an immutable copy of this the subtree rooted at this node.
+     * Return an immutable copy of this the subtree rooted at this node. The
+     * data of the nodes should not be modified afterwards, since the hash of
+     * the copy is cached.
      *
      * @return
      */
     public TreeNode<T> toImmutable() {
+        return toImmutable(true);
+    }
+
+    /**
+     * Return a copy of the subtree rooted at this node with an immutable
+     * structure, but whose data may still change (e.g. the root flags of the
+     * sampled corpus trees). The hash of the copy is not cached.
+     *
+     * @return
+     */
+    public TreeNode<T> toImmutableStructure() {
+        return toImmutable(false);
+    }
+
+    private TreeNode<T> toImmutable(final boolean immutableData) {
         final List<List<TreeNode<T>>> immutableProperties = Lists.newArrayList();
         for (int i = 0; i < childrenProperties.size(); i++) {
             final List<TreeNode<T>> immutableChildren = Lists.newArrayList();
             for (final TreeNode<T> child : childrenProperties.get(i)) {
-                immutableChildren.add(child.toImmutable());
+                immutableChildren.add(child.toImmutable(immutableData));
             }
             immutableProperties.add(ImmutableList.copyOf(immutableChildren));
         }
-        return new TreeNode<T>(nodeData, ImmutableList.copyOf(immutableProperties));
+        return new TreeNode<T>(nodeData, ImmutableList.copyOf(immutableProperties), immutableData);
     }
 
     @Override
@@ -76,7 +76,7 @@ public class BinaryJavaAstTreeExtractor extends AbstractJavaTreeExtractor {
 	}
 
 	@Override
-	public synchronized int getOrAddSymbolId(final AstNodeSymbol symbol) {
+	public int getOrAddSymbolId(final AstNodeSymbol symbol) {
 		return base.getOrAddSymbolId(symbol);
 	}
 
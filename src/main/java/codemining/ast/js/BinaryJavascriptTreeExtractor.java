@@ -57,7 +57,7 @@ public class BinaryJavascriptTreeExtractor extends JavascriptTreeExtractor {
 	}
 
 	@Override
-	public synchronized int getOrAddSymbolId(final AstNodeSymbol symbol) {
+	public int getOrAddSymbolId(final AstNodeSymbol symbol) {
 		return base.getOrAddSymbolId(symbol);
 	}
 
@@ -0,0 +1,48 @@
+/**
+ *
+ */
+package codemining.lm;
+
+/**
+ * The probing scheme of the open addressing hash tables of integer ids that
+ * index the rules and trees of the language models. The tables have a power
+ * of two length and are probed linearly.
+ *
+ * The memory mapped grammar files store such tables, so changing the slot
+ * function changes their format.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public final class OpenAddressing {
+
+	/**
+	 * Return the first slot of the given hash in a table of the given
+	 * (power of two) length. The hash is spread first, since the tree and
+	 * rule hashes are polynomial and their low bits are not well distributed.
+	 *
+	 * @param hash
+	 * @param tableLength
+	 * @return
+	 */
+	public static int firstSlot(final int hash, final int tableLength) {
+		final int spread = hash ^ (hash >>> 16);
+		return (spread * 0x9E3779B9) & (tableLength - 1);
+	}
+
+	/**
+	 * Return the slot to probe after the given one, in a table of the given
+	 * (power of two) length.
+	 *
+	 * @param slot
+	 * @param tableLength
+	 * @return
+	 */
+	public static int nextSlot(final int slot, final int tableLength) {
+		return (slot + 1) & (tableLength - 1);
+	}
+
+	private OpenAddressing() {
+	}
+
+}
@@ -5,12 +5,16 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.ObjIntConsumer;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.AbstractFileFilter;
@@ -25,7 +29,10 @@ import codemining.lm.ILanguageModel;
 import codemining.math.random.SampleUtils;
 
 import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMultiset;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multiset;
 import com.google.common.math.DoubleMath;
 
@@ -119,12 +126,43 @@ public abstract class AbstractContextFreeGrammar implements ILanguageModel {
 
 	}
 
+	/**
+	 * The same as the format before the rules were packed, since grammars in
+	 * that format are migrated when read.
+	 */
 	private static final long serialVersionUID = 3019243696898888854L;
 
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * The rules of a grammar serialized before the rules were packed, from
+	 * each root to the multiset of its consequents. Only set while reading
+	 * such a grammar, until it is migrated.
+	 */
+	private Map<Integer, Multiset<NodeConsequent>> grammar;
+
 	/**
-	 * The actual grammar (in symbols)
+	 * The dictionary of the rules in the grammar.
 	 */
-	protected Map<Integer, Multiset<NodeConsequent>> grammar;
+	protected CFGRuleDictionary rules;
+
+	/**
+	 * The count of each rule, indexed by the rule id.
+	 */
+	protected int[] ruleCounts;
+
+	/**
+	 * The total count of the rules of each root, indexed by the root symbol.
+	 */
+	protected int[] rootCounts;
+
+	protected ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * A lazily computed immutable snapshot of the grammar. It is invalidated
+	 * when the grammar changes.
+	 */
+	private transient volatile Map<Integer, Multiset<NodeConsequent>> grammarView;
 
 	private final ITokenizer tokenizer = new JavaTokenizer();
 
@@ -133,11 +171,30 @@ public abstract class AbstractContextFreeGrammar implements ILanguageModel {
 	 */
 	protected final AbstractTreeExtractor treeExtractor;
 
+	/**
+	 * Create a copy of the given grammar.
+	 *
+	 * @param original
+	 */
+	protected AbstractContextFreeGrammar(
+			final AbstractContextFreeGrammar original) {
+		treeExtractor = original.treeExtractor;
+		original.lock.readLock().lock();
+		try {
+			rules = new CFGRuleDictionary(original.rules);
+			ruleCounts = original.ruleCounts.clone();
+			rootCounts = original.rootCounts.clone();
+		} finally {
+			original.lock.readLock().unlock();
+		}
+	}
+
 	public AbstractContextFreeGrammar(
-			final AbstractTreeExtractor treeExtractor,
-			final Map<Integer, Multiset<NodeConsequent>> grammar) {
+			final AbstractTreeExtractor treeExtractor) {
 		this.treeExtractor = checkNotNull(treeExtractor);
-		this.grammar = grammar;
+		rules = new CFGRuleDictionary();
+		ruleCounts = new int[INITIAL_CAPACITY];
+		rootCounts = new int[INITIAL_CAPACITY];
 	}
 
 	public abstract void addCFGRule(final CFGRule rule);
@@ -152,6 +209,13 @@ public abstract class AbstractContextFreeGrammar implements ILanguageModel {
 	public abstract void addCFGRule(final int rootId,
 			final NodeConsequent ruleConsequent);
 
+	/**
+	 * Add a single packed CFG rule to this grammar.
+	 *
+	 * @param rule
+	 */
+	public abstract void addCFGRule(final PackedCFGRule rule);
+
 	/**
 	 * Add grammar rules from the given code.
 	 *
@@ -162,6 +226,35 @@ public abstract class AbstractContextFreeGrammar implements ILanguageModel {
 		addRulesFrom(tree);
 	}
 
+	/**
+	 * Add the given count to the given rule.
+	 *
+	 * @param rule
+	 * @param count
+	 */
+	protected final void addRuleCount(final PackedCFGRule rule,
+			final int count) {
+		final int root = rule.getRoot();
+		checkArgument(root >= 0, "Root symbol %s is negative", root);
+		lock.writeLock().lock();
+		try {
+			final int ruleId = rules.getOrAddId(rule);
+			if (ruleId >= ruleCounts.length) {
+				ruleCounts = Arrays.copyOf(ruleCounts, Math.max(
+						2 * ruleCounts.length, ruleId + 1));
+			}
+			if (root >= rootCounts.length) {
+				rootCounts = Arrays.copyOf(rootCounts,
+						Math.max(2 * rootCounts.length, root + 1));
+			}
+			ruleCounts[ruleId] += count;
+			rootCounts[root] += count;
+			grammarView = null;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
 	/**
 	 * Recursively update tree frequencies. I.e. when a tree is added to the
 	 * corpus, update the counts appropriately.
@@ -196,6 +289,25 @@ public abstract class AbstractContextFreeGrammar implements ILanguageModel {
 		return new CFGRule(rootId, ruleConsequent);
 	}
 
+	/**
+	 * Visit every rule of the grammar with its count. The grammar is read
+	 * locked during the visit, so the visitor must not change it.
+	 *
+	 * @param visitor
+	 */
+	public void forEachRule(final ObjIntConsumer<PackedCFGRule> visitor) {
+		lock.readLock().lock();
+		try {
+			for (int ruleId = 0; ruleId < rules.size(); ruleId++) {
+				if (ruleCounts[ruleId] > 0) {
+					visitor.accept(rules.getRule(ruleId), ruleCounts[ruleId]);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
 	/**
 	 * Generate a random tree based on this CFG.
 	 *
@@ -207,6 +319,7 @@ public abstract class AbstractContextFreeGrammar implements ILanguageModel {
 		final ArrayDeque<TreeNode<Integer>> toVisit = new ArrayDeque<TreeNode<Integer>>();
 		toVisit.push(root);
 
+		final Map<Integer, Multiset<NodeConsequent>> grammar = getInternalGrammar();
 		while (!toVisit.isEmpty()) {
 			final TreeNode<Integer> currentNode = toVisit.pop();
 			final Multiset<NodeConsequent> productions = grammar
@@ -266,15 +379,15 @@ public abstract class AbstractContextFreeGrammar implements ILanguageModel {
 	public double getEntropyOfRules(final ContextFreeGrammar otherCfg) {
 		double sum = 0;
 
-		for (final Entry<Integer, Multiset<NodeConsequent>> entry : otherCfg.grammar
-				.entrySet()) {
-			final int fromNode = entry.getKey();
-			for (final Multiset.Entry<NodeConsequent> toNodes : entry
-					.getValue().entrySet()) {
-				sum += toNodes.getCount()
-						* DoubleMath.log2(getMLProbability(fromNode,
-								toNodes.getElement()));
+		otherCfg.lock.readLock().lock();
+		try {
+			for (int ruleId = 0; ruleId < otherCfg.rules.size(); ruleId++) {
+				sum += otherCfg.ruleCounts[ruleId]
+						* DoubleMath.log2(getMLProbability(otherCfg.rules
+								.getRule(ruleId)));
 			}
+		} finally {
+			otherCfg.lock.readLock().unlock();
 		}
 
 		return sum;
@@ -305,8 +418,46 @@ public abstract class AbstractContextFreeGrammar implements ILanguageModel {
 		return crossEntropy;
 	}
 
+	/**
+	 * Return an immutable snapshot of the grammar, mapping each root to the
+	 * multiset of its consequents.
+	 *
+	 * @return
+	 */
 	public Map<Integer, Multiset<NodeConsequent>> getInternalGrammar() {
-		return grammar;
+		final Map<Integer, Multiset<NodeConsequent>> view = grammarView;
+		if (view != null) {
+			return view;
+		}
+
+		lock.readLock().lock();
+		try {
+			final Map<Integer, ImmutableMultiset.Builder<NodeConsequent>> builders = Maps
+					.newTreeMap();
+			for (int ruleId = 0; ruleId < rules.size(); ruleId++) {
+				final PackedCFGRule rule = rules.getRule(ruleId);
+				ImmutableMultiset.Builder<NodeConsequent> builder = builders
+						.get(rule.getRoot());
+				if (builder == null) {
+					builder = ImmutableMultiset.builder();
+					builders.put(rule.getRoot(), builder);
+				}
+				builder.addCopies(rule.getConsequent(), ruleCounts[ruleId]);
+			}
+
+			final ImmutableMap.Builder<Integer, Multiset<NodeConsequent>> viewBuilder = ImmutableMap
+					.builder();
+			for (final Entry<Integer, ImmutableMultiset.Builder<NodeConsequent>> entry : builders
+					.entrySet()) {
+				viewBuilder.put(entry.getKey(), entry.getValue().build());
+			}
+			final Map<Integer, Multiset<NodeConsequent>> newView = viewBuilder
+					.build();
+			grammarView = newView;
+			return newView;
+		} finally {
+			lock.readLock().unlock();
+		}
 	}
 
 	/**
@@ -317,23 +468,70 @@ public abstract class AbstractContextFreeGrammar implements ILanguageModel {
 	 * @return
 	 */
 	public final double getMLProbability(final int from, final NodeConsequent to) {
-		final Multiset<NodeConsequent> consequents = grammar.get(from);
-		if (consequents == null) {
-			return 1.;
-		}
+		return getMLProbability(PackedCFGRule.create(from, to));
+	}
 
-		return ((double) consequents.count(to)) / consequents.size();
+	/**
+	 * Return the maximum likelihood probability of a packed rule.
+	 *
+	 * @param rule
+	 * @return
+	 */
+	public final double getMLProbability(final PackedCFGRule rule) {
+		final int root = rule.getRoot();
+		lock.readLock().lock();
+		try {
+			if (root < 0 || root >= rootCounts.length || rootCounts[root] == 0) {
+				return 1.;
+			}
+			final int ruleId = rules.getId(rule);
+			if (ruleId == -1) {
+				return 0.;
+			}
+			return ((double) ruleCounts[ruleId]) / rootCounts[root];
+		} finally {
+			lock.readLock().unlock();
+		}
 	}
 
 	final AbstractTreeExtractor getTreeExtractor() {
 		return treeExtractor;
 	}
 
+	/**
+	 * Count the rules of a grammar that was serialized before the rules were
+	 * packed.
+	 */
+	private void migrateRules() {
+		final Map<Integer, Multiset<NodeConsequent>> oldGrammar = grammar;
+		grammar = null;
+		lock = new ReentrantReadWriteLock();
+		rules = new CFGRuleDictionary();
+		ruleCounts = new int[INITIAL_CAPACITY];
+		rootCounts = new int[INITIAL_CAPACITY];
+		for (final Entry<Integer, Multiset<NodeConsequent>> rootEntry : oldGrammar
+				.entrySet()) {
+			for (final Multiset.Entry<NodeConsequent> consequent : rootEntry
+					.getValue().entrySet()) {
+				addRuleCount(PackedCFGRule.create(rootEntry.getKey(),
+						consequent.getElement()), consequent.getCount());
+			}
+		}
+	}
+
 	@Override
 	public AbstractFileFilter modelledFilesFilter() {
 		return tokenizer.getFileFilter();
 	}
 
+	private void readObject(final ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		if (grammar != null) {
+			migrateRules();
+		}
+	}
+
 	@Override
 	public abstract void trainIncrementalModel(final Collection<File> files)
 			throws IOException;
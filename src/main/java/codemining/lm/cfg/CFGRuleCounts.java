@@ -0,0 +1,162 @@
+/**
+ *
+ */
+package codemining.lm.cfg;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+
+import codemining.ast.TreeNode;
+
+import com.esotericsoftware.kryo.DefaultSerializer;
+import com.esotericsoftware.kryo.serializers.JavaSerializer;
+
+/**
+ * The counts of CFG rules, kept in a primitive array indexed by the ids of a
+ * {@link CFGRuleDictionary}. The counts of different threads can be kept in
+ * separate objects and merged once at the end with
+ * {@link #addAll(CFGRuleCounts)}.
+ *
+ * This class is not thread-safe.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+@DefaultSerializer(JavaSerializer.class)
+public class CFGRuleCounts implements Serializable {
+
+	private static final long serialVersionUID = -4187336521394519218L;
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final CFGRuleDictionary dictionary = new CFGRuleDictionary();
+
+	/**
+	 * The count of each rule, indexed by its id.
+	 */
+	private long[] counts = new long[INITIAL_CAPACITY];
+
+	private long totalCount = 0;
+
+	/**
+	 * Add a single occurrence of the rule.
+	 *
+	 * @param rule
+	 */
+	public void add(final PackedCFGRule rule) {
+		add(rule, 1);
+	}
+
+	/**
+	 * Add the given number of occurrences of the rule.
+	 *
+	 * @param rule
+	 * @param count
+	 */
+	public void add(final PackedCFGRule rule, final long count) {
+		checkNotNull(rule);
+		checkArgument(count >= 0, "Count must be non-negative, but is %s",
+				count);
+		final int id = dictionary.getOrAddId(rule);
+		if (id >= counts.length) {
+			counts = Arrays.copyOf(counts, Math.max(2 * counts.length, id + 1));
+		}
+		counts[id] += count;
+		totalCount += count;
+	}
+
+	/**
+	 * Add all the counts of the other object to this one.
+	 *
+	 * @param other
+	 */
+	public void addAll(final CFGRuleCounts other) {
+		checkNotNull(other);
+		for (int id = 0; id < other.size(); id++) {
+			add(other.dictionary.getRule(id), other.counts[id]);
+		}
+	}
+
+	/**
+	 * Add the rules of all the non-leaf nodes of the given tree, as
+	 * {@link ContextFreeGrammar#addRulesFrom(TreeNode)} does.
+	 *
+	 * @param node
+	 */
+	public void addRulesFrom(final TreeNode<Integer> node) {
+		checkNotNull(node);
+
+		final ArrayDeque<TreeNode<Integer>> toVisit = new ArrayDeque<TreeNode<Integer>>();
+		toVisit.push(node);
+
+		while (!toVisit.isEmpty()) {
+			final TreeNode<Integer> currentNode = toVisit.pop();
+			add(PackedCFGRule.create(currentNode));
+			for (final List<TreeNode<Integer>> childProperty : currentNode
+					.getChildrenByProperty()) {
+				for (final TreeNode<Integer> child : childProperty) {
+					if (!child.isLeaf()) {
+						toVisit.push(child);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return the count of the given rule.
+	 *
+	 * @param rule
+	 * @return
+	 */
+	public long count(final PackedCFGRule rule) {
+		final int id = dictionary.getId(rule);
+		return id < 0 ? 0 : counts[id];
+	}
+
+	/**
+	 * Return the count of the rule with the given id.
+	 *
+	 * @param id
+	 * @return
+	 */
+	public long getCount(final int id) {
+		checkElementIndex(id, size());
+		return counts[id];
+	}
+
+	/**
+	 * Return the rule with the given id. The ids are dense in [0, size()).
+	 *
+	 * @param id
+	 * @return
+	 */
+	public PackedCFGRule getRule(final int id) {
+		return dictionary.getRule(id);
+	}
+
+	/**
+	 * Return the sum of the counts of all the rules.
+	 *
+	 * @return
+	 */
+	public long getTotalCount() {
+		return totalCount;
+	}
+
+	/**
+	 * Return the number of distinct rules.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return dictionary.size();
+	}
+
+}
@@ -0,0 +1,167 @@
+/**
+ *
+ */
+package codemining.lm.cfg;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+import codemining.lm.OpenAddressing;
+
+import com.esotericsoftware.kryo.DefaultSerializer;
+import com.esotericsoftware.kryo.serializers.JavaSerializer;
+
+/**
+ * A dictionary assigning a dense integer id to each distinct
+ * {@link PackedCFGRule}, so that rule statistics can be kept in primitive
+ * arrays indexed by the rule id. Ids are assigned in insertion order and are
+ * never released.
+ *
+ * This class is not thread-safe.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+@DefaultSerializer(JavaSerializer.class)
+public class CFGRuleDictionary implements Serializable {
+
+	private static final long serialVersionUID = 6110483377813932263L;
+
+	private static final int EMPTY_SLOT = -1;
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * The open addressing hash table containing ids. It is rebuilt after
+	 * deserialization.
+	 */
+	private transient int[] table;
+
+	/**
+	 * The rule of each id.
+	 */
+	private PackedCFGRule[] rules;
+
+	private int size = 0;
+
+	public CFGRuleDictionary() {
+		table = new int[INITIAL_CAPACITY];
+		Arrays.fill(table, EMPTY_SLOT);
+		rules = new PackedCFGRule[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Copy constructor.
+	 *
+	 * @param other
+	 */
+	public CFGRuleDictionary(final CFGRuleDictionary other) {
+		table = other.table.clone();
+		rules = other.rules.clone();
+		size = other.size;
+	}
+
+	/**
+	 * Return the slot that contains the given rule or the empty slot where it
+	 * should be inserted.
+	 *
+	 * @param rule
+	 * @return
+	 */
+	private int findSlot(final PackedCFGRule rule) {
+		int slot = OpenAddressing.firstSlot(rule.hashCode(), table.length);
+		while (true) {
+			final int id = table[slot];
+			if (id == EMPTY_SLOT || rules[id].equals(rule)) {
+				return slot;
+			}
+			slot = OpenAddressing.nextSlot(slot, table.length);
+		}
+	}
+
+	/**
+	 * Return the id of the given rule or -1 if the rule is not in the
+	 * dictionary.
+	 *
+	 * @param rule
+	 * @return
+	 */
+	public int getId(final PackedCFGRule rule) {
+		return table[findSlot(rule)];
+	}
+
+	/**
+	 * Return the id of the given rule, adding it to the dictionary if it has
+	 * not been seen before.
+	 *
+	 * @param rule
+	 * @return
+	 */
+	public int getOrAddId(final PackedCFGRule rule) {
+		int slot = findSlot(rule);
+		if (table[slot] != EMPTY_SLOT) {
+			return table[slot];
+		}
+
+		if (4 * (size + 1) > 3 * table.length) {
+			rehash(2 * table.length);
+			slot = findSlot(rule);
+		}
+		if (size == rules.length) {
+			rules = Arrays.copyOf(rules, 2 * rules.length);
+		}
+		final int id = size;
+		rules[id] = rule;
+		table[slot] = id;
+		size++;
+		return id;
+	}
+
+	/**
+	 * Return the rule with the given id.
+	 *
+	 * @param id
+	 * @return
+	 */
+	public PackedCFGRule getRule(final int id) {
+		checkElementIndex(id, size);
+		return rules[id];
+	}
+
+	private void readObject(final ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		int capacity = INITIAL_CAPACITY;
+		while (4 * (size + 1) > 3 * capacity) {
+			capacity *= 2;
+		}
+		rehash(capacity);
+	}
+
+	private void rehash(final int capacity) {
+		table = new int[capacity];
+		Arrays.fill(table, EMPTY_SLOT);
+		for (int id = 0; id < size; id++) {
+			int slot = OpenAddressing.firstSlot(rules[id].hashCode(), capacity);
+			while (table[slot] != EMPTY_SLOT) {
+				slot = OpenAddressing.nextSlot(slot, capacity);
+			}
+			table[slot] = id;
+		}
+	}
+
+	/**
+	 * Return the number of rules in the dictionary. All ids are smaller than
+	 * this.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+}
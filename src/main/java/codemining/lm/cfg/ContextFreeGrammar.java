@@ -3,6 +3,7 @@
  */
 package codemining.lm.cfg;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.io.File;
@@ -10,7 +11,6 @@ import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 
 import org.apache.commons.io.FileUtils;
@@ -25,9 +25,6 @@ import codemining.util.parallel.ParallelThreadPool;
 
 import com.esotericsoftware.kryo.DefaultSerializer;
 import com.esotericsoftware.kryo.serializers.JavaSerializer;
-import com.google.common.collect.ConcurrentHashMultiset;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Multiset;
 
 /**
  * A context-free grammar language model.
@@ -85,11 +82,23 @@ public class ContextFreeGrammar extends AbstractContextFreeGrammar {
 	private static final Logger LOGGER = Logger
 			.getLogger(ContextFreeGrammar.class.getName());
 
+	/**
+	 * The same as the format before the rules were packed, since grammars in
+	 * that format are migrated when read.
+	 */
 	private static final long serialVersionUID = -7892945140311811861L;
 
+	/**
+	 * Create a copy of the given grammar.
+	 *
+	 * @param original
+	 */
+	public ContextFreeGrammar(final AbstractContextFreeGrammar original) {
+		super(original);
+	}
+
 	public ContextFreeGrammar(final AbstractTreeExtractor treeExtractor) {
-		super(treeExtractor, Maps
-				.<Integer, Multiset<NodeConsequent>> newConcurrentMap());
+		super(treeExtractor);
 	}
 
 	@Override
@@ -99,25 +108,23 @@ public class ContextFreeGrammar extends AbstractContextFreeGrammar {
 
 	@Override
 	public void addCFGRule(final int rootId, final NodeConsequent ruleConsequent) {
-		Multiset<NodeConsequent> ruleProduction;
-		final Multiset<NodeConsequent> tempMultiset = ConcurrentHashMultiset
-				.create();
-
-		if (grammar instanceof ConcurrentMap) {
-			final ConcurrentMap<Integer, Multiset<NodeConsequent>> conGrammar = (ConcurrentMap<Integer, Multiset<NodeConsequent>>) grammar;
-			ruleProduction = conGrammar.putIfAbsent(rootId, tempMultiset);
-		} else {
-			if (grammar.containsKey(rootId)) {
-				ruleProduction = grammar.get(rootId);
-			} else {
-				ruleProduction = null;
-			}
-		}
-		if (ruleProduction == null) {
-			ruleProduction = tempMultiset;
-		}
+		addRuleCount(PackedCFGRule.create(rootId, ruleConsequent), 1);
+	}
+
+	@Override
+	public void addCFGRule(final PackedCFGRule rule) {
+		addRuleCount(rule, 1);
+	}
 
-		ruleProduction.add(ruleConsequent);
+	/**
+	 * Add the given number of occurrences of a packed CFG rule.
+	 *
+	 * @param rule
+	 * @param count
+	 */
+	public void addCFGRule(final PackedCFGRule rule, final int count) {
+		checkArgument(count > 0);
+		addRuleCount(rule, count);
 	}
 
 	/**
@@ -142,8 +149,7 @@ public class ContextFreeGrammar extends AbstractContextFreeGrammar {
 
 		while (!nodeUpdates.isEmpty()) {
 			final TreeNode<Integer> currentNode = nodeUpdates.pop();
-			final CFGRule rule = createCFRuleForNode(currentNode);
-			addCFGRule(rule.root, rule.ruleConsequent);
+			addRuleCount(PackedCFGRule.create(currentNode), 1);
 			for (final List<TreeNode<Integer>> childProperty : currentNode
 					.getChildrenByProperty()) {
 				for (final TreeNode<Integer> child : childProperty) {
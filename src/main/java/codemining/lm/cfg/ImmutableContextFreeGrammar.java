@@ -5,19 +5,15 @@ package codemining.lm.cfg;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.Collection;
-import java.util.Map;
-import java.util.Map.Entry;
 
 import codemining.ast.TreeNode;
 import codemining.lm.ILanguageModel;
 
 import com.esotericsoftware.kryo.DefaultSerializer;
 import com.esotericsoftware.kryo.serializers.JavaSerializer;
-import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableMultiset;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Multiset;
+import com.google.common.math.DoubleMath;
 
 /**
  * An immutable CFG.
@@ -28,11 +24,20 @@ import com.google.common.collect.Multiset;
 @DefaultSerializer(JavaSerializer.class)
 public class ImmutableContextFreeGrammar extends AbstractContextFreeGrammar {
 
+	/**
+	 * The same as the format before the rules were packed, since grammars in
+	 * that format are migrated when read.
+	 */
 	private static final long serialVersionUID = 8744879368299806736L;
 
+	/**
+	 * The log2 ML probability of each rule, indexed by its id.
+	 */
+	private double[] ruleLog2Probabilities;
+
 	public ImmutableContextFreeGrammar(final AbstractContextFreeGrammar original) {
-		super(original.treeExtractor, null);
-		grammar = getImmutableCopy(original.grammar);
+		super(original);
+		ruleLog2Probabilities = computeRuleLog2Probabilities();
 	}
 
 	@Override
@@ -46,22 +51,23 @@ public class ImmutableContextFreeGrammar extends AbstractContextFreeGrammar {
 	}
 
 	@Override
-	public void addRulesFrom(final TreeNode<Integer> node) {
+	public void addCFGRule(final PackedCFGRule rule) {
 		throw new IllegalArgumentException("Immutable CFG cannot be modified");
 	}
 
-	private Map<Integer, Multiset<NodeConsequent>> getImmutableCopy(
-			final Map<Integer, Multiset<NodeConsequent>> grammar) {
-		final Map<Integer, Multiset<NodeConsequent>> copyGrammar = Maps
-				.newHashMap();
+	@Override
+	public void addRulesFrom(final TreeNode<Integer> node) {
+		throw new IllegalArgumentException("Immutable CFG cannot be modified");
+	}
 
-		for (final Entry<Integer, Multiset<NodeConsequent>> production : grammar
-				.entrySet()) {
-			copyGrammar.put(production.getKey(),
-					ImmutableMultiset.copyOf(production.getValue()));
+	private double[] computeRuleLog2Probabilities() {
+		final double[] log2Probabilities = new double[rules.size()];
+		for (int ruleId = 0; ruleId < rules.size(); ruleId++) {
+			final int root = rules.getRule(ruleId).getRoot();
+			log2Probabilities[ruleId] = DoubleMath
+					.log2(((double) ruleCounts[ruleId]) / rootCounts[root]);
 		}
-
-		return ImmutableMap.copyOf(copyGrammar);
+		return log2Probabilities;
 	}
 
 	@Override
@@ -69,6 +75,46 @@ public class ImmutableContextFreeGrammar extends AbstractContextFreeGrammar {
 		return this;
 	}
 
+	/**
+	 * Return the id of the given rule or -1 if the rule is not in the grammar.
+	 *
+	 * @param rule
+	 * @return
+	 */
+	public int getRuleId(final CFGRule rule) {
+		return getRuleId(PackedCFGRule.create(rule));
+	}
+
+	/**
+	 * Return the id of the given packed rule or -1 if the rule is not in the
+	 * grammar.
+	 *
+	 * @param rule
+	 * @return
+	 */
+	public int getRuleId(final PackedCFGRule rule) {
+		return rules.getId(rule);
+	}
+
+	/**
+	 * Return the log2 ML probability of the rule with the given id.
+	 *
+	 * @param ruleId
+	 * @return
+	 */
+	public double getRuleLog2Probability(final int ruleId) {
+		return ruleLog2Probabilities[ruleId];
+	}
+
+	private void readObject(final ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		if (ruleLog2Probabilities == null) {
+			// A grammar serialized before the rules were packed
+			ruleLog2Probabilities = computeRuleLog2Probabilities();
+		}
+	}
+
 	@Override
 	public void trainIncrementalModel(final Collection<File> files)
 			throws IOException {
@@ -0,0 +1,186 @@
+/**
+ *
+ */
+package codemining.lm.cfg;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+import codemining.ast.TreeNode;
+import codemining.lm.cfg.AbstractContextFreeGrammar.CFGRule;
+import codemining.lm.cfg.AbstractContextFreeGrammar.NodeConsequent;
+
+import com.esotericsoftware.kryo.DefaultSerializer;
+import com.esotericsoftware.kryo.serializers.JavaSerializer;
+import com.google.common.collect.Lists;
+
+/**
+ * A compact, immutable encoding of a CFG rule in a single int array. The
+ * array contains the root, the number of properties and then, for each
+ * property, the number of its children followed by the children. The hash
+ * code is computed once.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+@DefaultSerializer(JavaSerializer.class)
+public final class PackedCFGRule implements Serializable {
+
+	private static final long serialVersionUID = 2861958541012337405L;
+
+	/**
+	 * Pack the given rule.
+	 *
+	 * @param rule
+	 * @return
+	 */
+	public static PackedCFGRule create(final CFGRule rule) {
+		return create(rule.root, rule.ruleConsequent);
+	}
+
+	/**
+	 * Pack the given rule.
+	 *
+	 * @param root
+	 * @param consequent
+	 * @return
+	 */
+	public static PackedCFGRule create(final int root,
+			final NodeConsequent consequent) {
+		final List<List<Integer>> properties = consequent.nodes;
+		final int nProperties = properties.size();
+		int length = 2 + nProperties;
+		for (int i = 0; i < nProperties; i++) {
+			length += properties.get(i).size();
+		}
+
+		final int[] symbols = new int[length];
+		symbols[0] = root;
+		symbols[1] = nProperties;
+		int pos = 2;
+		for (int i = 0; i < nProperties; i++) {
+			final List<Integer> children = properties.get(i);
+			final int nChildren = children.size();
+			symbols[pos++] = nChildren;
+			for (int j = 0; j < nChildren; j++) {
+				symbols[pos++] = children.get(j);
+			}
+		}
+		return new PackedCFGRule(symbols);
+	}
+
+	/**
+	 * Create the packed rule of the given node, without creating the
+	 * intermediate {@link NodeConsequent}.
+	 *
+	 * @param node
+	 * @return
+	 */
+	public static PackedCFGRule create(final TreeNode<Integer> node) {
+		return create(node, Integer::intValue);
+	}
+
+	/**
+	 * Create the packed rule of the given node, using the given function to
+	 * get the symbol of each node's data.
+	 *
+	 * @param node
+	 * @param symbolOf
+	 * @return
+	 */
+	public static <T extends Serializable> PackedCFGRule create(
+			final TreeNode<T> node, final ToIntFunction<T> symbolOf) {
+		final List<List<TreeNode<T>>> properties = node
+				.getChildrenByProperty();
+		final int nProperties = properties.size();
+		int length = 2 + nProperties;
+		for (int i = 0; i < nProperties; i++) {
+			length += properties.get(i).size();
+		}
+
+		final int[] symbols = new int[length];
+		symbols[0] = symbolOf.applyAsInt(node.getData());
+		symbols[1] = nProperties;
+		int pos = 2;
+		for (int i = 0; i < nProperties; i++) {
+			final List<TreeNode<T>> children = properties.get(i);
+			final int nChildren = children.size();
+			symbols[pos++] = nChildren;
+			for (int j = 0; j < nChildren; j++) {
+				symbols[pos++] = symbolOf.applyAsInt(children.get(j)
+						.getData());
+			}
+		}
+		return new PackedCFGRule(symbols);
+	}
+
+	private final int[] symbols;
+
+	private final int hash;
+
+	private PackedCFGRule(final int[] symbols) {
+		this.symbols = checkNotNull(symbols);
+		hash = Arrays.hashCode(symbols);
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (obj == this) {
+			return true;
+		}
+		if (!(obj instanceof PackedCFGRule)) {
+			return false;
+		}
+		final PackedCFGRule other = (PackedCFGRule) obj;
+		return hash == other.hash && Arrays.equals(symbols, other.symbols);
+	}
+
+	/**
+	 * Unpack the consequent of this rule.
+	 *
+	 * @return
+	 */
+	public NodeConsequent getConsequent() {
+		final int nProperties = symbols[1];
+		final NodeConsequent consequent = new NodeConsequent(nProperties);
+		int pos = 2;
+		for (int i = 0; i < nProperties; i++) {
+			final int nChildren = symbols[pos++];
+			final List<Integer> children = Lists
+					.newArrayListWithCapacity(nChildren);
+			for (int j = 0; j < nChildren; j++) {
+				children.add(symbols[pos++]);
+			}
+			consequent.nodes.add(children);
+		}
+		return consequent;
+	}
+
+	public int getRoot() {
+		return symbols[0];
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	/**
+	 * Unpack this rule.
+	 *
+	 * @return
+	 */
+	public CFGRule toCFGRule() {
+		return new CFGRule(getRoot(), getConsequent());
+	}
+
+	@Override
+	public String toString() {
+		return getRoot() + "->" + getConsequent();
+	}
+
+}
@@ -0,0 +1,131 @@
+/**
+ *
+ */
+package codemining.lm.cfg;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import codemining.ast.AbstractTreeExtractor;
+import codemining.languagetools.ParseType;
+import codemining.util.parallel.ParallelThreadPool;
+
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.Futures;
+
+/**
+ * Build a CFG from a corpus in parallel. Each thread parses files and counts
+ * their rules in its own {@link CFGRuleCounts}, so the threads do not share
+ * the grammar while training. The counts are merged once at the end into an
+ * {@link ImmutableContextFreeGrammar}.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public final class ParallelCFGBuilder {
+
+	private static final Logger LOGGER = Logger
+			.getLogger(ParallelCFGBuilder.class.getName());
+
+	private final AbstractTreeExtractor treeExtractor;
+
+	private final int nThreads;
+
+	public ParallelCFGBuilder(final AbstractTreeExtractor treeExtractor) {
+		this(treeExtractor, ParallelThreadPool.NUM_THREADS);
+	}
+
+	public ParallelCFGBuilder(final AbstractTreeExtractor treeExtractor,
+			final int nThreads) {
+		checkArgument(nThreads > 0);
+		this.treeExtractor = checkNotNull(treeExtractor);
+		this.nThreads = nThreads;
+	}
+
+	/**
+	 * Build the grammar of the given files. Files that fail to parse are
+	 * logged and skipped.
+	 *
+	 * @param files
+	 * @return
+	 */
+	public ImmutableContextFreeGrammar build(final Collection<File> files) {
+		final Queue<File> remainingFiles = new ConcurrentLinkedQueue<File>(
+				files);
+		final ExecutorService workers = Executors.newFixedThreadPool(nThreads);
+		try {
+			final List<Future<CFGRuleCounts>> threadCounts = Lists
+					.newArrayListWithCapacity(nThreads);
+			for (int i = 0; i < nThreads; i++) {
+				threadCounts.add(workers
+						.submit(() -> countRules(remainingFiles)));
+			}
+
+			final CFGRuleCounts counts = new CFGRuleCounts();
+			for (final Future<CFGRuleCounts> threadCount : threadCounts) {
+				counts.addAll(Futures.getUnchecked(threadCount));
+			}
+			return createGrammar(counts);
+		} finally {
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Count the rules of the files in the queue, until it is empty.
+	 *
+	 * @param files
+	 * @return
+	 */
+	private CFGRuleCounts countRules(final Queue<File> files) {
+		final CFGRuleCounts counts = new CFGRuleCounts();
+		File file;
+		while ((file = files.poll()) != null) {
+			try {
+				counts.addRulesFrom(treeExtractor.getTree(
+						FileUtils.readFileToString(file),
+						ParseType.COMPILATION_UNIT));
+			} catch (final Throwable e) {
+				LOGGER.warning("Failed to get AST from "
+						+ file.getAbsolutePath() + " "
+						+ ExceptionUtils.getFullStackTrace(e));
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * Create the grammar that contains the given rule counts.
+	 *
+	 * @param counts
+	 * @return
+	 */
+	public ImmutableContextFreeGrammar createGrammar(
+			final CFGRuleCounts counts) {
+		final ContextFreeGrammar grammar = new ContextFreeGrammar(
+				treeExtractor);
+		for (int ruleId = 0; ruleId < counts.size(); ruleId++) {
+			final long count = counts.getCount(ruleId);
+			if (count > 0) {
+				grammar.addCFGRule(counts.getRule(ruleId),
+						Ints.checkedCast(count));
+			}
+		}
+		return new ImmutableContextFreeGrammar(grammar);
+	}
+
+}
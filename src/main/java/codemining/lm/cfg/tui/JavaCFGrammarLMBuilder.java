@@ -12,9 +12,12 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.DirectoryFileFilter;
 import org.apache.commons.lang.exception.ExceptionUtils;
 
+import codemining.ast.AbstractTreeExtractor;
 import codemining.ast.java.BinaryJavaAstTreeExtractor;
 import codemining.ast.java.ParentTypeAnnotatedJavaAstExtractor;
 import codemining.lm.cfg.ContextFreeGrammar;
+import codemining.lm.cfg.ImmutableContextFreeGrammar;
+import codemining.lm.cfg.ParallelCFGBuilder;
 import codemining.util.serialization.Serializer;
 
 /**
@@ -53,13 +56,14 @@ public final class JavaCFGrammarLMBuilder {
 		}
 
 		try {
-			final ContextFreeGrammar glm = new ContextFreeGrammar(
-					new BinaryJavaAstTreeExtractor(
-							new ParentTypeAnnotatedJavaAstExtractor()));
+			final AbstractTreeExtractor format = new BinaryJavaAstTreeExtractor(
+					new ParentTypeAnnotatedJavaAstExtractor());
 			final Collection<File> files = FileUtils.listFiles(
-					new File(args[0]), glm.modelledFilesFilter(),
+					new File(args[0]),
+					new ContextFreeGrammar(format).modelledFilesFilter(),
 					DirectoryFileFilter.DIRECTORY);
-			glm.trainModel(files);
+			final ImmutableContextFreeGrammar glm = new ParallelCFGBuilder(
+					format).build(files);
 			Serializer.getSerializer().serialize(glm, args[1]);
 		} catch (Exception e) {
 			LOGGER.severe(ExceptionUtils.getStackTrace(e));
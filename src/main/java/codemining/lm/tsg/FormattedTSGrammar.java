@@ -10,7 +10,6 @@ import java.util.function.Function;
 
 import com.esotericsoftware.kryo.DefaultSerializer;
 import com.esotericsoftware.kryo.serializers.JavaSerializer;
-import com.google.common.collect.ConcurrentHashMultiset;
 import com.google.common.collect.Multiset;
 import com.google.common.collect.Multisets;
 
@@ -57,6 +56,11 @@ public class FormattedTSGrammar extends TSGrammar<TSGNode> {
 		treeFormat = format;
 	}
 
+	@Override
+	public FrozenTSGrammar<TSGNode> freeze() {
+		return new FrozenTSGrammar<TSGNode>(this, treeFormat);
+	}
+
 	public final String generateRandomCode() {
 		// Find compilation unit node.
 		final TreeNode<Integer> rootNode = treeFormat
@@ -84,7 +88,7 @@ public class FormattedTSGrammar extends TSGrammar<TSGNode> {
 	@Override
 	public String toString() {
 		final StringBuffer buf = new StringBuffer();
-		for (final Entry<TSGNode, ConcurrentHashMultiset<TreeNode<TSGNode>>> rootEntry : grammar
+		for (final Entry<TSGNode, ? extends Multiset<TreeNode<TSGNode>>> rootEntry : getInternalGrammar()
 				.entrySet()) {
 			if (rootEntry.getValue().entrySet().isEmpty()) {
 				continue;
@@ -128,7 +132,15 @@ public class FormattedTSGrammar extends TSGrammar<TSGNode> {
 		return buf.toString();
 	}
 
-	public String treeToString(final TreeNode<TSGNode> tree) {
+	/**
+	 * Return the string representation of a TSG tree in the given format.
+	 *
+	 * @param treeFormat
+	 * @param tree
+	 * @return
+	 */
+	public static String treeToString(final AbstractTreeExtractor treeFormat,
+			final TreeNode<TSGNode> tree) {
 		return tree.toString(new Function<TreeNode<TSGNode>, String>() {
 
 			@Override
@@ -139,4 +151,8 @@ public class FormattedTSGrammar extends TSGrammar<TSGNode> {
 			}
 		});
 	}
+
+	public String treeToString(final TreeNode<TSGNode> tree) {
+		return treeToString(treeFormat, tree);
+	}
 }
@@ -0,0 +1,499 @@
+/**
+ *
+ */
+package codemining.lm.tsg;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import codemining.ast.AbstractTreeExtractor;
+import codemining.ast.TreeNode;
+import codemining.lm.OpenAddressing;
+
+import com.esotericsoftware.kryo.DefaultSerializer;
+import com.esotericsoftware.kryo.serializers.JavaSerializer;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMultiset;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.SortedMultiset;
+import com.google.common.collect.TreeMultiset;
+
+/**
+ * An immutable TSG, optimized for inference. The rules are stored in arrays,
+ * grouped by their root, along with their counts and their posterior
+ * log2-probabilities, as computed when the grammar was frozen. Rules are
+ * looked up through an open addressing hash table. The roots, and the rules
+ * of each root, are not sorted; they are in the order that the
+ * {@link TSGrammar#getInternalGrammar()} view of the frozen grammar iterated
+ * them.
+ *
+ * Rules that are not in the grammar are scored by a copy of the posterior
+ * computer of the grammar that was frozen, which reads the counts of the
+ * frozen grammar and has its own copy of the prior. Thus, the frozen grammar
+ * does not change with (or keep alive) the original grammar. Frozen grammars
+ * are created with {@link TSGrammar#freeze()}.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+@DefaultSerializer(JavaSerializer.class)
+public class FrozenTSGrammar<T extends Serializable> extends TSGrammar<T> {
+
+	private static final long serialVersionUID = -6620212498512402580L;
+
+	/**
+	 * The roots, indexed by their root id.
+	 */
+	private final List<T> roots;
+
+	private final Map<T, Integer> rootIds;
+
+	/**
+	 * The rules of root i are in [rootOffsets[i], rootOffsets[i+1]).
+	 */
+	private final int[] rootOffsets;
+
+	/**
+	 * The total count of the rules of each root, including the UNK rules.
+	 */
+	private final int[] rootCounts;
+
+	/**
+	 * The count of the pruned (UNK) rules of each root.
+	 */
+	private final int[] rootUnkCounts;
+
+	/**
+	 * The (immutable) rules, grouped by their root in the order of roots.
+	 */
+	private final TreeNode<T>[] rules;
+
+	private final int[] ruleCounts;
+
+	/**
+	 * The cumulative count of the rules of the same root, up to and including
+	 * each rule.
+	 */
+	private final int[] cumulativeRuleCounts;
+
+	/**
+	 * The hash code of each rule.
+	 */
+	private final int[] ruleHashes;
+
+	/**
+	 * The posterior log2-probability of each rule, or null if the grammar had
+	 * no posterior computer.
+	 */
+	private final double[] ruleLog2Probs;
+
+	/**
+	 * An open addressing hash table of ruleId + 1, with 0 marking empty
+	 * slots. The length is a power of two.
+	 */
+	private final int[] ruleTable;
+
+	private final AbstractTreeExtractor treeExtractor;
+
+	private transient volatile Map<T, ImmutableMultiset<TreeNode<T>>> grammarView;
+
+	/**
+	 * Build an open addressing hash table of ruleId + 1 for the rules with
+	 * the given hash codes, with 0 marking empty slots. Rules are probed
+	 * as in {@link OpenAddressing}.
+	 *
+	 * @param ruleHashes
+	 * @return
+	 */
+	static int[] buildRuleTable(final int[] ruleHashes) {
+		final int[] table = new int[Integer.highestOneBit(Math.max(
+				2 * ruleHashes.length, 1)) << 1];
+		for (int i = 0; i < ruleHashes.length; i++) {
+			int slot = OpenAddressing.firstSlot(ruleHashes[i], table.length);
+			while (table[slot] != 0) {
+				slot = OpenAddressing.nextSlot(slot, table.length);
+			}
+			table[slot] = i + 1;
+		}
+		return table;
+	}
+
+	/**
+	 * @param grammar
+	 *            the grammar to freeze
+	 * @param treeExtractor
+	 *            the tree extractor of the grammar or null
+	 */
+	FrozenTSGrammar(final TSGrammar<T> grammar,
+			final AbstractTreeExtractor treeExtractor) {
+		if (!grammar.supportsTreeProbing()) {
+			throw new UnsupportedOperationException(
+					"Grammars that transform their trees cannot be frozen");
+		}
+		this.treeExtractor = treeExtractor;
+
+		final Map<T, ? extends Multiset<TreeNode<T>>> view = grammar
+				.getInternalGrammar();
+		roots = Lists.newArrayListWithCapacity(view.size());
+		rootIds = Maps.newHashMapWithExpectedSize(view.size());
+		rootOffsets = new int[view.size() + 1];
+		rootCounts = new int[view.size()];
+		rootUnkCounts = new int[view.size()];
+
+		int nRules = 0;
+		for (final Multiset<TreeNode<T>> productions : view.values()) {
+			for (final TreeNode<T> rule : productions.elementSet()) {
+				if (rule != grammar.UNK_NODE) {
+					nRules++;
+				}
+			}
+		}
+		@SuppressWarnings("unchecked")
+		final TreeNode<T>[] ruleArray = (TreeNode<T>[]) new TreeNode<?>[nRules];
+		rules = ruleArray;
+		ruleCounts = new int[nRules];
+		cumulativeRuleCounts = new int[nRules];
+		ruleHashes = new int[nRules];
+
+		int ruleId = 0;
+		for (final Map.Entry<T, ? extends Multiset<TreeNode<T>>> rootEntry : view
+				.entrySet()) {
+			final int rootId = roots.size();
+			roots.add(rootEntry.getKey());
+			rootIds.put(rootEntry.getKey(), rootId);
+			rootOffsets[rootId] = ruleId;
+			rootCounts[rootId] = rootEntry.getValue().size();
+
+			int cumulativeCount = 0;
+			for (final Multiset.Entry<TreeNode<T>> rule : rootEntry.getValue()
+					.entrySet()) {
+				if (rule.getElement() == grammar.UNK_NODE) {
+					rootUnkCounts[rootId] = rule.getCount();
+					continue;
+				}
+				final TreeNode<T> tree = rule.getElement();
+				rules[ruleId] = tree.hasImmutableData() ? tree : tree.toImmutable();
+				ruleCounts[ruleId] = rule.getCount();
+				cumulativeCount += rule.getCount();
+				cumulativeRuleCounts[ruleId] = cumulativeCount;
+				ruleHashes[ruleId] = rules[ruleId].hashCode();
+				ruleId++;
+			}
+		}
+		rootOffsets[roots.size()] = ruleId;
+
+		ruleTable = buildRuleTable(ruleHashes);
+
+		if (grammar.hasRulePosteriors()) {
+			ruleLog2Probs = new double[nRules];
+			for (int i = 0; i < nRules; i++) {
+				ruleLog2Probs[i] = grammar
+						.computeRulePosteriorLog2Probability(rules[i]);
+			}
+		} else {
+			ruleLog2Probs = null;
+		}
+
+		if (grammar.posteriorComputer != null) {
+			posteriorComputer = grammar.posteriorComputer.copyFor(this);
+		}
+	}
+
+	@Override
+	public void addAll(final TSGrammar<T> other) {
+		throw new UnsupportedOperationException("The grammar is frozen");
+	}
+
+	@Override
+	public void addTree(final TreeNode<T> subTree, final int count) {
+		throw new UnsupportedOperationException("The grammar is frozen");
+	}
+
+	@Override
+	public void clear() {
+		throw new UnsupportedOperationException("The grammar is frozen");
+	}
+
+	@Override
+	public SortedMultiset<Integer> computeGrammarTreeSizeStats() {
+		final SortedMultiset<Integer> treeSizes = TreeMultiset.create();
+		for (int i = 0; i < rules.length; i++) {
+			treeSizes.add(rules[i].getTreeSize(), ruleCounts[i]);
+		}
+		for (final int unkCount : rootUnkCounts) {
+			if (unkCount > 0) {
+				treeSizes.add(UNK_NODE.getTreeSize(), unkCount);
+			}
+		}
+		return treeSizes;
+	}
+
+	/**
+	 * Return the precomputed posterior of the rules in the grammar. Other
+	 * rules are scored by the posterior computer.
+	 */
+	@Override
+	public double computeRulePosteriorLog2Probability(final TreeNode<T> tree) {
+		if (ruleLog2Probs != null) {
+			final int ruleId = getRuleId(tree);
+			if (ruleId != -1) {
+				return ruleLog2Probs[ruleId];
+			}
+		}
+		return super.computeRulePosteriorLog2Probability(tree);
+	}
+
+	@Override
+	public long countAllTrees() {
+		long totalCount = 0;
+		for (final int rootCount : rootCounts) {
+			totalCount += rootCount;
+		}
+		return totalCount;
+	}
+
+	@Override
+	public int countDistinctTrees() {
+		return rules.length;
+	}
+
+	@Override
+	public int countTreeOccurences(final int treeHash,
+			final Predicate<TreeNode<T>> treeMatcher) {
+		for (int slot = OpenAddressing.firstSlot(treeHash, ruleTable.length); ruleTable[slot] != 0; slot = OpenAddressing
+				.nextSlot(slot, ruleTable.length)) {
+			final int ruleId = ruleTable[slot] - 1;
+			if (ruleHashes[ruleId] == treeHash
+					&& treeMatcher.apply(rules[ruleId])) {
+				return ruleCounts[ruleId];
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public int countTreeOccurences(final TreeNode<T> root) {
+		final int ruleId = getRuleId(root);
+		if (ruleId == -1) {
+			return 0;
+		}
+		return ruleCounts[ruleId];
+	}
+
+	@Override
+	public int countTreesWithRoot(final T root) {
+		final Integer rootId = rootIds.get(root);
+		if (rootId == null) {
+			return 0;
+		}
+		return rootCounts[rootId];
+	}
+
+	@Override
+	public FrozenTSGrammar<T> freeze() {
+		return this;
+	}
+
+	/**
+	 * Expand the leaves of the given tree with random rules, drawn in
+	 * proportion to their counts. Leaves whose root has no rules, or that
+	 * draw an UNK rule, are not expanded.
+	 */
+	@Override
+	public TreeNode<T> generateRandom(final TreeNode<T> root) {
+		final Integer topRootId = rootIds.get(root.getData());
+		checkArgument(topRootId != null && rootCounts[topRootId] > 0);
+
+		final ArrayDeque<TreeNode<T>> toVisit = new ArrayDeque<TreeNode<T>>();
+		toVisit.push(root);
+
+		while (!toVisit.isEmpty()) {
+			final TreeNode<T> currentNode = toVisit.pop();
+			final boolean isNonTerminal = currentNode.nProperties() > 0;
+
+			if (currentNode.isLeaf() && isNonTerminal) {
+				final Integer rootId = rootIds.get(currentNode.getData());
+				if (rootId == null) {
+					continue;
+				}
+				final int ruleId = getRandomRule(rootId);
+				if (ruleId == -1) {
+					continue;
+				}
+				final TreeNode<T> selectedCopy = rules[ruleId].deepCopy();
+				for (int i = 0; i < selectedCopy.nProperties(); i++) {
+					for (final TreeNode<T> child : selectedCopy
+							.getChildrenByProperty().get(i)) {
+						currentNode.addChildNode(child, i);
+						toVisit.push(child);
+					}
+				}
+			} else if (!currentNode.isLeaf()) {
+				for (final List<TreeNode<T>> childrenForProperty : currentNode
+						.getChildrenByProperty()) {
+					for (final TreeNode<T> node : childrenForProperty) {
+						toVisit.push(node);
+					}
+				}
+			}
+		}
+
+		return root;
+	}
+
+	/**
+	 * Return an immutable view of the TSG. The view is built on first use.
+	 */
+	@Override
+	public Map<T, ? extends Multiset<TreeNode<T>>> getInternalGrammar() {
+		final Map<T, ImmutableMultiset<TreeNode<T>>> view = grammarView;
+		if (view != null) {
+			return view;
+		}
+		final ImmutableMap.Builder<T, ImmutableMultiset<TreeNode<T>>> grammar = ImmutableMap
+				.builder();
+		for (int rootId = 0; rootId < roots.size(); rootId++) {
+			final ImmutableMultiset.Builder<TreeNode<T>> productions = ImmutableMultiset
+					.builder();
+			for (int ruleId = rootOffsets[rootId]; ruleId < rootOffsets[rootId + 1]; ruleId++) {
+				productions.addCopies(rules[ruleId], ruleCounts[ruleId]);
+			}
+			productions.addCopies(UNK_NODE, rootUnkCounts[rootId]);
+			grammar.put(roots.get(rootId), productions.build());
+		}
+		final Map<T, ImmutableMultiset<TreeNode<T>>> newView = grammar.build();
+		grammarView = newView;
+		return newView;
+	}
+
+	/**
+	 * Return the number of distinct roots.
+	 *
+	 * @return
+	 */
+	int getNumberOfRoots() {
+		return roots.size();
+	}
+
+	/**
+	 * Return the id of a random rule of the given root, in proportion to
+	 * the rule counts, or -1 if an UNK rule was drawn.
+	 *
+	 * @param rootId
+	 * @return
+	 */
+	private int getRandomRule(final int rootId) {
+		final int draw = ThreadLocalRandom.current().nextInt(
+				rootCounts[rootId]);
+		final int from = rootOffsets[rootId];
+		final int to = rootOffsets[rootId + 1];
+		if (from == to || draw >= cumulativeRuleCounts[to - 1]) {
+			return -1;
+		}
+		final int pos = Arrays.binarySearch(cumulativeRuleCounts, from, to,
+				draw + 1);
+		return pos >= 0 ? pos : -pos - 1;
+	}
+
+	T getRoot(final int rootId) {
+		return roots.get(rootId);
+	}
+
+	int getRootCount(final int rootId) {
+		return rootCounts[rootId];
+	}
+
+	int getRootUnkCount(final int rootId) {
+		return rootUnkCounts[rootId];
+	}
+
+	TreeNode<T> getRule(final int ruleId) {
+		return rules[ruleId];
+	}
+
+	int getRuleCount(final int ruleId) {
+		return ruleCounts[ruleId];
+	}
+
+	/**
+	 * Return the id of the given rule or -1 if it is not in the grammar.
+	 *
+	 * @param tree
+	 * @return
+	 */
+	int getRuleId(final TreeNode<T> tree) {
+		final int hash = tree.hashCode();
+		for (int slot = OpenAddressing.firstSlot(hash, ruleTable.length); ruleTable[slot] != 0; slot = OpenAddressing
+				.nextSlot(slot, ruleTable.length)) {
+			final int ruleId = ruleTable[slot] - 1;
+			if (ruleHashes[ruleId] == hash && rules[ruleId].equals(tree)) {
+				return ruleId;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Return the precomputed posterior log2-probability of the given rule.
+	 * Only valid if {@link #hasRulePosteriors()} is true.
+	 *
+	 * @param ruleId
+	 * @return
+	 */
+	double getRuleLog2Probability(final int ruleId) {
+		return ruleLog2Probs[ruleId];
+	}
+
+	/**
+	 * Return the end (exclusive) of the rule ids of the given root.
+	 *
+	 * @param rootId
+	 * @return
+	 */
+	int getRulesEnd(final int rootId) {
+		return rootOffsets[rootId + 1];
+	}
+
+	/**
+	 * Return the start of the rule ids of the given root.
+	 *
+	 * @param rootId
+	 * @return
+	 */
+	int getRulesStart(final int rootId) {
+		return rootOffsets[rootId];
+	}
+
+	@Override
+	public AbstractTreeExtractor getTreeExtractor() {
+		if (treeExtractor == null) {
+			return super.getTreeExtractor();
+		}
+		return treeExtractor;
+	}
+
+	@Override
+	boolean hasRulePosteriors() {
+		return ruleLog2Probs != null;
+	}
+
+	@Override
+	public void prune(final int threshold) {
+		throw new UnsupportedOperationException("The grammar is frozen");
+	}
+
+	@Override
+	public int removeTree(final TreeNode<T> subTree, final int occurences) {
+		throw new UnsupportedOperationException("The grammar is frozen");
+	}
+
+}
@@ -25,4 +25,15 @@ public interface ITsgPosteriorProbabilityComputer<T extends Serializable>
 	 */
 	double computeLog2PosteriorProbabilityOfRule(final TreeNode<T> tree, boolean remove);
 
+	/**
+	 * Return a computer with the parameters and (a copy of) the prior of this
+	 * computer, that reads the rule counts of the given grammar. The copy
+	 * must not reference the grammar of this computer, so that frozen
+	 * grammars do not keep their original grammar (or its sampler) alive.
+	 * 
+	 * @param grammar
+	 * @return
+	 */
+	ITsgPosteriorProbabilityComputer<T> copyFor(final TSGrammar<T> grammar);
+
 }
@@ -0,0 +1,739 @@
+/**
+ *
+ */
+package codemining.lm.tsg;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+import codemining.ast.AbstractTreeExtractor;
+import codemining.ast.TreeNode;
+import codemining.lm.OpenAddressing;
+import codemining.util.serialization.ISerializationStrategy.SerializationException;
+import codemining.util.serialization.Serializer;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMultiset;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.SortedMultiset;
+import com.google.common.collect.TreeMultiset;
+
+/**
+ * A read-only TSG that is memory mapped from a grammar file, so that it can
+ * be loaded in constant time and its pages shared by many processes. The
+ * rules are not materialized as {@link TreeNode}s unless they are requested:
+ * rule lookups compare the trees against their encoding in the file.
+ *
+ * The file is a sequence of big-endian int words:
+ * <ul>
+ * <li>a header with the magic number, the format version, the fingerprint of
+ * the rule hash function, the number of roots, rules and hash table slots,
+ * whether the rule posteriors are present, the length of the rule encodings
+ * and the length of the tree extractor,</li>
+ * <li>the roots, as (nodeKey, isRoot, first rule id, count, UNK count),</li>
+ * <li>the rules, grouped by root, as (count, hash, tree size, posterior
+ * log2-probability, offset of the encoding),</li>
+ * <li>an open addressing hash table of the rules, as in
+ * {@link FrozenTSGrammar},</li>
+ * <li>the pre-order encoding of the rules. Each node is written as (nodeKey,
+ * nProperties << 1 | isRoot), followed by the number of children and the
+ * children of each property.</li>
+ * </ul>
+ * The file ends with the Java serialization of the tree extractor, which
+ * includes the node alphabet.
+ *
+ * The rule hashes are those of {@link TreeNode#hashCode()}. Since they are
+ * stored in the file, a file that was written with a different hash function
+ * (as detected by {@link #getRuleHashFingerprint()}) is not mapped.
+ *
+ * Like a {@link FrozenTSGrammar}, the posteriors of the rules in the grammar
+ * are precomputed. Rules that are not in the grammar can only be scored after
+ * setting a posterior computer.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class MappedTSGrammar extends TSGrammar<TSGNode> {
+
+	private static final long serialVersionUID = -2871361526453300938L;
+
+	private static final Logger LOGGER = Logger.getLogger(MappedTSGrammar.class
+			.getName());
+
+	private static final int MAGIC = 0x5453474D;
+
+	private static final int VERSION = 2;
+
+	private static final int HEADER_WORDS = 10;
+
+	private static final int ROOT_WORDS = 5;
+
+	private static final int RULE_WORDS = 7;
+
+	/**
+	 * The files are mapped in chunks of 2^CHUNK_BITS words, since a single
+	 * buffer cannot exceed 2GB.
+	 */
+	private static final int CHUNK_BITS = 28;
+
+	private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Return the number of words of the encoding of the given tree.
+	 *
+	 * @param tree
+	 * @return
+	 */
+	private static long encodedSize(final TreeNode<TSGNode> tree) {
+		long size = 2;
+		for (final List<TreeNode<TSGNode>> childrenForProperty : tree
+				.getChildrenByProperty()) {
+			size++;
+			for (final TreeNode<TSGNode> child : childrenForProperty) {
+				size += encodedSize(child);
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Return a fingerprint of the rule hash function, i.e. the hash of a
+	 * fixed rule.
+	 *
+	 * @return
+	 */
+	static int getRuleHashFingerprint() {
+		final TSGNode rootNode = new TSGNode(1);
+		rootNode.isRoot = true;
+		final TreeNode<TSGNode> rule = TreeNode.create(rootNode, 2);
+		rule.addChildNode(TreeNode.create(new TSGNode(2), 0), 0);
+		final TSGNode frontierNode = new TSGNode(3);
+		frontierNode.isRoot = true;
+		rule.addChildNode(TreeNode.create(frontierNode, 0), 0);
+		final TreeNode<TSGNode> child = TreeNode.create(new TSGNode(4), 1);
+		child.addChildNode(TreeNode.create(new TSGNode(5), 0), 0);
+		rule.addChildNode(child, 1);
+		return rule.hashCode();
+	}
+
+	/**
+	 * Return true if the given file is a mapped grammar file.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean isMappedGrammar(final File file) throws IOException {
+		if (file.length() < 4) {
+			return false;
+		}
+		try (final DataInputStream in = new DataInputStream(
+				new FileInputStream(file))) {
+			return in.readInt() == MAGIC;
+		}
+	}
+
+	/**
+	 * Map the grammar in the given file.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static MappedTSGrammar open(final File file) throws IOException {
+		final long startTime = System.currentTimeMillis();
+		try (final FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ)) {
+			final MappedTSGrammar grammar = new MappedTSGrammar(file, channel);
+			LOGGER.info("Mapped grammar with " + grammar.nRules + " rules from "
+					+ file + " in " + (System.currentTimeMillis() - startTime)
+					+ "ms");
+			return grammar;
+		}
+	}
+
+	private static void readFully(final FileChannel channel,
+			final ByteBuffer buffer, final long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of grammar file");
+			}
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * Read a grammar, mapping it if it is a mapped grammar file and
+	 * deserializing it otherwise.
+	 *
+	 * @param fileName
+	 * @return
+	 * @throws IOException
+	 * @throws SerializationException
+	 */
+	@SuppressWarnings("unchecked")
+	public static TSGrammar<TSGNode> readGrammar(final String fileName)
+			throws IOException, SerializationException {
+		final File file = new File(fileName);
+		if (isMappedGrammar(file)) {
+			return open(file);
+		}
+		return (TSGrammar<TSGNode>) Serializer.getSerializer().deserializeFrom(
+				fileName);
+	}
+
+	/**
+	 * Write the given grammar in the mapped format. The grammar is frozen
+	 * first, and its tree extractor is written along with it.
+	 *
+	 * @param grammar
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void write(final TSGrammar<TSGNode> grammar, final File file)
+			throws IOException {
+		final FrozenTSGrammar<TSGNode> frozen = grammar.freeze();
+		final int nRoots = frozen.getNumberOfRoots();
+		final int nRules = frozen.countDistinctTrees();
+
+		final int[] ruleHashes = new int[nRules];
+		final long[] ruleOffsets = new long[nRules];
+		long treeWords = 0;
+		for (int ruleId = 0; ruleId < nRules; ruleId++) {
+			final TreeNode<TSGNode> rule = frozen.getRule(ruleId);
+			ruleHashes[ruleId] = rule.hashCode();
+			ruleOffsets[ruleId] = treeWords;
+			treeWords += encodedSize(rule);
+		}
+		final int[] ruleTable = FrozenTSGrammar.buildRuleTable(ruleHashes);
+
+		final ByteArrayOutputStream serializedExtractor = new ByteArrayOutputStream();
+		try (final ObjectOutputStream extractorOut = new ObjectOutputStream(
+				serializedExtractor)) {
+			extractorOut.writeObject(frozen.getTreeExtractor());
+		}
+
+		try (final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file),
+						BUFFER_SIZE))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(getRuleHashFingerprint());
+			out.writeInt(nRoots);
+			out.writeInt(nRules);
+			out.writeInt(ruleTable.length);
+			out.writeInt(frozen.hasRulePosteriors() ? 1 : 0);
+			out.writeLong(treeWords);
+			out.writeInt(serializedExtractor.size());
+
+			for (int rootId = 0; rootId < nRoots; rootId++) {
+				final TSGNode root = frozen.getRoot(rootId);
+				out.writeInt(root.nodeKey);
+				out.writeInt(root.isRoot ? 1 : 0);
+				out.writeInt(frozen.getRulesStart(rootId));
+				out.writeInt(frozen.getRootCount(rootId));
+				out.writeInt(frozen.getRootUnkCount(rootId));
+			}
+
+			for (int ruleId = 0; ruleId < nRules; ruleId++) {
+				out.writeInt(frozen.getRuleCount(ruleId));
+				out.writeInt(ruleHashes[ruleId]);
+				out.writeInt(frozen.getRule(ruleId).getTreeSize());
+				out.writeDouble(frozen.hasRulePosteriors() ? frozen
+						.getRuleLog2Probability(ruleId) : Double.NaN);
+				out.writeLong(ruleOffsets[ruleId]);
+			}
+
+			for (final int slot : ruleTable) {
+				out.writeInt(slot);
+			}
+
+			for (int ruleId = 0; ruleId < nRules; ruleId++) {
+				writeTree(out, frozen.getRule(ruleId));
+			}
+
+			serializedExtractor.writeTo(out);
+		}
+	}
+
+	private static void writeTree(final DataOutputStream out,
+			final TreeNode<TSGNode> tree) throws IOException {
+		out.writeInt(tree.getData().nodeKey);
+		out.writeInt(tree.nProperties() << 1 | (tree.getData().isRoot ? 1 : 0));
+		for (final List<TreeNode<TSGNode>> childrenForProperty : tree
+				.getChildrenByProperty()) {
+			out.writeInt(childrenForProperty.size());
+			for (final TreeNode<TSGNode> child : childrenForProperty) {
+				writeTree(out, child);
+			}
+		}
+	}
+
+	/**
+	 * The mapped words of the file, in chunks of 2^CHUNK_BITS words.
+	 */
+	private final transient IntBuffer[] chunks;
+
+	private final int nRules;
+
+	private final int tableSize;
+
+	private final boolean hasRulePosteriors;
+
+	private final long rulesStart;
+
+	private final long tableStart;
+
+	private final long treesStart;
+
+	/**
+	 * The roots, which are few, are kept in memory.
+	 */
+	private final TSGNode[] roots;
+
+	private final Map<TSGNode, Integer> rootIds;
+
+	/**
+	 * The rules of root i are in [rootOffsets[i], rootOffsets[i+1]).
+	 */
+	private final int[] rootOffsets;
+
+	private final int[] rootCounts;
+
+	private final int[] rootUnkCounts;
+
+	private final AbstractTreeExtractor treeExtractor;
+
+	private transient volatile Map<TSGNode, ImmutableMultiset<TreeNode<TSGNode>>> grammarView;
+
+	private MappedTSGrammar(final File file, final FileChannel channel)
+			throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_WORDS * 4);
+		readFully(channel, header, 0);
+		if (header.getInt() != MAGIC) {
+			throw new IOException(file + " is not a mapped grammar");
+		}
+		final int version = header.getInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported grammar version " + version);
+		}
+		if (header.getInt() != getRuleHashFingerprint()) {
+			throw new IOException(file
+					+ " was written with a different rule hash function");
+		}
+		final int nRoots = header.getInt();
+		nRules = header.getInt();
+		tableSize = header.getInt();
+		hasRulePosteriors = header.getInt() == 1;
+		final long treeWords = header.getLong();
+		final int extractorLength = header.getInt();
+
+		rulesStart = HEADER_WORDS + (long) nRoots * ROOT_WORDS;
+		tableStart = rulesStart + (long) nRules * RULE_WORDS;
+		treesStart = tableStart + tableSize;
+		final long nWords = treesStart + treeWords;
+		if (channel.size() != 4 * nWords + extractorLength) {
+			throw new IOException(file + " is truncated");
+		}
+
+		chunks = new IntBuffer[(int) ((nWords + CHUNK_MASK) >>> CHUNK_BITS)];
+		for (int i = 0; i < chunks.length; i++) {
+			final long chunkStart = (long) i << CHUNK_BITS;
+			final long chunkWords = Math.min(CHUNK_MASK + 1, nWords
+					- chunkStart);
+			chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+					4 * chunkStart, 4 * chunkWords).asIntBuffer();
+		}
+
+		roots = new TSGNode[nRoots];
+		rootIds = Maps.newHashMapWithExpectedSize(nRoots);
+		rootOffsets = new int[nRoots + 1];
+		rootCounts = new int[nRoots];
+		rootUnkCounts = new int[nRoots];
+		for (int rootId = 0; rootId < nRoots; rootId++) {
+			final long rootStart = HEADER_WORDS + (long) rootId * ROOT_WORDS;
+			roots[rootId] = new TSGNode(getWord(rootStart));
+			roots[rootId].isRoot = getWord(rootStart + 1) == 1;
+			rootIds.put(roots[rootId], rootId);
+			rootOffsets[rootId] = getWord(rootStart + 2);
+			rootCounts[rootId] = getWord(rootStart + 3);
+			rootUnkCounts[rootId] = getWord(rootStart + 4);
+		}
+		rootOffsets[nRoots] = nRules;
+
+		final ByteBuffer serializedExtractor = ByteBuffer
+				.allocate(extractorLength);
+		readFully(channel, serializedExtractor, 4 * nWords);
+		try (final ObjectInputStream extractorIn = new ObjectInputStream(
+				new ByteArrayInputStream(serializedExtractor.array()))) {
+			treeExtractor = (AbstractTreeExtractor) extractorIn.readObject();
+		} catch (final ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void addAll(final TSGrammar<TSGNode> other) {
+		throw new UnsupportedOperationException("The grammar is read-only");
+	}
+
+	@Override
+	public void addTree(final TreeNode<TSGNode> subTree, final int count) {
+		throw new UnsupportedOperationException("The grammar is read-only");
+	}
+
+	@Override
+	public void clear() {
+		throw new UnsupportedOperationException("The grammar is read-only");
+	}
+
+	@Override
+	public SortedMultiset<Integer> computeGrammarTreeSizeStats() {
+		final SortedMultiset<Integer> treeSizes = TreeMultiset.create();
+		for (int ruleId = 0; ruleId < nRules; ruleId++) {
+			treeSizes.add(getRuleSize(ruleId), getRuleCount(ruleId));
+		}
+		for (final int unkCount : rootUnkCounts) {
+			if (unkCount > 0) {
+				treeSizes.add(UNK_NODE.getTreeSize(), unkCount);
+			}
+		}
+		return treeSizes;
+	}
+
+	/**
+	 * Return the precomputed posterior of the rules in the grammar. Other
+	 * rules are scored by the posterior computer.
+	 */
+	@Override
+	public double computeRulePosteriorLog2Probability(
+			final TreeNode<TSGNode> tree) {
+		if (hasRulePosteriors) {
+			final int ruleId = getRuleId(tree);
+			if (ruleId != -1) {
+				final long ruleStart = rulesStart + (long) ruleId * RULE_WORDS;
+				return Double.longBitsToDouble(getLong(ruleStart + 3));
+			}
+		}
+		return super.computeRulePosteriorLog2Probability(tree);
+	}
+
+	@Override
+	public long countAllTrees() {
+		long totalCount = 0;
+		for (final int rootCount : rootCounts) {
+			totalCount += rootCount;
+		}
+		return totalCount;
+	}
+
+	@Override
+	public int countDistinctTrees() {
+		return nRules;
+	}
+
+	@Override
+	public int countTreeOccurences(final int treeHash,
+			final Predicate<TreeNode<TSGNode>> treeMatcher) {
+		for (int slot = OpenAddressing.firstSlot(treeHash, tableSize); getWord(tableStart
+				+ slot) != 0; slot = OpenAddressing.nextSlot(slot, tableSize)) {
+			final int ruleId = getWord(tableStart + slot) - 1;
+			if (getRuleHash(ruleId) == treeHash
+					&& treeMatcher.apply(getRule(ruleId))) {
+				return getRuleCount(ruleId);
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public int countTreeOccurences(final TreeNode<TSGNode> root) {
+		final int ruleId = getRuleId(root);
+		if (ruleId == -1) {
+			return 0;
+		}
+		return getRuleCount(ruleId);
+	}
+
+	@Override
+	public int countTreesWithRoot(final TSGNode root) {
+		final Integer rootId = rootIds.get(root);
+		if (rootId == null) {
+			return 0;
+		}
+		return rootCounts[rootId];
+	}
+
+	/**
+	 * Decode the tree starting at position[0], leaving position[0] at the end
+	 * of its encoding.
+	 *
+	 * @param position
+	 * @return
+	 */
+	private TreeNode<TSGNode> decodeTree(final long[] position) {
+		final TSGNode data = new TSGNode(getWord(position[0]));
+		final int nodeHeader = getWord(position[0] + 1);
+		data.isRoot = (nodeHeader & 1) == 1;
+		final int nProperties = nodeHeader >>> 1;
+		final TreeNode<TSGNode> node = TreeNode.create(data, nProperties);
+		position[0] += 2;
+		for (int i = 0; i < nProperties; i++) {
+			final int nChildren = getWord(position[0]);
+			position[0]++;
+			for (int j = 0; j < nChildren; j++) {
+				node.addChildNode(decodeTree(position), i);
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * Materializes the rules, so that they can be frozen in memory.
+	 */
+	@Override
+	public FrozenTSGrammar<TSGNode> freeze() {
+		return new FrozenTSGrammar<TSGNode>(this, treeExtractor);
+	}
+
+	/**
+	 * Expand the leaves of the given tree with random rules, drawn in
+	 * proportion to their counts. Only the drawn rules are materialized.
+	 */
+	@Override
+	public TreeNode<TSGNode> generateRandom(final TreeNode<TSGNode> root) {
+		final Integer topRootId = rootIds.get(root.getData());
+		checkArgument(topRootId != null && rootCounts[topRootId] > 0);
+
+		final ArrayDeque<TreeNode<TSGNode>> toVisit = new ArrayDeque<TreeNode<TSGNode>>();
+		toVisit.push(root);
+
+		while (!toVisit.isEmpty()) {
+			final TreeNode<TSGNode> currentNode = toVisit.pop();
+			final boolean isNonTerminal = currentNode.nProperties() > 0;
+
+			if (currentNode.isLeaf() && isNonTerminal) {
+				final Integer rootId = rootIds.get(currentNode.getData());
+				if (rootId == null) {
+					continue;
+				}
+				final int ruleId = getRandomRule(rootId);
+				if (ruleId == -1) {
+					continue;
+				}
+				final TreeNode<TSGNode> selected = getRule(ruleId);
+				for (int i = 0; i < selected.nProperties(); i++) {
+					for (final TreeNode<TSGNode> child : selected
+							.getChildrenByProperty().get(i)) {
+						currentNode.addChildNode(child, i);
+						toVisit.push(child);
+					}
+				}
+			} else if (!currentNode.isLeaf()) {
+				for (final List<TreeNode<TSGNode>> childrenForProperty : currentNode
+						.getChildrenByProperty()) {
+					for (final TreeNode<TSGNode> node : childrenForProperty) {
+						toVisit.push(node);
+					}
+				}
+			}
+		}
+
+		return root;
+	}
+
+	/**
+	 * Return an immutable view of the TSG. This materializes all the rules,
+	 * so prefer {@link #getRule(int)} and {@link #getRuleCount(int)} for
+	 * large grammars.
+	 */
+	@Override
+	public Map<TSGNode, ? extends Multiset<TreeNode<TSGNode>>> getInternalGrammar() {
+		final Map<TSGNode, ImmutableMultiset<TreeNode<TSGNode>>> view = grammarView;
+		if (view != null) {
+			return view;
+		}
+		final ImmutableMap.Builder<TSGNode, ImmutableMultiset<TreeNode<TSGNode>>> grammar = ImmutableMap
+				.builder();
+		for (int rootId = 0; rootId < roots.length; rootId++) {
+			final ImmutableMultiset.Builder<TreeNode<TSGNode>> productions = ImmutableMultiset
+					.builder();
+			for (int ruleId = rootOffsets[rootId]; ruleId < rootOffsets[rootId + 1]; ruleId++) {
+				productions.addCopies(getRule(ruleId).toImmutable(),
+						getRuleCount(ruleId));
+			}
+			productions.addCopies(UNK_NODE, rootUnkCounts[rootId]);
+			grammar.put(roots[rootId], productions.build());
+		}
+		final Map<TSGNode, ImmutableMultiset<TreeNode<TSGNode>>> newView = grammar
+				.build();
+		grammarView = newView;
+		return newView;
+	}
+
+	private long getLong(final long word) {
+		return (long) getWord(word) << 32 | getWord(word + 1) & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Return the id of a random rule of the given root, in proportion to
+	 * the rule counts, or -1 if an UNK rule was drawn.
+	 *
+	 * @param rootId
+	 * @return
+	 */
+	private int getRandomRule(final int rootId) {
+		int draw = ThreadLocalRandom.current().nextInt(rootCounts[rootId]);
+		for (int ruleId = rootOffsets[rootId]; ruleId < rootOffsets[rootId + 1]; ruleId++) {
+			draw -= getRuleCount(ruleId);
+			if (draw < 0) {
+				return ruleId;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Decode the given rule. Each call returns a new tree.
+	 *
+	 * @param ruleId
+	 * @return
+	 */
+	public TreeNode<TSGNode> getRule(final int ruleId) {
+		final long ruleStart = rulesStart + (long) ruleId * RULE_WORDS;
+		return decodeTree(new long[] { treesStart + getLong(ruleStart + 5) });
+	}
+
+	public int getRuleCount(final int ruleId) {
+		return getWord(rulesStart + (long) ruleId * RULE_WORDS);
+	}
+
+	private int getRuleHash(final int ruleId) {
+		return getWord(rulesStart + (long) ruleId * RULE_WORDS + 1);
+	}
+
+	/**
+	 * Return the id of the given rule or -1 if it is not in the grammar. The
+	 * rule is compared against the encoded rules, without decoding them.
+	 *
+	 * @param tree
+	 * @return
+	 */
+	private int getRuleId(final TreeNode<TSGNode> tree) {
+		final int hash = tree.hashCode();
+		for (int slot = OpenAddressing.firstSlot(hash, tableSize); getWord(tableStart
+				+ slot) != 0; slot = OpenAddressing.nextSlot(slot, tableSize)) {
+			final int ruleId = getWord(tableStart + slot) - 1;
+			if (getRuleHash(ruleId) == hash) {
+				final long ruleStart = rulesStart + (long) ruleId * RULE_WORDS;
+				if (matches(tree, new long[] { treesStart
+						+ getLong(ruleStart + 5) })) {
+					return ruleId;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Return the number of nodes of the given rule.
+	 *
+	 * @param ruleId
+	 * @return
+	 */
+	public int getRuleSize(final int ruleId) {
+		return getWord(rulesStart + (long) ruleId * RULE_WORDS + 2);
+	}
+
+	@Override
+	public AbstractTreeExtractor getTreeExtractor() {
+		return treeExtractor;
+	}
+
+	private int getWord(final long word) {
+		return chunks[(int) (word >>> CHUNK_BITS)].get((int) (word & CHUNK_MASK));
+	}
+
+	@Override
+	boolean hasRulePosteriors() {
+		return hasRulePosteriors;
+	}
+
+	/**
+	 * Return true if the tree matches the encoding starting at position[0],
+	 * leaving position[0] at the end of the encoding of the tree if it does.
+	 *
+	 * @param tree
+	 * @param position
+	 * @return
+	 */
+	private boolean matches(final TreeNode<TSGNode> tree, final long[] position) {
+		final TSGNode data = tree.getData();
+		if (data == null || getWord(position[0]) != data.nodeKey) {
+			return false;
+		}
+		final int nodeHeader = getWord(position[0] + 1);
+		if (((nodeHeader & 1) == 1) != data.isRoot
+				|| nodeHeader >>> 1 != tree.nProperties()) {
+			return false;
+		}
+		position[0] += 2;
+		for (final List<TreeNode<TSGNode>> childrenForProperty : tree
+				.getChildrenByProperty()) {
+			if (getWord(position[0]) != childrenForProperty.size()) {
+				return false;
+			}
+			position[0]++;
+			for (final TreeNode<TSGNode> child : childrenForProperty) {
+				if (!matches(child, position)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void prune(final int threshold) {
+		throw new UnsupportedOperationException("The grammar is read-only");
+	}
+
+	@Override
+	public int removeTree(final TreeNode<TSGNode> subTree, final int occurences) {
+		throw new UnsupportedOperationException("The grammar is read-only");
+	}
+
+	/**
+	 * The mapped buffers cannot be serialized, so a mapped grammar is
+	 * serialized as a frozen one.
+	 */
+	private Object writeReplace() throws ObjectStreamException {
+		return freeze();
+	}
+
+}
@@ -276,6 +276,11 @@ public class SequentialTSGrammar extends FormattedTSGrammar {
 		return result;
 	}
 
+	@Override
+	public boolean supportsTreeProbing() {
+		return false;
+	}
+
 	@Override
 	public String toString() {
 		return baseGrammar.toString();
@@ -11,10 +11,11 @@ import org.apache.commons.lang.math.RandomUtils;
 
 import com.esotericsoftware.kryo.DefaultSerializer;
 import com.esotericsoftware.kryo.serializers.JavaSerializer;
-import com.google.common.base.Objects;
+import com.google.common.base.Predicate;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
+import codemining.ast.FlatTree;
 import codemining.ast.TreeNode;
 
 /**
@@ -27,6 +28,20 @@ import codemining.ast.TreeNode;
 @DefaultSerializer(JavaSerializer.class)
 public class TSGNode implements Serializable {
 
+	/**
+	 * A cached log2 probability and the object that computed it.
+	 */
+	private static final class CachedLog2Prob {
+		final Object owner;
+
+		final double log2Prob;
+
+		CachedLog2Prob(final Object owner, final double log2Prob) {
+			this.owner = owner;
+			this.log2Prob = log2Prob;
+		}
+	}
+
 	/**
 	 * A struct class containing from and to pair of nodes to copy.
 	 * 
@@ -176,6 +191,22 @@ public class TSGNode implements Serializable {
 		}
 	}
 
+	/**
+	 * Convert a flat tree carrying root flags back to a TSG tree.
+	 * 
+	 * @param tree
+	 * @return
+	 */
+	public static TreeNode<TSGNode> fromFlatTree(final FlatTree tree) {
+		checkArgument(tree.hasRootFlags(),
+				"Only flat trees with root flags can be converted to TSG trees");
+		return tree.toTree(node -> {
+			final TSGNode data = new TSGNode(tree.getSymbol(node));
+			data.isRoot = tree.isRoot(node);
+			return data;
+		});
+	}
+
 	/**
 	 * Return a list containing copies of the rooted trees in this tree.
 	 * 
@@ -269,6 +300,150 @@ public class TSGNode implements Serializable {
 		return root;
 	}
 
+	/**
+	 * Return the hash code of the tree that
+	 * {@link #getSubTreeFromRoot(TreeNode)} would return for the given node,
+	 * without copying the tree.
+	 * 
+	 * @param topNode
+	 * @return
+	 */
+	public static int getSubTreeFromRootHash(final TreeNode<TSGNode> topNode) {
+		checkArgument(topNode.getData().isRoot);
+		return subTreeHash(topNode, true);
+	}
+
+	/**
+	 * Return the size of the tree that {@link #getSubTreeFromRoot(TreeNode)}
+	 * would return for the given node, without copying the tree.
+	 * 
+	 * @param topNode
+	 * @return
+	 */
+	public static int getSubTreeFromRootSize(final TreeNode<TSGNode> topNode) {
+		checkArgument(topNode.getData().isRoot);
+		int size = 0;
+		final ArrayDeque<TreeNode<TSGNode>> toVisit = new ArrayDeque<TreeNode<TSGNode>>();
+		toVisit.push(topNode);
+		while (!toVisit.isEmpty()) {
+			final TreeNode<TSGNode> currentNode = toVisit.pop();
+			size++;
+			for (final List<TreeNode<TSGNode>> childProperty : currentNode
+					.getChildrenByProperty()) {
+				for (final TreeNode<TSGNode> child : childProperty) {
+					if (child.getData().isRoot) {
+						size++;
+					} else {
+						toVisit.push(child);
+					}
+				}
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Return a predicate that matches the trees that are equal to the tree
+	 * that {@link #getSubTreeFromRoot(TreeNode)} would return for the given
+	 * node. The predicate reads the current root flags of the nodes, so they
+	 * should not change while it is used.
+	 * 
+	 * @param topNode
+	 * @return
+	 */
+	public static Predicate<TreeNode<TSGNode>> getSubTreeFromRootMatcher(
+			final TreeNode<TSGNode> topNode) {
+		checkArgument(topNode.getData().isRoot);
+		return new Predicate<TreeNode<TSGNode>>() {
+
+			@Override
+			public boolean apply(final TreeNode<TSGNode> tree) {
+				return subTreeMatches(tree, topNode, true);
+			}
+		};
+	}
+
+	/**
+	 * Compute the hash of the subtree of the given node, stopping at roots.
+	 * This follows the structural hash of {@link TreeNode#hashCode()}.
+	 * 
+	 * @param node
+	 * @param isTop
+	 * @return
+	 */
+	private static int subTreeHash(final TreeNode<TSGNode> node,
+			final boolean isTop) {
+		final TSGNode data = node.getData();
+		final boolean isFrontier = !isTop && data.isRoot;
+		final List<List<TreeNode<TSGNode>>> children = node
+				.getChildrenByProperty();
+
+		int hash = data.hashCode();
+		final int nProperties = children.size();
+		for (int i = 0; i < nProperties; i++) {
+			hash = TreeNode.combinePropertyHash(hash);
+			if (isFrontier) {
+				continue;
+			}
+			final List<TreeNode<TSGNode>> propertyChildren = children.get(i);
+			for (int j = 0; j < propertyChildren.size(); j++) {
+				hash = TreeNode.combineChildHash(hash,
+						subTreeHash(propertyChildren.get(j), false));
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * Return true if the given tree is equal to the subtree of the given
+	 * node, stopping at roots.
+	 * 
+	 * @param tree
+	 * @param node
+	 * @param isTop
+	 * @return
+	 */
+	private static boolean subTreeMatches(final TreeNode<TSGNode> tree,
+			final TreeNode<TSGNode> node, final boolean isTop) {
+		final TSGNode data = node.getData();
+		if (!data.equals(tree.getData())) {
+			return false;
+		}
+		final List<List<TreeNode<TSGNode>>> treeChildren = tree
+				.getChildrenByProperty();
+		final List<List<TreeNode<TSGNode>>> nodeChildren = node
+				.getChildrenByProperty();
+		final int nProperties = nodeChildren.size();
+		if (treeChildren.size() != nProperties) {
+			return false;
+		}
+
+		final boolean isFrontier = !isTop && data.isRoot;
+		for (int i = 0; i < nProperties; i++) {
+			final List<TreeNode<TSGNode>> treePropertyChildren = treeChildren
+					.get(i);
+			if (isFrontier) {
+				if (!treePropertyChildren.isEmpty()) {
+					return false;
+				}
+				continue;
+			}
+			final List<TreeNode<TSGNode>> nodePropertyChildren = nodeChildren
+					.get(i);
+			final int nChildren = nodePropertyChildren.size();
+			if (treePropertyChildren.size() != nChildren) {
+				return false;
+			}
+			for (int j = 0; j < nChildren; j++) {
+				if (!subTreeMatches(treePropertyChildren.get(j),
+						nodePropertyChildren.get(j), false)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * Return true if the two nodes match until the roots.
 	 * 
@@ -326,6 +501,16 @@ public class TSGNode implements Serializable {
 		return true;
 	}
 
+	/**
+	 * Convert a TSG tree to its flat representation, keeping the root flags.
+	 * 
+	 * @param tree
+	 * @return
+	 */
+	public static FlatTree toFlatTree(final TreeNode<TSGNode> tree) {
+		return FlatTree.create(tree, node -> node.nodeKey, node -> node.isRoot);
+	}
+
 	/**
 	 * Wrap TreeNode<TSGNode> trees in TreeNode<Integer> trees.
 	 * 
@@ -344,6 +529,12 @@ public class TSGNode implements Serializable {
 
 	public final int nodeKey;
 
+	/**
+	 * The log2 probability of the CFG rule rooted at this node, as cached by a
+	 * locked prior, or null if none has been cached.
+	 */
+	private transient CachedLog2Prob cfgLog2Prob;
+
 	public TSGNode(final int key) {
 		nodeKey = key;
 		isRoot = false;
@@ -363,12 +554,53 @@ public class TSGNode implements Serializable {
 			return false;
 		}
 		final TSGNode other = (TSGNode) obj;
-		return other.isRoot == isRoot && Objects.equal(nodeKey, other.nodeKey);
+		return other.isRoot == isRoot && nodeKey == other.nodeKey;
+	}
+
+	/**
+	 * Return the log2 probability of the CFG rule at this node, as cached by
+	 * the given owner, or NaN if the owner has not cached one.
+	 * 
+	 * @param owner
+	 * @return
+	 */
+	public double getCfgLog2Prob(final Object owner) {
+		final CachedLog2Prob cached = cfgLog2Prob;
+		if (cached == null || cached.owner != owner) {
+			return Double.NaN;
+		}
+		return cached.log2Prob;
+	}
+
+	/**
+	 * Return true if the given owner has cached a CFG log2 probability for
+	 * this node. The cache is not copied or serialized.
+	 * 
+	 * @param owner
+	 * @return
+	 */
+	public boolean hasCfgLog2Prob(final Object owner) {
+		final CachedLog2Prob cached = cfgLog2Prob;
+		return cached != null && cached.owner == owner;
 	}
 
 	@Override
 	public int hashCode() {
-		return Objects.hashCode(nodeKey, isRoot);
+		// Same as Objects.hashCode(nodeKey, isRoot), but without boxing
+		return 31 * (31 + nodeKey) + (isRoot ? 1231 : 1237);
+	}
+
+	/**
+	 * Cache the log2 probability of the CFG rule at this node, replacing the
+	 * value cached by any other owner. The cached value is not part of the
+	 * node's identity.
+	 * 
+	 * @param owner
+	 *            the object that computed the probability, usually a prior
+	 * @param log2Prob
+	 */
+	public void setCfgLog2Prob(final Object owner, final double log2Prob) {
+		cfgLog2Prob = new CachedLog2Prob(owner, log2Prob);
 	}
 
 	@Override
@@ -6,25 +6,29 @@ package codemining.lm.tsg;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayDeque;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.commons.lang.NotImplementedException;
 
 import codemining.ast.AbstractTreeExtractor;
 import codemining.ast.TreeNode;
 import codemining.math.random.SampleUtils;
-import codemining.util.parallel.ParallelThreadPool;
 
-import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMultiset;
 import com.google.common.collect.Lists;
-import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multiset;
 import com.google.common.collect.SortedMultiset;
 import com.google.common.collect.TreeMultiset;
@@ -32,18 +36,101 @@ import com.google.common.collect.TreeMultiset;
 /**
  * A thread safe tree substitution grammar with nodes of data-type T.
  *
+ * The productions are interned in a {@link TreeInterner}, so that each
+ * distinct production is stored once and its count is kept in a primitive
+ * array indexed by the production's id.
+ *
+ * Changing the count of an existing production only needs the read lock,
+ * since the counts are updated atomically, so that threads changing the
+ * productions of different roots do not block each other. The write lock is
+ * only taken when a production is added or removed completely.
+ *
  * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
  *
  */
 public class TSGrammar<T extends Serializable> implements
 ITreeSubstitutionGrammar<T> {
 
+	/**
+	 * The same as the format before the productions were interned, since
+	 * grammars in that format are migrated when read.
+	 */
 	private static final long serialVersionUID = 3178243087484789075L;
 
+	private static final int INITIAL_CAPACITY = 64;
+
 	/**
-	 * A Map from a tree root to a multiset of productions.
+	 * The productions of a grammar serialized before the productions were
+	 * interned. Only set while reading such a grammar, until it is migrated.
 	 */
-	protected final ConcurrentMap<T, ConcurrentHashMultiset<TreeNode<T>>> grammar;
+	private Map<T, ? extends Multiset<TreeNode<T>>> grammar;
+
+	/**
+	 * The interned productions.
+	 */
+	private TreeInterner<T> rules;
+
+	/**
+	 * The count of each production, indexed by the production id. The count
+	 * of an interned production is positive and only becomes zero when the
+	 * production is released, while holding the write lock.
+	 */
+	private AtomicIntegerArray ruleCounts;
+
+	/**
+	 * The root id of each production, indexed by the production id.
+	 */
+	private int[] ruleRootIds;
+
+	/**
+	 * A map from a tree root to its root id.
+	 */
+	private Map<T, Integer> rootIds;
+
+	/**
+	 * The tree roots, indexed by their root id.
+	 */
+	private List<T> roots;
+
+	/**
+	 * The total count of the productions of each root, indexed by root id.
+	 */
+	private AtomicIntegerArray rootCounts;
+
+	/**
+	 * The count of pruned productions (UNK) of each root, indexed by root id.
+	 */
+	private int[] rootUnkCounts;
+
+	private ReentrantReadWriteLock lock;
+
+	/**
+	 * The ids of the productions of each root, indexed by root id. Only the
+	 * first rootSizes[rootId] ids of each root are used.
+	 */
+	private transient int[][] rootRuleIds;
+
+	/**
+	 * The number of distinct productions of each root, indexed by root id.
+	 */
+	private transient int[] rootSizes;
+
+	/**
+	 * The position of each production in the ids of its root, indexed by the
+	 * production id.
+	 */
+	private transient int[] ruleRootPositions;
+
+	/**
+	 * A cached multiset of the productions of each root, indexed by root id.
+	 * Invalidated when the productions of the root change.
+	 */
+	private transient List<ImmutableMultiset<TreeNode<T>>> rootViews;
+
+	/**
+	 * A cached view of the grammar. Invalidated on every change.
+	 */
+	private transient volatile Map<T, ImmutableMultiset<TreeNode<T>>> grammarView;
 
 	ITsgPosteriorProbabilityComputer<T> posteriorComputer = null;
 
@@ -52,10 +139,18 @@ ITreeSubstitutionGrammar<T> {
 	 */
 	public final TreeNode<T> UNK_NODE;
 
+	private static AtomicIntegerArray copyOf(final AtomicIntegerArray array,
+			final int newLength) {
+		final AtomicIntegerArray copy = new AtomicIntegerArray(newLength);
+		for (int i = 0; i < array.length(); i++) {
+			copy.set(i, array.get(i));
+		}
+		return copy;
+	}
+
 	public TSGrammar() {
-		grammar = new MapMaker().concurrencyLevel(
-				ParallelThreadPool.NUM_THREADS).makeMap();
 		UNK_NODE = TreeNode.create(null, 0);
+		initProductions();
 	}
 
 	/**
@@ -64,9 +159,12 @@ ITreeSubstitutionGrammar<T> {
 	 * @param other
 	 */
 	public void addAll(final TSGrammar<T> other) {
-		for (final ConcurrentHashMultiset<TreeNode<T>> treeSet : other.grammar
+		for (final Multiset<TreeNode<T>> treeSet : other.getInternalGrammar()
 				.values()) {
 			for (final Multiset.Entry<TreeNode<T>> entry : treeSet.entrySet()) {
+				if (entry.getElement() == other.UNK_NODE) {
+					continue;
+				}
 				addTree(entry.getElement(), entry.getCount());
 			}
 		}
@@ -92,22 +190,76 @@ ITreeSubstitutionGrammar<T> {
 	 */
 	public void addTree(final TreeNode<T> subTree, final int count) {
 		checkArgument(count > 0);
-		final T rootNodeData = subTree.getData();
+		lock.readLock().lock();
+		try {
+			final int ruleId = rules.getId(subTree);
+			if (ruleId != -1 && tryUpdateCount(ruleId, count) > 0) {
+				return;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
 
-		final ConcurrentHashMultiset<TreeNode<T>> tempNew = ConcurrentHashMultiset
-				.create();
-		final ConcurrentHashMultiset<TreeNode<T>> nSet = grammar.putIfAbsent(
-				rootNodeData, tempNew);
+		lock.writeLock().lock();
+		try {
+			final int ruleId = rules.intern(subTree);
+			if (ruleId >= ruleCounts.length()) {
+				final int newLength = Math.max(2 * ruleCounts.length(),
+						ruleId + 1);
+				ruleCounts = copyOf(ruleCounts, newLength);
+				ruleRootIds = Arrays.copyOf(ruleRootIds, newLength);
+				ruleRootPositions = Arrays.copyOf(ruleRootPositions,
+						newLength);
+			}
+			if (ruleCounts.get(ruleId) == 0) {
+				ruleRootIds[ruleId] = getOrAddRootId(rules.getTree(ruleId)
+						.getData());
+				addToRoot(ruleId);
+			}
+			ruleCounts.addAndGet(ruleId, count);
+			rootCounts.addAndGet(ruleRootIds[ruleId], count);
+			invalidateRoot(ruleRootIds[ruleId]);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
 
-		if (nSet != null) {
-			nSet.add(subTree, count);
-		} else {
-			tempNew.add(subTree, count);
+	/**
+	 * Add the production to the productions of its root. Must be called
+	 * while holding the write lock.
+	 *
+	 * @param ruleId
+	 */
+	private void addToRoot(final int ruleId) {
+		final int rootId = ruleRootIds[ruleId];
+		if (rootRuleIds[rootId] == null) {
+			rootRuleIds[rootId] = new int[4];
+		} else if (rootSizes[rootId] == rootRuleIds[rootId].length) {
+			rootRuleIds[rootId] = Arrays.copyOf(rootRuleIds[rootId],
+					2 * rootRuleIds[rootId].length);
 		}
+		ruleRootPositions[ruleId] = rootSizes[rootId];
+		rootRuleIds[rootId][rootSizes[rootId]] = ruleId;
+		rootSizes[rootId]++;
 	}
 
 	public void clear() {
-		grammar.clear();
+		lock.writeLock().lock();
+		try {
+			for (int ruleId = 0; ruleId < rules.getIdUpperBound(); ruleId++) {
+				if (ruleCounts.get(ruleId) > 0) {
+					ruleCounts.set(ruleId, 0);
+					rules.release(ruleId);
+				}
+			}
+			rootCounts = new AtomicIntegerArray(rootCounts.length());
+			Arrays.fill(rootUnkCounts, 0);
+			Arrays.fill(rootSizes, 0);
+			Collections.fill(rootViews, null);
+			grammarView = null;
+		} finally {
+			lock.writeLock().unlock();
+		}
 	}
 
 	/*
@@ -120,12 +272,21 @@ ITreeSubstitutionGrammar<T> {
 	public SortedMultiset<Integer> computeGrammarTreeSizeStats() {
 		// Get tree size distribution.
 		final SortedMultiset<Integer> treeSizes = TreeMultiset.create();
-		for (final Entry<T, ConcurrentHashMultiset<TreeNode<T>>> entry : grammar
-				.entrySet()) {
-			for (final Multiset.Entry<TreeNode<T>> rule : entry.getValue()
-					.entrySet()) {
-				treeSizes.add(rule.getElement().getTreeSize(), rule.getCount());
+		lock.readLock().lock();
+		try {
+			for (int ruleId = 0; ruleId < rules.getIdUpperBound(); ruleId++) {
+				final int count = ruleCounts.get(ruleId);
+				if (count > 0) {
+					treeSizes.add(rules.getTree(ruleId).getTreeSize(), count);
+				}
+			}
+			for (final int unkCount : rootUnkCounts) {
+				if (unkCount > 0) {
+					treeSizes.add(UNK_NODE.getTreeSize(), unkCount);
+				}
 			}
+		} finally {
+			lock.readLock().unlock();
 		}
 		return treeSizes;
 	}
@@ -143,6 +304,39 @@ ITreeSubstitutionGrammar<T> {
 				.computeLog2PosteriorProbabilityOfRule(tree, remove);
 	}
 
+	/**
+	 * Return the total count of all the trees in the grammar, including the
+	 * pruned (UNK) ones.
+	 *
+	 * @return
+	 */
+	public long countAllTrees() {
+		lock.readLock().lock();
+		try {
+			long totalCount = 0;
+			for (int rootId = 0; rootId < roots.size(); rootId++) {
+				totalCount += rootCounts.get(rootId);
+			}
+			return totalCount;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Return the number of distinct trees in the grammar.
+	 *
+	 * @return
+	 */
+	public int countDistinctTrees() {
+		lock.readLock().lock();
+		try {
+			return rules.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 *
@@ -152,12 +346,43 @@ ITreeSubstitutionGrammar<T> {
 	 */
 	@Override
 	public int countTreeOccurences(final TreeNode<T> root) {
-		final ConcurrentHashMultiset<TreeNode<T>> productions = grammar
-				.get(root.getData());
-		if (productions == null) {
-			return 0;
+		lock.readLock().lock();
+		try {
+			final int ruleId = rules.getId(root);
+			if (ruleId == -1) {
+				return 0;
+			}
+			return ruleCounts.get(ruleId);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Count the occurrences of the tree with the given hash code that is
+	 * matched by the given predicate. This allows counting trees without
+	 * materializing them, but is only valid if
+	 * {@link #supportsTreeProbing()} is true.
+	 *
+	 * @param treeHash
+	 *            the hash code of the tree, as computed by
+	 *            {@link TreeNode#hashCode()}
+	 * @param treeMatcher
+	 *            a predicate that matches only the tree
+	 * @return
+	 */
+	public int countTreeOccurences(final int treeHash,
+			final Predicate<TreeNode<T>> treeMatcher) {
+		lock.readLock().lock();
+		try {
+			final int ruleId = rules.getId(treeHash, treeMatcher);
+			if (ruleId == -1) {
+				return 0;
+			}
+			return ruleCounts.get(ruleId);
+		} finally {
+			lock.readLock().unlock();
 		}
-		return productions.count(root);
 	}
 
 	/*
@@ -168,11 +393,27 @@ ITreeSubstitutionGrammar<T> {
 	 */
 	@Override
 	public int countTreesWithRoot(final T root) {
-		final ConcurrentHashMultiset<TreeNode<T>> set = grammar.get(root);
-		if (set == null) {
-			return 0;
+		lock.readLock().lock();
+		try {
+			final Integer rootId = rootIds.get(root);
+			if (rootId == null) {
+				return 0;
+			}
+			return rootCounts.get(rootId);
+		} finally {
+			lock.readLock().unlock();
 		}
-		return set.size();
+	}
+
+	/**
+	 * Return an immutable, array-backed copy of this grammar, for inference.
+	 * The posterior probabilities of the rules are computed once, with the
+	 * current posterior computer, if any.
+	 *
+	 * @return
+	 */
+	public FrozenTSGrammar<T> freeze() {
+		return new FrozenTSGrammar<T>(this, null);
 	}
 
 	/*
@@ -184,6 +425,7 @@ ITreeSubstitutionGrammar<T> {
 	 */
 	@Override
 	public TreeNode<T> generateRandom(final TreeNode<T> root) {
+		final Map<T, ? extends Multiset<TreeNode<T>>> grammar = getInternalGrammar();
 		checkArgument(grammar.get(root.getData()).size() > 0);
 
 		final ArrayDeque<TreeNode<T>> toVisit = new ArrayDeque<TreeNode<T>>();
@@ -231,12 +473,87 @@ ITreeSubstitutionGrammar<T> {
 	}
 
 	/**
-	 * Return an (externally) immutable view of the TSG.
+	 * Return an immutable view of the TSG. The view is a snapshot and is
+	 * cached until the grammar changes. The productions of each root are also
+	 * cached, so only the roots that changed since the last view are rebuilt.
 	 *
 	 * @return
 	 */
 	public Map<T, ? extends Multiset<TreeNode<T>>> getInternalGrammar() {
-		return Collections.unmodifiableMap(grammar);
+		final Map<T, ImmutableMultiset<TreeNode<T>>> view = grammarView;
+		if (view != null) {
+			return view;
+		}
+		// The write lock is needed, since the cached roots are updated
+		lock.writeLock().lock();
+		try {
+			if (grammarView != null) {
+				return grammarView;
+			}
+			final ImmutableMap.Builder<T, ImmutableMultiset<TreeNode<T>>> newView = ImmutableMap
+					.builder();
+			for (int rootId = 0; rootId < roots.size(); rootId++) {
+				if (rootCounts.get(rootId) == 0) {
+					continue;
+				}
+				newView.put(roots.get(rootId), getRootView(rootId));
+			}
+			grammarView = newView.build();
+			return grammarView;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Return the root id of the given root, adding it if it does not exist.
+	 * Must be called while holding the write lock.
+	 *
+	 * @param root
+	 * @return
+	 */
+	private int getOrAddRootId(final T root) {
+		final Integer rootId = rootIds.get(root);
+		if (rootId != null) {
+			return rootId;
+		}
+		final int newRootId = roots.size();
+		roots.add(root);
+		rootIds.put(root, newRootId);
+		rootViews.add(null);
+		if (newRootId >= rootCounts.length()) {
+			rootCounts = copyOf(rootCounts, 2 * rootCounts.length());
+			rootUnkCounts = Arrays.copyOf(rootUnkCounts,
+					2 * rootUnkCounts.length);
+			rootRuleIds = Arrays.copyOf(rootRuleIds, 2 * rootRuleIds.length);
+			rootSizes = Arrays.copyOf(rootSizes, 2 * rootSizes.length);
+		}
+		return newRootId;
+	}
+
+	/**
+	 * Return the multiset of the productions of the given root, building it
+	 * if the root changed. Must be called while holding the write lock.
+	 *
+	 * @param rootId
+	 * @return
+	 */
+	private ImmutableMultiset<TreeNode<T>> getRootView(final int rootId) {
+		final ImmutableMultiset<TreeNode<T>> cachedView = rootViews
+				.get(rootId);
+		if (cachedView != null) {
+			return cachedView;
+		}
+		final ImmutableMultiset.Builder<TreeNode<T>> productions = ImmutableMultiset
+				.builder();
+		for (int i = 0; i < rootSizes[rootId]; i++) {
+			final int ruleId = rootRuleIds[rootId][i];
+			productions.addCopies(rules.getTree(ruleId), ruleCounts.get(ruleId));
+		}
+		productions.addCopies(UNK_NODE, rootUnkCounts[rootId]);
+		final ImmutableMultiset<TreeNode<T>> view = productions.build();
+		rootViews.set(rootId, view);
+		return view;
 	}
 
 	/**
@@ -250,44 +567,157 @@ ITreeSubstitutionGrammar<T> {
 	}
 
 	/**
-	 * Prune the grammar.
+	 * Return true if the posterior probability of the rules of this grammar
+	 * can be computed.
 	 *
-	 * @param threshold
+	 * @return
 	 */
-	public void prune(final int threshold) {
-		final ArrayList<T> headsToBeRemoved = Lists.newArrayList();
-		for (final Entry<T, ? extends Multiset<TreeNode<T>>> ruleHeadEntry : grammar
-				.entrySet()) {
-			final T ruleHead = ruleHeadEntry.getKey();
-			final Multiset<TreeNode<T>> productions = ruleHeadEntry.getValue();
-			if (productions.size() < threshold) {
-				headsToBeRemoved.add(ruleHead);
-				continue;
+	boolean hasRulePosteriors() {
+		return posteriorComputer != null;
+	}
+
+	/**
+	 * Build the productions of each root from the production counts.
+	 */
+	private void indexRootRules() {
+		rootRuleIds = new int[rootCounts.length()][];
+		rootSizes = new int[rootCounts.length()];
+		ruleRootPositions = new int[ruleCounts.length()];
+		rootViews = Lists.newArrayList(Collections
+				.<ImmutableMultiset<TreeNode<T>>> nCopies(roots.size(), null));
+		for (int ruleId = 0; ruleId < rules.getIdUpperBound(); ruleId++) {
+			if (ruleCounts.get(ruleId) > 0) {
+				addToRoot(ruleId);
 			}
+		}
+	}
+
+	/**
+	 * Initialize an empty set of productions.
+	 */
+	private void initProductions() {
+		rules = new TreeInterner<T>();
+		ruleCounts = new AtomicIntegerArray(INITIAL_CAPACITY);
+		ruleRootIds = new int[INITIAL_CAPACITY];
+		rootIds = Maps.newHashMap();
+		roots = Lists.newArrayList();
+		rootCounts = new AtomicIntegerArray(INITIAL_CAPACITY);
+		rootUnkCounts = new int[INITIAL_CAPACITY];
+		lock = new ReentrantReadWriteLock();
+		indexRootRules();
+	}
 
-			final ArrayList<TreeNode<T>> productionsToBeRemoved = Lists
-					.newArrayList();
-			for (final TreeNode<T> rule : productions.elementSet()) {
-				if (productions.count(rule) < threshold) {
-					productionsToBeRemoved.add(rule);
+	/**
+	 * Invalidate the cached views of the given root. Must be called while
+	 * holding the read or the write lock. The views are only built while
+	 * holding the write lock, so the checks are not racy.
+	 *
+	 * @param rootId
+	 */
+	private void invalidateRoot(final int rootId) {
+		if (rootViews.get(rootId) != null) {
+			rootViews.set(rootId, null);
+		}
+		if (grammarView != null) {
+			grammarView = null;
+		}
+	}
+
+	/**
+	 * Add the productions of a grammar that was serialized before the
+	 * productions were interned.
+	 */
+	private void migrateProductions() {
+		final Map<T, ? extends Multiset<TreeNode<T>>> oldGrammar = grammar;
+		grammar = null;
+		initProductions();
+		for (final Entry<T, ? extends Multiset<TreeNode<T>>> rootEntry : oldGrammar
+				.entrySet()) {
+			for (final Multiset.Entry<TreeNode<T>> production : rootEntry
+					.getValue().entrySet()) {
+				if (production.getElement() == UNK_NODE) {
+					final int rootId = getOrAddRootId(rootEntry.getKey());
+					rootCounts.addAndGet(rootId, production.getCount());
+					rootUnkCounts[rootId] += production.getCount();
+				} else {
+					addTree(production.getElement(), production.getCount());
 				}
 			}
+		}
+	}
 
-			int sum = 0;
-			for (final TreeNode<T> rule : productionsToBeRemoved) {
-				final int cnt = productions.count(rule);
-				sum += cnt;
-				productions.remove(rule, cnt);
+	/**
+	 * Prune the grammar.
+	 *
+	 * @param threshold
+	 */
+	public void prune(final int threshold) {
+		lock.writeLock().lock();
+		try {
+			for (int ruleId = 0; ruleId < rules.getIdUpperBound(); ruleId++) {
+				final int count = ruleCounts.get(ruleId);
+				if (count == 0) {
+					continue;
+				}
+				final int rootId = ruleRootIds[ruleId];
+				if (rootCounts.get(rootId) < threshold) {
+					// The whole head will be removed
+					releaseRule(ruleId);
+				} else if (count < threshold) {
+					releaseRule(ruleId);
+					rootUnkCounts[rootId] += count;
+				}
 			}
-
-			productions.add(UNK_NODE, sum);
+			for (int rootId = 0; rootId < roots.size(); rootId++) {
+				if (rootCounts.get(rootId) < threshold) {
+					rootCounts.set(rootId, 0);
+					rootUnkCounts[rootId] = 0;
+				}
+				invalidateRoot(rootId);
+			}
+		} finally {
+			lock.writeLock().unlock();
 		}
+	}
 
-		for (final T node : headsToBeRemoved) {
-			grammar.remove(node);
+	private void readObject(final ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		if (grammar != null) {
+			migrateProductions();
+		} else {
+			indexRootRules();
 		}
 	}
 
+	/**
+	 * Remove a rule completely, without changing the root counts. Must be
+	 * called while holding the write lock.
+	 *
+	 * @param ruleId
+	 */
+	private void releaseRule(final int ruleId) {
+		removeFromRoot(ruleId);
+		ruleCounts.set(ruleId, 0);
+		rules.release(ruleId);
+	}
+
+	/**
+	 * Remove the production from the productions of its root, by moving the
+	 * last production of the root in its place. Must be called while holding
+	 * the write lock.
+	 *
+	 * @param ruleId
+	 */
+	private void removeFromRoot(final int ruleId) {
+		final int rootId = ruleRootIds[ruleId];
+		final int position = ruleRootPositions[ruleId];
+		rootSizes[rootId]--;
+		final int lastRuleId = rootRuleIds[rootId][rootSizes[rootId]];
+		rootRuleIds[rootId][position] = lastRuleId;
+		ruleRootPositions[lastRuleId] = position;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 *
@@ -297,25 +727,44 @@ ITreeSubstitutionGrammar<T> {
 	 */
 	@Override
 	public boolean removeTree(final TreeNode<T> subTree) {
-		final T rootNodeData = subTree.getData();
-		final ConcurrentHashMultiset<TreeNode<T>> productions = grammar
-				.get(rootNodeData);
-		if (productions == null) {
-			return false;
-		} else {
-			return productions.remove(subTree);
-		}
+		return removeTree(subTree, 1) >= 0;
 	}
 
 	@Override
 	public int removeTree(final TreeNode<T> subTree, final int occurences) {
-		final T rootNodeData = subTree.getData();
-		final ConcurrentHashMultiset<TreeNode<T>> productions = grammar
-				.get(rootNodeData);
-		if (productions == null) {
-			return -occurences;
-		} else {
-			return productions.remove(subTree, occurences) - occurences;
+		lock.readLock().lock();
+		try {
+			final int ruleId = rules.getId(subTree);
+			if (ruleId == -1) {
+				return -occurences;
+			}
+			final int previousCount = tryUpdateCount(ruleId, -occurences);
+			if (previousCount > 0) {
+				return previousCount - occurences;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		// The production may have to be removed completely
+		lock.writeLock().lock();
+		try {
+			final int ruleId = rules.getId(subTree);
+			if (ruleId == -1) {
+				return -occurences;
+			}
+			final int previousCount = ruleCounts.get(ruleId);
+			final int removed = Math.min(previousCount, occurences);
+			rootCounts.addAndGet(ruleRootIds[ruleId], -removed);
+			if (removed == previousCount) {
+				releaseRule(ruleId);
+			} else {
+				ruleCounts.addAndGet(ruleId, -removed);
+			}
+			invalidateRoot(ruleRootIds[ruleId]);
+			return previousCount - occurences;
+		} finally {
+			lock.writeLock().unlock();
 		}
 	}
 
@@ -324,10 +773,21 @@ ITreeSubstitutionGrammar<T> {
 		posteriorComputer = checkNotNull(computer);
 	}
 
+	/**
+	 * Return true if the trees are counted as given, so that they can be
+	 * probed with {@link #countTreeOccurences(int, Predicate)}. Grammars that
+	 * transform the trees before counting them should return false.
+	 *
+	 * @return
+	 */
+	public boolean supportsTreeProbing() {
+		return true;
+	}
+
 	@Override
 	public String toString() {
 		final StringBuffer buf = new StringBuffer();
-		for (final Entry<T, ? extends Multiset<TreeNode<T>>> rootEntry : grammar
+		for (final Entry<T, ? extends Multiset<TreeNode<T>>> rootEntry : getInternalGrammar()
 				.entrySet()) {
 			final T root = rootEntry.getKey();
 			buf.append("********\n");
@@ -346,4 +806,29 @@ ITreeSubstitutionGrammar<T> {
 		}
 		return buf.toString();
 	}
+
+	/**
+	 * Atomically add the delta to the count of the given interned
+	 * production, unless the count would not remain positive. Must be called
+	 * while holding the read lock.
+	 *
+	 * @param ruleId
+	 * @param delta
+	 * @return the count before the update or 0 if the count was not updated
+	 */
+	private int tryUpdateCount(final int ruleId, final int delta) {
+		while (true) {
+			final int currentCount = ruleCounts.get(ruleId);
+			if (currentCount + delta <= 0) {
+				return 0;
+			}
+			if (ruleCounts.compareAndSet(ruleId, currentCount, currentCount
+					+ delta)) {
+				final int rootId = ruleRootIds[ruleId];
+				rootCounts.addAndGet(rootId, delta);
+				invalidateRoot(rootId);
+				return currentCount;
+			}
+		}
+	}
 }
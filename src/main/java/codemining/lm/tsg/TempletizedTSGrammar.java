@@ -197,4 +197,9 @@ public class TempletizedTSGrammar extends FormattedTSGrammar {
 
 		return reparamTree;
 	}
+
+	@Override
+	public boolean supportsTreeProbing() {
+		return false;
+	}
 }
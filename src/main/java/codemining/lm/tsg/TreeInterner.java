@@ -0,0 +1,262 @@
+/**
+ *
+ */
+package codemining.lm.tsg;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+import codemining.ast.TreeNode;
+import codemining.lm.OpenAddressing;
+
+import com.esotericsoftware.kryo.DefaultSerializer;
+import com.esotericsoftware.kryo.serializers.JavaSerializer;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+
+/**
+ * A hash-consing table for trees. Each distinct tree is mapped to a single
+ * canonical (immutable) instance and a dense integer id that can be used to
+ * index primitive arrays. Ids of released trees are recycled.
+ *
+ * This class is not thread-safe.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+@DefaultSerializer(JavaSerializer.class)
+public class TreeInterner<T extends Serializable> implements Serializable {
+
+	private static final long serialVersionUID = -3571530183457815372L;
+
+	private static final int EMPTY_SLOT = -1;
+
+	private static final int DELETED_SLOT = -2;
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * The open addressing hash table containing ids. It is rebuilt after
+	 * deserialization.
+	 */
+	private transient int[] table;
+
+	/**
+	 * The canonical tree of each id, null if the id is free.
+	 */
+	private Object[] trees;
+
+	/**
+	 * The hash code of the tree of each id.
+	 */
+	private int[] treeHashes;
+
+	/**
+	 * A stack of the ids that have been released.
+	 */
+	private int[] freeIds;
+
+	private int nFreeIds = 0;
+
+	/**
+	 * All ids are strictly smaller than this.
+	 */
+	private int idUpperBound = 0;
+
+	private int size = 0;
+
+	private int nDeletedSlots = 0;
+
+	public TreeInterner() {
+		table = new int[INITIAL_CAPACITY];
+		Arrays.fill(table, EMPTY_SLOT);
+		trees = new Object[INITIAL_CAPACITY];
+		treeHashes = new int[INITIAL_CAPACITY];
+		freeIds = new int[INITIAL_CAPACITY];
+	}
+
+	private int allocateId() {
+		if (nFreeIds > 0) {
+			nFreeIds--;
+			return freeIds[nFreeIds];
+		}
+		if (idUpperBound == trees.length) {
+			trees = Arrays.copyOf(trees, 2 * trees.length);
+			treeHashes = Arrays.copyOf(treeHashes, 2 * treeHashes.length);
+		}
+		return idUpperBound++;
+	}
+
+	/**
+	 * Return the slot in the table that contains the tree matched by the
+	 * given predicate or -1 if no such tree has been interned.
+	 *
+	 * @param hash
+	 *            the hash code of the tree
+	 * @param matcher
+	 * @return
+	 */
+	private int findSlot(final int hash, final Predicate<TreeNode<T>> matcher) {
+		int slot = OpenAddressing.firstSlot(hash, table.length);
+		while (true) {
+			final int id = table[slot];
+			if (id == EMPTY_SLOT) {
+				return -1;
+			} else if (id != DELETED_SLOT && treeHashes[id] == hash
+					&& matcher.apply(getTree(id))) {
+				return slot;
+			}
+			slot = OpenAddressing.nextSlot(slot, table.length);
+		}
+	}
+
+	/**
+	 * Return the id of the given tree or -1 if the tree has not been
+	 * interned.
+	 *
+	 * @param tree
+	 * @return
+	 */
+	public int getId(final TreeNode<T> tree) {
+		return getId(tree.hashCode(), Predicates.equalTo(tree));
+	}
+
+	/**
+	 * Return the id of the tree that has the given hash code and is matched
+	 * by the given predicate or -1 if no such tree has been interned. This
+	 * allows probing for trees that have not been materialized.
+	 *
+	 * @param hash
+	 * @param matcher
+	 * @return
+	 */
+	public int getId(final int hash, final Predicate<TreeNode<T>> matcher) {
+		final int slot = findSlot(hash, matcher);
+		if (slot == -1) {
+			return -1;
+		}
+		return table[slot];
+	}
+
+	/**
+	 * Return the canonical tree with the given id.
+	 *
+	 * @param id
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public TreeNode<T> getTree(final int id) {
+		checkElementIndex(id, idUpperBound);
+		return (TreeNode<T>) trees[id];
+	}
+
+	/**
+	 * Return an upper bound (exclusive) of all the ids currently in use.
+	 *
+	 * @return
+	 */
+	public int getIdUpperBound() {
+		return idUpperBound;
+	}
+
+	/**
+	 * Return the id of the given tree, interning an immutable copy of it if it
+	 * has not been seen before.
+	 *
+	 * @param tree
+	 * @return
+	 */
+	public int intern(final TreeNode<T> tree) {
+		final int hash = tree.hashCode();
+		final int existingSlot = findSlot(hash, Predicates.equalTo(tree));
+		if (existingSlot != -1) {
+			return table[existingSlot];
+		}
+
+		if (4 * (size + nDeletedSlots + 1) > 3 * table.length) {
+			rehash();
+		}
+
+		final int id = allocateId();
+		trees[id] = tree.hasImmutableData() ? tree : tree.toImmutable();
+		treeHashes[id] = hash;
+
+		int slot = OpenAddressing.firstSlot(hash, table.length);
+		while (table[slot] >= 0) {
+			slot = OpenAddressing.nextSlot(slot, table.length);
+		}
+		if (table[slot] == DELETED_SLOT) {
+			nDeletedSlots--;
+		}
+		table[slot] = id;
+		size++;
+		return id;
+	}
+
+	private void readObject(final ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		rehash();
+	}
+
+	/**
+	 * Resize the table so that it can fit the current trees and remove all
+	 * the deleted slots.
+	 */
+	private void rehash() {
+		int capacity = INITIAL_CAPACITY;
+		while (4 * (size + 1) > capacity) {
+			capacity *= 2;
+		}
+		table = new int[capacity];
+		Arrays.fill(table, EMPTY_SLOT);
+		nDeletedSlots = 0;
+
+		for (int id = 0; id < idUpperBound; id++) {
+			if (trees[id] == null) {
+				continue;
+			}
+			int slot = OpenAddressing.firstSlot(treeHashes[id], capacity);
+			while (table[slot] != EMPTY_SLOT) {
+				slot = OpenAddressing.nextSlot(slot, capacity);
+			}
+			table[slot] = id;
+		}
+	}
+
+	/**
+	 * Release the given id. The id may be later reused for another tree.
+	 *
+	 * @param id
+	 */
+	public void release(final int id) {
+		checkArgument(trees[id] != null, "Id %s is not in use", id);
+		final int slot = findSlot(treeHashes[id],
+				Predicates.<TreeNode<T>> equalTo(getTree(id)));
+		table[slot] = DELETED_SLOT;
+		nDeletedSlots++;
+		trees[id] = null;
+		size--;
+
+		if (nFreeIds == freeIds.length) {
+			freeIds = Arrays.copyOf(freeIds, 2 * freeIds.length);
+		}
+		freeIds[nFreeIds] = id;
+		nFreeIds++;
+	}
+
+	/**
+	 * Return the number of distinct trees currently interned.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+}
@@ -7,6 +7,7 @@ import static com.google.common.base.Preconditions.checkArgument;
 
 import java.io.Serializable;
 import java.util.ArrayDeque;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.List;
 import java.util.Map;
@@ -16,11 +17,12 @@ import codemining.ast.TreeNode;
 import codemining.ast.TreeNode.NodeDataPair;
 import codemining.util.StatsUtil;
 
+import com.google.common.base.Function;
 import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multiset;
-import com.google.common.collect.Multiset.Entry;
 import com.google.common.collect.Sets;
 
 /**
@@ -31,10 +33,86 @@ import com.google.common.collect.Sets;
  */
 public class TreeProbabilityComputer<T extends Serializable> {
 
-	private final Map<T, ? extends Multiset<TreeNode<T>>> grammar;
+	/**
+	 * An index of the grammar, from the key of the rule roots to the rules.
+	 */
+	private static final class GrammarIndex<T extends Serializable> {
+
+		/**
+		 * The grammar view or the frozen grammar that the index was built
+		 * from.
+		 */
+		final Object source;
+
+		final Map<Object, RootProductions<T>> productionsByRootKey = Maps
+				.newHashMap();
+
+		GrammarIndex(final Object source) {
+			this.source = source;
+		}
+	}
+
+	/**
+	 * The productions of a single root symbol, along with a discrimination
+	 * trie over the children of their roots.
+	 */
+	private static final class RootProductions<T extends Serializable> {
+
+		/**
+		 * True for the productions of the root.
+		 */
+		final Predicate<TreeNode<T>> isProduction;
+
+		/**
+		 * The rules, in the iteration order of the productions. The trie
+		 * refers to the rules by their position in this list.
+		 */
+		final List<TreeNode<T>> rules = Lists.newArrayList();
+
+		final RuleTrie trie = new RuleTrie();
+
+		/**
+		 * The rules whose root is a leaf. They are always candidates, since a
+		 * leaf is a partial supertree of any node.
+		 */
+		final List<Integer> leafRuleIds = Lists.newArrayList();
+
+		RootProductions(final Predicate<TreeNode<T>> isProduction) {
+			this.isProduction = isProduction;
+		}
+	}
+
+	/**
+	 * A trie over the keys of the children of the rule roots. The children
+	 * of each property are followed by a PROPERTY_END key.
+	 */
+	private static final class RuleTrie {
+
+		final Map<Object, RuleTrie> next = Maps.newHashMap();
+
+		/**
+		 * The rules whose root children end at this node.
+		 */
+		final List<Integer> ruleIds = Lists.newArrayList();
+	}
+
+	/**
+	 * The trie key that marks the end of the children of a property.
+	 */
+	private static final Object PROPERTY_END = new Object();
+
 	private final TSGrammar<T> tsGrammar;
 	private final Predicate<NodeDataPair<T>> equalityComparator;
 	private final boolean requireAllChildren;
+
+	/**
+	 * A function that returns the key of a node, such that two nodes match
+	 * (according to the equalityComparator) iff their keys are equal. Null if
+	 * the grammar should not be indexed.
+	 */
+	private final Function<T, ?> nodeKey;
+
+	private volatile GrammarIndex<T> index = null;
 	/**
 	 * The default TSGNode matching predicate.
 	 */
@@ -47,13 +125,190 @@ public class TreeProbabilityComputer<T extends Serializable> {
 
 	};
 
+	/**
+	 * The node key that is consistent with {@link #TSGNODE_MATCHER}.
+	 */
+	public static final Function<TSGNode, Integer> TSGNODE_KEY = new Function<TSGNode, Integer>() {
+
+		@Override
+		public Integer apply(final TSGNode node) {
+			return node.nodeKey;
+		}
+
+	};
+
+	/**
+	 * Create a computer that scans all the grammar rules at each node.
+	 * 
+	 * @param tsGrammar
+	 * @param requireAllChildren
+	 * @param equalityComparator
+	 */
 	public TreeProbabilityComputer(final TSGrammar<T> tsGrammar,
 			final boolean requireAllChildren,
 			final Predicate<NodeDataPair<T>> equalityComparator) {
+		this(tsGrammar, requireAllChildren, equalityComparator, null);
+	}
+
+	/**
+	 * Create a computer that indexes the grammar rules by the keys of their
+	 * root and the root's children, so that only the rules that may match a
+	 * node are tested. The index is rebuilt when the grammar changes.
+	 * 
+	 * @param tsGrammar
+	 * @param requireAllChildren
+	 * @param equalityComparator
+	 * @param nodeKey
+	 *            returns the key of a node, such that two nodes match iff
+	 *            their keys are equal
+	 */
+	public TreeProbabilityComputer(final TSGrammar<T> tsGrammar,
+			final boolean requireAllChildren,
+			final Predicate<NodeDataPair<T>> equalityComparator,
+			final Function<T, ?> nodeKey) {
 		this.tsGrammar = tsGrammar;
-		this.grammar = tsGrammar.grammar;
 		this.requireAllChildren = requireAllChildren;
 		this.equalityComparator = equalityComparator;
+		this.nodeKey = nodeKey;
+	}
+
+	/**
+	 * Add the rule to the trie of its root productions.
+	 * 
+	 * @param rootProductions
+	 * @param rule
+	 */
+	private void addToTrie(final RootProductions<T> rootProductions,
+			final TreeNode<T> rule) {
+		final int ruleId = rootProductions.rules.size();
+		rootProductions.rules.add(rule);
+		if (rule.isLeaf()) {
+			rootProductions.leafRuleIds.add(ruleId);
+			return;
+		}
+		RuleTrie trie = rootProductions.trie;
+		for (final List<TreeNode<T>> childrenForProperty : rule
+				.getChildrenByProperty()) {
+			for (final TreeNode<T> child : childrenForProperty) {
+				trie = getOrAddTrieNode(trie, nodeKey.apply(child.getData()));
+			}
+			trie = getOrAddTrieNode(trie, PROPERTY_END);
+		}
+		trie.ruleIds.add(ruleId);
+	}
+
+	/**
+	 * Build an index directly from the arrays of a frozen grammar.
+	 * 
+	 * @param grammar
+	 * @return
+	 */
+	private GrammarIndex<T> buildFrozenIndex(final FrozenTSGrammar<T> grammar) {
+		final GrammarIndex<T> grammarIndex = new GrammarIndex<T>(grammar);
+		for (int rootId = 0; rootId < grammar.getNumberOfRoots(); rootId++) {
+			final Object rootKey = nodeKey.apply(grammar.getRoot(rootId));
+			if (grammarIndex.productionsByRootKey.containsKey(rootKey)) {
+				continue;
+			}
+			final int rulesStart = grammar.getRulesStart(rootId);
+			final int rulesEnd = grammar.getRulesEnd(rootId);
+			final RootProductions<T> rootProductions = new RootProductions<T>(
+					new Predicate<TreeNode<T>>() {
+
+						@Override
+						public boolean apply(final TreeNode<T> rule) {
+							final int ruleId = grammar.getRuleId(rule);
+							return ruleId >= rulesStart && ruleId < rulesEnd;
+						}
+
+					});
+			for (int ruleId = rulesStart; ruleId < rulesEnd; ruleId++) {
+				addToTrie(rootProductions, grammar.getRule(ruleId));
+			}
+			grammarIndex.productionsByRootKey.put(rootKey, rootProductions);
+		}
+		return grammarIndex;
+	}
+
+	/**
+	 * Build an index of the given grammar view.
+	 * 
+	 * @param grammar
+	 * @return
+	 */
+	private GrammarIndex<T> buildIndex(
+			final Map<T, ? extends Multiset<TreeNode<T>>> grammar) {
+		final GrammarIndex<T> grammarIndex = new GrammarIndex<T>(grammar);
+		for (final Map.Entry<T, ? extends Multiset<TreeNode<T>>> grammarProduction : grammar
+				.entrySet()) {
+			final Object rootKey = nodeKey.apply(grammarProduction.getKey());
+			if (grammarIndex.productionsByRootKey.containsKey(rootKey)) {
+				// As in the scan, only the first matching root is used
+				continue;
+			}
+			final RootProductions<T> rootProductions = new RootProductions<T>(
+					Predicates.in(grammarProduction.getValue()));
+			for (final TreeNode<T> rule : grammarProduction.getValue()
+					.elementSet()) {
+				if (rule == tsGrammar.UNK_NODE) {
+					continue;
+				}
+				addToTrie(rootProductions, rule);
+			}
+			grammarIndex.productionsByRootKey.put(rootKey, rootProductions);
+		}
+		return grammarIndex;
+	}
+
+	/**
+	 * Collect the ids of the rules in the trie whose root children may match
+	 * the children of the current node. The matching here is a necessary but
+	 * not sufficient condition, since it only looks at the children of the
+	 * root.
+	 * 
+	 * @param trie
+	 * @param current
+	 * @param propertyId
+	 * @param childIdx
+	 * @param ruleIds
+	 */
+	private void collectCandidateRules(final RuleTrie trie,
+			final TreeNode<T> current, final int propertyId,
+			final int childIdx, final List<Integer> ruleIds) {
+		if (propertyId == current.nProperties()) {
+			ruleIds.addAll(trie.ruleIds);
+			return;
+		}
+		final List<TreeNode<T>> childrenForProperty = current
+				.getChildrenByProperty().get(propertyId);
+
+		// The rule may have fewer children in a partial match, but not in a
+		// partial supertree.
+		if (requireAllChildren || childIdx >= childrenForProperty.size()) {
+			final RuleTrie endOfProperty = trie.next.get(PROPERTY_END);
+			if (endOfProperty != null) {
+				collectCandidateRules(endOfProperty, current, propertyId + 1,
+						0, ruleIds);
+			}
+		}
+
+		if (childIdx < childrenForProperty.size()) {
+			final RuleTrie nextChild = trie.next.get(nodeKey
+					.apply(childrenForProperty.get(childIdx).getData()));
+			if (nextChild != null) {
+				collectCandidateRules(nextChild, current, propertyId,
+						childIdx + 1, ruleIds);
+			}
+		} else if (!requireAllChildren) {
+			// A partial supertree may have any extra children
+			for (final Map.Entry<Object, RuleTrie> nextChild : trie.next
+					.entrySet()) {
+				if (nextChild.getKey() != PROPERTY_END) {
+					collectCandidateRules(nextChild.getValue(), current,
+							propertyId, childIdx + 1, ruleIds);
+				}
+			}
+		}
 	}
 
 	/**
@@ -62,35 +317,38 @@ public class TreeProbabilityComputer<T extends Serializable> {
 	 * 
 	 * @param nodeProductionProbabilities
 	 * @param current
-	 * @param allRuleLog2Probabilities
-	 * @param productions
+	 * @param isProduction
+	 *            true for the productions of the root of the current node
+	 * @param candidateRules
+	 *            the productions that may match the current node
 	 */
 	private void computeNodeProbabilities(
 			final Map<TreeNode<T>, Double> nodeProductionProbabilities,
-			final TreeNode<T> current, final Multiset<TreeNode<T>> productions) {
+			final TreeNode<T> current,
+			final Predicate<TreeNode<T>> isProduction,
+			final Iterable<TreeNode<T>> candidateRules) {
 		final List<Double> allRuleLog2Probabilities = Lists.newArrayList();
 
-		for (final Entry<TreeNode<T>> productionEntry : productions.entrySet()) {
+		for (final TreeNode<T> production : candidateRules) {
 			// We need to see if it's a partial match, get all it's end
 			// points
 			if (requireAllChildren) {
-				if (!productionEntry.getElement().partialMatch(current,
-						equalityComparator, requireAllChildren)) {
+				if (!production.partialMatch(current, equalityComparator,
+						requireAllChildren)) {
 					continue;
 				}
 			} else {
-				if (!productionEntry.getElement().isPartialSupertreeOf(current,
+				if (!production.isPartialSupertreeOf(current,
 						equalityComparator)) {
 					continue;
 				}
 			}
 
 			final Set<TreeNode<T>> endPoints = getRuleEndPointsInTree(
-					productionEntry.getElement(), current);
+					production, current);
 
 			double productionLog2Prob = tsGrammar
-					.computeRulePosteriorLog2Probability(productionEntry
-							.getElement());
+					.computeRulePosteriorLog2Probability(production);
 
 			for (final TreeNode<T> subtree : endPoints) {
 				checkArgument(nodeProductionProbabilities.containsKey(subtree));
@@ -111,7 +369,7 @@ public class TreeProbabilityComputer<T extends Serializable> {
 				cfgLogProb += nodeProductionProbabilities.get(child);
 			}
 		}
-		if (!productions.contains(cfgRule)) {
+		if (!isProduction.apply(cfgRule)) {
 			final double nodeLogProb = tsGrammar
 					.computeRulePosteriorLog2Probability(cfgRule) + cfgLogProb;
 			allRuleLog2Probabilities.add(nodeLogProb);
@@ -125,6 +383,28 @@ public class TreeProbabilityComputer<T extends Serializable> {
 
 	}
 
+	/**
+	 * Return the rules of the given root productions that may match the
+	 * current node, in the iteration order of the productions.
+	 * 
+	 * @param rootProductions
+	 * @param current
+	 * @return
+	 */
+	private List<TreeNode<T>> getCandidateRules(
+			final RootProductions<T> rootProductions, final TreeNode<T> current) {
+		final List<Integer> ruleIds = Lists.newArrayList();
+		collectCandidateRules(rootProductions.trie, current, 0, 0, ruleIds);
+		ruleIds.addAll(rootProductions.leafRuleIds);
+		Collections.sort(ruleIds);
+		final List<TreeNode<T>> candidates = Lists
+				.newArrayListWithCapacity(ruleIds.size());
+		for (final int ruleId : ruleIds) {
+			candidates.add(rootProductions.rules.get(ruleId));
+		}
+		return candidates;
+	}
+
 	/**
 	 * Get the plan at which the probabilities need to be computed.
 	 * 
@@ -154,6 +434,33 @@ public class TreeProbabilityComputer<T extends Serializable> {
 		return ordered;
 	}
 
+	/**
+	 * Return the index of the grammar, building it if the grammar has changed
+	 * since the last call. Frozen grammars are indexed once, without building
+	 * their view.
+	 * 
+	 * @return
+	 */
+	private GrammarIndex<T> getIndex() {
+		final GrammarIndex<T> currentIndex = index;
+		final GrammarIndex<T> newIndex;
+		if (tsGrammar instanceof FrozenTSGrammar) {
+			if (currentIndex != null) {
+				return currentIndex;
+			}
+			newIndex = buildFrozenIndex((FrozenTSGrammar<T>) tsGrammar);
+		} else {
+			final Map<T, ? extends Multiset<TreeNode<T>>> grammar = tsGrammar
+					.getInternalGrammar();
+			if (currentIndex != null && currentIndex.source == grammar) {
+				return currentIndex;
+			}
+			newIndex = buildIndex(grammar);
+		}
+		index = newIndex;
+		return newIndex;
+	}
+
 	/**
 	 * Get the log2-probability of the tree in this TSG.
 	 * 
@@ -163,6 +470,10 @@ public class TreeProbabilityComputer<T extends Serializable> {
 	 */
 	public double getLog2ProbabilityOf(final TreeNode<T> tree) {
 		final List<TreeNode<T>> ordered = getComputePlan(tree);
+		final GrammarIndex<T> grammarIndex = nodeKey == null ? null
+				: getIndex();
+		final Map<T, ? extends Multiset<TreeNode<T>>> grammar = grammarIndex == null ? tsGrammar
+				.getInternalGrammar() : null;
 
 		final Map<TreeNode<T>, Double> nodeProductionProbabilities = Maps
 				.newIdentityHashMap();
@@ -180,17 +491,31 @@ public class TreeProbabilityComputer<T extends Serializable> {
 			// the
 			// nodes they terminate in (if any)
 			// sum the log probabilities for the rule and the lower nodes
-			Multiset<TreeNode<T>> productions = null;
-			for (final Map.Entry<T, ? extends Multiset<TreeNode<T>>> grammarProduction : grammar
-					.entrySet()) {
-				if (equalityComparator.apply(new NodeDataPair<T>(
-						grammarProduction.getKey(), current.getData()))) {
-					productions = grammarProduction.getValue();
-					break;
+			Predicate<TreeNode<T>> isProduction = null;
+			Iterable<TreeNode<T>> candidateRules = null;
+			if (grammarIndex != null) {
+				final RootProductions<T> rootProductions = grammarIndex.productionsByRootKey
+						.get(nodeKey.apply(current.getData()));
+				if (rootProductions != null) {
+					isProduction = rootProductions.isProduction;
+					candidateRules = getCandidateRules(rootProductions,
+							current);
+				}
+			} else {
+				for (final Map.Entry<T, ? extends Multiset<TreeNode<T>>> grammarProduction : grammar
+						.entrySet()) {
+					if (equalityComparator.apply(new NodeDataPair<T>(
+							grammarProduction.getKey(), current.getData()))) {
+						isProduction = Predicates.in(grammarProduction
+								.getValue());
+						candidateRules = grammarProduction.getValue()
+								.elementSet();
+						break;
+					}
 				}
 			}
 
-			if (productions == null) {
+			if (isProduction == null) {
 				// We don't know that, so now compute it naively
 				double logProb = 0;
 				final List<List<TreeNode<T>>> childrenProperties = current
@@ -204,7 +529,7 @@ public class TreeProbabilityComputer<T extends Serializable> {
 				nodeProductionProbabilities.put(current, logProb);
 			} else {
 				computeNodeProbabilities(nodeProductionProbabilities, current,
-						productions);
+						isProduction, candidateRules);
 				// Since the rule matching may be partial, this may be wrong.
 				// What should we do? TODO
 
@@ -215,6 +540,23 @@ public class TreeProbabilityComputer<T extends Serializable> {
 		return nodeProductionProbabilities.get(tree);
 	}
 
+	/**
+	 * Return the trie node following the given key, adding it if it does not
+	 * exist.
+	 * 
+	 * @param trie
+	 * @param key
+	 * @return
+	 */
+	private RuleTrie getOrAddTrieNode(final RuleTrie trie, final Object key) {
+		RuleTrie next = trie.next.get(key);
+		if (next == null) {
+			next = new RuleTrie();
+			trie.next.put(key, next);
+		}
+		return next;
+	}
+
 	/**
 	 * Returns a set of endpoint of this rule, given the tree.
 	 * 
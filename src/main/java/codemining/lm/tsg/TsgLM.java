@@ -7,12 +7,18 @@ import static com.google.common.base.Preconditions.checkArgument;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.AbstractFileFilter;
 import org.apache.commons.lang.NotImplementedException;
+import org.apache.commons.lang.exception.ExceptionUtils;
 
 import codemining.ast.TreeNode;
 import codemining.languagetools.ITokenizer;
@@ -27,14 +33,71 @@ import codemining.lm.ILanguageModel;
  */
 public class TsgLM implements ILanguageModel {
 
+	/**
+	 * The score of a single file or code snippet.
+	 *
+	 */
+	public static final class CodeScore {
+
+		/**
+		 * The file path or the id of the code.
+		 */
+		public final String source;
+
+		public final double log2Prob;
+
+		public final int nTokens;
+
+		/**
+		 * The log2-probability per token or 0 if there are no tokens.
+		 */
+		public final double crossEntropy;
+
+		public CodeScore(final String source, final double log2Prob,
+				final int nTokens) {
+			this.source = source;
+			this.log2Prob = log2Prob;
+			this.nTokens = nTokens;
+			crossEntropy = nTokens == 0 ? 0 : log2Prob / nTokens;
+		}
+
+		@Override
+		public String toString() {
+			return source + "," + log2Prob + "," + nTokens + ","
+					+ crossEntropy;
+		}
+	}
+
 	private static final long serialVersionUID = 3924904324373082051L;
 
-	final TSGrammar<TSGNode> grammar;
+	private static final Logger LOGGER = Logger
+			.getLogger(TsgLM.class.getName());
+
+	TSGrammar<TSGNode> grammar;
+
+	private ITokenizer tokenizer;
 
-	private final ITokenizer tokenizer;
+	/**
+	 * Whether a rule needs to match all the children of a node or it may
+	 * match a partial supertree. Models serialized before this field was
+	 * added are read with true, as they were always scored that way.
+	 */
+	private boolean requireAllChildren;
+
+	/**
+	 * The computer shared by all the (possibly concurrent) scoring calls, so
+	 * that the grammar index is built once.
+	 */
+	private transient volatile TreeProbabilityComputer<TSGNode> probabilityComputer;
 
 	public TsgLM(final TSGrammar<TSGNode> grammar) {
+		this(grammar, true);
+	}
+
+	public TsgLM(final TSGrammar<TSGNode> grammar,
+			final boolean requireAllChildren) {
 		this.grammar = grammar;
+		this.requireAllChildren = requireAllChildren;
 		tokenizer = grammar.getTreeExtractor().getTokenizer();
 	}
 
@@ -45,11 +108,9 @@ public class TsgLM implements ILanguageModel {
 	 */
 	@Override
 	public double getAbsoluteEntropy(final File file) throws IOException {
-		final TreeProbabilityComputer<TSGNode> probComputer = new TreeProbabilityComputer<TSGNode>(
-				grammar, true, TreeProbabilityComputer.TSGNODE_MATCHER);
 		final TreeNode<Integer> tree = grammar.getTreeExtractor().getTree(file);
 		final TreeNode<TSGNode> tsgTree = TSGNode.convertTree(tree, 0);
-		return probComputer.getLog2ProbabilityOf(tsgTree);
+		return getProbabilityComputer().getLog2ProbabilityOf(tsgTree);
 	}
 
 	/*
@@ -59,12 +120,10 @@ public class TsgLM implements ILanguageModel {
 	 */
 	@Override
 	public double getAbsoluteEntropy(final String fileContent) {
-		final TreeProbabilityComputer<TSGNode> probComputer = new TreeProbabilityComputer<TSGNode>(
-				grammar, true, TreeProbabilityComputer.TSGNODE_MATCHER);
 		final TreeNode<Integer> tree = grammar.getTreeExtractor().getTree(
 				fileContent, ParseType.COMPILATION_UNIT);
 		final TreeNode<TSGNode> tsgTree = TSGNode.convertTree(tree, 0);
-		return probComputer.getLog2ProbabilityOf(tsgTree);
+		return getProbabilityComputer().getLog2ProbabilityOf(tsgTree);
 	}
 
 	/*
@@ -111,6 +170,22 @@ public class TsgLM implements ILanguageModel {
 		return this; // TODO
 	}
 
+	/**
+	 * Return the probability computer shared by all scoring calls.
+	 *
+	 * @return
+	 */
+	private TreeProbabilityComputer<TSGNode> getProbabilityComputer() {
+		TreeProbabilityComputer<TSGNode> computer = probabilityComputer;
+		if (computer == null) {
+			computer = new TreeProbabilityComputer<TSGNode>(grammar,
+					requireAllChildren, TreeProbabilityComputer.TSGNODE_MATCHER,
+					TreeProbabilityComputer.TSGNODE_KEY);
+			probabilityComputer = computer;
+		}
+		return computer;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -121,6 +196,72 @@ public class TsgLM implements ILanguageModel {
 		return tokenizer.getFileFilter();
 	}
 
+	@SuppressWarnings("unchecked")
+	private void readObject(final ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		final ObjectInputStream.GetField fields = in.readFields();
+		grammar = (TSGrammar<TSGNode>) fields.get("grammar", null);
+		tokenizer = (ITokenizer) fields.get("tokenizer", null);
+		requireAllChildren = fields.get("requireAllChildren", true);
+	}
+
+	/**
+	 * Score the given code.
+	 *
+	 * @param source
+	 *            the name of the code in the score
+	 * @param code
+	 * @return
+	 */
+	public CodeScore score(final String source, final String code) {
+		final TreeNode<Integer> tree = grammar.getTreeExtractor().getTree(
+				code, ParseType.COMPILATION_UNIT);
+		final double log2Prob = getProbabilityComputer().getLog2ProbabilityOf(
+				TSGNode.convertTree(tree, 0));
+		final int nTokens = code.isEmpty() ? 0 : tokenizer.tokenListFromCode(
+				code.toCharArray()).size();
+		return new CodeScore(source, log2Prob, nTokens);
+	}
+
+	/**
+	 * Score the given code snippets in parallel. The scores are computed
+	 * lazily, as the returned (parallel and unordered) stream is consumed,
+	 * so that large sets of snippets can be written out incrementally
+	 * without holding all the scores in memory. The consumer of the stream
+	 * may be called concurrently.
+	 *
+	 * @param codeById
+	 *            the code to score, keyed by the source name of its score
+	 * @return
+	 */
+	public Stream<CodeScore> scoreCode(final Map<String, String> codeById) {
+		return codeById.entrySet().parallelStream().unordered()
+				.map(code -> score(code.getKey(), code.getValue()));
+	}
+
+	/**
+	 * Score the given files in parallel. The scores are computed lazily, as
+	 * the returned (parallel and unordered) stream is consumed, so that large
+	 * evaluation sets can be written out incrementally without holding all
+	 * the scores in memory. The consumer of the stream may be called
+	 * concurrently. Files that cannot be read are logged and skipped.
+	 *
+	 * @param files
+	 * @return
+	 */
+	public Stream<CodeScore> scoreFiles(final Collection<File> files) {
+		return files.parallelStream().unordered().map(file -> {
+			try {
+				return score(file.toString(),
+						FileUtils.readFileToString(file));
+			} catch (final IOException e) {
+				LOGGER.warning("Failed to read " + file + " "
+						+ ExceptionUtils.getFullStackTrace(e));
+				return null;
+			}
+		}).filter(Objects::nonNull);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -21,8 +21,9 @@ import codemining.ast.TreeNode;
 import codemining.ast.java.AbstractJavaTreeExtractor;
 import codemining.java.codeutils.JavaASTExtractor;
 import codemining.java.tokenizers.JavaTokenizer;
-import codemining.lm.tsg.FormattedTSGrammar;
+import codemining.lm.tsg.MappedTSGrammar;
 import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.TSGrammar;
 import codemining.util.CollectionUtil;
 import codemining.util.SettingsLoader;
 import codemining.util.serialization.ISerializationStrategy.SerializationException;
@@ -133,7 +134,7 @@ public class PatternCorpus implements Serializable {
 	 * @return
 	 */
 	public static Set<TreeNode<Integer>> getPatternsFrom(
-			final FormattedTSGrammar grammar) {
+			final TSGrammar<TSGNode> grammar) {
 		return getPatternsFrom(grammar, MIN_PATTERN_COUNT, MIN_PATTERN_SIZE);
 	}
 
@@ -144,9 +145,21 @@ public class PatternCorpus implements Serializable {
 	 * @return
 	 */
 	public static Set<TreeNode<Integer>> getPatternsFrom(
-			final FormattedTSGrammar grammar, final int minPatternCount,
+			final TSGrammar<TSGNode> grammar, final int minPatternCount,
 			final int minPatternSize) {
 		final Set<TreeNode<Integer>> patterns = Sets.newHashSet();
+		if (grammar instanceof MappedTSGrammar) {
+			// Only decode the rules that are patterns
+			final MappedTSGrammar mappedGrammar = (MappedTSGrammar) grammar;
+			for (int ruleId = 0; ruleId < mappedGrammar.countDistinctTrees(); ruleId++) {
+				if (mappedGrammar.getRuleCount(ruleId) >= minPatternCount
+						&& mappedGrammar.getRuleSize(ruleId) >= minPatternSize) {
+					patterns.add(TSGNode.tsgTreeToInt(mappedGrammar
+							.getRule(ruleId)));
+				}
+			}
+			return patterns;
+		}
 		for (final Multiset<TreeNode<TSGNode>> rules : grammar
 				.getInternalGrammar().values()) {
 			for (final Entry<TreeNode<TSGNode>> ruleEntry : rules.entrySet()) {
@@ -170,15 +183,16 @@ public class PatternCorpus implements Serializable {
 				&& ruleEntry.getElement().getTreeSize() >= minPatternSize;
 	}
 
-	public static void main(final String[] args) throws SerializationException {
+	public static void main(final String[] args) throws SerializationException,
+			IOException {
 		if (args.length < 3) {
 			System.err
 			.println("Usage <tsg.ser> <minPatternCount> <minPatternSize> [<minTimesInFilterDir> <filterDir>...]");
 			System.exit(-1);
 		}
 
-		final FormattedTSGrammar grammar = (FormattedTSGrammar) Serializer
-				.getSerializer().deserializeFrom(args[0]);
+		final TSGrammar<TSGNode> grammar = MappedTSGrammar
+				.readGrammar(args[0]);
 
 		final int minCount = Integer.parseInt(args[1]);
 		final int minSize = Integer.parseInt(args[2]);
@@ -259,7 +273,7 @@ public class PatternCorpus implements Serializable {
 	 *
 	 * @param grammar
 	 */
-	public void addFromGrammar(final FormattedTSGrammar grammar,
+	public void addFromGrammar(final TSGrammar<TSGNode> grammar,
 			final int minPatternCount, final int minPatternSize) {
 		patterns.addAll(getPatternsFrom(grammar, minPatternCount,
 				minPatternSize));
@@ -4,6 +4,7 @@
 package codemining.lm.tsg.idioms;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.List;
 import java.util.Set;
 import java.util.SortedMap;
@@ -16,7 +17,9 @@ import codemining.ast.TreeNode;
 import codemining.ast.java.BinaryJavaAstTreeExtractor;
 import codemining.ast.java.VariableTypeJavaTreeExtractor;
 import codemining.java.codeutils.JavaASTExtractor;
-import codemining.lm.tsg.FormattedTSGrammar;
+import codemining.lm.tsg.MappedTSGrammar;
+import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.TSGrammar;
 import codemining.util.serialization.ISerializationStrategy.SerializationException;
 import codemining.util.serialization.Serializer;
 
@@ -34,16 +37,18 @@ public class PatternInSet {
 	/**
 	 * @param args
 	 * @throws SerializationException
+	 * @throws IOException
 	 */
-	public static void main(final String[] args) throws SerializationException {
+	public static void main(final String[] args)
+			throws SerializationException, IOException {
 		if (args.length != 4) {
 			System.err
 			.println("Usage <tsg> <filterCorpusDir> <snippetDir> <minPatternCount>");
 			System.exit(-1);
 		}
 
-		final FormattedTSGrammar grammar = (FormattedTSGrammar) Serializer
-				.getSerializer().deserializeFrom(args[0]);
+		final TSGrammar<TSGNode> grammar = MappedTSGrammar
+				.readGrammar(args[0]);
 		final BinaryJavaAstTreeExtractor format = (BinaryJavaAstTreeExtractor) grammar
 				.getTreeExtractor();
 		final VariableTypeJavaTreeExtractor typeExtractor = (VariableTypeJavaTreeExtractor) format
@@ -21,8 +21,8 @@ import codemining.ast.TreeNode;
 import codemining.ast.TreeNode.NodeDataPair;
 import codemining.ast.java.AbstractJavaTreeExtractor;
 import codemining.java.tokenizers.JavaTokenizer;
-import codemining.lm.tsg.FormattedTSGrammar;
 import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.TSGrammar;
 import codemining.util.parallel.ParallelThreadPool;
 
 import com.google.common.base.Predicate;
@@ -127,7 +127,7 @@ public class PatternStatsCalculator {
 			.create();
 
 	public PatternStatsCalculator(final AbstractJavaTreeExtractor treeFormat,
-			final FormattedTSGrammar grammar, final File directory) {
+			final TSGrammar<TSGNode> grammar, final File directory) {
 		this.treeFormat = treeFormat;
 		patterns = HashMultiset.create();
 		int currentIdx = 0;
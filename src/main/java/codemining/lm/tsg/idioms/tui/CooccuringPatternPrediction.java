@@ -4,6 +4,7 @@
 package codemining.lm.tsg.idioms.tui;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
@@ -18,12 +19,13 @@ import codemining.ast.AbstractTreeExtractor;
 import codemining.ast.NodeSetTreeDistance;
 import codemining.ast.TreeNode;
 import codemining.java.tokenizers.JavaTokenizer;
-import codemining.lm.tsg.FormattedTSGrammar;
+import codemining.lm.tsg.MappedTSGrammar;
+import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.TSGrammar;
 import codemining.lm.tsg.idioms.PatternCorpus;
 import codemining.lm.tsg.idioms.tui.PatternCooccurence.LikelihoodRatio;
 import codemining.util.data.UnorderedPair;
 import codemining.util.serialization.ISerializationStrategy.SerializationException;
-import codemining.util.serialization.Serializer;
 
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
@@ -84,16 +86,18 @@ public class CooccuringPatternPrediction {
 	/**
 	 * @param args
 	 * @throws SerializationException
+	 * @throws IOException
 	 */
-	public static void main(final String[] args) throws SerializationException {
+	public static void main(final String[] args)
+			throws SerializationException, IOException {
 		if (args.length != 6) {
 			System.err
 					.println("Usage <tsg> <minPatternCount> <minPatternSize> <trainPath> <testPath> <threshold>");
 			System.exit(-1);
 		}
 
-		final FormattedTSGrammar grammar = (FormattedTSGrammar) Serializer
-				.getSerializer().deserializeFrom(args[0]);
+		final TSGrammar<TSGNode> grammar = MappedTSGrammar
+				.readGrammar(args[0]);
 		final AbstractTreeExtractor format = grammar.getTreeExtractor();
 
 		final int minPatternCount = Integer.parseInt(args[1]);
@@ -22,7 +22,9 @@ import org.eclipse.jdt.core.dom.NodeFinder;
 import codemining.ast.TreeNode;
 import codemining.ast.java.AbstractJavaTreeExtractor;
 import codemining.java.codeutils.JavaASTExtractor;
-import codemining.lm.tsg.FormattedTSGrammar;
+import codemining.lm.tsg.MappedTSGrammar;
+import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.TSGrammar;
 import codemining.lm.tsg.idioms.PatternCorpus;
 import codemining.lm.tsg.idioms.PatternStatsCalculator;
 import codemining.util.serialization.ISerializationStrategy.SerializationException;
@@ -141,8 +143,8 @@ public class DeckardClonesInTsg {
 				args[0], new File(args[1]));
 
 		// Read tsg
-		final FormattedTSGrammar grammar = (FormattedTSGrammar) Serializer
-				.getSerializer().deserializeFrom(args[2]);
+		final TSGrammar<TSGNode> grammar = MappedTSGrammar
+				.readGrammar(args[2]);
 		final Set<TreeNode<Integer>> decardCloneTrees = getClonePatterns(
 				decardClones,
 				(AbstractJavaTreeExtractor) grammar.getTreeExtractor());
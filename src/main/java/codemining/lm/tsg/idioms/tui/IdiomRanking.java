@@ -33,6 +33,7 @@ import codemining.ast.TreeNode.NodeDataPair;
 import codemining.lm.cfg.AbstractContextFreeGrammar.CFGRule;
 import codemining.lm.tsg.FormattedTSGrammar;
 import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.TSGrammar;
 import codemining.lm.tsg.TreeProbabilityComputer;
 import codemining.lm.tsg.samplers.CFGPrior;
 import codemining.lm.tsg.samplers.CFGPrior.IRuleCreator;
@@ -69,7 +70,7 @@ public class IdiomRanking {
         @Override
         public String toString() {
             final StringBuffer sb = new StringBuffer();
-            sb.append(grammar.treeToString(TSGNode.convertTree(idiom, 0)));
+            sb.append(FormattedTSGrammar.treeToString(grammar.getTreeExtractor(), TSGNode.convertTree(idiom, 0)));
             sb.append(System.lineSeparator());
             sb.append("Cross-Entropy Gain:").append(String.format("%6.3e", crossEntropyGain)).append(" Coverage:")
                     .append(coverage).append(System.lineSeparator());
@@ -113,7 +114,7 @@ public class IdiomRanking {
         }
 
         final FormattedTSGrammar grammar = (FormattedTSGrammar) Serializer.getSerializer().deserializeFrom(args[0]);
-        final IdiomRanking ranking = new IdiomRanking(grammar);
+        final IdiomRanking ranking = new IdiomRanking(grammar.freeze());
 
         ranking.addCorpus(args[1]);
 
@@ -127,13 +128,13 @@ public class IdiomRanking {
 
     }
 
-    private final FormattedTSGrammar grammar;
+    private final TSGrammar<TSGNode> grammar;
     private final CFGPrior cfgPrior;
 
     // For each idiom, it contains the nodes that match the idiom.
     private final Map<TreeNode<Integer>, Set<TreeNode<Integer>>> matchedNodesPerIdiom = Maps.newHashMap();
 
-    public IdiomRanking(final FormattedTSGrammar grammar) {
+    public IdiomRanking(final TSGrammar<TSGNode> grammar) {
         this.grammar = grammar;
         final IRuleCreator cfRuleCreator = new IRuleCreator() {
 
@@ -199,7 +200,7 @@ public class IdiomRanking {
     public List<IdiomInformation> getRanking(final int limit) {
 
         final TreeProbabilityComputer<TSGNode> tpc = new TreeProbabilityComputer<>(grammar, true,
-                TreeProbabilityComputer.TSGNODE_MATCHER);
+                TreeProbabilityComputer.TSGNODE_MATCHER, TreeProbabilityComputer.TSGNODE_KEY);
         final Map<TreeNode<Integer>, Double> idiomsCrossEntropyGain = Maps.newHashMap();
         for (final TreeNode<Integer> idiom : matchedNodesPerIdiom.keySet()) {
             final TreeNode<TSGNode> tsgIdiom = TSGNode.convertTree(idiom, 0);
@@ -6,6 +6,7 @@ package codemining.lm.tsg.idioms.tui;
 import static com.google.common.base.Preconditions.checkArgument;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.Collection;
 import java.util.List;
@@ -22,7 +23,9 @@ import codemining.ast.java.AbstractJavaTreeExtractor;
 import codemining.java.codedata.PackageInfoExtractor;
 import codemining.java.codeutils.JavaASTExtractor;
 import codemining.java.tokenizers.JavaTokenizer;
-import codemining.lm.tsg.FormattedTSGrammar;
+import codemining.lm.tsg.MappedTSGrammar;
+import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.TSGrammar;
 import codemining.lm.tsg.idioms.PatternCorpus;
 import codemining.util.SettingsLoader;
 import codemining.util.serialization.ISerializationStrategy.SerializationException;
@@ -60,16 +63,18 @@ public class PatternImportCovariance implements Serializable {
 	/**
 	 * @param args
 	 * @throws SerializationException
+	 * @throws IOException
 	 */
-	public static void main(final String[] args) throws SerializationException {
+	public static void main(final String[] args)
+			throws SerializationException, IOException {
 		if (args.length != 5) {
 			System.err
 					.println("Usage <tsg> <minPatternCount> <minPatternSize> <trainPath> <filterPath>");
 			System.exit(-1);
 		}
 
-		final FormattedTSGrammar grammar = (FormattedTSGrammar) Serializer
-				.getSerializer().deserializeFrom(args[0]);
+		final TSGrammar<TSGNode> grammar = MappedTSGrammar
+				.readGrammar(args[0]);
 		final AbstractJavaTreeExtractor format = (AbstractJavaTreeExtractor) grammar
 				.getTreeExtractor();
 
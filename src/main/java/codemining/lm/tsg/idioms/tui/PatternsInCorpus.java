@@ -4,6 +4,7 @@
 package codemining.lm.tsg.idioms.tui;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Set;
 import java.util.logging.Logger;
@@ -15,10 +16,11 @@ import org.apache.commons.lang.exception.ExceptionUtils;
 import codemining.ast.TreeNode;
 import codemining.ast.java.AbstractJavaTreeExtractor;
 import codemining.java.tokenizers.JavaTokenizer;
-import codemining.lm.tsg.FormattedTSGrammar;
+import codemining.lm.tsg.MappedTSGrammar;
+import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.TSGrammar;
 import codemining.lm.tsg.idioms.PatternCorpus;
 import codemining.util.serialization.ISerializationStrategy.SerializationException;
-import codemining.util.serialization.Serializer;
 
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Multimap;
@@ -34,16 +36,18 @@ public class PatternsInCorpus {
 	/**
 	 * @param args
 	 * @throws SerializationException
+	 * @throws IOException
 	 */
-	public static void main(final String[] args) throws SerializationException {
+	public static void main(final String[] args)
+			throws SerializationException, IOException {
 		if (args.length != 4) {
 			System.err
 					.println("Usage <tsg> <minPatternCount> <minPatternSize> <corpusDir>");
 			System.exit(-1);
 		}
 
-		FormattedTSGrammar grammar = (FormattedTSGrammar) Serializer
-				.getSerializer().deserializeFrom(args[0]);
+		TSGrammar<TSGNode> grammar = MappedTSGrammar
+				.readGrammar(args[0]);
 		final int minPatternCount = Integer.parseInt(args[1]);
 		final int minPatternSize = Integer.parseInt(args[2]);
 		final AbstractJavaTreeExtractor format = (AbstractJavaTreeExtractor) grammar
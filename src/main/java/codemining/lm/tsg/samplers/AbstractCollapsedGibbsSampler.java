@@ -94,6 +94,22 @@ public abstract class AbstractCollapsedGibbsSampler extends AbstractTSGSampler {
 		return pss;
 	}
 
+	/**
+	 * Compute the posterior log-probability of the rule that
+	 * {@link TSGNode#getSubTreeFromRoot(TreeNode)} would return for the given
+	 * node, given the current root flags. Subclasses may override this to
+	 * avoid copying the rule.
+	 *
+	 * @param topNode
+	 * @param remove
+	 * @return
+	 */
+	protected double computeSubTreeFromRootPosteriorLog2Probability(
+			final TreeNode<TSGNode> topNode, final boolean remove) {
+		return sampleGrammar.computeRulePosteriorLog2Probability(
+				TSGNode.getSubTreeFromRoot(topNode), remove);
+	}
+
 	/**
 	 * Sample all the trees once.
 	 *
@@ -153,35 +169,46 @@ public abstract class AbstractCollapsedGibbsSampler extends AbstractTSGSampler {
 				"The given node should not be the root but its parent root");
 
 		final boolean wasRootBefore = node.getData().isRoot;
+		long startTime = System.nanoTime();
 		node.getData().isRoot = false;
-		final TreeNode<TSGNode> joinedTree = TSGNode.getSubTreeFromRoot(root);
+		final double log2ProbJoined = computeSubTreeFromRootPosteriorLog2Probability(
+				root, !wasRootBefore);
 
 		node.getData().isRoot = true;
-		final TreeNode<TSGNode> splitTree1 = TSGNode.getSubTreeFromRoot(root);
-		final TreeNode<TSGNode> splitTree2 = TSGNode.getSubTreeFromRoot(node);
-
-		final double log2ProbJoined = sampleGrammar
-				.computeRulePosteriorLog2Probability(joinedTree, !wasRootBefore);
-		final double log2ProbSplit = sampleGrammar
-				.computeRulePosteriorLog2Probability(splitTree1, wasRootBefore)
-				+ sampleGrammar.computeRulePosteriorLog2Probability(splitTree2,
+		final double log2ProbSplit = computeSubTreeFromRootPosteriorLog2Probability(
+				root, wasRootBefore)
+				+ computeSubTreeFromRootPosteriorLog2Probability(node,
 						wasRootBefore);
 
 		final double joinTheshold;
+		final boolean isRootNow;
 		if (!Double.isInfinite(log2ProbJoined)) {
 			final double splitLog2Prob = log2ProbJoined
 					- StatsUtil.log2SumOfExponentials(log2ProbJoined,
 							log2ProbSplit);
 			joinTheshold = Math.pow(2, splitLog2Prob);
-			node.getData().isRoot = RandomUtils.nextDouble() > joinTheshold;
+			isRootNow = RandomUtils.nextDouble() > joinTheshold;
 		} else {
 			// Split if probJoined == 0, regardless of the splitting prob.
 			joinTheshold = 0;
-			node.getData().isRoot = true;
+			isRootNow = true;
 		}
+		metrics.recordPosteriorTime(System.nanoTime() - startTime);
+		metrics.recordSampledNodes(1, wasRootBefore != isRootNow ? 1 : 0);
+
+		// Add/remove trees from grammar. Only now copy the trees.
+		if (wasRootBefore != isRootNow) {
+			startTime = System.nanoTime();
+			final TreeNode<TSGNode> splitTree1 = TSGNode
+					.getSubTreeFromRoot(root);
+			final TreeNode<TSGNode> splitTree2 = TSGNode
+					.getSubTreeFromRoot(node);
+			node.getData().isRoot = false;
+			final TreeNode<TSGNode> joinedTree = TSGNode
+					.getSubTreeFromRoot(root);
+			final long copyEndTime = System.nanoTime();
+			metrics.recordTreeCopyTime(copyEndTime - startTime);
 
-		// Add/remove trees from grammar
-		if (wasRootBefore != node.getData().isRoot) {
 			if (wasRootBefore) {
 				checkArgument(sampleGrammar.removeTree(splitTree1));
 				checkArgument(sampleGrammar.removeTree(splitTree2));
@@ -191,7 +218,9 @@ public abstract class AbstractCollapsedGibbsSampler extends AbstractTSGSampler {
 				sampleGrammar.addTree(splitTree1);
 				sampleGrammar.addTree(splitTree2);
 			}
+			metrics.recordGrammarUpdateTime(System.nanoTime() - copyEndTime);
 		}
+		node.getData().isRoot = isRootNow;
 		return joinTheshold;
 	}
 
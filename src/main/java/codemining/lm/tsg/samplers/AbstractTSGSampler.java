@@ -1,17 +1,26 @@
 package codemining.lm.tsg.samplers;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
+import org.apache.commons.lang.exception.ExceptionUtils;
+
 import codemining.ast.TreeNode;
 import codemining.lm.tsg.TSGNode;
 import codemining.lm.tsg.TSGrammar;
+import codemining.lm.tsg.samplers.metrics.ISamplerMetricsSink;
+import codemining.lm.tsg.samplers.metrics.IterationMetrics;
+import codemining.lm.tsg.samplers.metrics.SamplerMetrics;
 import codemining.util.SettingsLoader;
 import codemining.util.parallel.ParallelThreadPool;
 
@@ -92,6 +101,15 @@ public abstract class AbstractTSGSampler implements Serializable {
 			"CalculateStats", true);
 	public static final double BURN_IN_PCT = SettingsLoader.getNumericSetting(
 			"BurninPct", .75);
+
+	/**
+	 * Should the samplers probe the grammar for the candidate (joined and
+	 * split) trees without copying them from the corpus? The trees are then
+	 * copied only when the grammar changes. This has an effect only for
+	 * grammars that support tree probing.
+	 */
+	public static final boolean PROBE_CANDIDATE_TREES = SettingsLoader
+			.getBooleanSetting("ProbeCandidateTrees", true);
 	/**
 	 * The grammar being mined. This represents the current sample of the
 	 * grammar.
@@ -106,6 +124,23 @@ public abstract class AbstractTSGSampler implements Serializable {
 	 */
 	protected List<TreeNode<TSGNode>> treeCorpus = new ArrayList<TreeNode<TSGNode>>();
 
+	/**
+	 * The checkpointer that is notified at the end of every iteration, if
+	 * any.
+	 */
+	private transient PeriodicCheckpointer checkpointer = null;
+
+	/**
+	 * The metrics of the current iteration. Not serialized, so that samplers
+	 * serialized before the metrics were added can still be read.
+	 */
+	protected transient SamplerMetrics metrics = new SamplerMetrics();
+
+	/**
+	 * The sinks that receive the metrics of every iteration.
+	 */
+	private transient List<ISamplerMetricsSink> metricsSinks = null;
+
 	public AbstractTSGSampler(final TSGrammar<TSGNode> sampleGrammar,
 			final TSGrammar<TSGNode> allSamplesGrammar) {
 		checkArgument(sampleGrammar.getTreeExtractor() == allSamplesGrammar
@@ -114,6 +149,18 @@ public abstract class AbstractTSGSampler implements Serializable {
 		this.burninGrammar = allSamplesGrammar;
 	}
 
+	/**
+	 * Add a sink that will receive the metrics at the end of every iteration.
+	 *
+	 * @param sink
+	 */
+	public void addMetricsSink(final ISamplerMetricsSink sink) {
+		if (metricsSinks == null) {
+			metricsSinks = new CopyOnWriteArrayList<ISamplerMetricsSink>();
+		}
+		metricsSinks.add(checkNotNull(sink));
+	}
+
 	/**
 	 * Add a single tree to be sampled.
 	 *
@@ -170,6 +217,16 @@ public abstract class AbstractTSGSampler implements Serializable {
 		return log2Prob;
 	}
 
+	/**
+	 * Return true if the candidate trees can be probed in the sample grammar
+	 * without copying them.
+	 *
+	 * @return
+	 */
+	protected boolean canProbeCandidateTrees() {
+		return PROBE_CANDIDATE_TREES && sampleGrammar.supportsTreeProbing();
+	}
+
 	/**
 	 * Get the grammar from all samples after burn-in.
 	 *
@@ -179,6 +236,15 @@ public abstract class AbstractTSGSampler implements Serializable {
 		return burninGrammar;
 	}
 
+	/**
+	 * Return the metrics of the current iteration.
+	 *
+	 * @return
+	 */
+	public SamplerMetrics getMetrics() {
+		return metrics;
+	}
+
 	/**
 	 * Returns the grammar at the current sample.
 	 *
@@ -200,6 +266,26 @@ public abstract class AbstractTSGSampler implements Serializable {
 	 *         all iterations have been performed.
 	 */
 	public int performSampling(final int iterations) {
+		return performSampling(0, iterations);
+	}
+
+	/**
+	 * Gibbs sampling the TSG, starting from the given iteration (e.g. when
+	 * resuming from a checkpoint). The burn-in grammar is cleared only when
+	 * starting from the first iteration. If a checkpointer has been set, it is
+	 * notified at the end of each iteration.
+	 *
+	 * @param startIteration
+	 *            the number of iterations already completed
+	 * @param iterations
+	 *            the total number of iterations
+	 * @return the number of completed iterations, i.e. the iteration that the
+	 *         sampling has stopped at or iterations if all iterations have been
+	 *         performed. The burn-in grammar contains the samples of the
+	 *         completed iterations only, so sampling can be resumed from it.
+	 */
+	public int performSampling(final int startIteration, final int iterations) {
+		checkArgument(startIteration >= 0);
 		final AtomicBoolean stop = new AtomicBoolean(false);
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 			@Override
@@ -208,30 +294,46 @@ public abstract class AbstractTSGSampler implements Serializable {
 			}
 
 		});
-		burninGrammar.clear();
+		if (startIteration == 0) {
+			burninGrammar.clear();
+		}
 
 		int currentIteration = 0;
-		for (currentIteration = 0; currentIteration < iterations; currentIteration++) {
+		for (currentIteration = startIteration; currentIteration < iterations; currentIteration++) {
 			System.out.println("=======Iteration " + currentIteration
 					+ "==============");
+			metrics.startIteration();
 			sampleAllTreesOnce(currentIteration, iterations, stop);
+			metrics.endSampling();
+			double corpusLog2Prob = Double.NaN;
 			if (CALC_LOGPROB && currentIteration % CALC_INTERVAL == 0) {
-				System.out.println(calculateCorpusLogProb());
+				final SampleStats sampleStats = calculateCorpusLogProb();
+				corpusLog2Prob = sampleStats.log2Prob;
+				System.out.println(sampleStats);
 			}
 			if (CALC_STATS && currentIteration % CALC_INTERVAL == 0) {
 				printStats();
 			}
+			publishMetrics(currentIteration, corpusLog2Prob);
 
+			// The sweep may have been cut short, so it is not completed and
+			// will be sampled again when resuming
+			if (stop.get()) {
+				LOGGER.info("Sampling interrupted.");
+				break;
+			}
 			// Now add everything to sample, if burn-in has passed
 			if (currentIteration > BURN_IN_PCT * iterations) {
 				burninGrammar.addAll(sampleGrammar);
 			}
-			if (stop.get()) {
-				LOGGER.info("Sampling interrupted.");
-				break;
+			if (checkpointer != null) {
+				checkpointer.iterationCompleted(currentIteration + 1);
 			}
 		}
 
+		if (checkpointer != null) {
+			checkpointer.awaitPendingWrite();
+		}
 		return currentIteration;
 	}
 
@@ -264,7 +366,46 @@ public abstract class AbstractTSGSampler implements Serializable {
 		System.out.println("Avg Tree Size: " + String.format("%.2f", avgSize));
 	}
 
+	/**
+	 * Send the metrics of the completed iteration to the sinks. Failing sinks
+	 * are logged and do not stop the sampling.
+	 *
+	 * @param iteration
+	 * @param corpusLog2Prob
+	 */
+	private void publishMetrics(final int iteration, final double corpusLog2Prob) {
+		final IterationMetrics iterationMetrics = metrics.completeIteration(
+				iteration, sampleGrammar, corpusLog2Prob);
+		if (metricsSinks == null) {
+			return;
+		}
+		for (final ISamplerMetricsSink sink : metricsSinks) {
+			try {
+				sink.iterationCompleted(iterationMetrics);
+			} catch (final IOException e) {
+				LOGGER.warning("Failed to write metrics: "
+						+ ExceptionUtils.getFullStackTrace(e));
+			}
+		}
+	}
+
+	private void readObject(final ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		metrics = new SamplerMetrics();
+	}
+
 	public abstract void sampleAllTreesOnce(final int currentIteration,
 			final int totalIterations, final AtomicBoolean stop);
 
+	/**
+	 * Set the checkpointer that will be notified at the end of each sampling
+	 * iteration, or null to disable checkpointing.
+	 *
+	 * @param checkpointer
+	 */
+	public void setCheckpointer(final PeriodicCheckpointer checkpointer) {
+		this.checkpointer = checkpointer;
+	}
+
 }
\ No newline at end of file
@@ -15,6 +15,7 @@ import codemining.ast.TreeNode;
 import codemining.lm.cfg.AbstractContextFreeGrammar;
 import codemining.lm.cfg.ContextFreeGrammar;
 import codemining.lm.cfg.ImmutableContextFreeGrammar;
+import codemining.lm.cfg.PackedCFGRule;
 import codemining.lm.cfg.AbstractContextFreeGrammar.CFGRule;
 import codemining.lm.cfg.AbstractContextFreeGrammar.NodeConsequent;
 import codemining.lm.tsg.TSGNode;
@@ -47,6 +48,12 @@ public class CFGPrior implements Serializable {
 
 	private final IRuleCreator nodeCreator;
 
+	private CFGPrior(final AbstractContextFreeGrammar cfg,
+			final IRuleCreator nodeCreator) {
+		this.cfg = cfg;
+		this.nodeCreator = nodeCreator;
+	}
+
 	public CFGPrior(final AbstractTreeExtractor treeExtractor,
 			final IRuleCreator nodeCreator) {
 		cfg = new ContextFreeGrammar(treeExtractor);
@@ -66,6 +73,19 @@ public class CFGPrior implements Serializable {
 		cfg.addCFGRule(root, ruleConsequent);
 	}
 
+	/**
+	 * Add the given number of occurrences of a packed rule to the prior CFG.
+	 * The prior must not be locked.
+	 *
+	 * @param rule
+	 * @param count
+	 */
+	public void addCFGRule(final PackedCFGRule rule, final int count) {
+		checkArgument(cfg instanceof ContextFreeGrammar,
+				"Cannot add rules to a locked prior");
+		((ContextFreeGrammar) cfg).addCFGRule(rule, count);
+	}
+
 	/**
 	 * Recursively update tree frequencies. I.e. when a tree is added to the
 	 * corpus, update the counts appropriately.
@@ -95,6 +115,21 @@ public class CFGPrior implements Serializable {
 		}
 	}
 
+	/**
+	 * Return a copy of this prior that creates its rules with the given
+	 * creator. The copy has its own CFG counts, so it does not change with
+	 * this prior. A locked CFG is immutable and is shared.
+	 *
+	 * @param ruleCreator
+	 * @return
+	 */
+	public CFGPrior copy(final IRuleCreator ruleCreator) {
+		if (isLocked()) {
+			return new CFGPrior(cfg, ruleCreator);
+		}
+		return new CFGPrior(new ContextFreeGrammar(cfg), ruleCreator);
+	}
+
 	public AbstractContextFreeGrammar getInternalGrammar() {
 		return cfg;
 	}
@@ -109,8 +144,15 @@ public class CFGPrior implements Serializable {
 	public double getLog2ProbForCFG(
 			final AbstractContextFreeGrammar.CFGRule rule) {
 		checkNotNull(rule);
-		double mlProbability = cfg.getMLProbability(rule.root,
-				rule.ruleConsequent);
+		final PackedCFGRule packedRule = PackedCFGRule.create(rule);
+		if (cfg instanceof ImmutableContextFreeGrammar) {
+			final ImmutableContextFreeGrammar lockedCfg = (ImmutableContextFreeGrammar) cfg;
+			final int ruleId = lockedCfg.getRuleId(packedRule);
+			if (ruleId != -1) {
+				return lockedCfg.getRuleLog2Probability(ruleId);
+			}
+		}
+		double mlProbability = cfg.getMLProbability(packedRule);
 		if (Double.compare(mlProbability, 0) == 0) {
 			mlProbability = 10E-10; // An arbitrary small probability.
 		}
@@ -120,6 +162,67 @@ public class CFGPrior implements Serializable {
 		return logProb;
 	}
 
+	/**
+	 * Return the log probability of the PCFG rule at the given node. Once the
+	 * prior is locked, the probability is cached in the nodes of immutable
+	 * trees (i.e. the corpus trees), since it cannot change anymore. The cached
+	 * values belong to this prior, since its copies share the locked CFG but
+	 * may create different rules for the same node.
+	 *
+	 * @param node
+	 * @return
+	 */
+	private double getLog2ProbForNode(final TreeNode<TSGNode> node) {
+		final boolean isLocked = isLocked();
+		final TSGNode data = node.getData();
+		if (isLocked) {
+			final double cachedLogProb = data.getCfgLog2Prob(this);
+			if (!Double.isNaN(cachedLogProb)) {
+				return cachedLogProb;
+			}
+		}
+		final double logProb = getLog2ProbForCFG(nodeCreator
+				.createRuleForNode(node));
+		if (isLocked && node.isImmutable()) {
+			data.setCfgLog2Prob(this, logProb);
+		}
+		return logProb;
+	}
+
+	/**
+	 * Get the probability of the tree that
+	 * {@link TSGNode#getSubTreeFromRoot(TreeNode)} would return for the given
+	 * node, without copying the tree.
+	 *
+	 * @param topNode
+	 * @return
+	 */
+	public double getSubTreeFromRootCFLog2Probability(
+			final TreeNode<TSGNode> topNode) {
+		checkNotNull(topNode);
+
+		final ArrayDeque<TreeNode<TSGNode>> toSee = new ArrayDeque<TreeNode<TSGNode>>();
+		toSee.push(topNode);
+
+		double logProbability = 0;
+		while (!toSee.isEmpty()) {
+			final TreeNode<TSGNode> currentNode = toSee.pop();
+
+			for (final List<TreeNode<TSGNode>> childProperties : currentNode
+					.getChildrenByProperty()) {
+				for (final TreeNode<TSGNode> child : childProperties) {
+					if (!child.isLeaf() && !child.getData().isRoot) {
+						toSee.push(child);
+					}
+				}
+			}
+			logProbability += getLog2ProbForNode(currentNode);
+		}
+
+		checkArgument(!Double.isNaN(logProbability));
+		return logProbability;
+	}
+
 	/**
 	 * Get the probability of the given subtree as seen from the PCFG.
 	 *
@@ -144,16 +247,26 @@ public class CFGPrior implements Serializable {
 					}
 				}
 			}
-			final AbstractContextFreeGrammar.CFGRule rule = nodeCreator
-					.createRuleForNode(currentNode);
-			final double nodeLogProb = getLog2ProbForCFG(rule);
-			logProbability += nodeLogProb;
+			logProbability += getLog2ProbForNode(currentNode);
 		}
 
 		checkArgument(!Double.isNaN(logProbability));
 		return logProbability;
 	}
 
+	/**
+	 * Return true if the prior has been locked and cannot change.
+	 *
+	 * @return
+	 */
+	public boolean isLocked() {
+		return cfg instanceof ImmutableContextFreeGrammar;
+	}
+
+	/**
+	 * Lock the prior. After this, the prior cannot change and the
+	 * probabilities of its rules are precomputed.
+	 */
 	public void lockPrior() {
 		cfg = new ImmutableContextFreeGrammar(cfg);
 	}
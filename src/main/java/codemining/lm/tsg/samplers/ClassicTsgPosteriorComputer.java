@@ -198,12 +198,34 @@ class ClassicTsgPosteriorComputer implements
 
 	protected double concentrationParameter;
 
+	/**
+	 * A table of log2(n + concentrationParameter), recreated when the
+	 * concentration parameter changes.
+	 */
+	private transient volatile Log2Table countPlusConcentrationLog2;
+
 	protected double geometricProbability;
 
 	final TSGrammar<TSGNode> grammar;
 
 	protected final CFGPrior prior;
 
+	/**
+	 * Create a copy of the given computer that reads the counts of the given
+	 * grammar.
+	 *
+	 * @param original
+	 * @param grammar
+	 */
+	protected ClassicTsgPosteriorComputer(
+			final ClassicTsgPosteriorComputer original,
+			final TSGrammar<TSGNode> grammar) {
+		this.grammar = grammar;
+		prior = original.prior.copy(this);
+		concentrationParameter = original.concentrationParameter;
+		geometricProbability = original.geometricProbability;
+	}
+
 	ClassicTsgPosteriorComputer(final TSGrammar<TSGNode> grammar,
 			final double avgTreeSize, final double DPconcentration) {
 		this.grammar = grammar;
@@ -212,13 +234,22 @@ class ClassicTsgPosteriorComputer implements
 		geometricProbability = 1. / avgTreeSize;
 	}
 
-	@Override
-	public double computeLog2PosteriorProbabilityOfRule(
-			final TreeNode<TSGNode> tree, final boolean remove) {
-		checkNotNull(tree);
-
-		double nRulesCommonRoot = grammar.countTreesWithRoot(tree.getData());
-		double nRulesInGrammar = grammar.countTreeOccurences(tree);
+	/**
+	 * Compute the posterior probability of a rule, given its counts and its
+	 * prior.
+	 *
+	 * @param ruleCount
+	 *            the number of times the rule appears in the grammar
+	 * @param rootCount
+	 *            the number of rules with the same root
+	 * @param log2prior
+	 * @param remove
+	 * @return
+	 */
+	private double computeLog2PosteriorProbability(final int ruleCount,
+			final int rootCount, final double log2prior, final boolean remove) {
+		int nRulesCommonRoot = rootCount;
+		int nRulesInGrammar = ruleCount;
 
 		if (nRulesInGrammar > nRulesCommonRoot) { // Concurrency has bitten
 			// us... Sorry no
@@ -228,7 +259,6 @@ class ClassicTsgPosteriorComputer implements
 			nRulesInGrammar = nRulesCommonRoot;
 		}
 
-		final double log2prior = getLog2PriorForTree(tree);
 		checkArgument(
 				!Double.isInfinite(log2prior) && !Double.isNaN(log2prior),
 				"Prior is %s", log2prior);
@@ -238,10 +268,11 @@ class ClassicTsgPosteriorComputer implements
 			nRulesCommonRoot--;
 		}
 
-		final double log2Probability = StatsUtil.log2SumOfExponentials(
-				DoubleMath.log2(nRulesInGrammar),
-				DoubleMath.log2(concentrationParameter) + log2prior)
-				- DoubleMath.log2(nRulesCommonRoot + concentrationParameter);
+		final Log2Table countPlusConcentration = getCountPlusConcentrationLog2Table();
+		final double log2Probability = Log2Table.log2SumOfExponentials(
+				Log2Table.INTEGERS.get(nRulesInGrammar),
+				countPlusConcentration.get(0) + log2prior)
+				- countPlusConcentration.get(nRulesCommonRoot);
 
 		checkArgument(
 				!Double.isNaN(log2Probability)
@@ -251,6 +282,45 @@ class ClassicTsgPosteriorComputer implements
 		return log2Probability;
 	}
 
+	@Override
+	public double computeLog2PosteriorProbabilityOfRule(
+			final TreeNode<TSGNode> tree, final boolean remove) {
+		checkNotNull(tree);
+		return computeLog2PosteriorProbability(
+				grammar.countTreeOccurences(tree),
+				grammar.countTreesWithRoot(tree.getData()),
+				getLog2PriorForTree(tree), remove);
+	}
+
+	/**
+	 * Compute the posterior probability of the rule that
+	 * {@link TSGNode#getSubTreeFromRoot(TreeNode)} would return for the given
+	 * node, without copying the rule. The grammar must support tree probing.
+	 *
+	 * @param topNode
+	 * @param remove
+	 * @return
+	 */
+	public double computeLog2PosteriorProbabilityOfSubTreeFromRoot(
+			final TreeNode<TSGNode> topNode, final boolean remove) {
+		checkNotNull(topNode);
+		final int ruleCount = grammar.countTreeOccurences(
+				TSGNode.getSubTreeFromRootHash(topNode),
+				TSGNode.getSubTreeFromRootMatcher(topNode));
+		final double log2prior = GeometricDistribution.getLog2Prob(
+				TSGNode.getSubTreeFromRootSize(topNode), geometricProbability)
+				+ prior.getSubTreeFromRootCFLog2Probability(topNode);
+		return computeLog2PosteriorProbability(ruleCount,
+				grammar.countTreesWithRoot(topNode.getData()), log2prior,
+				remove);
+	}
+
+	@Override
+	public ClassicTsgPosteriorComputer copyFor(
+			final TSGrammar<TSGNode> grammar) {
+		return new ClassicTsgPosteriorComputer(this, grammar);
+	}
+
 	@Override
 	public AbstractContextFreeGrammar.CFGRule createRuleForNode(
 			final TreeNode<TSGNode> node) {
@@ -270,6 +340,19 @@ class ClassicTsgPosteriorComputer implements
 				postprocessIdForCFG(node), cons);
 	}
 
+	/**
+	 * Return the table of log2(n + concentrationParameter) for the current
+	 * concentration parameter.
+	 */
+	private Log2Table getCountPlusConcentrationLog2Table() {
+		Log2Table table = countPlusConcentrationLog2;
+		if (table == null || table.getOffset() != concentrationParameter) {
+			table = new Log2Table(concentrationParameter);
+			countPlusConcentrationLog2 = table;
+		}
+		return table;
+	}
+
 	/**
 	 * Get the prior probability for this tree as given by the PCFG and the
 	 * geometric distribution.
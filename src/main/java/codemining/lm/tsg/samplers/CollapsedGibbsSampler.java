@@ -85,7 +85,7 @@ public class CollapsedGibbsSampler extends AbstractCollapsedGibbsSampler
 	@Override
 	public TreeNode<TSGNode> addTree(final TreeNode<TSGNode> tree,
 			final boolean forceAdd) {
-		final TreeNode<TSGNode> immutableTree = tree.toImmutable();
+		final TreeNode<TSGNode> immutableTree = tree.toImmutableStructure();
 		if (forceAdd) {
 			treeCorpus.add(immutableTree);
 			addTSGRulesToSampleGrammar(immutableTree);
@@ -108,6 +108,18 @@ public class CollapsedGibbsSampler extends AbstractCollapsedGibbsSampler
 		}
 	}
 
+	@Override
+	protected double computeSubTreeFromRootPosteriorLog2Probability(
+			final TreeNode<TSGNode> topNode, final boolean remove) {
+		if (canProbeCandidateTrees()) {
+			return posteriorComputer
+					.computeLog2PosteriorProbabilityOfSubTreeFromRoot(topNode,
+							remove);
+		}
+		return super.computeSubTreeFromRootPosteriorLog2Probability(topNode,
+				remove);
+	}
+
 	/**
 	 * @param avgTreeSize
 	 * @param DPconcentration
@@ -0,0 +1,190 @@
+/**
+ *
+ */
+package codemining.lm.tsg.samplers;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.Serializable;
+
+import com.esotericsoftware.kryo.DefaultSerializer;
+import com.esotericsoftware.kryo.serializers.JavaSerializer;
+
+/**
+ * A lookup table of log2(n + offset) for non-negative integers n, along with
+ * its prefix sums, so that the sum of a run of consecutive terms (e.g. a log
+ * rising factorial or a log binomial coefficient) takes constant time. The
+ * table grows on demand up to the largest count asked for, but never beyond
+ * MAX_SIZE entries. Larger arguments are computed directly.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+@DefaultSerializer(JavaSerializer.class)
+public final class Log2Table implements Serializable {
+
+	/**
+	 * The values and their prefix sums, published together.
+	 */
+	private static final class Entries {
+		final double[] log2Values;
+
+		/**
+		 * prefixSums[i] is the sum of all finite log2Values[j] for j < i.
+		 */
+		final double[] prefixSums;
+
+		Entries(final double[] log2Values, final double[] prefixSums) {
+			this.log2Values = log2Values;
+			this.prefixSums = prefixSums;
+		}
+	}
+
+	private static final long serialVersionUID = -3093458004412372951L;
+
+	/**
+	 * The maximum number of entries in a table (16MB of doubles).
+	 */
+	public static final int MAX_SIZE = 1 << 20;
+
+	private static final int INITIAL_SIZE = 1 << 10;
+
+	private static final double LN_2 = Math.log(2);
+
+	/**
+	 * A table of log2(n).
+	 */
+	public static final Log2Table INTEGERS = new Log2Table(0);
+
+	/**
+	 * Return log2(2^a + 2^b) without the loss of precision of computing the
+	 * exponentials directly.
+	 */
+	public static double log2SumOfExponentials(final double a, final double b) {
+		final double max = Math.max(a, b);
+		if (max == Double.NEGATIVE_INFINITY) {
+			return max;
+		}
+		return max + Math.log1p(Math.pow(2, Math.min(a, b) - max)) / LN_2;
+	}
+
+	private final double offset;
+
+	private transient volatile Entries entries;
+
+	/**
+	 * @param offset
+	 *            the non-negative offset added to all the integer arguments
+	 */
+	public Log2Table(final double offset) {
+		checkArgument(offset >= 0, "Offset must be non-negative, but is %s",
+				offset);
+		this.offset = offset;
+	}
+
+	private double directLog2(final long n) {
+		return Math.log(n + offset) / LN_2;
+	}
+
+	/**
+	 * Make sure that the table contains at least the entries up to (and
+	 * including) n, or MAX_SIZE entries if n is larger.
+	 */
+	public void ensureCapacity(final long n) {
+		getEntries(n);
+	}
+
+	/**
+	 * Return log2(n + offset).
+	 */
+	public double get(final long n) {
+		checkArgument(n >= 0);
+		if (n >= MAX_SIZE) {
+			return directLog2(n);
+		}
+		return getEntries(n).log2Values[(int) n];
+	}
+
+	private Entries getEntries(final long n) {
+		final Entries current = entries;
+		if (current != null && n < current.log2Values.length) {
+			return current;
+		}
+		return grow(n);
+	}
+
+	public double getOffset() {
+		return offset;
+	}
+
+	private synchronized Entries grow(final long n) {
+		final Entries current = entries;
+		final int currentSize = current == null ? 0
+				: current.log2Values.length;
+		if (n < currentSize || currentSize == MAX_SIZE) {
+			return current;
+		}
+		int newSize = Math.max(INITIAL_SIZE, currentSize);
+		while (newSize <= n && newSize < MAX_SIZE) {
+			newSize *= 2;
+		}
+		newSize = Math.min(newSize, MAX_SIZE);
+
+		final double[] log2Values = new double[newSize];
+		final double[] prefixSums = new double[newSize + 1];
+		if (current != null) {
+			System.arraycopy(current.log2Values, 0, log2Values, 0, currentSize);
+			System.arraycopy(current.prefixSums, 0, prefixSums, 0,
+					currentSize + 1);
+		}
+		for (int i = currentSize; i < newSize; i++) {
+			log2Values[i] = directLog2(i);
+			prefixSums[i + 1] = prefixSums[i]
+					+ (Double.isInfinite(log2Values[i]) ? 0 : log2Values[i]);
+		}
+		final Entries grown = new Entries(log2Values, prefixSums);
+		entries = grown;
+		return grown;
+	}
+
+	/**
+	 * Return the log2 of the binomial coefficient (n k). Only valid for the
+	 * table of log2(n) i.e. when the offset is zero.
+	 */
+	public double log2Binomial(final int n, final int k) {
+		checkArgument(offset == 0, "Binomials need a zero offset");
+		checkArgument(k >= 0 && k <= n, "Invalid binomial (%s %s)", n, k);
+		// log2(n!/(k!(n-k)!)) = sum(log2(i), k < i <= n) - log2((n-k)!)
+		return sum(k + 1, n + 1) - sum(1, n - k + 1);
+	}
+
+	/**
+	 * Return the sum of log2(i + offset) for from <= i < to. The sum must not
+	 * contain log2(0).
+	 */
+	public double sum(final long from, final long to) {
+		checkArgument(from <= to, "Invalid range [%s, %s)", from, to);
+		checkArgument(from > 0 || offset > 0 || from == to,
+				"The sum contains log2(0)");
+		if (from == to) {
+			return 0;
+		}
+		final Entries current = getEntries(to - 1);
+		final int size = current.log2Values.length;
+		if (to <= size) {
+			return current.prefixSums[(int) to]
+					- current.prefixSums[(int) from];
+		}
+
+		double sum = 0;
+		long i = from;
+		if (from < size) {
+			sum = current.prefixSums[size] - current.prefixSums[(int) from];
+			i = size;
+		}
+		for (; i < to; i++) {
+			sum += directLog2(i);
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,301 @@
+/**
+ *
+ */
+package codemining.lm.tsg.samplers;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import codemining.util.SettingsLoader;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Periodically checkpoint a sampler during sampling. At the end of every
+ * iteration that a checkpoint is due (every N iterations or T minutes), the
+ * sampler state is snapshotted on the sampling thread and then written to
+ * disk from a background thread, while sampling continues. Checkpoints are
+ * written to a temporary file that atomically replaces the target file, and
+ * only the last K checkpoints are kept.
+ *
+ * Checkpoints are named prefix-iteration.ckpt, where iteration is the number
+ * of completed iterations.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class PeriodicCheckpointer {
+
+	/**
+	 * The state of a sampler at an iteration boundary. Implementations must
+	 * not depend on the mutable state of the sampler, since they are written
+	 * concurrently with the sampling.
+	 *
+	 */
+	public static interface ISamplerSnapshot {
+		void writeTo(final File file) throws IOException;
+	}
+
+	/**
+	 * Take a snapshot of a sampler.
+	 *
+	 */
+	public static interface ISnapshotTaker {
+		ISamplerSnapshot snapshot(final int completedIterations);
+	}
+
+	private static final Logger LOGGER = Logger
+			.getLogger(PeriodicCheckpointer.class.getName());
+
+	/**
+	 * Checkpoint every that many iterations. Zero disables iteration based
+	 * checkpoints.
+	 */
+	public static final int ITERATION_INTERVAL = (int) SettingsLoader
+			.getNumericSetting("CheckpointIterationInterval", 0);
+
+	/**
+	 * Checkpoint at the first iteration boundary after that many minutes have
+	 * passed since the last checkpoint. Zero disables time based checkpoints.
+	 */
+	public static final double MINUTE_INTERVAL = SettingsLoader
+			.getNumericSetting("CheckpointMinuteInterval", 0);
+
+	/**
+	 * The number of checkpoints to keep.
+	 */
+	public static final int CHECKPOINTS_TO_KEEP = (int) SettingsLoader
+			.getNumericSetting("CheckpointsToKeep", 3);
+
+	private static final String SUFFIX = ".ckpt";
+
+	private final File directory;
+
+	private final String prefix;
+
+	private final Pattern checkpointName;
+
+	private final ISnapshotTaker snapshotTaker;
+
+	private final int iterationInterval;
+
+	private final long millisInterval;
+
+	private final int checkpointsToKeep;
+
+	private final ExecutorService writer;
+
+	private Future<?> pendingWrite = null;
+
+	private long lastCheckpointTime = System.currentTimeMillis();
+
+	/**
+	 * True if a checkpoint was due while the previous one was being written.
+	 */
+	private boolean checkpointPostponed = false;
+
+	public PeriodicCheckpointer(final File directory, final String prefix,
+			final ISnapshotTaker snapshotTaker) {
+		this(directory, prefix, snapshotTaker, ITERATION_INTERVAL,
+				MINUTE_INTERVAL, CHECKPOINTS_TO_KEEP);
+	}
+
+	public PeriodicCheckpointer(final File directory, final String prefix,
+			final ISnapshotTaker snapshotTaker, final int iterationInterval,
+			final double minuteInterval, final int checkpointsToKeep) {
+		checkArgument(iterationInterval >= 0);
+		checkArgument(minuteInterval >= 0);
+		checkArgument(checkpointsToKeep > 0);
+		this.directory = checkNotNull(directory);
+		this.prefix = checkNotNull(prefix);
+		this.snapshotTaker = checkNotNull(snapshotTaker);
+		this.iterationInterval = iterationInterval;
+		millisInterval = (long) (minuteInterval * 60 * 1000);
+		this.checkpointsToKeep = checkpointsToKeep;
+		checkpointName = Pattern.compile(Pattern.quote(prefix) + "-(\\d+)"
+				+ Pattern.quote(SUFFIX));
+		writer = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+				.setDaemon(true).setNameFormat("checkpoint-writer-%d").build());
+	}
+
+	/**
+	 * Wait for any pending checkpoint to be written.
+	 */
+	public synchronized void awaitPendingWrite() {
+		if (pendingWrite == null) {
+			return;
+		}
+		try {
+			pendingWrite.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (final ExecutionException e) {
+			LOGGER.severe("Failed to write checkpoint: "
+					+ ExceptionUtils.getFullStackTrace(e.getCause()));
+		}
+		pendingWrite = null;
+	}
+
+	/**
+	 * Delete all checkpoints but the last ones.
+	 */
+	private void deleteOldCheckpoints() {
+		final int[] iterations = getCheckpointIterations();
+		for (int i = 0; i < iterations.length - checkpointsToKeep; i++) {
+			final File oldCheckpoint = getCheckpointFile(iterations[i]);
+			if (!oldCheckpoint.delete()) {
+				LOGGER.warning("Failed to delete old checkpoint "
+						+ oldCheckpoint);
+			}
+		}
+	}
+
+	/**
+	 * Return the file of the checkpoint of the given iteration.
+	 *
+	 * @param completedIterations
+	 * @return
+	 */
+	public File getCheckpointFile(final int completedIterations) {
+		return new File(directory, String.format("%s-%08d%s", prefix,
+				completedIterations, SUFFIX));
+	}
+
+	/**
+	 * Return the iterations of the existing checkpoints in ascending order.
+	 *
+	 * @return
+	 */
+	private int[] getCheckpointIterations() {
+		final String[] fileNames = directory.list();
+		if (fileNames == null) {
+			return new int[0];
+		}
+		final int[] iterations = new int[fileNames.length];
+		int nCheckpoints = 0;
+		for (final String fileName : fileNames) {
+			final Matcher matcher = checkpointName.matcher(fileName);
+			if (matcher.matches()) {
+				iterations[nCheckpoints++] = Integer.parseInt(matcher.group(1));
+			}
+		}
+		final int[] checkpointIterations = Arrays.copyOf(iterations,
+				nCheckpoints);
+		Arrays.sort(checkpointIterations);
+		return checkpointIterations;
+	}
+
+	/**
+	 * Return the most recent checkpoint or null if there is none.
+	 *
+	 * @return
+	 */
+	public File getLatestCheckpoint() {
+		final int[] iterations = getCheckpointIterations();
+		if (iterations.length == 0) {
+			return null;
+		}
+		return getCheckpointFile(iterations[iterations.length - 1]);
+	}
+
+	/**
+	 * Notify that an iteration has been completed. If a checkpoint is due, the
+	 * sampler is snapshotted and the snapshot is written in the background. If
+	 * the previous checkpoint is still being written, the checkpoint is
+	 * postponed to the next iteration.
+	 *
+	 * @param completedIterations
+	 */
+	public synchronized void iterationCompleted(final int completedIterations) {
+		final boolean iterationDue = iterationInterval > 0
+				&& completedIterations % iterationInterval == 0;
+		final boolean timeDue = millisInterval > 0
+				&& System.currentTimeMillis() - lastCheckpointTime >= millisInterval;
+		if (!iterationDue && !timeDue && !checkpointPostponed) {
+			return;
+		}
+		if (pendingWrite != null && !pendingWrite.isDone()) {
+			LOGGER.warning("Previous checkpoint is still being written. Postponing checkpoint.");
+			checkpointPostponed = true;
+			return;
+		}
+		awaitPendingWrite(); // Log any failure of the previous write
+
+		final ISamplerSnapshot snapshot = snapshotTaker
+				.snapshot(completedIterations);
+		lastCheckpointTime = System.currentTimeMillis();
+		checkpointPostponed = false;
+		pendingWrite = writer.submit(() -> {
+			write(snapshot, completedIterations);
+			return null;
+		});
+	}
+
+	/**
+	 * Stop the background writer, after any pending checkpoint is written.
+	 */
+	public synchronized void shutdown() {
+		awaitPendingWrite();
+		writer.shutdown();
+	}
+
+	/**
+	 * Write the snapshot to the checkpoint file of the given iteration,
+	 * atomically replacing any existing file, and delete the old
+	 * checkpoints.
+	 *
+	 * @param snapshot
+	 * @param completedIterations
+	 * @throws IOException
+	 */
+	private void write(final ISamplerSnapshot snapshot,
+			final int completedIterations) throws IOException {
+		final File target = getCheckpointFile(completedIterations);
+		final File tmpFile = new File(directory, target.getName() + ".tmp");
+		try {
+			snapshot.writeTo(tmpFile);
+			try {
+				Files.move(tmpFile.toPath(), target.toPath(),
+						StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (final AtomicMoveNotSupportedException e) {
+				Files.move(tmpFile.toPath(), target.toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tmpFile.toPath());
+		}
+		deleteOldCheckpoints();
+	}
+
+	/**
+	 * Snapshot the sampler and write the checkpoint on the calling thread,
+	 * after any pending checkpoint has been written.
+	 *
+	 * @param completedIterations
+	 * @throws IOException
+	 */
+	public synchronized void writeCheckpoint(final int completedIterations)
+			throws IOException {
+		awaitPendingWrite();
+		write(snapshotTaker.snapshot(completedIterations), completedIterations);
+		lastCheckpointTime = System.currentTimeMillis();
+	}
+
+}
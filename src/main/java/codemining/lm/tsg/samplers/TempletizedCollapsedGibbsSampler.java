@@ -29,6 +29,18 @@ public class TempletizedCollapsedGibbsSampler extends CollapsedGibbsSampler {
 			super(grammar, avgTreeSize, DPconcentration);
 		}
 
+		private TempletizedPosteriorComputer(
+				final TempletizedPosteriorComputer original,
+				final TSGrammar<TSGNode> grammar) {
+			super(original, grammar);
+		}
+
+		@Override
+		public TempletizedPosteriorComputer copyFor(
+				final TSGrammar<TSGNode> grammar) {
+			return new TempletizedPosteriorComputer(this, grammar);
+		}
+
 		@Override
 		protected int postprocessIdForCFG(final TreeNode<TSGNode> node) {
 			final int originalId = node.getData().nodeKey;
@@ -6,26 +6,22 @@ package codemining.lm.tsg.samplers.blocked;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
 import java.util.ArrayDeque;
-import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 import org.apache.commons.lang.exception.ExceptionUtils;
-import org.apache.commons.math3.util.ArithmeticUtils;
 
 import com.esotericsoftware.kryo.DefaultSerializer;
 import com.esotericsoftware.kryo.serializers.JavaSerializer;
-import com.google.common.base.Objects;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.google.common.base.Predicate;
 import com.google.common.collect.Lists;
-import com.google.common.math.DoubleMath;
 
 import codemining.ast.TreeNode;
 import codemining.lm.cfg.AbstractContextFreeGrammar.CFGRule;
@@ -36,8 +32,9 @@ import codemining.lm.tsg.TSGrammar;
 import codemining.lm.tsg.samplers.AbstractTSGSampler;
 import codemining.lm.tsg.samplers.CFGPrior;
 import codemining.lm.tsg.samplers.CFGPrior.IRuleCreator;
+import codemining.lm.tsg.samplers.Log2Table;
 import codemining.math.random.SampleUtils;
-import codemining.util.StatsUtil;
+import codemining.util.SettingsLoader;
 
 /**
  * A block collapsed gibbs sampler based on Type-based MCMC.
@@ -48,43 +45,6 @@ import codemining.util.StatsUtil;
 @DefaultSerializer(JavaSerializer.class)
 public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IRuleCreator {
 
-    public static final class BinomialCoefficientsParameters {
-        public final int k;
-        public final int n;
-
-        public BinomialCoefficientsParameters(final int n, final int k) {
-            this.n = n;
-            this.k = k;
-        }
-
-        @Override
-        public boolean equals(final Object obj) {
-            if (this == obj) {
-                return true;
-            }
-            if (obj == null) {
-                return false;
-            }
-            if (getClass() != obj.getClass()) {
-                return false;
-            }
-            final BinomialCoefficientsParameters other = (BinomialCoefficientsParameters) obj;
-            if (k != other.k) {
-                return false;
-            }
-            if (n != other.n) {
-                return false;
-            }
-            return true;
-        }
-
-        @Override
-        public int hashCode() {
-            return Objects.hashCode(k, n);
-        }
-
-    }
-
     public static class BlockedPosteriorComputer implements ITsgPosteriorProbabilityComputer<TSGNode> {
 
         private static final long serialVersionUID = -3517001399701308015L;
@@ -95,6 +55,23 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
 
         final double concentrationParameter;
 
+        /**
+         * A table of log2(n + concentrationParameter), created lazily since it
+         * is not serialized.
+         */
+        private transient volatile Log2Table countPlusConcentrationLog2;
+
+        /**
+         * Create a copy of the given computer that reads the counts of the
+         * given grammar. The prior creates its rules without the sampler.
+         */
+        private BlockedPosteriorComputer(final BlockedPosteriorComputer original, final TSGrammar<TSGNode> grammar) {
+            prior = original.prior.copy(new CFGRuleCreator());
+            this.grammar = grammar;
+            geometricProbability = original.geometricProbability;
+            concentrationParameter = original.concentrationParameter;
+        }
+
         BlockedPosteriorComputer(final CFGPrior prior, final TSGrammar<TSGNode> grammar, final double avgTreeSize,
                 final double DpConcentration) {
             this.prior = prior;
@@ -108,8 +85,8 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
         public double computeLog2PosteriorProbabilityOfRule(final TreeNode<TSGNode> tree, final boolean remove) {
             checkNotNull(tree);
 
-            double nRulesCommonRoot = grammar.countTreesWithRoot(tree.getData());
-            double nRulesInGrammar = grammar.countTreeOccurences(tree);
+            int nRulesCommonRoot = grammar.countTreesWithRoot(tree.getData());
+            int nRulesInGrammar = grammar.countTreeOccurences(tree);
 
             if (nRulesInGrammar > nRulesCommonRoot) { // Concurrency has bitten
                 // us... Sorry no
@@ -127,9 +104,9 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
                 nRulesCommonRoot--;
             }
 
-            double log2Probability = StatsUtil.log2SumOfExponentials(DoubleMath.log2(nRulesInGrammar),
-                    DoubleMath.log2(concentrationParameter) + log2prior)
-                    - DoubleMath.log2(nRulesCommonRoot + concentrationParameter);
+            final Log2Table countPlusConcentration = getCountPlusConcentrationLog2Table();
+            double log2Probability = Log2Table.log2SumOfExponentials(Log2Table.INTEGERS.get(nRulesInGrammar),
+                    countPlusConcentration.get(0) + log2prior) - countPlusConcentration.get(nRulesCommonRoot);
 
             if (log2Probability > 0 && log2Probability < 1e15) {
                 log2Probability = 0; // Ignore small numerical errors
@@ -140,6 +117,23 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
             return log2Probability;
         }
 
+        @Override
+        public BlockedPosteriorComputer copyFor(final TSGrammar<TSGNode> grammar) {
+            return new BlockedPosteriorComputer(this, grammar);
+        }
+
+        /**
+         * Return the table of log2(n + concentrationParameter).
+         */
+        Log2Table getCountPlusConcentrationLog2Table() {
+            Log2Table table = countPlusConcentrationLog2;
+            if (table == null) {
+                table = new Log2Table(concentrationParameter);
+                countPlusConcentrationLog2 = table;
+            }
+            return table;
+        }
+
         /**
          * Get the prior probability for this tree as given by the PCFG and the
          * geometric distribution.
@@ -158,18 +152,110 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
             return logRuleMLE;
         }
 
+        /**
+         * Get the prior probability of the tree that
+         * {@link TSGNode#getSubTreeFromRoot(TreeNode)} would return for the
+         * given node, without copying it.
+         *
+         * @param topNode
+         * @return
+         */
+        public double getLog2PriorForSubTreeFromRoot(final TreeNode<TSGNode> topNode) {
+            checkNotNull(topNode);
+            return prior.getSubTreeFromRootCFLog2Probability(topNode);
+        }
+
         public CFGPrior getPrior() {
             return prior;
         }
     }
 
-    private static LoadingCache<BinomialCoefficientsParameters, Double> combinationCache = CacheBuilder.newBuilder()
-            .maximumSize(5000).build(new CacheLoader<BinomialCoefficientsParameters, Double>() {
-                @Override
-                public Double load(final BinomialCoefficientsParameters coeff) {
-                    return ArithmeticUtils.binomialCoefficientLog(coeff.n, coeff.k) / LN_2;
-                }
-            });
+    /**
+     * The grammar counts and priors of the candidate trees at a sampling
+     * site: the upper and lower trees (when the site is split) and the joined
+     * tree (when it is not).
+     */
+    public static final class CandidateTreeStats {
+        public int upperCount;
+        public int lowerCount;
+        public int joinedCount;
+        public int upperRootCount;
+        public int lowerRootCount;
+        public double upperPriorLog2Prob;
+        public double lowerPriorLog2Prob;
+        public double joinedPriorLog2Prob;
+        public boolean upperIsSameTypeAsLower;
+        public boolean upperIsSameAsLower;
+    }
+
+    /**
+     * Creates the CFG rules of the prior, as the sampler does.
+     */
+    private static final class CFGRuleCreator implements IRuleCreator, Serializable {
+
+        private static final long serialVersionUID = -2291467014658353247L;
+
+        @Override
+        public CFGRule createRuleForNode(final TreeNode<TSGNode> node) {
+            return createCFGRuleForNode(node);
+        }
+    }
+
+    /**
+     * The TSG rule counts that are read and updated when sampling a site.
+     * This is the sample grammar, unless the sampling happens against a
+     * (possibly stale) view of it.
+     */
+    public static interface IRuleCounts {
+        void addTree(final TreeNode<TSGNode> tree, final int count);
+
+        int countTreeOccurences(final TreeNode<TSGNode> tree);
+
+        int countTreeOccurences(final int treeHash, final Predicate<TreeNode<TSGNode>> treeMatcher);
+
+        int countTreesWithRoot(final TSGNode root);
+
+        int removeTree(final TreeNode<TSGNode> tree, final int occurences);
+    }
+
+    /**
+     * The rule counts of a grammar.
+     */
+    private static final class GrammarRuleCounts implements IRuleCounts, Serializable {
+
+        private static final long serialVersionUID = 4632176587404939342L;
+
+        private final TSGrammar<TSGNode> grammar;
+
+        GrammarRuleCounts(final TSGrammar<TSGNode> grammar) {
+            this.grammar = grammar;
+        }
+
+        @Override
+        public void addTree(final TreeNode<TSGNode> tree, final int count) {
+            grammar.addTree(tree, count);
+        }
+
+        @Override
+        public int countTreeOccurences(final int treeHash, final Predicate<TreeNode<TSGNode>> treeMatcher) {
+            return grammar.countTreeOccurences(treeHash, treeMatcher);
+        }
+
+        @Override
+        public int countTreeOccurences(final TreeNode<TSGNode> tree) {
+            return grammar.countTreeOccurences(tree);
+        }
+
+        @Override
+        public int countTreesWithRoot(final TSGNode root) {
+            return grammar.countTreesWithRoot(root);
+        }
+
+        @Override
+        public int removeTree(final TreeNode<TSGNode> tree, final int occurences) {
+            return grammar.removeTree(tree, occurences);
+        }
+    }
 
     private static final double LN_2 = Math.log(2);
 
@@ -177,6 +263,12 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
 
     static final Logger LOGGER = Logger.getLogger(BlockCollapsedGibbsSampler.class.getName());
 
+    /**
+     * The default sweep schedule. If true, each iteration visits the distinct
+     * same-type blocks once, instead of visiting every node tree-by-tree.
+     */
+    public static final boolean SWEEP_TYPE_BLOCKS = SettingsLoader.getBooleanSetting("SweepTypeBlocks", false);
+
     public static CFGRule createCFGRuleForNode(final TreeNode<TSGNode> node) {
         final int rootId = node.getData().nodeKey;
 
@@ -195,6 +287,35 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
         return new CFGRule(rootId, ruleConsequent);
     }
 
+    /**
+     * Return log2(count + pseudoCount) i.e. the log2 of the numerator of the
+     * posterior, without a log-sum-exp. The pseudocount is passed in both
+     * linear and log2 space, since it may underflow.
+     */
+    private static double log2CountPlusPseudoCount(final long count, final double pseudoCount,
+            final double pseudoCountLog2) {
+        if (count == 0) {
+            return pseudoCountLog2;
+        }
+        if (pseudoCount * 0x1p53 < count) {
+            return Log2Table.INTEGERS.get(count);
+        }
+        return Math.log(count + pseudoCount) / LN_2;
+    }
+
+    /**
+     * Shuffle the given ids in place.
+     */
+    static void shuffle(final int[] ids) {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = ids.length - 1; i > 0; i--) {
+            final int j = random.nextInt(i + 1);
+            final int tmp = ids[i];
+            ids[i] = ids[j];
+            ids[j] = tmp;
+        }
+    }
+
     final BlockedPosteriorComputer samplePosteriorComputer;
 
     final BlockedPosteriorComputer burninPosteriorComputer;
@@ -206,11 +327,19 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
 
     protected final NodeTypeInformation nodeType;
 
+    /**
+     * The counts of the sample grammar.
+     */
+    private IRuleCounts sampleCounts;
+
+    private boolean sweepTypeBlocks = SWEEP_TYPE_BLOCKS;
+
     public BlockCollapsedGibbsSampler(final double avgTreeSize, final double DPconcentration,
             final TSGrammar<TSGNode> sampleGrammar, final TSGrammar<TSGNode> allSamplesGrammar) {
         super(sampleGrammar, allSamplesGrammar);
         prior = new CFGPrior(sampleGrammar.getTreeExtractor(), this);
         nodeType = new NodeTypeInformation();
+        sampleCounts = new GrammarRuleCounts(sampleGrammar);
         samplePosteriorComputer = new BlockedPosteriorComputer(prior, sampleGrammar, avgTreeSize, DPconcentration);
         burninPosteriorComputer = new BlockedPosteriorComputer(prior, burninGrammar, avgTreeSize, DPconcentration);
     }
@@ -222,6 +351,23 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
         prior.addCFGRulesFrom(tree);
     }
 
+    /**
+     * Add a corpus tree restored from a {@link SamplerCheckpoint}. Unlike
+     * {@link #addTree(TreeNode, boolean)} the CFG prior is not updated, since
+     * the checkpoint contains its counts.
+     *
+     * @param tree
+     * @return the immutable tree as added to the corpus
+     */
+    TreeNode<TSGNode> addRestoredTree(final TreeNode<TSGNode> tree) {
+        final TreeNode<TSGNode> immutableTree = tree.toImmutableStructure();
+        treeCorpus.add(immutableTree);
+
+        indexCorpusTree(immutableTree);
+        addRulesToGrammar(immutableTree);
+        return immutableTree;
+    }
+
     /**
      * Add all the rules in the current tree to the grammar.
      *
@@ -236,11 +382,11 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
 
     @Override
     public TreeNode<TSGNode> addTree(final TreeNode<TSGNode> tree, final boolean forceAdd) {
-        final TreeNode<TSGNode> immutableTree = tree.toImmutable();
+        final TreeNode<TSGNode> immutableTree = tree.toImmutableStructure();
         treeCorpus.add(immutableTree);
 
         prior.addCFGRulesFrom(immutableTree);
-        nodeType.updateCorpusStructures(immutableTree);
+        indexCorpusTree(immutableTree);
         addRulesToGrammar(immutableTree);
         return immutableTree;
     }
@@ -274,6 +420,49 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
         return createCFGRuleForNode(node);
     }
 
+    /**
+     * Get the statistics of the given (copied) candidate trees.
+     *
+     * @param upper
+     * @param lower
+     * @param joined
+     * @param counts
+     *            the rule counts to use
+     * @return
+     */
+    private CandidateTreeStats getCandidateTreeStats(final TreeNode<TSGNode> upper, final TreeNode<TSGNode> lower,
+            final TreeNode<TSGNode> joined, final IRuleCounts counts) {
+        final CandidateTreeStats candidates = new CandidateTreeStats();
+        candidates.upperIsSameTypeAsLower = upper.getData().nodeKey == lower.getData().nodeKey;
+        candidates.upperIsSameAsLower = candidates.upperIsSameTypeAsLower && TSGNode.treesMatchToRoot(upper, lower);
+        candidates.upperPriorLog2Prob = samplePosteriorComputer.getLog2PriorForTree(upper);
+
+        // Speedup
+        if (candidates.upperIsSameAsLower) {
+            candidates.lowerPriorLog2Prob = candidates.upperPriorLog2Prob;
+        } else {
+            candidates.lowerPriorLog2Prob = samplePosteriorComputer.getLog2PriorForTree(lower);
+        }
+        candidates.joinedPriorLog2Prob = samplePosteriorComputer.getLog2PriorForTree(joined);
+
+        candidates.upperCount = counts.countTreeOccurences(upper);
+        candidates.lowerCount = counts.countTreeOccurences(lower);
+        candidates.joinedCount = counts.countTreeOccurences(joined);
+        candidates.upperRootCount = counts.countTreesWithRoot(upper.getData());
+        candidates.lowerRootCount = counts.countTreesWithRoot(lower.getData());
+        return candidates;
+    }
+
+    /**
+     * Return the type information that contains the given corpus node.
+     *
+     * @param node
+     * @return
+     */
+    protected NodeTypeInformation getNodeTypeInformationOf(final TreeNode<TSGNode> node) {
+        return nodeType;
+    }
+
     public BlockedPosteriorComputer getPosteriorComputer() {
         return samplePosteriorComputer;
     }
@@ -282,11 +471,37 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
         return prior;
     }
 
+    /**
+     * Add a new corpus tree to the node type information.
+     *
+     * @param immutableTree
+     */
+    protected void indexCorpusTree(final TreeNode<TSGNode> immutableTree) {
+        nodeType.updateCorpusStructures(immutableTree);
+    }
+
+    /**
+     * Return true if each iteration sweeps over the same-type blocks, rather
+     * than over the trees.
+     */
+    public boolean isSweepingTypeBlocks() {
+        return sweepTypeBlocks;
+    }
+
     public void lockSamplerData() {
         prior.lockPrior();
         burninPosteriorComputer.getPrior().cfg = samplePosteriorComputer.getPrior().cfg;
     }
 
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (sampleCounts == null) {
+            // A sampler serialized before the counts were abstracted
+            sampleCounts = new GrammarRuleCounts(sampleGrammar);
+            sweepTypeBlocks = SWEEP_TYPE_BLOCKS;
+        }
+    }
+
     @Override
     public void sampleAllTreesOnce(final int currentIteration, final int totalIterations, final AtomicBoolean stop) {
         final Thread termSignalHandler = new Thread() {
@@ -296,13 +511,20 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
             }
         };
 
-        final List<TreeNode<TSGNode>> allTrees = Lists.newArrayList(treeCorpus);
-        Collections.shuffle(allTrees);
-        for (final TreeNode<TSGNode> tree : allTrees) {
-            if (stop.get()) {
-                break;
+        if (sweepTypeBlocks) {
+            final int[] siteIds = nodeType.getSamplingSiteIds();
+            shuffle(siteIds);
+            sampleTypeBlocks(siteIds, 0, siteIds.length, new boolean[nodeType.getNumberOfNodes()], nodeType,
+                    sampleCounts, stop);
+        } else {
+            final List<TreeNode<TSGNode>> allTrees = Lists.newArrayList(treeCorpus);
+            Collections.shuffle(allTrees);
+            for (final TreeNode<TSGNode> tree : allTrees) {
+                if (stop.get()) {
+                    break;
+                }
+                sampleSubTree(tree, nodeType, sampleCounts);
             }
-            sampleSubTree(tree);
         }
 
         try {
@@ -313,55 +535,158 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
     }
 
     public void sampleAt(final TreeNode<TSGNode> node) {
+        sampleAt(node, getNodeTypeInformationOf(node), sampleCounts);
+    }
+
+    /**
+     * Sample the root bits of all the nodes that have the same type as the
+     * given node.
+     *
+     * @param node
+     *            the sampling site
+     * @param nodeTypes
+     *            the type information that contains the node. Only the nodes
+     *            in it are considered to have the same type.
+     * @param counts
+     *            the rule counts to sample against and update
+     * @return the ids of the sampled nodes
+     */
+    int[] sampleAt(final TreeNode<TSGNode> node, final NodeTypeInformation nodeTypes, final IRuleCounts counts) {
         checkNotNull(node);
-        final TreeNode<TSGNode> root = checkNotNull(nodeType.getRootForNode(node));
+        final TreeNode<TSGNode> root = checkNotNull(nodeTypes.getRootForNode(node));
 
         final boolean wasRootBefore = node.getData().isRoot;
-        node.getData().isRoot = false;
-        final TreeNode<TSGNode> joinedTree = TSGNode.getSubTreeFromRoot(root);
-
-        node.getData().isRoot = true;
-        final TreeNode<TSGNode> upperTree = TSGNode.getSubTreeFromRoot(root);
-        final TreeNode<TSGNode> lowerTree = TSGNode.getSubTreeFromRoot(node);
-
+        final boolean probeTrees = canProbeCandidateTrees();
+        TreeNode<TSGNode> joinedTree = null;
+        TreeNode<TSGNode> upperTree = null;
+        TreeNode<TSGNode> lowerTree = null;
+        final CandidateTreeStats candidates;
+        long startTime = System.nanoTime();
+        if (probeTrees) {
+            candidates = probeCandidateTrees(node, root, counts);
+        } else {
+            node.getData().isRoot = false;
+            joinedTree = TSGNode.getSubTreeFromRoot(root);
+
+            node.getData().isRoot = true;
+            upperTree = TSGNode.getSubTreeFromRoot(root);
+            lowerTree = TSGNode.getSubTreeFromRoot(node);
+            final long copyEndTime = System.nanoTime();
+            metrics.recordTreeCopyTime(copyEndTime - startTime);
+            startTime = copyEndTime;
+            candidates = getCandidateTreeStats(upperTree, lowerTree, joinedTree, counts);
+        }
         node.getData().isRoot = wasRootBefore; // Restore
+        metrics.recordPosteriorTime(System.nanoTime() - startTime);
 
         // Get all same type sites
-        final Collection<TreeNode<TSGNode>> sameTypeNodes = nodeType.getSameTypeNodes(node);
+        final int[] sameTypeNodeIds = nodeTypes.getSameTypeNodeIds(node);
 
         // compute m and sample
         int nSplit = 0;
-        for (final TreeNode<TSGNode> sameTypeNode : sameTypeNodes) {
-            if (sameTypeNode.getData().isRoot) {
+        for (final int sameTypeNodeId : sameTypeNodeIds) {
+            if (nodeTypes.getNode(sameTypeNodeId).getData().isRoot) {
                 nSplit++;
             }
         }
 
-        final double[] mProbs = sampleM(upperTree, lowerTree, joinedTree, sameTypeNodes.size(), nSplit);
+        startTime = System.nanoTime();
+        final double[] mProbs = sampleM(candidates, sameTypeNodeIds.length, nSplit);
         final int m = SampleUtils.getRandomIndex(mProbs);
+        metrics.recordPosteriorTime(System.nanoTime() - startTime);
+
+        // Copy the trees only if the grammar changes
+        if (probeTrees && m != nSplit) {
+            startTime = System.nanoTime();
+            node.getData().isRoot = false;
+            joinedTree = TSGNode.getSubTreeFromRoot(root);
+
+            node.getData().isRoot = true;
+            upperTree = TSGNode.getSubTreeFromRoot(root);
+            lowerTree = TSGNode.getSubTreeFromRoot(node);
+            node.getData().isRoot = wasRootBefore;
+            metrics.recordTreeCopyTime(System.nanoTime() - startTime);
+        }
 
         // change root bit in those sites
-        final ArrayList<TreeNode<TSGNode>> allNodes = Lists.newArrayList(sameTypeNodes);
-        Collections.shuffle(allNodes);
-        for (int i = 0; i < m; i++) {
-            allNodes.get(i).getData().isRoot = true;
-        }
-        for (int i = m; i < allNodes.size(); i++) {
-            allNodes.get(i).getData().isRoot = false;
+        shuffle(sameTypeNodeIds);
+        final int[] flippedNodeIds = new int[sameTypeNodeIds.length];
+        int nFlipped = 0;
+        for (int i = 0; i < sameTypeNodeIds.length; i++) {
+            final TSGNode sameTypeData = nodeTypes.getNode(sameTypeNodeIds[i]).getData();
+            final boolean isRootNow = i < m;
+            if (sameTypeData.isRoot != isRootNow) {
+                flippedNodeIds[nFlipped++] = sameTypeNodeIds[i];
+            }
+            sameTypeData.isRoot = isRootNow;
         }
+        nodeTypes.rootFlagsChanged(flippedNodeIds, nFlipped);
+        metrics.recordSampledNodes(sameTypeNodeIds.length, nFlipped);
 
         // Add/remove rules as needed
+        startTime = System.nanoTime();
         if (m > nSplit) { // we split more than before
             final int diff = m - nSplit;
-            sampleGrammar.addTree(upperTree, diff);
-            sampleGrammar.addTree(lowerTree, diff);
-            checkArgument(sampleGrammar.removeTree(joinedTree, diff) >= 0);
+            counts.addTree(upperTree, diff);
+            counts.addTree(lowerTree, diff);
+            checkArgument(counts.removeTree(joinedTree, diff) >= 0);
         } else if (m < nSplit) { // we split less than before
             final int diff = nSplit - m;
-            sampleGrammar.addTree(joinedTree, diff);
-            checkArgument(sampleGrammar.removeTree(upperTree, diff) >= 0);
-            checkArgument(sampleGrammar.removeTree(lowerTree, diff) >= 0);
+            counts.addTree(joinedTree, diff);
+            checkArgument(counts.removeTree(upperTree, diff) >= 0);
+            checkArgument(counts.removeTree(lowerTree, diff) >= 0);
+        }
+        metrics.recordGrammarUpdateTime(System.nanoTime() - startTime);
+        return sameTypeNodeIds;
+    }
+
+    /**
+     * Get the statistics of the candidate trees at the given node, by probing
+     * the grammar without copying the trees. The root flag of the node is
+     * left set.
+     *
+     * @param node
+     *            the sampling site
+     * @param root
+     *            the root of the node
+     * @param counts
+     *            the rule counts to probe
+     * @return
+     */
+    private CandidateTreeStats probeCandidateTrees(final TreeNode<TSGNode> node, final TreeNode<TSGNode> root,
+            final IRuleCounts counts) {
+        final CandidateTreeStats candidates = new CandidateTreeStats();
+
+        node.getData().isRoot = false;
+        candidates.joinedCount = counts.countTreeOccurences(TSGNode.getSubTreeFromRootHash(root),
+                TSGNode.getSubTreeFromRootMatcher(root));
+
+        node.getData().isRoot = true;
+        candidates.upperCount = counts.countTreeOccurences(TSGNode.getSubTreeFromRootHash(root),
+                TSGNode.getSubTreeFromRootMatcher(root));
+        candidates.lowerCount = counts.countTreeOccurences(TSGNode.getSubTreeFromRootHash(node),
+                TSGNode.getSubTreeFromRootMatcher(node));
+        candidates.upperRootCount = counts.countTreesWithRoot(root.getData());
+        candidates.lowerRootCount = counts.countTreesWithRoot(node.getData());
+
+        candidates.upperIsSameTypeAsLower = root.getData().nodeKey == node.getData().nodeKey;
+        candidates.upperIsSameAsLower = candidates.upperIsSameTypeAsLower && TSGNode.treesMatchToRoot(root, node);
+        candidates.upperPriorLog2Prob = samplePosteriorComputer.getLog2PriorForSubTreeFromRoot(root);
+        if (candidates.upperIsSameAsLower) {
+            candidates.lowerPriorLog2Prob = candidates.upperPriorLog2Prob;
+        } else {
+            candidates.lowerPriorLog2Prob = samplePosteriorComputer.getLog2PriorForSubTreeFromRoot(node);
         }
+        if (node.isLeaf()) {
+            node.getData().isRoot = false;
+            candidates.joinedPriorLog2Prob = samplePosteriorComputer.getLog2PriorForSubTreeFromRoot(root);
+            node.getData().isRoot = true;
+        } else {
+            // The joined tree contains exactly the CFG rules of the upper and
+            // the lower tree
+            candidates.joinedPriorLog2Prob = candidates.upperPriorLog2Prob + candidates.lowerPriorLog2Prob;
+        }
+        return candidates;
     }
 
     /**
@@ -384,29 +709,38 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
      */
     public double[] sampleM(final TreeNode<TSGNode> upper, final TreeNode<TSGNode> lower,
             final TreeNode<TSGNode> joined, final int numOfSameTypeSites, final int nSplit) {
+        return sampleM(getCandidateTreeStats(upper, lower, joined, sampleCounts), numOfSameTypeSites, nSplit);
+    }
+
+    /**
+     * Compute a vector of doubles containing the unnormalized log2
+     * probabilities for each value of m (i.e. the number of nodes that will be
+     * split), given the statistics of the candidate trees.
+     *
+     * @param candidates
+     *            the counts and priors of the upper, lower and joined trees
+     * @param numOfSameTypeSites
+     *            the number of sites that have the same type
+     * @param nSplit
+     *            the number of sites that have the upper/lower tree split
+     * @return
+     */
+    public double[] sampleM(final CandidateTreeStats candidates, final int numOfSameTypeSites, final int nSplit) {
         final int nJoined = numOfSameTypeSites - nSplit;
-        final boolean upperIsSameTypeAsLower = upper.getData().nodeKey == lower.getData().nodeKey;
-        final boolean upperIsSameAsLower = upperIsSameTypeAsLower && TSGNode.treesMatchToRoot(upper, lower);
+        final boolean upperIsSameTypeAsLower = candidates.upperIsSameTypeAsLower;
+        final boolean upperIsSameAsLower = candidates.upperIsSameAsLower;
         checkArgument(nJoined >= 0);
-        final double upperPriorLog2Prob = samplePosteriorComputer.getLog2PriorForTree(upper);
-
-        // Speedup
-        final double lowerPriorLog2Prob;
-        if (upperIsSameAsLower) {
-            lowerPriorLog2Prob = upperPriorLog2Prob;
-        } else {
-            lowerPriorLog2Prob = samplePosteriorComputer.getLog2PriorForTree(lower);
-        }
-
-        final double joinedPriorLog2Prob = samplePosteriorComputer.getLog2PriorForTree(joined);
+        final double upperPriorLog2Prob = candidates.upperPriorLog2Prob;
+        final double lowerPriorLog2Prob = candidates.lowerPriorLog2Prob;
+        final double joinedPriorLog2Prob = candidates.joinedPriorLog2Prob;
 
         // The counts of the TSG rules after removing these trees.
-        final long upperCount = sampleGrammar.countTreeOccurences(upper) - nSplit - (upperIsSameAsLower ? nSplit : 0L);
-        final long lowerCount = sampleGrammar.countTreeOccurences(lower) - nSplit - (upperIsSameAsLower ? nSplit : 0L);
-        final long lowerRootCount = sampleGrammar.countTreesWithRoot(lower.getData()) - nSplit
+        final long upperCount = candidates.upperCount - nSplit - (upperIsSameAsLower ? nSplit : 0L);
+        final long lowerCount = candidates.lowerCount - nSplit - (upperIsSameAsLower ? nSplit : 0L);
+        final long lowerRootCount = candidates.lowerRootCount - nSplit
                 - (upperIsSameTypeAsLower ? numOfSameTypeSites : 0L);
-        final long jointCount = sampleGrammar.countTreeOccurences(joined) - nJoined;
-        final long topRootCount = sampleGrammar.countTreesWithRoot(upper.getData()) - numOfSameTypeSites
+        final long jointCount = candidates.joinedCount - nJoined;
+        final long topRootCount = candidates.upperRootCount - numOfSameTypeSites
                 - (upperIsSameTypeAsLower ? nSplit : 0L);
 
         checkArgument(lowerRootCount >= 0);
@@ -415,63 +749,105 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
         checkArgument(upperCount >= 0);
         checkArgument(jointCount >= 0);
 
-        final double log2a = DoubleMath.log2(samplePosteriorComputer.concentrationParameter);
-
-        // Precompute split tree,first
-        final double[] splitLog2Probs = new double[numOfSameTypeSites];
-
-        for (int i = 0; i < numOfSameTypeSites; i++) {
-            final int toAddNominator = i + (upperIsSameAsLower ? i : 0);
-            final int toAddDenominator = i + (upperIsSameTypeAsLower ? i : 0);
-            final double upperLog2prob = StatsUtil.log2SumOfExponentials(DoubleMath.log2(upperCount + toAddNominator),
-                    log2a + upperPriorLog2Prob)
-                    - StatsUtil.log2SumOfExponentials(DoubleMath.log2(topRootCount + toAddDenominator), log2a);
-
-            final double lowerLog2prob = StatsUtil.log2SumOfExponentials(DoubleMath.log2(lowerCount + toAddNominator),
-                    log2a + lowerPriorLog2Prob)
-                    - StatsUtil.log2SumOfExponentials(DoubleMath.log2(lowerRootCount + toAddDenominator), log2a);
-
-            splitLog2Probs[i] = upperLog2prob + lowerLog2prob;
+        final Log2Table rootCountLog2 = samplePosteriorComputer.getCountPlusConcentrationLog2Table();
+        final double log2a = rootCountLog2.get(0);
+        final double upperPseudoCountLog2 = log2a + upperPriorLog2Prob;
+        final double lowerPseudoCountLog2 = log2a + lowerPriorLog2Prob;
+        final double joinedPseudoCountLog2 = log2a + joinedPriorLog2Prob;
+        final double upperPseudoCount = Math.pow(2, upperPseudoCountLog2);
+        final double lowerPseudoCount = Math.pow(2, lowerPseudoCountLog2);
+        final double joinedPseudoCount = Math.pow(2, joinedPseudoCountLog2);
+        final int denominatorStep = upperIsSameTypeAsLower ? 2 : 1;
+        final int nominatorStep = upperIsSameAsLower ? 2 : 1;
+
+        // First store the joined trees' numerators. mLogProbs[m] holds the
+        // sum of the numerators of the n-m joined trees.
+        final double[] mLogProbs = new double[numOfSameTypeSites + 1];
+        double joinedNominatorSum = 0;
+        for (int i = 0; i <= numOfSameTypeSites; i++) {
+            mLogProbs[numOfSameTypeSites - i] = joinedNominatorSum;
+            if (i < numOfSameTypeSites) {
+                joinedNominatorSum += log2CountPlusPseudoCount(jointCount + i, joinedPseudoCount,
+                        joinedPseudoCountLog2);
+            }
         }
 
-        final double[] mLogProbs = new double[numOfSameTypeSites + 1];
+        double splitLog2ProbSum = 0;
         for (int m = 0; m <= numOfSameTypeSites; m++) {
+            // Pick n-m joined, whose roots follow the (upper and lower) roots
+            // of the m split trees
+            final long firstJoinedRootCount = topRootCount + (long) m * denominatorStep;
+            final double joinedDenominatorSum = rootCountLog2.sum(firstJoinedRootCount, firstJoinedRootCount
+                    + numOfSameTypeSites - m);
 
-            double log2Prob;
-            try {
-                log2Prob = combinationCache.get(new BinomialCoefficientsParameters(numOfSameTypeSites, m));
-            } catch (final ExecutionException e) {
-                LOGGER.warning("Binomial Coefficient Cache failed " + ExceptionUtils.getFullStackTrace(e));
-                log2Prob = ArithmeticUtils.binomialCoefficientLog(numOfSameTypeSites, m) / LN_2;
-            }
+            mLogProbs[m] += Log2Table.INTEGERS.log2Binomial(numOfSameTypeSites, m) + splitLog2ProbSum
+                    - joinedDenominatorSum;
 
             // m split trees
-            for (int i = 0; i < m; i++) {
-                log2Prob += splitLog2Probs[i];
+            if (m < numOfSameTypeSites) {
+                final long toAddNominator = (long) m * nominatorStep;
+                final long toAddDenominator = (long) m * denominatorStep;
+                splitLog2ProbSum += log2CountPlusPseudoCount(upperCount + toAddNominator, upperPseudoCount,
+                        upperPseudoCountLog2) - rootCountLog2.get(topRootCount + toAddDenominator)
+                        + log2CountPlusPseudoCount(lowerCount + toAddNominator, lowerPseudoCount,
+                                lowerPseudoCountLog2)
+                        - rootCountLog2.get(lowerRootCount + toAddDenominator);
             }
-
-            // Pick n-m joined
-            final int jointTreesToAdd = numOfSameTypeSites - m;
-            for (int i = 0; i < jointTreesToAdd; i++) {
-                log2Prob += StatsUtil.log2SumOfExponentials(DoubleMath.log2(jointCount + i),
-                        log2a + joinedPriorLog2Prob)
-                        - StatsUtil.log2SumOfExponentials(
-                                DoubleMath.log2(topRootCount + i + m + (upperIsSameTypeAsLower ? m : 0)), log2a);
-            }
-
-            mLogProbs[m] = log2Prob;
         }
 
         return mLogProbs;
     }
 
+    /**
+     * Sample the same-type blocks of the sites siteIds[from..to) in order.
+     * Since sampling a site samples its whole block, each block is sampled
+     * at most once and the sites of the already sampled blocks are skipped.
+     *
+     * @param siteIds
+     *            the ids of the sampling sites, in the order to visit them
+     * @param from
+     * @param to
+     * @param sampled
+     *            the nodes that have already been sampled in this sweep,
+     *            indexed by id. The newly sampled nodes are set.
+     * @param nodeTypes
+     *            the type information that contains the sites
+     * @param counts
+     *            the rule counts to sample against and update
+     * @param stop
+     */
+    void sampleTypeBlocks(final int[] siteIds, final int from, final int to, final boolean[] sampled,
+            final NodeTypeInformation nodeTypes, final IRuleCounts counts, final AtomicBoolean stop) {
+        int nSkipped = 0;
+        for (int i = from; i < to && !stop.get(); i++) {
+            final int siteId = siteIds[i];
+            if (sampled[siteId]) {
+                nSkipped++;
+                continue;
+            }
+            sampled[siteId] = true;
+            try {
+                for (final int sampledId : sampleAt(nodeTypes.getNode(siteId), nodeTypes, counts)) {
+                    sampled[sampledId] = true;
+                }
+            } catch (final Throwable e) {
+                LOGGER.severe("Failed at point sampling: " + ExceptionUtils.getFullStackTrace(e));
+            }
+        }
+        metrics.recordSkippedBlockSamples(nSkipped);
+    }
+
     /**
      * Perform TSG sampling on a single (full) tree. Sample each node in the
      * tree one-by-one at random order
      *
      * @param tree
+     * @param nodeTypes
+     *            the type information that contains the tree
+     * @param counts
+     *            the rule counts to sample against and update
      */
-    private void sampleSubTree(final TreeNode<TSGNode> tree) {
+    void sampleSubTree(final TreeNode<TSGNode> tree, final NodeTypeInformation nodeTypes, final IRuleCounts counts) {
         // A list of all the nodes.
         final List<TreeNode<TSGNode>> allNodes = Lists.newArrayList();
 
@@ -495,15 +871,26 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
         }
 
         // Start the sampling
-        Collections.shuffle(allNodes);
+        Collections.shuffle(allNodes, ThreadLocalRandom.current());
         for (final TreeNode<TSGNode> node : allNodes) {
             // ...and do the sampling
             try {
-                sampleAt(node);
+                sampleAt(node, nodeTypes, counts);
             } catch (final Throwable e) {
                 LOGGER.severe("Failed at point sampling: " + ExceptionUtils.getFullStackTrace(e));
             }
         }
     }
 
+    /**
+     * Set the sweep schedule of the iterations. When sweeping over the type
+     * blocks, all the sampling sites are visited in random order, but the
+     * sites whose block has already been sampled in the iteration are skipped.
+     *
+     * @param sweepTypeBlocks
+     */
+    public void setSweepTypeBlocks(final boolean sweepTypeBlocks) {
+        this.sweepTypeBlocks = sweepTypeBlocks;
+    }
+
 }
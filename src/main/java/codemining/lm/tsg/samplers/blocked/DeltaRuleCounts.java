@@ -0,0 +1,111 @@
+/**
+ *
+ */
+package codemining.lm.tsg.samplers.blocked;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Map;
+
+import codemining.ast.TreeNode;
+import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.TSGrammar;
+import codemining.lm.tsg.samplers.blocked.BlockCollapsedGibbsSampler.IRuleCounts;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.Maps;
+
+/**
+ * The rule counts of a grammar as seen by a single sampling thread. The
+ * grammar is only read, while the changes of the thread are kept as count
+ * deltas, so that many threads can sample against the same (stale) grammar
+ * without locking it for writing. The deltas are then merged into the grammar
+ * at a synchronization point.
+ *
+ * This class is not thread-safe and the grammar must not be changed until the
+ * deltas are merged.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+class DeltaRuleCounts implements IRuleCounts {
+
+    private final TSGrammar<TSGNode> grammar;
+
+    /**
+     * The count deltas of the changed trees.
+     */
+    private final RuleCountDeltas deltas = new RuleCountDeltas();
+
+    /**
+     * The count delta of the trees with each root.
+     */
+    private final Map<TSGNode, Integer> rootDeltas = Maps.newHashMap();
+
+    DeltaRuleCounts(final TSGrammar<TSGNode> grammar) {
+        this.grammar = checkNotNull(grammar);
+    }
+
+    @Override
+    public void addTree(final TreeNode<TSGNode> tree, final int count) {
+        updateDelta(tree, count);
+    }
+
+    @Override
+    public int countTreeOccurences(final int treeHash, final Predicate<TreeNode<TSGNode>> treeMatcher) {
+        return grammar.countTreeOccurences(treeHash, treeMatcher) + deltas.get(treeHash, treeMatcher);
+    }
+
+    @Override
+    public int countTreeOccurences(final TreeNode<TSGNode> tree) {
+        return grammar.countTreeOccurences(tree) + deltas.get(tree);
+    }
+
+    @Override
+    public int countTreesWithRoot(final TSGNode root) {
+        final Integer rootDelta = rootDeltas.get(root);
+        return grammar.countTreesWithRoot(root) + (rootDelta == null ? 0 : rootDelta);
+    }
+
+    /**
+     * Return the count deltas.
+     *
+     * @return
+     */
+    public RuleCountDeltas getDeltas() {
+        return deltas;
+    }
+
+    /**
+     * Apply the count deltas to the grammar. This must be called at most once
+     * and while no other thread reads the grammar.
+     */
+    public void mergeIntoGrammar() {
+        deltas.applyTo(grammar);
+    }
+
+    @Override
+    public int removeTree(final TreeNode<TSGNode> tree, final int occurences) {
+        final int currentCount = countTreeOccurences(tree);
+        final int removed = Math.min(currentCount, occurences);
+        if (removed > 0) {
+            updateDelta(tree, -removed);
+        }
+        return currentCount - occurences;
+    }
+
+    /**
+     * Add the given count to the delta of a tree and its root.
+     *
+     * @param tree
+     * @param count
+     */
+    private void updateDelta(final TreeNode<TSGNode> tree, final int count) {
+        final int treeId = deltas.add(tree, count);
+
+        final TSGNode root = deltas.getTree(treeId).getData();
+        final Integer rootDelta = rootDeltas.get(root);
+        rootDeltas.put(root, rootDelta == null ? count : rootDelta + count);
+    }
+
+}
@@ -0,0 +1,214 @@
+/**
+ *
+ */
+package codemining.lm.tsg.samplers.blocked;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import codemining.ast.AstNodeSymbol;
+import codemining.ast.TreeNode;
+import codemining.lm.cfg.PackedCFGRule;
+import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.TSGrammar;
+import codemining.lm.tsg.samplers.blocked.DistributedSamplerCoordinator.CountExchange;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+
+/**
+ * A block collapsed Gibbs sampler that samples a shard of the corpus in a
+ * worker process, as part of an approximate distributed sampler (similar to
+ * AD-LDA). Each worker holds only its own trees, but a full copy of the
+ * sample grammar and the prior. During an iteration the worker samples
+ * against its copy of the grammar, which is stale with respect to the changes
+ * of the other workers. At the end of the iteration the workers send their
+ * count changes to a {@link DistributedSamplerCoordinator} and apply the
+ * changes of all workers, after which all copies are again the exact grammar
+ * of the corpus.
+ *
+ * Usage: connect to the coordinator, exchange the node alphabet, add the
+ * (remapped) trees, call {@link #synchronizeCorpus()} and then sample.
+ * {@link #disconnect()} must be called when sampling finishes.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class DistributedBlockCollapsedGibbsSampler extends BlockCollapsedGibbsSampler {
+
+    /**
+     * The connection of a worker to the coordinator.
+     */
+    public static final class CoordinatorConnection implements Closeable {
+
+        private final Socket socket;
+
+        private final ObjectOutputStream out;
+
+        private final ObjectInputStream in;
+
+        public CoordinatorConnection(final String host, final int port) throws IOException {
+            socket = new Socket(host, port);
+            out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.flush();
+            in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+        }
+
+        /**
+         * Notify the coordinator that this worker has finished and close the
+         * connection.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                send(null);
+            } finally {
+                socket.close();
+            }
+        }
+
+        /**
+         * Send the count changes of this worker and return the sum of the
+         * changes of all workers.
+         *
+         * @param counts
+         * @return
+         * @throws IOException
+         */
+        CountExchange exchangeCounts(final CountExchange counts) throws IOException {
+            send(counts);
+            return (CountExchange) receive();
+        }
+
+        /**
+         * Send the alphabet of this worker and return the global alphabet.
+         *
+         * @param alphabet
+         * @return
+         * @throws IOException
+         */
+        @SuppressWarnings("unchecked")
+        public Map<Integer, AstNodeSymbol> exchangeAlphabet(final Map<Integer, AstNodeSymbol> alphabet)
+                throws IOException {
+            send(Maps.newHashMap(alphabet));
+            return (Map<Integer, AstNodeSymbol>) receive();
+        }
+
+        private Object receive() throws IOException {
+            try {
+                return checkNotNull(in.readObject(), "Coordinator sent no data");
+            } catch (final ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+        }
+
+        private void send(final Object message) throws IOException {
+            out.writeObject(message);
+            out.reset();
+            out.flush();
+        }
+    }
+
+    private static final long serialVersionUID = 6722637937460007212L;
+
+    private transient CoordinatorConnection coordinator;
+
+    public DistributedBlockCollapsedGibbsSampler(final double avgTreeSize, final double DPconcentration,
+            final TSGrammar<TSGNode> sampleGrammar, final TSGrammar<TSGNode> allSamplesGrammar,
+            final CoordinatorConnection coordinator) {
+        super(avgTreeSize, DPconcentration, sampleGrammar, allSamplesGrammar);
+        this.coordinator = checkNotNull(coordinator);
+    }
+
+    /**
+     * Notify the coordinator that this worker has finished.
+     *
+     * @throws IOException
+     */
+    public void disconnect() throws IOException {
+        coordinator.close();
+    }
+
+    /**
+     * Send the own changes of the counts to the coordinator and apply the
+     * changes of all the workers. The own changes must have already been
+     * applied.
+     *
+     * @param ownCounts
+     * @throws IOException
+     */
+    private void exchangeCounts(final CountExchange ownCounts) throws IOException {
+        final CountExchange allCounts = coordinator.exchangeCounts(ownCounts);
+
+        final RuleCountDeltas otherRuleCounts = allCounts.ruleCounts;
+        otherRuleCounts.addAll(ownCounts.ruleCounts, -1);
+        otherRuleCounts.applyTo(sampleGrammar);
+
+        for (final Multiset.Entry<PackedCFGRule> rule : allCounts.priorCounts.entrySet()) {
+            final int otherCount = rule.getCount() - ownCounts.priorCounts.count(rule.getElement());
+            if (otherCount > 0) {
+                prior.addCFGRule(rule.getElement(), otherCount);
+            }
+        }
+    }
+
+    @Override
+    public void sampleAllTreesOnce(final int currentIteration, final int totalIterations, final AtomicBoolean stop) {
+        final DeltaRuleCounts counts = new DeltaRuleCounts(sampleGrammar);
+        if (isSweepingTypeBlocks()) {
+            final int[] siteIds = nodeType.getSamplingSiteIds();
+            shuffle(siteIds);
+            sampleTypeBlocks(siteIds, 0, siteIds.length, new boolean[nodeType.getNumberOfNodes()], nodeType, counts,
+                    stop);
+        } else {
+            final List<TreeNode<TSGNode>> allTrees = Lists.newArrayList(treeCorpus);
+            Collections.shuffle(allTrees, ThreadLocalRandom.current());
+            for (final TreeNode<TSGNode> tree : allTrees) {
+                if (stop.get()) {
+                    break;
+                }
+                sampleSubTree(tree, nodeType, counts);
+            }
+        }
+        counts.mergeIntoGrammar();
+
+        try {
+            exchangeCounts(new CountExchange(HashMultiset.<PackedCFGRule> create(), counts.getDeltas()));
+        } catch (final IOException e) {
+            LOGGER.severe("Failed to synchronize with the coordinator: " + ExceptionUtils.getFullStackTrace(e));
+            stop.set(true);
+        }
+    }
+
+    /**
+     * Send the prior and the grammar of the local trees to the coordinator
+     * and receive those of the whole corpus. This must be called once, after
+     * all the trees have been added and before sampling. The sampler data is
+     * locked afterwards.
+     *
+     * @throws IOException
+     */
+    public void synchronizeCorpus() throws IOException {
+        final Multiset<PackedCFGRule> priorCounts = HashMultiset.create();
+        prior.getInternalGrammar().forEachRule((rule, count) -> priorCounts.add(rule, count));
+        exchangeCounts(new CountExchange(priorCounts, RuleCountDeltas.of(sampleGrammar)));
+        lockSamplerData();
+    }
+
+}
@@ -0,0 +1,231 @@
+/**
+ *
+ */
+package codemining.lm.tsg.samplers.blocked;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import codemining.ast.AstNodeSymbol;
+import codemining.lm.cfg.PackedCFGRule;
+
+import com.esotericsoftware.kryo.DefaultSerializer;
+import com.esotericsoftware.kryo.serializers.JavaSerializer;
+import com.google.common.collect.HashBiMap;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+
+/**
+ * The coordinator of a {@link DistributedBlockCollapsedGibbsSampler}. Each
+ * worker process samples a shard of the corpus and connects to the
+ * coordinator over a local socket. The coordinator:
+ * <ol>
+ * <li>merges the node alphabets of the workers into a global alphabet, so
+ * that all workers use the same symbol ids.</li>
+ * <li>at every synchronization point, sums the count changes of all workers
+ * and sends the sum back to each of them.</li>
+ * </ol>
+ * The coordinator does not hold the corpus or the grammar. It stops when all
+ * workers have disconnected.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class DistributedSamplerCoordinator {
+
+    /**
+     * The changes of the counts of a worker since the last synchronization or
+     * the sum of the changes of all workers.
+     */
+    @DefaultSerializer(JavaSerializer.class)
+    static final class CountExchange implements Serializable {
+
+        private static final long serialVersionUID = -4178021540569733021L;
+
+        final Multiset<PackedCFGRule> priorCounts;
+
+        final RuleCountDeltas ruleCounts;
+
+        CountExchange(final Multiset<PackedCFGRule> priorCounts, final RuleCountDeltas ruleCounts) {
+            this.priorCounts = checkNotNull(priorCounts);
+            this.ruleCounts = checkNotNull(ruleCounts);
+        }
+    }
+
+    /**
+     * The connection to a single worker.
+     */
+    private static final class WorkerConnection implements Closeable {
+
+        private final Socket socket;
+
+        private final ObjectOutputStream out;
+
+        private final ObjectInputStream in;
+
+        private boolean finished = false;
+
+        WorkerConnection(final Socket socket) throws IOException {
+            this.socket = socket;
+            out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.flush();
+            in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+
+        /**
+         * Read the next message, or return null if the worker has finished.
+         *
+         * @return
+         * @throws IOException
+         */
+        Object read() throws IOException {
+            try {
+                final Object message = in.readObject();
+                if (message == null) {
+                    finished = true;
+                }
+                return message;
+            } catch (final EOFException e) {
+                finished = true;
+                return null;
+            } catch (final ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+        }
+
+        void write(final Object message) throws IOException {
+            out.writeObject(message);
+            // Do not keep references to the sent objects
+            out.reset();
+            out.flush();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(DistributedSamplerCoordinator.class.getName());
+
+    private final ServerSocket serverSocket;
+
+    private final int nWorkers;
+
+    /**
+     * @param serverSocket
+     *            the socket that the workers connect to
+     * @param nWorkers
+     *            the number of workers to wait for
+     */
+    public DistributedSamplerCoordinator(final ServerSocket serverSocket, final int nWorkers) {
+        checkArgument(nWorkers > 0);
+        this.serverSocket = checkNotNull(serverSocket);
+        this.nWorkers = nWorkers;
+    }
+
+    /**
+     * Merge the alphabets of the workers. Symbols are assigned ids in the
+     * order of the workers and their local ids.
+     *
+     * @param workers
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    private void exchangeAlphabets(final List<WorkerConnection> workers) throws IOException {
+        final HashBiMap<Integer, AstNodeSymbol> globalAlphabet = HashBiMap.create();
+        for (final WorkerConnection worker : workers) {
+            final Map<Integer, AstNodeSymbol> alphabet = (Map<Integer, AstNodeSymbol>) worker.read();
+            checkNotNull(alphabet, "Worker disconnected before sending its alphabet");
+            for (final AstNodeSymbol symbol : new TreeMap<Integer, AstNodeSymbol>(alphabet).values()) {
+                if (!globalAlphabet.containsValue(symbol)) {
+                    globalAlphabet.put(globalAlphabet.size(), symbol);
+                }
+            }
+        }
+        final Map<Integer, AstNodeSymbol> alphabetToSend = Maps.newHashMap(globalAlphabet);
+        for (final WorkerConnection worker : workers) {
+            worker.write(alphabetToSend);
+        }
+        LOGGER.info("Merged the alphabets of " + workers.size() + " workers into " + globalAlphabet.size()
+                + " symbols");
+    }
+
+    /**
+     * Sum the count changes of all the active workers and send the sum to
+     * them, until all workers have finished.
+     *
+     * @param workers
+     * @throws IOException
+     */
+    private void exchangeCounts(final List<WorkerConnection> workers) throws IOException {
+        int nSynchronizations = 0;
+        while (true) {
+            final Multiset<PackedCFGRule> priorCounts = HashMultiset.create();
+            final RuleCountDeltas ruleCounts = new RuleCountDeltas();
+            final List<WorkerConnection> activeWorkers = Lists.newArrayList();
+            for (final WorkerConnection worker : workers) {
+                if (worker.finished) {
+                    continue;
+                }
+                final CountExchange counts = (CountExchange) worker.read();
+                if (counts == null) {
+                    continue;
+                }
+                priorCounts.addAll(counts.priorCounts);
+                ruleCounts.addAll(counts.ruleCounts, 1);
+                activeWorkers.add(worker);
+            }
+            if (activeWorkers.isEmpty()) {
+                break;
+            }
+
+            final CountExchange sum = new CountExchange(priorCounts, ruleCounts);
+            for (final WorkerConnection worker : activeWorkers) {
+                worker.write(sum);
+            }
+            nSynchronizations++;
+        }
+        LOGGER.info("All workers finished after " + nSynchronizations + " synchronizations");
+    }
+
+    /**
+     * Wait for all the workers to connect and coordinate them until they
+     * finish.
+     *
+     * @throws IOException
+     */
+    public void run() throws IOException {
+        final List<WorkerConnection> workers = Lists.newArrayList();
+        try {
+            while (workers.size() < nWorkers) {
+                workers.add(new WorkerConnection(serverSocket.accept()));
+                LOGGER.info("Worker " + workers.size() + "/" + nWorkers + " connected");
+            }
+            exchangeAlphabets(workers);
+            exchangeCounts(workers);
+        } finally {
+            for (final WorkerConnection worker : workers) {
+                worker.close();
+            }
+        }
+    }
+
+}
@@ -6,21 +6,23 @@ package codemining.lm.tsg.samplers.blocked;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
 
 import codemining.ast.TreeNode;
+import codemining.lm.OpenAddressing;
 import codemining.lm.tsg.TSGNode;
 
 import com.google.common.base.Objects;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
@@ -28,6 +30,17 @@ import com.google.common.collect.Sets;
  * A helper class that can retrieve all the subtrees in a TSG tree with the same
  * type.
  * 
+ * Each corpus node is assigned a dense integer id in pre-order, so that the
+ * subtree of a node is a contiguous range of ids. The parent, type, shape and
+ * position of each node are stored in primitive arrays and the nodes of each
+ * type form a contiguous block of ids.
+ * 
+ * The sites with the same joined elementary tree (and position in it) are kept
+ * in same-type blocks that are updated incrementally when root flags change,
+ * so that finding the same type nodes depends on the size of the block and not
+ * on the corpus. This class is not thread-safe, since computing the same type
+ * nodes temporarily changes the root flags.
+ * 
  * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
  * 
  */
@@ -106,11 +119,318 @@ public class NodeTypeInformation implements Serializable {
 		}
 	}
 
+	/**
+	 * An open addressing map from the region hashes to the first block with
+	 * that hash. The blocks are stored as block + 1, with 0 marking empty
+	 * slots.
+	 */
+	private static final class HashBlockMap {
+		private int[] hashes = new int[16];
+		private int[] blocks = new int[16];
+		private int size = 0;
+
+		/**
+		 * Return the first block with the given hash or -1.
+		 */
+		int get(final int hash) {
+			for (int slot = OpenAddressing.firstSlot(hash, hashes.length);; slot = OpenAddressing
+					.nextSlot(slot, hashes.length)) {
+				if (blocks[slot] == 0) {
+					return -1;
+				} else if (hashes[slot] == hash) {
+					return blocks[slot] - 1;
+				}
+			}
+		}
+
+		void put(final int hash, final int block) {
+			if (2 * (size + 1) > hashes.length) {
+				final int[] oldHashes = hashes;
+				final int[] oldBlocks = blocks;
+				hashes = new int[2 * oldHashes.length];
+				blocks = new int[2 * oldHashes.length];
+				size = 0;
+				for (int i = 0; i < oldHashes.length; i++) {
+					if (oldBlocks[i] != 0) {
+						put(oldHashes[i], oldBlocks[i] - 1);
+					}
+				}
+			}
+			int slot = OpenAddressing.firstSlot(hash, hashes.length);
+			while (blocks[slot] != 0 && hashes[slot] != hash) {
+				slot = OpenAddressing.nextSlot(slot, hashes.length);
+			}
+			if (blocks[slot] == 0) {
+				size++;
+			}
+			hashes[slot] = hash;
+			blocks[slot] = block + 1;
+		}
+
+		void remove(final int hash) {
+			int hole = OpenAddressing.firstSlot(hash, hashes.length);
+			while (hashes[hole] != hash) {
+				if (blocks[hole] == 0) {
+					return;
+				}
+				hole = OpenAddressing.nextSlot(hole, hashes.length);
+			}
+			if (blocks[hole] == 0) {
+				return;
+			}
+
+			// Move back the entries of the probe sequence that would not be
+			// found after the hole
+			final int mask = hashes.length - 1;
+			for (int slot = OpenAddressing.nextSlot(hole, hashes.length); blocks[slot] != 0; slot = OpenAddressing
+					.nextSlot(slot, hashes.length)) {
+				final int firstSlot = OpenAddressing.firstSlot(hashes[slot],
+						hashes.length);
+				if (((slot - firstSlot) & mask) >= ((slot - hole) & mask)) {
+					hashes[hole] = hashes[slot];
+					blocks[hole] = blocks[slot];
+					hole = slot;
+				}
+			}
+			blocks[hole] = 0;
+			size--;
+		}
+	}
+
+	/**
+	 * An open addressing identity map from the corpus nodes to their ids.
+	 */
+	private static final class NodeIdMap {
+		private Object[] keys = new Object[16];
+		private int[] values = new int[16];
+		private int size = 0;
+
+		int get(final Object node) {
+			final int mask = keys.length - 1;
+			for (int slot = hash(node) & mask;; slot = (slot + 1) & mask) {
+				final Object key = keys[slot];
+				if (key == node) {
+					return values[slot];
+				} else if (key == null) {
+					return -1;
+				}
+			}
+		}
+
+		private static int hash(final Object node) {
+			final int h = System.identityHashCode(node);
+			return h ^ (h >>> 16);
+		}
+
+		void put(final Object node, final int id) {
+			if (2 * (size + 1) > keys.length) {
+				final Object[] oldKeys = keys;
+				final int[] oldValues = values;
+				keys = new Object[2 * oldKeys.length];
+				values = new int[2 * oldKeys.length];
+				size = 0;
+				for (int i = 0; i < oldKeys.length; i++) {
+					if (oldKeys[i] != null) {
+						put(oldKeys[i], oldValues[i]);
+					}
+				}
+			}
+			final int mask = keys.length - 1;
+			int slot = hash(node) & mask;
+			while (keys[slot] != null && keys[slot] != node) {
+				slot = (slot + 1) & mask;
+			}
+			if (keys[slot] == null) {
+				size++;
+			}
+			keys[slot] = node;
+			values[slot] = id;
+		}
+	}
+
+	/**
+	 * The shape of a node, i.e. its type and the number of its children per
+	 * property. Nodes of the same shape are isomorphic, ignoring their root
+	 * flags.
+	 */
+	private static final class NodeShape implements Serializable {
+
+		private static final long serialVersionUID = 2360213964123522154L;
+
+		final int[] shape;
+
+		NodeShape(final TreeNode<TSGNode> node) {
+			final List<List<TreeNode<TSGNode>>> children = node
+					.getChildrenByProperty();
+			shape = new int[children.size() + 1];
+			shape[0] = node.getData().nodeKey;
+			for (int i = 0; i < children.size(); i++) {
+				shape[i + 1] = children.get(i).size();
+			}
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof NodeShape)) {
+				return false;
+			}
+			return Arrays.equals(shape, ((NodeShape) obj).shape);
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(shape);
+		}
+	}
+
+	/**
+	 * The blocks of the sites (i.e. all nodes except for the corpus tree
+	 * roots) that have exactly the same joined elementary tree and the same
+	 * position in it, i.e. the same (upper, lower) rule pair. The blocks are
+	 * interned by the hash of the joined tree, and compared against any of
+	 * their members.
+	 */
+	private final class SameTypeBlocks {
+
+		/**
+		 * The block of each site or -1 for the corpus tree roots.
+		 */
+		final int[] siteBlocks;
+
+		/**
+		 * The position of each site in the members of its block.
+		 */
+		final int[] positionsInBlock;
+
+		int[][] members = new int[16][];
+
+		int[] sizes = new int[16];
+
+		int[] hashes = new int[16];
+
+		/**
+		 * The next block in the chain of blocks with the same hash or -1.
+		 */
+		int[] nextWithSameHash = new int[16];
+
+		final HashBlockMap firstBlockWithHash = new HashBlockMap();
+
+		int[] freeBlocks = new int[16];
+
+		int nFreeBlocks = 0;
+
+		int nBlocks = 0;
+
+		SameTypeBlocks() {
+			siteBlocks = new int[nodes.size()];
+			positionsInBlock = new int[nodes.size()];
+			Arrays.fill(siteBlocks, -1);
+			for (int id = 0; id < nodes.size(); id++) {
+				if (parentIds[id] >= 0) {
+					add(id);
+				}
+			}
+		}
+
+		void add(final int site) {
+			final int hash = regionHash(site);
+			final int firstBlock = firstBlockWithHash.get(hash);
+			int block = firstBlock;
+			while (block >= 0 && !haveSameRegions(site, members[block][0])) {
+				block = nextWithSameHash[block];
+			}
+			if (block < 0) {
+				block = createBlock(hash, firstBlock);
+				firstBlockWithHash.put(hash, block);
+			}
+
+			members[block] = ensureCapacity(members[block], sizes[block] + 1);
+			positionsInBlock[site] = sizes[block];
+			members[block][sizes[block]++] = site;
+			siteBlocks[site] = block;
+		}
+
+		private int createBlock(final int hash, final int nextBlock) {
+			final int block;
+			if (nFreeBlocks > 0) {
+				block = freeBlocks[--nFreeBlocks];
+			} else {
+				block = nBlocks++;
+				if (block >= members.length) {
+					members = Arrays.copyOf(members, 2 * members.length);
+				}
+				sizes = ensureCapacity(sizes, nBlocks);
+				hashes = ensureCapacity(hashes, nBlocks);
+				nextWithSameHash = ensureCapacity(nextWithSameHash, nBlocks);
+				members[block] = new int[4];
+			}
+			sizes[block] = 0;
+			hashes[block] = hash;
+			nextWithSameHash[block] = nextBlock;
+			return block;
+		}
+
+		void remove(final int site) {
+			final int block = siteBlocks[site];
+			final int position = positionsInBlock[site];
+			final int lastSite = members[block][--sizes[block]];
+			members[block][position] = lastSite;
+			positionsInBlock[lastSite] = position;
+			siteBlocks[site] = -1;
+			if (sizes[block] > 0) {
+				return;
+			}
+
+			// Unlink the empty block from its hash chain and recycle it
+			final int firstBlock = firstBlockWithHash.get(hashes[block]);
+			if (firstBlock == block) {
+				if (nextWithSameHash[block] < 0) {
+					firstBlockWithHash.remove(hashes[block]);
+				} else {
+					firstBlockWithHash.put(hashes[block],
+							nextWithSameHash[block]);
+				}
+			} else {
+				int previousBlock = firstBlock;
+				while (nextWithSameHash[previousBlock] != block) {
+					previousBlock = nextWithSameHash[previousBlock];
+				}
+				nextWithSameHash[previousBlock] = nextWithSameHash[block];
+			}
+			freeBlocks = ensureCapacity(freeBlocks, nFreeBlocks + 1);
+			freeBlocks[nFreeBlocks++] = block;
+		}
+	}
+
+	/**
+	 * The same as the format before the nodes were given dense ids, since
+	 * objects in that format are migrated when read.
+	 */
 	private static final long serialVersionUID = -1917715699790189774L;
 
 	static final Logger LOGGER = Logger.getLogger(NodeTypeInformation.class
 			.getName());
 
+	private static boolean containsId(final int[] ids, final int length,
+			final int id) {
+		for (int i = 0; i < length; i++) {
+			if (ids[i] == id) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int[] ensureCapacity(final int[] array, final int size) {
+		if (array.length >= size) {
+			return array;
+		}
+		return Arrays.copyOf(array, Math.max(size, 2 * array.length));
+	}
+
 	/**
 	 * Get the nodes in the joint rule from nodeRoot, excluding base Node
 	 * 
@@ -148,94 +468,138 @@ public class NodeTypeInformation implements Serializable {
 	}
 
 	/**
-	 * A map containing the parents of all nodes.
+	 * The parent of each node in the format before the nodes were given dense
+	 * ids. Only set while reading an object in that format, until it is
+	 * migrated.
 	 */
-	private final Map<TreeNode<TSGNode>, TreeNode<TSGNode>> parentMap = Maps
-			.newIdentityHashMap();
+	private Map<TreeNode<TSGNode>, TreeNode<TSGNode>> parentMap;
 
-	private final Map<NodeType, Set<TreeNode<TSGNode>>> nodeTypes = Maps
-			.newHashMap();
+	/**
+	 * The nodes of each type in the format before the nodes were given dense
+	 * ids. Only set while reading an object in that format, until it is
+	 * migrated.
+	 */
+	private Map<NodeType, Set<TreeNode<TSGNode>>> nodeTypes;
 
 	/**
-	 * Add a single node to it's type.
-	 * 
-	 * @param current
-	 * @param type
+	 * The corpus nodes, indexed by their id.
 	 */
-	private void addNodeToTypeMap(final TreeNode<TSGNode> current,
-			final NodeTypeInformation.NodeType type) {
-		Set<TreeNode<TSGNode>> nodesForType = nodeTypes.get(type);
-		if (nodesForType == null) {
-			nodesForType = Sets.newIdentityHashSet();
-			nodeTypes.put(type, nodesForType);
-		}
-		nodesForType.add(current);
-	}
+	private ArrayList<TreeNode<TSGNode>> nodes = new ArrayList<TreeNode<TSGNode>>();
+
+	/**
+	 * The id of the parent of each node or -1 for the corpus tree roots.
+	 */
+	private int[] parentIds = new int[0];
+
+	/**
+	 * One more than the largest id in the subtree of each node.
+	 */
+	private int[] subtreeEnds = new int[0];
+
+	/**
+	 * The position of each node in the (flattened) children of its parent.
+	 */
+	private int[] childSlots = new int[0];
+
+	private int[] shapeIds = new int[0];
+
+	private int[] typeIds = new int[0];
+
+	private Map<NodeShape, Integer> shapes = Maps.newHashMap();
+
+	private Map<NodeType, Integer> types = Maps.newHashMap();
+
+	private transient NodeIdMap nodeIds = new NodeIdMap();
+
+	/**
+	 * The node ids sorted by type, with the block of the type t being
+	 * typeBlockNodeIds[typeBlockStarts[t]..typeBlockStarts[t+1]). These are
+	 * rebuilt lazily when nodes are added.
+	 */
+	private transient int[] typeBlockNodeIds;
+
+	private transient int[] typeBlockStarts;
+
+	/**
+	 * The incrementally maintained same-type blocks, built lazily.
+	 */
+	private transient SameTypeBlocks sameTypeBlocks;
+
+	/**
+	 * Scratch space for the sites affected by root flag changes.
+	 */
+	private transient int[] affectedSites = new int[0];
+
+	/**
+	 * Scratch space for marking the nodes that cannot be same type nodes.
+	 * marks[i] == currentMark iff the node with id i is marked.
+	 */
+	private transient int[] marks;
+
+	private transient int currentMark;
 
 	/**
 	 * Returns true if the roots are of the same type (i.e. have the same number
 	 * of children, properties and type) and the child1,child2 are at the same
 	 * position as children.
 	 */
-	private boolean areIsomorphicNodes(final TreeNode<TSGNode> child1,
-			final TreeNode<TSGNode> root1, final TreeNode<TSGNode> child2,
-			final TreeNode<TSGNode> root2) {
-		if (!root1.getData().equals(root2.getData())) {
-			return false; // Root nodes do not match.
-		}
-		final List<List<TreeNode<TSGNode>>> children1 = root1
-				.getChildrenByProperty();
-		final List<List<TreeNode<TSGNode>>> children2 = root2
-				.getChildrenByProperty();
-
-		final int childrenSize = children1.size();
-		if (childrenSize != children2.size()) {
-			return false; // Sizes do not match
-		}
-
-		// Speed-up things using
-		boolean found = false;
-		for (int i = 0; i < childrenSize; i++) {
-			final List<TreeNode<TSGNode>> childrenForProperty1 = children1
-					.get(i);
-			final List<TreeNode<TSGNode>> childrenForProperty2 = children2
-					.get(i);
-
-			final int childrenForPropertySize = childrenForProperty1.size();
-			if (childrenForPropertySize != childrenForProperty2.size()) {
-				return false; // Sizes do not match
-			}
-
-			if (!found) {
-				for (int j = 0; j < childrenForPropertySize; j++) {
-					if (child1 == childrenForProperty1.get(j)) {
-						if (child2 != childrenForProperty2.get(j)) {
-							// The children are not coming from the same path
-							return false;
-						} else {
-							found = true;
-							break;
-						}
-					}
-				}
-			}
+	private boolean areIsomorphicNodes(final int child1, final int root1,
+			final int child2, final int root2) {
+		return shapeIds[root1] == shapeIds[root2]
+				&& isRoot(root1) == isRoot(root2)
+				&& childSlots[child1] == childSlots[child2];
+	}
+
+	/**
+	 * Build the type blocks, by counting sort on the type ids.
+	 */
+	private void buildTypeBlocks() {
+		final int nNodes = nodes.size();
+		final int[] starts = new int[types.size() + 1];
+		for (int i = 0; i < nNodes; i++) {
+			starts[typeIds[i] + 1]++;
+		}
+		for (int t = 0; t < types.size(); t++) {
+			starts[t + 1] += starts[t];
+		}
+		final int[] nextPosition = Arrays.copyOf(starts, types.size());
+		final int[] blockNodeIds = new int[nNodes];
+		for (int i = 0; i < nNodes; i++) {
+			blockNodeIds[nextPosition[typeIds[i]]++] = i;
 		}
-		return found;
+		typeBlockStarts = starts;
+		typeBlockNodeIds = blockNodeIds;
+	}
+
+	/**
+	 * Return true if the given (non-root) node is in one of the corpus trees
+	 * of this object.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	public boolean containsNode(final TreeNode<TSGNode> node) {
+		final int id = nodeIds.get(node);
+		return id >= 0 && parentIds[id] >= 0;
 	}
 
 	/**
-	 * Return a set of candidate nodes for the type of this node, including this
-	 * node itself.
+	 * Return the corpus node with the given id.
 	 */
-	private Collection<TreeNode<TSGNode>> getCandidateSameTypeNodes(
-			final TreeNode<TSGNode> node) {
-		checkNotNull(node);
-		final NodeType type = new NodeType(node, parentMap.get(node));
-		final Set<TreeNode<TSGNode>> sameParentChildrenNodes = nodeTypes
-				.get(type);
-		checkArgument(sameParentChildrenNodes.size() >= 1,
-				"The node itself should be included here");
-		return Collections.unmodifiableCollection(sameParentChildrenNodes);
+	public TreeNode<TSGNode> getNode(final int id) {
+		return nodes.get(id);
+	}
+
+	/**
+	 * Return the id of the given corpus node or -1 if the node is not in the
+	 * corpus.
+	 */
+	public int getNodeId(final TreeNode<TSGNode> node) {
+		return nodeIds.get(node);
+	}
+
+	public int getNumberOfNodes() {
+		return nodes.size();
 	}
 
 	/**
@@ -245,7 +609,11 @@ public class NodeTypeInformation implements Serializable {
 	 * @return
 	 */
 	public TreeNode<TSGNode> getParentOf(final TreeNode<TSGNode> node) {
-		return parentMap.get(node);
+		final int id = nodeIds.get(node);
+		if (id < 0 || parentIds[id] < 0) {
+			return null;
+		}
+		return nodes.get(parentIds[id]);
 	}
 
 	/**
@@ -256,68 +624,122 @@ public class NodeTypeInformation implements Serializable {
 	 * @return
 	 */
 	public TreeNode<TSGNode> getRootForNode(final TreeNode<TSGNode> node) {
-		TreeNode<TSGNode> nextNode = parentMap.get(node);
-		while (nextNode != null && !nextNode.getData().isRoot) {
-			nextNode = parentMap.get(nextNode);
+		final int id = nodeIds.get(node);
+		if (id < 0) {
+			return null;
+		}
+		final int rootId = getRootIdForNode(id);
+		return rootId < 0 ? null : nodes.get(rootId);
+	}
+
+	/**
+	 * Return the id of the root of the given node or -1 if this is the root of
+	 * a corpus tree.
+	 */
+	private int getRootIdForNode(final int id) {
+		int nextNode = parentIds[id];
+		while (nextNode >= 0 && !isRoot(nextNode)) {
+			nextNode = parentIds[nextNode];
+		}
+		return nextNode;
+	}
+
+	/**
+	 * Return the id of the root of the joined elementary tree of the given
+	 * site, i.e. the root of the site, or the top of its corpus tree.
+	 */
+	private int getRegionRoot(final int site) {
+		int nextNode = parentIds[site];
+		while (!isRoot(nextNode) && parentIds[nextNode] >= 0) {
+			nextNode = parentIds[nextNode];
 		}
 		return nextNode;
 	}
 
+	/**
+	 * Return a symbol for a node in the joined elementary tree of the site.
+	 * The sequence of symbols in the (pre-order) ids determines the tree.
+	 */
+	private int getRegionSymbol(final int id, final int regionRoot,
+			final int site) {
+		if (isFrontier(id, regionRoot, site)) {
+			return ~nodes.get(id).getData().nodeKey;
+		}
+		return shapeIds[id];
+	}
+
+	/**
+	 * Return the ids of the nodes that are of exactly the same type, including
+	 * the base node. This uses the same-type blocks that are maintained
+	 * incrementally, so all root flag changes of the corpus nodes since the
+	 * last call must be reported to {@link #rootFlagsChanged(int[], int)}.
+	 * 
+	 * @param baseNode
+	 * @return
+	 */
+	public int[] getSameTypeNodeIds(final TreeNode<TSGNode> baseNode) {
+		final int baseId = nodeIds.get(baseNode);
+		checkArgument(baseId >= 0, "Node is not in the corpus");
+		final int nodeRootId = getRootIdForNode(baseId);
+		checkArgument(nodeRootId >= 0, "Cannot sample at the root of a tree");
+		if (sameTypeBlocks == null) {
+			sameTypeBlocks = new SameTypeBlocks();
+		}
+		final int block = sameTypeBlocks.siteBlocks[baseId];
+		return selectSameTypeNodes(baseNode, baseId, nodeRootId,
+				sameTypeBlocks.members[block], 0, sameTypeBlocks.sizes[block],
+				false);
+	}
+
 	/**
 	 * Return the references to the nodes that are of exactly the same type.
+	 * Unlike {@link #getSameTypeNodeIds(TreeNode)}, this is computed from
+	 * scratch, using the current root flags.
 	 * 
 	 * @param baseNode
 	 * @return
 	 */
 	public Collection<TreeNode<TSGNode>> getSameTypeNodes(
 			final TreeNode<TSGNode> baseNode) {
-		final TreeNode<TSGNode> nodeRoot = getRootForNode(baseNode);
-		final Collection<TreeNode<TSGNode>> candidateNodes = getCandidateSameTypeNodes(baseNode);
-
-		// Get initial state, to be restored at the end and set as roots
-		final Map<TreeNode<TSGNode>, Boolean> initialState = Maps
-				.newIdentityHashMap();
-		for (final TreeNode<TSGNode> candidateNode : candidateNodes) {
-			initialState.put(candidateNode, candidateNode.getData().isRoot);
+		final int baseId = nodeIds.get(baseNode);
+		checkArgument(baseId >= 0, "Node is not in the corpus");
+		final int nodeRootId = getRootIdForNode(baseId);
+		checkArgument(nodeRootId >= 0, "Cannot sample at the root of a tree");
+		if (typeBlockNodeIds == null
+				|| typeBlockNodeIds.length != nodes.size()) {
+			buildTypeBlocks();
 		}
+		final int typeId = typeIds[baseId];
 
-		baseNode.getData().isRoot = false;
-		final Set<TreeNode<TSGNode>> illegalNodes = getNodesInSelf(baseNode,
-				nodeRoot);
-
-		// First check that the candidates match the upper path
 		final Set<TreeNode<TSGNode>> sameTypeNodes = Sets.newIdentityHashSet();
-		for (final TreeNode<TSGNode> candidateNode : candidateNodes) {
-			if (!illegalNodes.contains(candidateNode)
-					&& haveSamePathToUpperRoot(baseNode, nodeRoot,
-							candidateNode)) {
-				sameTypeNodes.add(candidateNode);
-				candidateNode.getData().isRoot = false;
-				illegalNodes.addAll(getNodesInSelf(candidateNode,
-						getRootForNode(candidateNode)));
-			}
+		for (final int id : selectSameTypeNodes(baseNode, baseId, nodeRootId,
+				typeBlockNodeIds, typeBlockStarts[typeId],
+				typeBlockStarts[typeId + 1], true)) {
+			sameTypeNodes.add(nodes.get(id));
 		}
+		return sameTypeNodes;
+	}
 
-		// Check that the candidates match the joined tree
-		final List<TreeNode<TSGNode>> toBeRemoved = Lists.newArrayList();
-
-		for (final TreeNode<TSGNode> candidateTree : sameTypeNodes) {
-			final TreeNode<TSGNode> candidateTreeRoot = getRootForNode(candidateTree);
-			if (!TSGNode.treesMatchToRoot(nodeRoot, candidateTreeRoot)) {
-				toBeRemoved.add(candidateTree);
+	/**
+	 * Return the ids of all the sampling sites, i.e. the nodes that are
+	 * neither leaves nor the roots of the corpus trees.
+	 */
+	public int[] getSamplingSiteIds() {
+		final int nNodes = nodes.size();
+		int nSites = 0;
+		for (int id = 0; id < nNodes; id++) {
+			if (isSamplingSite(id)) {
+				nSites++;
 			}
 		}
-		for (final TreeNode<TSGNode> node : toBeRemoved) {
-			sameTypeNodes.remove(node);
-		}
-
-		// Restore root states
-		for (final TreeNode<TSGNode> candidateNode : candidateNodes) {
-			candidateNode.getData().isRoot = initialState.get(candidateNode);
+		final int[] siteIds = new int[nSites];
+		nSites = 0;
+		for (int id = 0; id < nNodes; id++) {
+			if (isSamplingSite(id)) {
+				siteIds[nSites++] = id;
+			}
 		}
-
-		checkArgument(sameTypeNodes.contains(baseNode));
-		return sameTypeNodes;
+		return siteIds;
 	}
 
 	/**
@@ -326,26 +748,280 @@ public class NodeTypeInformation implements Serializable {
 	 * necessary, since the upper trees may match type-wise but not the same
 	 * path is followed.
 	 */
-	private boolean haveSamePathToUpperRoot(final TreeNode<TSGNode> fromNode1,
-			final TreeNode<TSGNode> rootNode1, final TreeNode<TSGNode> fromNode2) {
-		checkNotNull(rootNode1);
+	private boolean haveSamePathToUpperRoot(final int fromNode1,
+			final int rootNode1, final int fromNode2) {
 		// Start following both nodes to rootNode1 checking that they are
 		// isomorphic
-		TreeNode<TSGNode> from1 = fromNode1;
-		TreeNode<TSGNode> from2 = fromNode2;
-		TreeNode<TSGNode> parentNode1 = parentMap.get(from1);
-		TreeNode<TSGNode> parentNode2 = parentMap.get(from2);
+		int from1 = fromNode1;
+		int from2 = fromNode2;
+		int parentNode1 = parentIds[from1];
+		int parentNode2 = parentIds[from2];
 		while (parentNode1 != rootNode1) {
-			if (areIsomorphicNodes(from1, parentNode1, from2, parentNode2)) {
+			if (parentNode2 >= 0
+					&& areIsomorphicNodes(from1, parentNode1, from2,
+							parentNode2)) {
 				from1 = parentNode1;
 				from2 = parentNode2;
-				parentNode1 = parentMap.get(parentNode1);
-				parentNode2 = parentMap.get(parentNode2);
+				parentNode1 = parentIds[parentNode1];
+				parentNode2 = parentIds[parentNode2];
 			} else {
 				return false;
 			}
 		}
-		return areIsomorphicNodes(from1, parentNode1, from2, parentNode2);
+		return parentNode2 >= 0
+				&& areIsomorphicNodes(from1, parentNode1, from2, parentNode2);
+	}
+
+	/**
+	 * Return true if the joined elementary trees of the two sites are the same
+	 * and the sites are at the same position in them.
+	 */
+	private boolean haveSameRegions(final int site1, final int site2) {
+		final int root1 = getRegionRoot(site1);
+		final int root2 = getRegionRoot(site2);
+		final int end1 = subtreeEnds[root1];
+		final int end2 = subtreeEnds[root2];
+		int current1 = root1;
+		int current2 = root2;
+		while (current1 < end1 && current2 < end2) {
+			if (getRegionSymbol(current1, root1, site1) != getRegionSymbol(
+					current2, root2, site2)
+					|| (current1 == site1) != (current2 == site2)) {
+				return false;
+			}
+			current1 = nextInRegion(current1, root1, site1);
+			current2 = nextInRegion(current2, root2, site2);
+		}
+		return current1 >= end1 && current2 >= end2;
+	}
+
+	/**
+	 * Return true if the node is in the frontier of the joined elementary tree
+	 * of the site.
+	 */
+	private boolean isFrontier(final int id, final int regionRoot,
+			final int site) {
+		return id != regionRoot && id != site && isRoot(id);
+	}
+
+	private boolean isRoot(final int id) {
+		return nodes.get(id).getData().isRoot;
+	}
+
+	/**
+	 * Return true if the node has a parent and at least one child.
+	 */
+	private boolean isSamplingSite(final int id) {
+		return parentIds[id] >= 0 && subtreeEnds[id] > id + 1;
+	}
+
+	/**
+	 * Mark the nodes in the joint rule from nodeRoot, excluding the base node.
+	 * This is {@link #getNodesInSelf(TreeNode, TreeNode)} on the id ranges.
+	 */
+	private void markNodesInSelf(final int baseNode, final int nodeRoot) {
+		marks[nodeRoot] = currentMark;
+		int current = nodeRoot + 1;
+		final int end = subtreeEnds[nodeRoot];
+		while (current < end) {
+			if (current != baseNode) {
+				marks[current] = currentMark;
+			}
+			if (isRoot(current)) {
+				current = subtreeEnds[current]; // skip the frontier's subtree
+			} else {
+				current++;
+			}
+		}
+	}
+
+	/**
+	 * Index the corpus of an object that was serialized before the nodes were
+	 * given dense ids. The corpus trees are the nodes without a parent.
+	 */
+	private void migrateCorpusStructures() {
+		final Map<TreeNode<TSGNode>, TreeNode<TSGNode>> oldParents = parentMap;
+		final Map<NodeType, Set<TreeNode<TSGNode>>> oldNodeTypes = nodeTypes;
+		parentMap = null;
+		nodeTypes = null;
+		nodes = new ArrayList<TreeNode<TSGNode>>();
+		parentIds = new int[0];
+		subtreeEnds = new int[0];
+		childSlots = new int[0];
+		shapeIds = new int[0];
+		typeIds = new int[0];
+		shapes = Maps.newHashMap();
+		types = Maps.newHashMap();
+		for (final Set<TreeNode<TSGNode>> nodesOfType : oldNodeTypes.values()) {
+			for (final TreeNode<TSGNode> node : nodesOfType) {
+				if (!oldParents.containsKey(node)) {
+					updateCorpusStructures(node);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return the next node in the joined elementary tree of the site,
+	 * skipping the subtrees of the frontier nodes.
+	 */
+	private int nextInRegion(final int id, final int regionRoot,
+			final int site) {
+		return isFrontier(id, regionRoot, site) ? subtreeEnds[id] : id + 1;
+	}
+
+	private void readObject(final ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		affectedSites = new int[0];
+		nodeIds = new NodeIdMap();
+		if (parentMap != null) {
+			migrateCorpusStructures();
+			return;
+		}
+		for (int i = 0; i < nodes.size(); i++) {
+			nodeIds.put(nodes.get(i), i);
+		}
+	}
+
+	/**
+	 * Return the hash of the joined elementary tree of the site and the
+	 * position of the site in it.
+	 */
+	private int regionHash(final int site) {
+		final int regionRoot = getRegionRoot(site);
+		final int end = subtreeEnds[regionRoot];
+		int hash = 1;
+		int sitePosition = 0;
+		for (int current = regionRoot, position = 0; current < end; current = nextInRegion(
+				current, regionRoot, site), position++) {
+			hash = 31 * hash + getRegionSymbol(current, regionRoot, site);
+			if (current == site) {
+				sitePosition = position;
+			}
+		}
+		return 31 * hash + sitePosition;
+	}
+
+	/**
+	 * Update the same-type blocks after the root flags of the given nodes have
+	 * changed. Only the sites whose joined elementary trees contain one of the
+	 * changed nodes need to move to a different block.
+	 * 
+	 * @param changedIds
+	 *            the ids of the nodes whose root flag changed
+	 * @param nChanged
+	 *            the number of ids to read from changedIds
+	 */
+	public void rootFlagsChanged(final int[] changedIds, final int nChanged) {
+		if (sameTypeBlocks == null) {
+			return; // Will be built with the current flags
+		}
+		startMarking();
+		int nAffected = 0;
+		for (int i = 0; i < nChanged; i++) {
+			final int changedId = changedIds[i];
+			final int regionRoot = getRegionRoot(changedId);
+			final int end = subtreeEnds[regionRoot];
+			for (int current = regionRoot; current < end; current = nextInRegion(
+					current, regionRoot, changedId)) {
+				if (marks[current] != currentMark && parentIds[current] >= 0) {
+					marks[current] = currentMark;
+					affectedSites = ensureCapacity(affectedSites,
+							nAffected + 1);
+					affectedSites[nAffected++] = current;
+				}
+			}
+		}
+
+		// Remove all first, so that the remaining block members are up to date
+		for (int i = 0; i < nAffected; i++) {
+			sameTypeBlocks.remove(affectedSites[i]);
+		}
+		for (int i = 0; i < nAffected; i++) {
+			sameTypeBlocks.add(affectedSites[i]);
+		}
+	}
+
+	/**
+	 * Select the candidates that can be sampled together with the base node,
+	 * i.e. the candidates whose joined elementary trees do not overlap and
+	 * match the joined tree of the base node.
+	 * 
+	 * @param checkUpperPath
+	 *            if the candidates may not have the same path to their roots
+	 * @return the ids of the selected nodes
+	 */
+	private int[] selectSameTypeNodes(final TreeNode<TSGNode> baseNode,
+			final int baseId, final int nodeRootId, final int[] candidateIds,
+			final int candidatesStart, final int candidatesEnd,
+			final boolean checkUpperPath) {
+		// The accepted nodes, along with their initial root flags, which
+		// are restored at the end
+		final int[] sameTypeNodeIds = new int[candidatesEnd - candidatesStart];
+		final boolean[] initialRootFlags = new boolean[sameTypeNodeIds.length];
+		int nSameType = 0;
+
+		startMarking();
+		final boolean baseWasRoot = baseNode.getData().isRoot;
+		baseNode.getData().isRoot = false;
+		markNodesInSelf(baseId, nodeRootId);
+
+		// First check that the candidates match the upper path
+		for (int i = candidatesStart; i < candidatesEnd; i++) {
+			final int candidateId = candidateIds[i];
+			if (marks[candidateId] != currentMark
+					&& (!checkUpperPath || haveSamePathToUpperRoot(baseId,
+							nodeRootId, candidateId))) {
+				final TSGNode candidateData = nodes.get(candidateId).getData();
+				initialRootFlags[nSameType] = candidateId == baseId ? baseWasRoot
+						: candidateData.isRoot;
+				sameTypeNodeIds[nSameType++] = candidateId;
+				candidateData.isRoot = false;
+				markNodesInSelf(candidateId, getRootIdForNode(candidateId));
+			}
+		}
+
+		// Check that the candidates match the joined tree
+		final TreeNode<TSGNode> nodeRoot = nodes.get(nodeRootId);
+		final boolean[] matchesJoinedTree = new boolean[nSameType];
+		for (int i = 0; i < nSameType; i++) {
+			final TreeNode<TSGNode> candidateTreeRoot = nodes
+					.get(getRootIdForNode(sameTypeNodeIds[i]));
+			matchesJoinedTree[i] = TSGNode.treesMatchToRoot(nodeRoot,
+					candidateTreeRoot);
+		}
+
+		// Restore root states
+		for (int i = 0; i < nSameType; i++) {
+			nodes.get(sameTypeNodeIds[i]).getData().isRoot = initialRootFlags[i];
+		}
+		baseNode.getData().isRoot = baseWasRoot;
+
+		int nMatching = 0;
+		for (int i = 0; i < nSameType; i++) {
+			if (matchesJoinedTree[i]) {
+				sameTypeNodeIds[nMatching++] = sameTypeNodeIds[i];
+			}
+		}
+
+		checkArgument(containsId(sameTypeNodeIds, nMatching, baseId));
+		return Arrays.copyOf(sameTypeNodeIds, nMatching);
+	}
+
+	/**
+	 * Start a new marking, clearing all previous marks.
+	 */
+	private void startMarking() {
+		if (marks == null || marks.length < nodes.size()) {
+			marks = new int[nodes.size()];
+			currentMark = 0;
+		}
+		currentMark++;
+		if (currentMark == Integer.MAX_VALUE) {
+			Arrays.fill(marks, 0);
+			currentMark = 1;
+		}
 	}
 
 	/**
@@ -354,26 +1030,71 @@ public class NodeTypeInformation implements Serializable {
 	 * @param root
 	 */
 	public void updateCorpusStructures(final TreeNode<TSGNode> root) {
+		sameTypeBlocks = null;
+		final int firstId = nodes.size();
 		final ArrayDeque<TreeNode<TSGNode>> stack = new ArrayDeque<TreeNode<TSGNode>>();
-		stack.add(root);
+		// The parent id and child slot of the nodes in the stack
+		int[] pendingParents = new int[16];
+		int[] pendingSlots = new int[16];
+		stack.push(root);
+		pendingParents[0] = -1;
 
 		while (!stack.isEmpty()) {
 			final TreeNode<TSGNode> current = stack.pop();
+			final int parentId = pendingParents[stack.size()];
+			final int slot = pendingSlots[stack.size()];
+
+			final int id = nodes.size();
+			nodes.add(current);
+			nodeIds.put(current, id);
+			parentIds = ensureCapacity(parentIds, id + 1);
+			subtreeEnds = ensureCapacity(subtreeEnds, id + 1);
+			childSlots = ensureCapacity(childSlots, id + 1);
+			shapeIds = ensureCapacity(shapeIds, id + 1);
+			typeIds = ensureCapacity(typeIds, id + 1);
+			parentIds[id] = parentId;
+			subtreeEnds[id] = id + 1;
+			childSlots[id] = slot;
+
+			final NodeShape shape = new NodeShape(current);
+			Integer shapeId = shapes.get(shape);
+			if (shapeId == null) {
+				shapeId = shapes.size();
+				shapes.put(shape, shapeId);
+			}
+			shapeIds[id] = shapeId;
+
 			final NodeTypeInformation.NodeType type = new NodeTypeInformation.NodeType(
-					current, parentMap.get(current));
-			addNodeToTypeMap(current, type);
+					current, parentId >= 0 ? nodes.get(parentId) : null);
+			Integer typeId = types.get(type);
+			if (typeId == null) {
+				typeId = types.size();
+				types.put(type, typeId);
+			}
+			typeIds[id] = typeId;
 
 			final List<List<TreeNode<TSGNode>>> children = current
 					.getChildrenByProperty();
+			int childSlot = 0;
 			for (int i = 0; i < children.size(); i++) {
 				for (final TreeNode<TSGNode> child : children.get(i)) {
-					// add to parent map
-					parentMap.put(child, current);
-					// push next
+					pendingParents = ensureCapacity(pendingParents,
+							stack.size() + 1);
+					pendingSlots = ensureCapacity(pendingSlots,
+							stack.size() + 1);
+					pendingParents[stack.size()] = id;
+					pendingSlots[stack.size()] = childSlot++;
 					stack.push(child);
 				}
 			}
 		}
+
+		// Ids are in pre-order, so the children follow their parents
+		for (int id = nodes.size() - 1; id > firstId; id--) {
+			final int parentId = parentIds[id];
+			subtreeEnds[parentId] = Math.max(subtreeEnds[parentId],
+					subtreeEnds[id]);
+		}
 	}
 
 }
@@ -0,0 +1,264 @@
+/**
+ *
+ */
+package codemining.lm.tsg.samplers.blocked;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import codemining.ast.TreeNode;
+import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.TSGrammar;
+import codemining.util.SettingsLoader;
+
+/**
+ * A block collapsed Gibbs sampler that samples the corpus trees in parallel.
+ *
+ * The corpus is split into shards, one per thread, each with its own node
+ * type information, so that the type blocks of a thread only contain nodes of
+ * its own trees. Within a synchronization round each thread samples its trees
+ * against the sample grammar as it was at the start of the round plus its own
+ * changes (see {@link DeltaRuleCounts}). At the end of the round the count
+ * deltas of all threads are merged into the sample grammar, which is then
+ * again exactly the grammar of the corpus root bits.
+ *
+ * This is an approximation of the sequential sampler (similar to
+ * approximate distributed LDA): the rule counts of the other shards are stale
+ * until the next synchronization and same type sites in different shards are
+ * sampled as separate blocks. More synchronizations per iteration reduce the
+ * staleness at the cost of more merging.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class ParallelBlockCollapsedGibbsSampler extends BlockCollapsedGibbsSampler {
+
+    /**
+     * A part of the corpus that is sampled by a single thread.
+     */
+    private static final class Shard implements Serializable {
+
+        private static final long serialVersionUID = -2911420624127066937L;
+
+        final NodeTypeInformation nodeTypes = new NodeTypeInformation();
+
+        final List<TreeNode<TSGNode>> trees = Lists.newArrayList();
+
+        long nNodes = 0;
+    }
+
+    private static final long serialVersionUID = -6526307785651958442L;
+
+    /**
+     * The number of threads (and corpus shards) to sample with.
+     */
+    public static final int N_THREADS = (int) SettingsLoader.getNumericSetting("ParallelSamplerThreads", Runtime
+            .getRuntime().availableProcessors());
+
+    /**
+     * The number of times per iteration that the counts of the threads are
+     * merged.
+     */
+    public static final int SYNCS_PER_ITERATION = (int) SettingsLoader.getNumericSetting(
+            "ParallelSamplerSyncsPerIteration", 1);
+
+    private final List<Shard> shards;
+
+    private final int syncsPerIteration;
+
+    public ParallelBlockCollapsedGibbsSampler(final double avgTreeSize, final double DPconcentration,
+            final TSGrammar<TSGNode> sampleGrammar, final TSGrammar<TSGNode> allSamplesGrammar) {
+        this(avgTreeSize, DPconcentration, sampleGrammar, allSamplesGrammar, N_THREADS, SYNCS_PER_ITERATION);
+    }
+
+    public ParallelBlockCollapsedGibbsSampler(final double avgTreeSize, final double DPconcentration,
+            final TSGrammar<TSGNode> sampleGrammar, final TSGrammar<TSGNode> allSamplesGrammar, final int nThreads,
+            final int syncsPerIteration) {
+        super(avgTreeSize, DPconcentration, sampleGrammar, allSamplesGrammar);
+        checkArgument(nThreads > 0);
+        checkArgument(syncsPerIteration > 0);
+        shards = Lists.newArrayListWithCapacity(nThreads);
+        for (int i = 0; i < nThreads; i++) {
+            shards.add(new Shard());
+        }
+        this.syncsPerIteration = syncsPerIteration;
+    }
+
+    @Override
+    protected NodeTypeInformation getNodeTypeInformationOf(final TreeNode<TSGNode> node) {
+        for (final Shard shard : shards) {
+            if (shard.nodeTypes.containsNode(node)) {
+                return shard.nodeTypes;
+            }
+        }
+        throw new IllegalArgumentException("Node is not in the corpus");
+    }
+
+    /**
+     * Add the tree to the shard with the fewest nodes.
+     */
+    @Override
+    protected void indexCorpusTree(final TreeNode<TSGNode> immutableTree) {
+        Shard smallestShard = shards.get(0);
+        for (final Shard shard : shards) {
+            if (shard.nNodes < smallestShard.nNodes) {
+                smallestShard = shard;
+            }
+        }
+        smallestShard.nodeTypes.updateCorpusStructures(immutableTree);
+        smallestShard.trees.add(immutableTree);
+        smallestShard.nNodes += immutableTree.getTreeSize();
+    }
+
+    /**
+     * Wait for all threads to finish and merge their count deltas into the
+     * sample grammar. The grammar cannot be changed while any thread samples,
+     * so this waits even if interrupted.
+     *
+     * @param deltas
+     */
+    private void mergeDeltas(final List<Future<DeltaRuleCounts>> deltas) {
+        final List<DeltaRuleCounts> completedDeltas = Lists.newArrayList();
+        for (final Future<DeltaRuleCounts> delta : deltas) {
+            try {
+                completedDeltas.add(Uninterruptibles.getUninterruptibly(delta));
+            } catch (final ExecutionException e) {
+                LOGGER.severe("Failed to sample shard: " + ExceptionUtils.getFullStackTrace(e.getCause()));
+            }
+        }
+        for (final DeltaRuleCounts delta : completedDeltas) {
+            delta.mergeIntoGrammar();
+        }
+    }
+
+    @Override
+    public void sampleAllTreesOnce(final int currentIteration, final int totalIterations, final AtomicBoolean stop) {
+        if (isSweepingTypeBlocks()) {
+            sampleAllTypeBlocksOnce(stop);
+            return;
+        }
+        final List<List<TreeNode<TSGNode>>> shardTrees = Lists.newArrayListWithCapacity(shards.size());
+        for (final Shard shard : shards) {
+            final List<TreeNode<TSGNode>> trees = Lists.newArrayList(shard.trees);
+            Collections.shuffle(trees, ThreadLocalRandom.current());
+            shardTrees.add(trees);
+        }
+
+        final ExecutorService workers = Executors.newFixedThreadPool(shards.size(), new ThreadFactoryBuilder()
+                .setDaemon(true).setNameFormat("tsg-sampler-%d").build());
+        try {
+            for (int round = 0; round < syncsPerIteration && !stop.get(); round++) {
+                final List<Future<DeltaRuleCounts>> deltas = Lists.newArrayListWithCapacity(shards.size());
+                for (int i = 0; i < shards.size(); i++) {
+                    final List<TreeNode<TSGNode>> trees = shardTrees.get(i);
+                    deltas.add(workers.submit(sampleTask(shards.get(i).nodeTypes,
+                            trees.subList(trees.size() * round / syncsPerIteration, trees.size() * (round + 1)
+                                    / syncsPerIteration), stop)));
+                }
+                mergeDeltas(deltas);
+            }
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * Sample the same-type blocks of all shards once. The sites of each shard
+     * are visited in random order, split evenly across the synchronization
+     * rounds.
+     *
+     * @param stop
+     */
+    private void sampleAllTypeBlocksOnce(final AtomicBoolean stop) {
+        final List<int[]> shardSites = Lists.newArrayListWithCapacity(shards.size());
+        final List<boolean[]> shardSampled = Lists.newArrayListWithCapacity(shards.size());
+        for (final Shard shard : shards) {
+            final int[] siteIds = shard.nodeTypes.getSamplingSiteIds();
+            shuffle(siteIds);
+            shardSites.add(siteIds);
+            shardSampled.add(new boolean[shard.nodeTypes.getNumberOfNodes()]);
+        }
+
+        final ExecutorService workers = Executors.newFixedThreadPool(shards.size(), new ThreadFactoryBuilder()
+                .setDaemon(true).setNameFormat("tsg-sampler-%d").build());
+        try {
+            for (int round = 0; round < syncsPerIteration && !stop.get(); round++) {
+                final List<Future<DeltaRuleCounts>> deltas = Lists.newArrayListWithCapacity(shards.size());
+                for (int i = 0; i < shards.size(); i++) {
+                    final int[] siteIds = shardSites.get(i);
+                    deltas.add(workers.submit(sampleTypeBlocksTask(shards.get(i).nodeTypes, siteIds,
+                            siteIds.length * round / syncsPerIteration, siteIds.length * (round + 1)
+                                    / syncsPerIteration, shardSampled.get(i), stop)));
+                }
+                mergeDeltas(deltas);
+            }
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * Return a task that samples the given trees of a shard and returns the
+     * resulting count deltas.
+     *
+     * @param nodeTypes
+     * @param trees
+     * @param stop
+     * @return
+     */
+    private Callable<DeltaRuleCounts> sampleTask(final NodeTypeInformation nodeTypes,
+            final List<TreeNode<TSGNode>> trees, final AtomicBoolean stop) {
+        checkNotNull(nodeTypes);
+        return () -> {
+            final DeltaRuleCounts delta = new DeltaRuleCounts(sampleGrammar);
+            for (final TreeNode<TSGNode> tree : trees) {
+                if (stop.get()) {
+                    break;
+                }
+                sampleSubTree(tree, nodeTypes, delta);
+            }
+            return delta;
+        };
+    }
+
+    /**
+     * Return a task that samples the same-type blocks of the sites
+     * siteIds[from..to) of a shard and returns the resulting count deltas.
+     *
+     * @param nodeTypes
+     * @param siteIds
+     * @param from
+     * @param to
+     * @param sampled
+     *            the nodes of the shard sampled so far in this iteration
+     * @param stop
+     * @return
+     */
+    private Callable<DeltaRuleCounts> sampleTypeBlocksTask(final NodeTypeInformation nodeTypes, final int[] siteIds,
+            final int from, final int to, final boolean[] sampled, final AtomicBoolean stop) {
+        checkNotNull(nodeTypes);
+        return () -> {
+            final DeltaRuleCounts delta = new DeltaRuleCounts(sampleGrammar);
+            sampleTypeBlocks(siteIds, from, to, sampled, nodeTypes, delta, stop);
+            return delta;
+        };
+    }
+
+}
@@ -0,0 +1,149 @@
+/**
+ *
+ */
+package codemining.lm.tsg.samplers.blocked;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Map;
+
+import codemining.ast.TreeNode;
+import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.TSGrammar;
+import codemining.lm.tsg.TreeInterner;
+
+import com.esotericsoftware.kryo.DefaultSerializer;
+import com.esotericsoftware.kryo.serializers.JavaSerializer;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Multiset;
+
+/**
+ * Signed changes of the counts of TSG rules, that can be summed and applied
+ * to a grammar.
+ *
+ * This class is not thread-safe.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+@DefaultSerializer(JavaSerializer.class)
+final class RuleCountDeltas implements Serializable {
+
+    private static final long serialVersionUID = 1652787102553981183L;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Return the counts of all the rules in the grammar as deltas.
+     *
+     * @param grammar
+     * @return
+     */
+    static RuleCountDeltas of(final TSGrammar<TSGNode> grammar) {
+        final RuleCountDeltas deltas = new RuleCountDeltas();
+        for (final Map.Entry<TSGNode, ? extends Multiset<TreeNode<TSGNode>>> rootRules : grammar.getInternalGrammar()
+                .entrySet()) {
+            for (final Multiset.Entry<TreeNode<TSGNode>> rule : rootRules.getValue().entrySet()) {
+                if (rule.getElement() != grammar.UNK_NODE) {
+                    deltas.add(rule.getElement(), rule.getCount());
+                }
+            }
+        }
+        return deltas;
+    }
+
+    private final TreeInterner<TSGNode> trees = new TreeInterner<TSGNode>();
+
+    /**
+     * The count delta of each tree, indexed by its id.
+     */
+    private int[] deltas = new int[INITIAL_CAPACITY];
+
+    /**
+     * Add the given (possibly negative) count to the delta of the tree.
+     *
+     * @param tree
+     * @param count
+     * @return the id of the tree
+     */
+    int add(final TreeNode<TSGNode> tree, final int count) {
+        final int treeId = trees.intern(tree);
+        if (treeId >= deltas.length) {
+            deltas = Arrays.copyOf(deltas, Math.max(2 * deltas.length, treeId + 1));
+        }
+        deltas[treeId] += count;
+        return treeId;
+    }
+
+    /**
+     * Add the deltas of the other object, multiplied by the given factor.
+     *
+     * @param other
+     * @param multiplier
+     */
+    void addAll(final RuleCountDeltas other, final int multiplier) {
+        checkNotNull(other);
+        for (int treeId = 0; treeId < other.trees.getIdUpperBound(); treeId++) {
+            if (other.deltas[treeId] != 0) {
+                add(other.trees.getTree(treeId), multiplier * other.deltas[treeId]);
+            }
+        }
+    }
+
+    /**
+     * Apply the deltas to the given grammar.
+     *
+     * @param grammar
+     */
+    void applyTo(final TSGrammar<TSGNode> grammar) {
+        for (int treeId = 0; treeId < trees.getIdUpperBound(); treeId++) {
+            if (deltas[treeId] > 0) {
+                grammar.addTree(trees.getTree(treeId), deltas[treeId]);
+            } else if (deltas[treeId] < 0) {
+                grammar.removeTree(trees.getTree(treeId), -deltas[treeId]);
+            }
+        }
+    }
+
+    /**
+     * Return the delta of the tree with the given hash code that is matched
+     * by the given predicate.
+     *
+     * @param treeHash
+     * @param treeMatcher
+     * @return
+     */
+    int get(final int treeHash, final Predicate<TreeNode<TSGNode>> treeMatcher) {
+        return getById(trees.getId(treeHash, treeMatcher));
+    }
+
+    /**
+     * Return the delta of the given tree.
+     *
+     * @param tree
+     * @return
+     */
+    int get(final TreeNode<TSGNode> tree) {
+        return getById(trees.getId(tree));
+    }
+
+    private int getById(final int treeId) {
+        if (treeId == -1) {
+            return 0;
+        }
+        return deltas[treeId];
+    }
+
+    /**
+     * Return the tree with the given id.
+     *
+     * @param treeId
+     * @return
+     */
+    TreeNode<TSGNode> getTree(final int treeId) {
+        return trees.getTree(treeId);
+    }
+
+}
@@ -0,0 +1,513 @@
+/**
+ *
+ */
+package codemining.lm.tsg.samplers.blocked;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.google.common.collect.BiMap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
+
+import codemining.ast.AbstractTreeExtractor;
+import codemining.ast.AstNodeSymbol;
+import codemining.ast.SymbolAlphabet;
+import codemining.ast.TreeNode;
+import codemining.lm.cfg.AbstractContextFreeGrammar.NodeConsequent;
+import codemining.lm.cfg.PackedCFGRule;
+import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.TSGrammar;
+import codemining.lm.tsg.samplers.PeriodicCheckpointer.ISamplerSnapshot;
+import codemining.lm.tsg.samplers.blocked.BlockCollapsedGibbsSampler.BlockedPosteriorComputer;
+
+/**
+ * A binary checkpoint of a {@link BlockCollapsedGibbsSampler}. Instead of
+ * serializing the whole sampler, only the state that cannot be recomputed is
+ * stored: the symbols and root bits of the corpus trees, the counts of the CFG
+ * prior, the burn-in grammar and the node alphabet. The sample grammar and the
+ * node type indexes are rebuilt from the corpus when the checkpoint is
+ * restored.
+ *
+ * A checkpoint is taken in two steps. {@link #snapshot(BlockCollapsedGibbsSampler, int)}
+ * copies the mutable state (i.e. the root bits and the counts) and must be
+ * called between sampling iterations. {@link #writeTo(File)} streams the
+ * snapshot to disk and can be called from any thread while sampling
+ * continues, since the structure of the corpus trees is immutable.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public final class SamplerCheckpoint implements ISamplerSnapshot {
+
+    private static final Logger LOGGER = Logger.getLogger(SamplerCheckpoint.class.getName());
+
+    private static final int MAGIC = 0x54534743;
+
+    private static final int VERSION = 1;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Return all the nodes of the tree in pre-order.
+     *
+     * @param tree
+     * @return
+     */
+    private static List<TreeNode<TSGNode>> getNodesInPreOrder(final TreeNode<TSGNode> tree) {
+        final List<TreeNode<TSGNode>> nodes = Lists.newArrayList();
+        final ArrayDeque<TreeNode<TSGNode>> toVisit = new ArrayDeque<TreeNode<TSGNode>>();
+        toVisit.push(tree);
+        while (!toVisit.isEmpty()) {
+            final TreeNode<TSGNode> current = toVisit.pop();
+            nodes.add(current);
+            final List<List<TreeNode<TSGNode>>> children = current.getChildrenByProperty();
+            for (int i = children.size() - 1; i >= 0; i--) {
+                final List<TreeNode<TSGNode>> childrenForProperty = children.get(i);
+                for (int j = childrenForProperty.size() - 1; j >= 0; j--) {
+                    toVisit.push(childrenForProperty.get(j));
+                }
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Read a checkpoint from the given file.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static SamplerCheckpoint readFrom(final File file) throws IOException {
+        try (final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a sampler checkpoint");
+            }
+            final int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported checkpoint version " + version);
+            }
+            final int iteration = in.readInt();
+            final double avgTreeSize = in.readDouble();
+            final double concentrationParameter = in.readDouble();
+            final boolean priorLocked = in.readBoolean();
+            final Map<Integer, AstNodeSymbol> alphabet = readAlphabet(in);
+
+            final int nPriorRules = in.readInt();
+            final PackedCFGRule[] priorRules = new PackedCFGRule[nPriorRules];
+            final int[] priorCounts = new int[nPriorRules];
+            for (int i = 0; i < nPriorRules; i++) {
+                priorRules[i] = readRule(in);
+                priorCounts[i] = in.readInt();
+            }
+
+            final int nTrees = in.readInt();
+            final List<TreeNode<TSGNode>> corpus = Lists.newArrayListWithCapacity(nTrees);
+            for (int i = 0; i < nTrees; i++) {
+                corpus.add(readTree(in));
+            }
+
+            final int nBurninTrees = in.readInt();
+            final List<TreeNode<TSGNode>> burninTrees = Lists.newArrayListWithCapacity(nBurninTrees);
+            final int[] burninCounts = new int[nBurninTrees];
+            for (int i = 0; i < nBurninTrees; i++) {
+                burninTrees.add(readTree(in));
+                burninCounts[i] = in.readInt();
+            }
+
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is truncated");
+            }
+            return new SamplerCheckpoint(iteration, avgTreeSize, concentrationParameter, priorLocked, alphabet,
+                    priorRules, priorCounts, corpus, null, burninTrees, burninCounts);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<Integer, AstNodeSymbol> readAlphabet(final DataInput in) throws IOException {
+        final byte[] serializedAlphabet = new byte[in.readInt()];
+        in.readFully(serializedAlphabet);
+        try (final ObjectInputStream alphabetIn = new ObjectInputStream(
+                new ByteArrayInputStream(serializedAlphabet))) {
+            return (Map<Integer, AstNodeSymbol>) alphabetIn.readObject();
+        } catch (final ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static PackedCFGRule readRule(final DataInput in) throws IOException {
+        final int root = in.readInt();
+        final int nProperties = in.readInt();
+        final NodeConsequent consequent = new NodeConsequent(nProperties);
+        for (int i = 0; i < nProperties; i++) {
+            final int nChildren = in.readInt();
+            final List<Integer> children = Lists.newArrayListWithCapacity(nChildren);
+            for (int j = 0; j < nChildren; j++) {
+                children.add(in.readInt());
+            }
+            consequent.nodes.add(children);
+        }
+        return PackedCFGRule.create(root, consequent);
+    }
+
+    /**
+     * Read a tree written by {@link #writeTree(DataOutput, TreeNode, BitSet, int)}.
+     * The nodes are stored in pre-order, so each node is added to the
+     * first parent (in the stack) that still expects children.
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    private static TreeNode<TSGNode> readTree(final DataInput in) throws IOException {
+        final ArrayDeque<TreeNode<TSGNode>> parents = new ArrayDeque<TreeNode<TSGNode>>();
+        final ArrayDeque<int[]> remainingChildren = new ArrayDeque<int[]>();
+
+        TreeNode<TSGNode> root = null;
+        do {
+            final TSGNode data = new TSGNode(in.readInt());
+            data.isRoot = in.readBoolean();
+            final int nProperties = in.readInt();
+            final TreeNode<TSGNode> node = TreeNode.create(data, nProperties);
+            // The property that the next child belongs to, followed by the
+            // number of children of each property.
+            final int[] childCounts = new int[nProperties + 1];
+            for (int i = 1; i <= nProperties; i++) {
+                childCounts[i] = in.readInt();
+            }
+
+            if (root == null) {
+                root = node;
+            } else {
+                final int[] parentCounts = remainingChildren.peek();
+                parents.peek().addChildNode(node, parentCounts[0]);
+                parentCounts[parentCounts[0] + 1]--;
+            }
+            parents.push(node);
+            remainingChildren.push(childCounts);
+
+            // Pop all parents that do not expect more children
+            while (!parents.isEmpty()) {
+                final int[] counts = remainingChildren.peek();
+                while (counts[0] < counts.length - 1 && counts[counts[0] + 1] == 0) {
+                    counts[0]++;
+                }
+                if (counts[0] < counts.length - 1) {
+                    break;
+                }
+                parents.pop();
+                remainingChildren.pop();
+            }
+        } while (!parents.isEmpty());
+        return root;
+    }
+
+    /**
+     * Snapshot the state of the sampler. This must be called between
+     * sampling iterations, but it only copies the root bits of the corpus
+     * and the grammar counts, so it is much faster than a full iteration.
+     *
+     * @param sampler
+     * @param iteration
+     *            the number of iterations completed so far
+     * @return
+     */
+    public static SamplerCheckpoint snapshot(final BlockCollapsedGibbsSampler sampler, final int iteration) {
+        checkNotNull(sampler);
+        final List<TreeNode<TSGNode>> corpus = ImmutableList.copyOf(sampler.getTreeCorpus());
+        final BitSet rootBits = new BitSet();
+        int nextNode = 0;
+        for (final TreeNode<TSGNode> tree : corpus) {
+            for (final TreeNode<TSGNode> node : getNodesInPreOrder(tree)) {
+                if (node.getData().isRoot) {
+                    rootBits.set(nextNode);
+                }
+                nextNode++;
+            }
+        }
+
+        final List<PackedCFGRule> priorRules = Lists.newArrayList();
+        final List<Integer> priorCounts = Lists.newArrayList();
+        sampler.getPrior().getInternalGrammar().forEachRule((rule, count) -> {
+            priorRules.add(rule);
+            priorCounts.add(count);
+        });
+
+        final List<TreeNode<TSGNode>> burninTrees = Lists.newArrayList();
+        final List<Integer> burninCounts = Lists.newArrayList();
+        final TSGrammar<TSGNode> burninGrammar = sampler.getBurnInGrammar();
+        // If the two grammars are the same, the burn-in grammar is rebuilt
+        // from the corpus.
+        if (burninGrammar != sampler.getSampleGrammar()) {
+            for (final Multiset<TreeNode<TSGNode>> rootTrees : burninGrammar.getInternalGrammar().values()) {
+                for (final Multiset.Entry<TreeNode<TSGNode>> entry : rootTrees.entrySet()) {
+                    if (entry.getElement() == burninGrammar.UNK_NODE) {
+                        continue;
+                    }
+                    burninTrees.add(entry.getElement());
+                    burninCounts.add(entry.getCount());
+                }
+            }
+        }
+
+        final Map<Integer, AstNodeSymbol> alphabet = new HashMap<Integer, AstNodeSymbol>();
+        final BiMap<Integer, AstNodeSymbol> nodeAlphabet = sampler.getSampleGrammar().getTreeExtractor()
+                .getNodeAlphabet();
+        if (nodeAlphabet != null) {
+            alphabet.putAll(nodeAlphabet);
+        }
+
+        final BlockedPosteriorComputer posteriorComputer = sampler.getPosteriorComputer();
+        return new SamplerCheckpoint(iteration, 1. / posteriorComputer.geometricProbability,
+                posteriorComputer.concentrationParameter, sampler.getPrior().isLocked(), alphabet,
+                priorRules.toArray(new PackedCFGRule[priorRules.size()]), toIntArray(priorCounts), corpus,
+                rootBits, burninTrees, toIntArray(burninCounts));
+    }
+
+    private static int[] toIntArray(final List<Integer> list) {
+        final int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    private static void writeRule(final DataOutput out, final PackedCFGRule rule) throws IOException {
+        out.writeInt(rule.getRoot());
+        final List<List<Integer>> properties = rule.getConsequent().nodes;
+        out.writeInt(properties.size());
+        for (final List<Integer> children : properties) {
+            out.writeInt(children.size());
+            for (final int child : children) {
+                out.writeInt(child);
+            }
+        }
+    }
+
+    /**
+     * Write a tree in pre-order. Each node is written as its symbol, its root
+     * bit, the number of its properties and the number of children of each
+     * property.
+     *
+     * @param out
+     * @param tree
+     * @param rootBits
+     *            the root bits of the nodes or null if the root bits of the
+     *            tree should be used
+     * @param firstNode
+     *            the index of the root of the tree in rootBits
+     * @return the number of nodes written
+     * @throws IOException
+     */
+    private static int writeTree(final DataOutput out, final TreeNode<TSGNode> tree, final BitSet rootBits,
+            final int firstNode) throws IOException {
+        final List<TreeNode<TSGNode>> nodes = getNodesInPreOrder(tree);
+        for (int i = 0; i < nodes.size(); i++) {
+            final TSGNode data = nodes.get(i).getData();
+            out.writeInt(data.nodeKey);
+            out.writeBoolean(rootBits == null ? data.isRoot : rootBits.get(firstNode + i));
+            final List<List<TreeNode<TSGNode>>> children = nodes.get(i).getChildrenByProperty();
+            out.writeInt(children.size());
+            for (final List<TreeNode<TSGNode>> childrenForProperty : children) {
+                out.writeInt(childrenForProperty.size());
+            }
+        }
+        return nodes.size();
+    }
+
+    private final int iteration;
+
+    private final double avgTreeSize;
+
+    private final double concentrationParameter;
+
+    private final boolean priorLocked;
+
+    private final Map<Integer, AstNodeSymbol> alphabet;
+
+    private final PackedCFGRule[] priorRules;
+
+    private final int[] priorCounts;
+
+    /**
+     * The corpus trees. When the checkpoint is a snapshot of a running
+     * sampler, the root bits of the trees may have changed since and the
+     * bits in rootBits should be used.
+     */
+    private final List<TreeNode<TSGNode>> corpus;
+
+    /**
+     * The root bits of the corpus nodes in pre-order, or null if the root
+     * bits of the corpus trees are up to date.
+     */
+    private final BitSet rootBits;
+
+    private final List<TreeNode<TSGNode>> burninTrees;
+
+    private final int[] burninCounts;
+
+    private SamplerCheckpoint(final int iteration, final double avgTreeSize, final double concentrationParameter,
+            final boolean priorLocked, final Map<Integer, AstNodeSymbol> alphabet, final PackedCFGRule[] priorRules,
+            final int[] priorCounts, final List<TreeNode<TSGNode>> corpus, final BitSet rootBits,
+            final List<TreeNode<TSGNode>> burninTrees, final int[] burninCounts) {
+        this.iteration = iteration;
+        this.avgTreeSize = avgTreeSize;
+        this.concentrationParameter = concentrationParameter;
+        this.priorLocked = priorLocked;
+        this.alphabet = alphabet;
+        this.priorRules = priorRules;
+        this.priorCounts = priorCounts;
+        this.corpus = corpus;
+        this.rootBits = rootBits;
+        this.burninTrees = burninTrees;
+        this.burninCounts = burninCounts;
+    }
+
+    /**
+     * Return the number of iterations that the sampler had completed when the
+     * checkpoint was taken.
+     *
+     * @return
+     */
+    public int getIteration() {
+        return iteration;
+    }
+
+    /**
+     * Restore the checkpoint into the given sampler. The sampler must be
+     * newly constructed (i.e. it must not contain any trees) and its tree
+     * extractor must be of the same type as the one used when checkpointing.
+     * The node alphabet, the prior, the corpus and the burn-in grammar are
+     * restored, while the sample grammar and the node type information are
+     * rebuilt from the corpus.
+     *
+     * @param sampler
+     */
+    public void restoreInto(final BlockCollapsedGibbsSampler sampler) {
+        checkArgument(sampler.getTreeCorpus().isEmpty(), "Checkpoints can only be restored to empty samplers");
+        checkArgument(rootBits == null, "Only checkpoints read from disk can be restored");
+        final BlockedPosteriorComputer posteriorComputer = sampler.getPosteriorComputer();
+        if (Double.compare(1. / posteriorComputer.geometricProbability, avgTreeSize) != 0
+                || Double.compare(posteriorComputer.concentrationParameter, concentrationParameter) != 0) {
+            LOGGER.warning("Restoring a checkpoint with avgTreeSize=" + avgTreeSize + ", concentration="
+                    + concentrationParameter + " to a sampler with different parameters");
+        }
+
+        restoreAlphabet(sampler.getSampleGrammar().getTreeExtractor());
+
+        for (int i = 0; i < priorRules.length; i++) {
+            sampler.getPrior().addCFGRule(priorRules[i], priorCounts[i]);
+        }
+        for (final TreeNode<TSGNode> tree : corpus) {
+            sampler.addRestoredTree(tree);
+        }
+        if (priorLocked) {
+            sampler.lockSamplerData();
+        }
+
+        final TSGrammar<TSGNode> burninGrammar = sampler.getBurnInGrammar();
+        if (burninGrammar != sampler.getSampleGrammar()) {
+            burninGrammar.clear();
+            for (int i = 0; i < burninTrees.size(); i++) {
+                burninGrammar.addTree(burninTrees.get(i), burninCounts[i]);
+            }
+        }
+    }
+
+    /**
+     * Add the symbols of the checkpoint to the alphabet of the tree
+     * extractor, checking that they do not conflict with existing symbols.
+     *
+     * @param treeExtractor
+     */
+    private void restoreAlphabet(final AbstractTreeExtractor treeExtractor) {
+        if (alphabet.isEmpty()) {
+            return;
+        }
+        final BiMap<Integer, AstNodeSymbol> nodeAlphabet = checkNotNull(treeExtractor.getNodeAlphabet());
+        for (final Map.Entry<Integer, AstNodeSymbol> entry : alphabet.entrySet()) {
+            final AstNodeSymbol existingSymbol = nodeAlphabet.get(entry.getKey());
+            if (existingSymbol == null) {
+                checkArgument(nodeAlphabet instanceof SymbolAlphabet,
+                        "Symbols can only be restored to a SymbolAlphabet");
+                nodeAlphabet.put(entry.getKey(), entry.getValue());
+            } else {
+                checkArgument(existingSymbol.equals(entry.getValue()),
+                        "Symbol %s conflicts with the existing symbol %s", entry.getValue(), existingSymbol);
+            }
+        }
+    }
+
+    /**
+     * Write the checkpoint to the given file. This can be called concurrently
+     * with the sampling.
+     *
+     * @param file
+     * @throws IOException
+     */
+    @Override
+    public void writeTo(final File file) throws IOException {
+        final long startTime = System.currentTimeMillis();
+        try (final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(iteration);
+            out.writeDouble(avgTreeSize);
+            out.writeDouble(concentrationParameter);
+            out.writeBoolean(priorLocked);
+
+            final ByteArrayOutputStream serializedAlphabet = new ByteArrayOutputStream();
+            try (final ObjectOutputStream alphabetOut = new ObjectOutputStream(serializedAlphabet)) {
+                alphabetOut.writeObject(alphabet);
+            }
+            out.writeInt(serializedAlphabet.size());
+            serializedAlphabet.writeTo(out);
+
+            out.writeInt(priorRules.length);
+            for (int i = 0; i < priorRules.length; i++) {
+                writeRule(out, priorRules[i]);
+                out.writeInt(priorCounts[i]);
+            }
+
+            out.writeInt(corpus.size());
+            int nextNode = 0;
+            for (final TreeNode<TSGNode> tree : corpus) {
+                nextNode += writeTree(out, tree, rootBits, nextNode);
+            }
+
+            out.writeInt(burninTrees.size());
+            for (int i = 0; i < burninTrees.size(); i++) {
+                writeTree(out, burninTrees.get(i), null, 0);
+                out.writeInt(burninCounts[i]);
+            }
+            out.writeInt(MAGIC);
+        }
+        LOGGER.info("Checkpoint of iteration " + iteration + " written to " + file + " in "
+                + (System.currentTimeMillis() - startTime) + "ms");
+    }
+}
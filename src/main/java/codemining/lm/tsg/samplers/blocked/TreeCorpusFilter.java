@@ -3,20 +3,21 @@
  */
 package codemining.lm.tsg.samplers.blocked;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
 import java.util.ArrayDeque;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Consumer;
 
-import com.google.common.collect.HashMultiset;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Multiset;
 import com.google.common.collect.Sets;
 
 import codemining.ast.AbstractTreeExtractor;
 import codemining.ast.AstNodeSymbol;
 import codemining.ast.TreeNode;
-import codemining.lm.cfg.AbstractContextFreeGrammar.CFGRule;
-import codemining.lm.cfg.AbstractContextFreeGrammar.NodeConsequent;
+import codemining.lm.cfg.CFGRuleCounts;
+import codemining.lm.cfg.PackedCFGRule;
 import codemining.lm.tsg.TSGNode;
 import codemining.util.SettingsLoader;
 
@@ -24,6 +25,14 @@ import codemining.util.SettingsLoader;
  * A tree corpus filter, that filters rare nodes given a corpus of trees. This
  * class modifies the original trees
  *
+ * The corpus can either be added with {@link #addTree(TreeNode)} and split
+ * with {@link #getFilteredTrees()}, which keeps all the trees in memory, or
+ * be streamed in two passes. In the first pass the rule counts of the trees
+ * are computed with {@link #countRules(Iterable)} (possibly in parallel) and
+ * added with {@link #addRuleCounts(CFGRuleCounts)}. In the second pass the
+ * trees are extracted again and split with
+ * {@link #filterTree(TreeNode, Consumer)}.
+ *
  * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
  *
  */
@@ -31,20 +40,7 @@ public final class TreeCorpusFilter {
 
     public static final boolean REMOVE_VARIABLE_NAMES = SettingsLoader.getBooleanSetting("removeVariableNames", false);
 
-    private final Multiset<CFGRule> cfgCount = HashMultiset.create();
-
-    private final List<TreeNode<TSGNode>> trees = Lists.newArrayList();
-
-    private final int countLimit;
-
-    private final AbstractTreeExtractor treeExtractor;
-
-    public TreeCorpusFilter(final AbstractTreeExtractor treeExtractor, final int countLimit) {
-        this.countLimit = countLimit;
-        this.treeExtractor = treeExtractor;
-    }
-
-    private void addAllNodes(final TreeNode<TSGNode> tree) {
+    private static void addAllNodes(final TreeNode<TSGNode> tree, final CFGRuleCounts counts) {
         final ArrayDeque<TreeNode<TSGNode>> nodes = new ArrayDeque<TreeNode<TSGNode>>();
         nodes.push(tree);
 
@@ -54,8 +50,7 @@ public final class TreeCorpusFilter {
                 continue;
             }
 
-            final CFGRule rule = createRuleForNode(currentNode);
-            cfgCount.add(rule);
+            counts.add(createRuleForNode(currentNode));
 
             for (final List<TreeNode<TSGNode>> childProperty : currentNode.getChildrenByProperty()) {
                 for (final TreeNode<TSGNode> child : childProperty) {
@@ -66,46 +61,77 @@ public final class TreeCorpusFilter {
         }
     }
 
+    private static PackedCFGRule createRuleForNode(final TreeNode<TSGNode> node) {
+        return PackedCFGRule.create(node, data -> data.nodeKey);
+    }
+
+    private final CFGRuleCounts cfgCount = new CFGRuleCounts();
+
+    private final List<TreeNode<TSGNode>> trees = Lists.newArrayList();
+
+    private final int countLimit;
+
+    private final AbstractTreeExtractor treeExtractor;
+
+    public TreeCorpusFilter(final AbstractTreeExtractor treeExtractor, final int countLimit) {
+        this.countLimit = countLimit;
+        this.treeExtractor = treeExtractor;
+    }
+
+    /**
+     * Add the rule counts of trees that are not kept by this filter, e.g.
+     * as returned by {@link #countRules(Iterable)}.
+     *
+     * @param counts
+     */
+    public void addRuleCounts(final CFGRuleCounts counts) {
+        cfgCount.addAll(counts);
+    }
+
     public void addTree(final TreeNode<TSGNode> tree) {
-        final TreeNode<TSGNode> currentTree;
-        boolean isCompilationUnitNode = false;
-        try {
-            isCompilationUnitNode = treeExtractor.getSymbol(tree.getData().nodeKey).nodeType == treeExtractor
-                    .getKeyForCompilationUnit().getData();
-        } catch (final Throwable t) {
-            // ignore
-        }
-        if (isCompilationUnitNode) {
-            // Ignore imports and package declaration
-            if (tree.getChildrenByProperty().get(2).isEmpty()) {
-                return;
-            }
-            currentTree = tree.getChild(0, 2);
-            currentTree.getData().isRoot = true;
-        } else {
-            currentTree = tree;
+        final TreeNode<TSGNode> currentTree = getCorpusTree(tree);
+        if (currentTree == null) {
+            return;
         }
 
         trees.add(currentTree);
-        addAllNodes(currentTree);
+        addAllNodes(currentTree, cfgCount);
     }
 
-    private CFGRule createRuleForNode(final TreeNode<TSGNode> node) {
-        final int rootId = node.getData().nodeKey;
-
-        final int nProperties = node.nProperties();
-        final NodeConsequent ruleConsequent = new NodeConsequent(nProperties);
-        for (int i = 0; i < nProperties; i++) {
-            final List<TreeNode<TSGNode>> children = node.getChildrenByProperty().get(i);
-            final int nChildren = children.size();
-            ruleConsequent.nodes.add(Lists.<Integer> newArrayListWithCapacity(nChildren));
-            for (int j = 0; j < nChildren; j++) {
-                final int childNode = node.getChild(j, i).getData().nodeKey;
-                ruleConsequent.nodes.get(i).add(childNode);
+    /**
+     * Return the rule counts of the given trees, without adding them to this
+     * filter. This does not use the state of the filter, so it can be called
+     * concurrently and the results merged with
+     * {@link #addRuleCounts(CFGRuleCounts)}.
+     *
+     * @param trees
+     * @return
+     */
+    public CFGRuleCounts countRules(final Iterable<TreeNode<TSGNode>> trees) {
+        final CFGRuleCounts counts = new CFGRuleCounts();
+        for (final TreeNode<TSGNode> tree : trees) {
+            final TreeNode<TSGNode> currentTree = getCorpusTree(tree);
+            if (currentTree != null) {
+                addAllNodes(currentTree, counts);
             }
         }
+        return counts;
+    }
 
-        return new CFGRule(rootId, ruleConsequent);
+    /**
+     * Split the given tree using the rule counts added so far and pass the
+     * resulting trees to the consumer. The tree is not kept by this filter.
+     * This can be called concurrently, as long as no counts are added.
+     *
+     * @param tree
+     * @param filteredTreeConsumer
+     */
+    public void filterTree(final TreeNode<TSGNode> tree, final Consumer<? super TreeNode<TSGNode>> filteredTreeConsumer) {
+        checkNotNull(filteredTreeConsumer);
+        final TreeNode<TSGNode> currentTree = getCorpusTree(tree);
+        if (currentTree != null) {
+            filterTree(currentTree).forEach(filteredTreeConsumer);
+        }
     }
 
     private Set<TreeNode<TSGNode>> filterTree(final TreeNode<TSGNode> tree) {
@@ -130,8 +156,7 @@ public final class TreeCorpusFilter {
                 }
             }
 
-            final CFGRule rule = createRuleForNode(currentNode);
-            if (cfgCount.count(rule) < countLimit) {
+            if (cfgCount.count(createRuleForNode(currentNode)) < countLimit) {
                 // Remove relationship to children and add children as root
                 for (final List<TreeNode<TSGNode>> childProperty : currentNode.getChildrenByProperty()) {
                     filteredRoots.addAll(childProperty);
@@ -147,6 +172,35 @@ public final class TreeCorpusFilter {
         return Sets.filter(filteredRoots, input -> !input.isLeaf());
     }
 
+    /**
+     * Return the part of the tree that is used in the corpus or null if the
+     * tree should be ignored.
+     *
+     * @param tree
+     * @return
+     */
+    private TreeNode<TSGNode> getCorpusTree(final TreeNode<TSGNode> tree) {
+        final TreeNode<TSGNode> currentTree;
+        boolean isCompilationUnitNode = false;
+        try {
+            isCompilationUnitNode = treeExtractor.getSymbol(tree.getData().nodeKey).nodeType == treeExtractor
+                    .getKeyForCompilationUnit().getData();
+        } catch (final Throwable t) {
+            // ignore
+        }
+        if (isCompilationUnitNode) {
+            // Ignore imports and package declaration
+            if (tree.getChildrenByProperty().get(2).isEmpty()) {
+                return null;
+            }
+            currentTree = tree.getChild(0, 2);
+            currentTree.getData().isRoot = true;
+        } else {
+            currentTree = tree;
+        }
+        return currentTree;
+    }
+
     public List<TreeNode<TSGNode>> getFilteredTrees() {
         final List<TreeNode<TSGNode>> filteredTrees = Lists.newArrayList();
         for (final TreeNode<TSGNode> tree : trees) {
@@ -0,0 +1,52 @@
+/**
+ *
+ */
+package codemining.lm.tsg.samplers.metrics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+
+import com.google.common.base.Joiner;
+
+/**
+ * Writes the metrics of each iteration as a CSV row. A header is written
+ * before the first row.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class CsvMetricsSink implements ISamplerMetricsSink {
+
+	private static final Joiner COMMA_JOINER = Joiner.on(',');
+
+	private final Writer writer;
+
+	private boolean headerWritten = false;
+
+	public CsvMetricsSink(final Writer writer) {
+		this.writer = checkNotNull(writer);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		writer.close();
+	}
+
+	@Override
+	public synchronized void iterationCompleted(final IterationMetrics metrics)
+			throws IOException {
+		final Map<String, Number> values = metrics.toMap();
+		if (!headerWritten) {
+			writer.write(COMMA_JOINER.join(values.keySet()));
+			writer.write('\n');
+			headerWritten = true;
+		}
+		writer.write(COMMA_JOINER.join(values.values()));
+		writer.write('\n');
+		writer.flush();
+	}
+
+}
@@ -0,0 +1,25 @@
+/**
+ *
+ */
+package codemining.lm.tsg.samplers.metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A sink that receives the metrics of every sampling iteration.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public interface ISamplerMetricsSink extends Closeable {
+
+	/**
+	 * Receive the metrics of an iteration that has just completed.
+	 *
+	 * @param metrics
+	 * @throws IOException
+	 */
+	void iterationCompleted(final IterationMetrics metrics) throws IOException;
+
+}
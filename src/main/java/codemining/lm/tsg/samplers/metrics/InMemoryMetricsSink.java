@@ -0,0 +1,42 @@
+/**
+ *
+ */
+package codemining.lm.tsg.samplers.metrics;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Keeps the metrics of all iterations in memory.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class InMemoryMetricsSink implements ISamplerMetricsSink {
+
+	private final List<IterationMetrics> metrics = Collections
+			.synchronizedList(Lists.<IterationMetrics> newArrayList());
+
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * Return the metrics of the completed iterations in order.
+	 *
+	 * @return
+	 */
+	public List<IterationMetrics> getMetrics() {
+		synchronized (metrics) {
+			return Lists.newArrayList(metrics);
+		}
+	}
+
+	@Override
+	public void iterationCompleted(final IterationMetrics iterationMetrics) {
+		metrics.add(iterationMetrics);
+	}
+
+}
@@ -0,0 +1,157 @@
+/**
+ *
+ */
+package codemining.lm.tsg.samplers.metrics;
+
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+/**
+ * The metrics of a single sampling iteration.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public final class IterationMetrics {
+
+	/**
+	 * The (zero-based) iteration.
+	 */
+	public final int iteration;
+
+	/**
+	 * The wall-clock duration of the iteration in seconds, excluding the
+	 * computation of the corpus log-probability and statistics.
+	 */
+	public final double seconds;
+
+	/**
+	 * The number of sampling sites (nodes) whose root flag was sampled.
+	 */
+	public final long nodesSampled;
+
+	/**
+	 * The number of sampled nodes whose root flag changed.
+	 */
+	public final long rootFlips;
+
+	/**
+	 * The time spent computing the posterior of the candidate trees, summed
+	 * across threads, in seconds.
+	 */
+	public final double posteriorSeconds;
+
+	/**
+	 * The time spent copying candidate trees, summed across threads, in
+	 * seconds.
+	 */
+	public final double treeCopySeconds;
+
+	/**
+	 * The time spent updating the grammar, summed across threads, in seconds.
+	 */
+	public final double grammarUpdateSeconds;
+
+	/**
+	 * The number of distinct rules in the sample grammar.
+	 */
+	public final int distinctRules;
+
+	/**
+	 * The total count of the rules in the sample grammar.
+	 */
+	public final long totalRuleCount;
+
+	/**
+	 * The used heap at the end of the iteration in bytes.
+	 */
+	public final long heapUsedBytes;
+
+	/**
+	 * The log2-probability of the corpus or NaN if it was not computed at
+	 * this iteration.
+	 */
+	public final double corpusLog2Prob;
+
+	/**
+	 * The number of sampling sites that were skipped because their same-type
+	 * block had already been sampled in this iteration. Only the type block
+	 * sweep skips sites.
+	 */
+	public final long skippedBlockSamples;
+
+	public IterationMetrics(final int iteration, final double seconds,
+			final long nodesSampled, final long rootFlips,
+			final double posteriorSeconds, final double treeCopySeconds,
+			final double grammarUpdateSeconds, final int distinctRules,
+			final long totalRuleCount, final long heapUsedBytes,
+			final double corpusLog2Prob, final long skippedBlockSamples) {
+		this.iteration = iteration;
+		this.seconds = seconds;
+		this.nodesSampled = nodesSampled;
+		this.rootFlips = rootFlips;
+		this.posteriorSeconds = posteriorSeconds;
+		this.treeCopySeconds = treeCopySeconds;
+		this.grammarUpdateSeconds = grammarUpdateSeconds;
+		this.distinctRules = distinctRules;
+		this.totalRuleCount = totalRuleCount;
+		this.heapUsedBytes = heapUsedBytes;
+		this.corpusLog2Prob = corpusLog2Prob;
+		this.skippedBlockSamples = skippedBlockSamples;
+	}
+
+	/**
+	 * Return the fraction of the sampled nodes whose root flag changed.
+	 *
+	 * @return
+	 */
+	public double getAcceptanceRate() {
+		if (nodesSampled == 0) {
+			return 0;
+		}
+		return ((double) rootFlips) / nodesSampled;
+	}
+
+	/**
+	 * Return the number of nodes sampled per second.
+	 *
+	 * @return
+	 */
+	public double getNodesPerSecond() {
+		if (seconds == 0) {
+			return 0;
+		}
+		return nodesSampled / seconds;
+	}
+
+	/**
+	 * Return the named values of the metrics, in a fixed order.
+	 *
+	 * @return
+	 */
+	public Map<String, Number> toMap() {
+		final Map<String, Number> values = Maps.newLinkedHashMap();
+		values.put("iteration", iteration);
+		values.put("seconds", seconds);
+		values.put("nodesSampled", nodesSampled);
+		values.put("nodesPerSecond", getNodesPerSecond());
+		values.put("rootFlips", rootFlips);
+		values.put("acceptanceRate", getAcceptanceRate());
+		values.put("posteriorSeconds", posteriorSeconds);
+		values.put("treeCopySeconds", treeCopySeconds);
+		values.put("grammarUpdateSeconds", grammarUpdateSeconds);
+		values.put("distinctRules", distinctRules);
+		values.put("totalRuleCount", totalRuleCount);
+		values.put("heapUsedBytes", heapUsedBytes);
+		values.put("corpusLog2Prob", corpusLog2Prob);
+		values.put("skippedBlockSamples", skippedBlockSamples);
+		return values;
+	}
+
+	@Override
+	public String toString() {
+		return toMap().toString();
+	}
+
+}
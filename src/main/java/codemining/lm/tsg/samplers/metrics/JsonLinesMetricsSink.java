@@ -0,0 +1,56 @@
+/**
+ *
+ */
+package codemining.lm.tsg.samplers.metrics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Writes the metrics of each iteration as a JSON object in a single line.
+ * Non-finite values are written as null.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class JsonLinesMetricsSink implements ISamplerMetricsSink {
+
+	private final Writer writer;
+
+	public JsonLinesMetricsSink(final Writer writer) {
+		this.writer = checkNotNull(writer);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		writer.close();
+	}
+
+	@Override
+	public synchronized void iterationCompleted(final IterationMetrics metrics)
+			throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		sb.append('{');
+		for (final Map.Entry<String, Number> value : metrics.toMap().entrySet()) {
+			if (sb.length() > 1) {
+				sb.append(',');
+			}
+			sb.append('"').append(value.getKey()).append("\":");
+			final Number number = value.getValue();
+			if ((number instanceof Double)
+					&& (((Double) number).isNaN() || ((Double) number)
+							.isInfinite())) {
+				sb.append("null");
+			} else {
+				sb.append(number);
+			}
+		}
+		sb.append("}\n");
+		writer.write(sb.toString());
+		writer.flush();
+	}
+
+}
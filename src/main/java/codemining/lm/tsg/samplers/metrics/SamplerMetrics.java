@@ -0,0 +1,121 @@
+/**
+ *
+ */
+package codemining.lm.tsg.samplers.metrics;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.LongAdder;
+
+import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.TSGrammar;
+
+/**
+ * Collects the metrics of the current sampling iteration. The counters can
+ * be updated concurrently by many sampling threads.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class SamplerMetrics implements Serializable {
+
+	private static final long serialVersionUID = 3126338440196542587L;
+
+	private static final double NANOS_PER_SECOND = 1E9;
+
+	private final LongAdder nodesSampled = new LongAdder();
+
+	private final LongAdder rootFlips = new LongAdder();
+
+	private final LongAdder skippedBlockSamples = new LongAdder();
+
+	private final LongAdder posteriorNanos = new LongAdder();
+
+	private final LongAdder treeCopyNanos = new LongAdder();
+
+	private final LongAdder grammarUpdateNanos = new LongAdder();
+
+	private volatile long iterationStartNanos = System.nanoTime();
+
+	private volatile long iterationEndNanos = 0;
+
+	/**
+	 * Create the metrics of the iteration and reset the counters.
+	 *
+	 * @param iteration
+	 * @param sampleGrammar
+	 * @param corpusLog2Prob
+	 *            the log-probability of the corpus or NaN if it was not
+	 *            computed
+	 * @return
+	 */
+	public IterationMetrics completeIteration(final int iteration,
+			final TSGrammar<TSGNode> sampleGrammar, final double corpusLog2Prob) {
+		final long endNanos = iterationEndNanos == 0 ? System.nanoTime()
+				: iterationEndNanos;
+		final Runtime runtime = Runtime.getRuntime();
+		final IterationMetrics metrics = new IterationMetrics(iteration,
+				(endNanos - iterationStartNanos) / NANOS_PER_SECOND,
+				nodesSampled.sumThenReset(), rootFlips.sumThenReset(),
+				posteriorNanos.sumThenReset() / NANOS_PER_SECOND,
+				treeCopyNanos.sumThenReset() / NANOS_PER_SECOND,
+				grammarUpdateNanos.sumThenReset() / NANOS_PER_SECOND,
+				sampleGrammar.countDistinctTrees(),
+				sampleGrammar.countAllTrees(), runtime.totalMemory()
+						- runtime.freeMemory(), corpusLog2Prob,
+				skippedBlockSamples.sumThenReset());
+		iterationEndNanos = 0;
+		return metrics;
+	}
+
+	/**
+	 * Mark the end of the sampling in the current iteration. Any time spent
+	 * after this (e.g. computing statistics) is not counted in the duration
+	 * of the iteration.
+	 */
+	public void endSampling() {
+		iterationEndNanos = System.nanoTime();
+	}
+
+	public void recordGrammarUpdateTime(final long nanos) {
+		grammarUpdateNanos.add(nanos);
+	}
+
+	public void recordPosteriorTime(final long nanos) {
+		posteriorNanos.add(nanos);
+	}
+
+	/**
+	 * Record that the root flags of the given number of nodes were sampled,
+	 * of which nFlipped changed.
+	 *
+	 * @param nSampled
+	 * @param nFlipped
+	 */
+	public void recordSampledNodes(final int nSampled, final int nFlipped) {
+		nodesSampled.add(nSampled);
+		rootFlips.add(nFlipped);
+	}
+
+	/**
+	 * Record the number of sampling sites that were skipped, since their
+	 * same-type block had already been sampled.
+	 *
+	 * @param nSkipped
+	 */
+	public void recordSkippedBlockSamples(final int nSkipped) {
+		skippedBlockSamples.add(nSkipped);
+	}
+
+	public void recordTreeCopyTime(final long nanos) {
+		treeCopyNanos.add(nanos);
+	}
+
+	/**
+	 * Mark the start of an iteration.
+	 */
+	public void startIteration() {
+		iterationStartNanos = System.nanoTime();
+		iterationEndNanos = 0;
+	}
+
+}
@@ -0,0 +1,203 @@
+/**
+ *
+ */
+package codemining.lm.tsg.tui;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import codemining.util.SettingsLoader;
+import codemining.util.parallel.ParallelThreadPool;
+
+/**
+ * Load trees from files in parallel. The files are parsed by a pool of
+ * workers and the resulting trees are passed through a bounded queue to a
+ * single consumer that runs on the calling thread, so that the consumer does
+ * not need to be thread-safe and the parsed trees waiting to be consumed do
+ * not fill the memory.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class ParallelTreeLoader<T> {
+
+	/**
+	 * Extract the trees of a single file. Implementations must be
+	 * thread-safe.
+	 *
+	 */
+	public static interface IFileProcessor<T> {
+		List<T> getTreesFrom(final File file) throws Exception;
+	}
+
+	/**
+	 * The statistics of a single load.
+	 *
+	 */
+	public static final class LoadStats {
+		public int nFiles = 0;
+
+		public int nFailedFiles = 0;
+
+		public long nTrees = 0;
+
+		public long elapsedMillis = 0;
+
+		public double getFilesPerSecond() {
+			return 1000. * (nFiles + nFailedFiles) / Math.max(elapsedMillis, 1);
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"%d files (%d failed) containing %d trees in %.1fs (%.1f files/s)",
+					nFiles, nFailedFiles, nTrees, elapsedMillis / 1000.,
+					getFilesPerSecond());
+		}
+	}
+
+	/**
+	 * The result of processing a single file.
+	 *
+	 */
+	private static final class FileResult<T> {
+		final File file;
+
+		final List<T> trees;
+
+		final Throwable failure;
+
+		FileResult(final File file, final List<T> trees,
+				final Throwable failure) {
+			this.file = file;
+			this.trees = trees;
+			this.failure = failure;
+		}
+	}
+
+	private static final Logger LOGGER = Logger
+			.getLogger(ParallelTreeLoader.class.getName());
+
+	/**
+	 * The number of threads used for parsing.
+	 */
+	public static final int N_THREADS = (int) SettingsLoader
+			.getNumericSetting("treeLoaderThreads",
+					ParallelThreadPool.NUM_THREADS);
+
+	/**
+	 * The maximum number of parsed files waiting to be consumed.
+	 */
+	public static final int QUEUE_SIZE = (int) SettingsLoader
+			.getNumericSetting("treeLoaderQueueSize", 1000);
+
+	/**
+	 * Log the progress every that many files.
+	 */
+	public static final int PROGRESS_INTERVAL = (int) SettingsLoader
+			.getNumericSetting("treeLoaderProgressInterval", 1000);
+
+	private final String name;
+
+	private final IFileProcessor<T> processor;
+
+	private final int nThreads;
+
+	private final int queueSize;
+
+	public ParallelTreeLoader(final String name,
+			final IFileProcessor<T> processor) {
+		this(name, processor, N_THREADS, QUEUE_SIZE);
+	}
+
+	public ParallelTreeLoader(final String name,
+			final IFileProcessor<T> processor, final int nThreads,
+			final int queueSize) {
+		checkArgument(nThreads > 0);
+		checkArgument(queueSize > 0);
+		this.name = name;
+		this.processor = checkNotNull(processor);
+		this.nThreads = nThreads;
+		this.queueSize = queueSize;
+	}
+
+	/**
+	 * Parse all the files and pass their trees to the consumer. The consumer
+	 * is called only from the calling thread. Files that fail to parse are
+	 * logged and skipped.
+	 *
+	 * @param files
+	 * @param consumer
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public LoadStats load(final Collection<File> files,
+			final Consumer<? super T> consumer) throws InterruptedException {
+		final BlockingQueue<FileResult<T>> results = new ArrayBlockingQueue<FileResult<T>>(
+				queueSize);
+		final ExecutorService workers = Executors.newFixedThreadPool(nThreads);
+		final LoadStats stats = new LoadStats();
+		final long startTime = System.currentTimeMillis();
+		try {
+			for (final File file : files) {
+				workers.execute(() -> {
+					FileResult<T> result;
+					try {
+						result = new FileResult<T>(file,
+								processor.getTreesFrom(file), null);
+					} catch (final Throwable e) {
+						result = new FileResult<T>(file,
+								Collections.<T> emptyList(), e);
+					}
+					try {
+						results.put(result);
+					} catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				});
+			}
+
+			for (int i = 0; i < files.size(); i++) {
+				final FileResult<T> result = results.take();
+				if (result.failure != null) {
+					stats.nFailedFiles++;
+					LOGGER.warning("Failed to get AST for "
+							+ result.file.getAbsolutePath() + " "
+							+ ExceptionUtils.getFullStackTrace(result.failure));
+				} else {
+					stats.nFiles++;
+					for (final T tree : result.trees) {
+						consumer.accept(tree);
+					}
+					stats.nTrees += result.trees.size();
+				}
+
+				if ((i + 1) % PROGRESS_INTERVAL == 0) {
+					stats.elapsedMillis = System.currentTimeMillis()
+							- startTime;
+					LOGGER.info(name + ": processed " + (i + 1) + "/"
+							+ files.size() + " files. " + stats);
+				}
+			}
+		} finally {
+			workers.shutdownNow();
+		}
+
+		stats.elapsedMillis = System.currentTimeMillis() - startTime;
+		LOGGER.info(name + ": loaded " + stats);
+		return stats;
+	}
+}
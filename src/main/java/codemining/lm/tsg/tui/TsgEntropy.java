@@ -1,22 +1,15 @@
 package codemining.lm.tsg.tui;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.Collection;
-import java.util.List;
-import java.util.logging.Logger;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.DirectoryFileFilter;
 import org.apache.commons.io.filefilter.RegexFileFilter;
-import org.apache.commons.lang.exception.ExceptionUtils;
 
-import codemining.ast.AbstractTreeExtractor;
-import codemining.ast.TreeNode;
-import codemining.languagetools.ITokenizer;
 import codemining.lm.tsg.TSGNode;
 import codemining.lm.tsg.TSGrammar;
-import codemining.lm.tsg.TreeProbabilityComputer;
+import codemining.lm.tsg.TsgLM;
 import codemining.util.serialization.ISerializationStrategy.SerializationException;
 import codemining.util.serialization.Serializer;
 
@@ -47,38 +40,15 @@ public class TsgEntropy {
 		final TSGrammar<TSGNode> grammar = (TSGrammar<TSGNode>) Serializer
 				.getSerializer().deserializeFrom(args[0]);
 
-		final AbstractTreeExtractor treeFormat = grammar.getTreeExtractor();
+		final TsgLM lm = new TsgLM(grammar.freeze(), false);
 
+		// Files are scored in parallel and printed as soon as they are scored
 		System.out.println("filename,entropy,cross-entropy");
-		for (final File f : allFiles) {
-			try {
-				final TreeNode<Integer> intTree = treeFormat.getTree(f);
-				final TreeNode<TSGNode> tsgTree = TSGNode.convertTree(intTree,
-						0);
-
-				final ITokenizer tokenizer = treeFormat.getTokenizer();
-				final List<String> fileTokens = tokenizer
-						.tokenListFromCode(FileUtils.readFileToString(f)
-								.toCharArray());
-
-				final TreeProbabilityComputer<TSGNode> probabilityComputer = new TreeProbabilityComputer<TSGNode>(
-						grammar, false, TreeProbabilityComputer.TSGNODE_MATCHER);
-				final double probability = probabilityComputer
-						.getLog2ProbabilityOf(tsgTree);
-
-				final double crossEntropy = probability / fileTokens.size();
-				System.out.println(f.toString() + "," + probability + ","
-						+ crossEntropy);
-			} catch (final IOException e) {
-				LOGGER.warning(ExceptionUtils.getFullStackTrace(e));
-			}
-		}
-
+		lm.scoreFiles(allFiles).forEach(
+				score -> System.out.println(score.source + ","
+						+ score.log2Prob + "," + score.crossEntropy));
 	}
 
-	private static final Logger LOGGER = Logger.getLogger(TsgEntropy.class
-			.getName());
-
 	private TsgEntropy() {
 	}
 
@@ -0,0 +1,41 @@
+/**
+ *
+ */
+package codemining.lm.tsg.tui;
+
+import java.io.File;
+import java.io.IOException;
+
+import codemining.lm.tsg.MappedTSGrammar;
+import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.TSGrammar;
+import codemining.util.serialization.ISerializationStrategy.SerializationException;
+import codemining.util.serialization.Serializer;
+
+/**
+ * Convert a serialized TSG to the memory mapped grammar format.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class TsgMapper {
+	/**
+	 * @param args
+	 * @throws SerializationException
+	 * @throws IOException
+	 */
+	public static void main(final String[] args) throws SerializationException,
+			IOException {
+		if (args.length != 2) {
+			System.err.println("Usage <tsg.ser> <outputGrammarFile>");
+			System.exit(-1);
+		}
+		final TSGrammar<TSGNode> grammar = (TSGrammar<TSGNode>) Serializer
+				.getSerializer().deserializeFrom(args[0]);
+		MappedTSGrammar.write(grammar, new File(args[1]));
+	}
+
+	private TsgMapper() {
+	}
+
+}
@@ -3,10 +3,14 @@
  */
 package codemining.lm.tsg.tui;
 
-import codemining.util.serialization.ISerializationStrategy.SerializationException;
+import java.io.IOException;
+
+import codemining.lm.tsg.FormattedTSGrammar;
+import codemining.lm.tsg.FrozenTSGrammar;
+import codemining.lm.tsg.MappedTSGrammar;
 import codemining.lm.tsg.TSGNode;
 import codemining.lm.tsg.TSGrammar;
-import codemining.util.serialization.Serializer;
+import codemining.util.serialization.ISerializationStrategy.SerializationException;
 
 /**
  * Output a full TSG to stdout
@@ -18,14 +22,23 @@ public class TsgPrinter {
 	/**
 	 * @param args
 	 * @throws SerializationException
+	 * @throws IOException
 	 */
-	public static void main(final String[] args) throws SerializationException {
+	public static void main(final String[] args)
+			throws SerializationException, IOException {
 		if (args.length < 1) {
 			System.err.println("Usage <tsg>");
 			System.exit(-1);
 		}
-		final TSGrammar<TSGNode> grammar = (TSGrammar<TSGNode>) Serializer
-				.getSerializer().deserializeFrom(args[0]);
+		TSGrammar<TSGNode> grammar = MappedTSGrammar.readGrammar(args[0]);
+		if (grammar instanceof MappedTSGrammar
+				|| grammar instanceof FrozenTSGrammar) {
+			// Read-only grammars cannot be pruned, so prune a copy
+			final FormattedTSGrammar copy = new FormattedTSGrammar(
+					grammar.getTreeExtractor());
+			copy.addAll(grammar);
+			grammar = copy;
+		}
 		grammar.prune(2);
 		System.out.println(grammar.toString());
 
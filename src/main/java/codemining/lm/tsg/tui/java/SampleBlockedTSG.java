@@ -4,6 +4,11 @@
 package codemining.lm.tsg.tui.java;
 
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
@@ -21,16 +26,27 @@ import codemining.ast.java.JavaAstTreeExtractor;
 import codemining.ast.java.VariableTypeJavaTreeExtractor;
 import codemining.java.codeutils.MethodExtractor;
 import codemining.java.tokenizers.JavaTokenizer;
+import codemining.lm.cfg.CFGRuleCounts;
 import codemining.lm.tsg.FormattedTSGrammar;
 import codemining.lm.tsg.TSGNode;
 import codemining.lm.tsg.samplers.AbstractTSGSampler;
+import codemining.lm.tsg.samplers.PeriodicCheckpointer;
 import codemining.lm.tsg.samplers.blocked.BlockCollapsedGibbsSampler;
 import codemining.lm.tsg.samplers.blocked.JavaFilteredBlockCollapsedGibbsSampler;
+import codemining.lm.tsg.samplers.blocked.ParallelBlockCollapsedGibbsSampler;
+import codemining.lm.tsg.samplers.blocked.SamplerCheckpoint;
 import codemining.lm.tsg.samplers.blocked.TreeCorpusFilter;
+import codemining.lm.tsg.samplers.metrics.CsvMetricsSink;
+import codemining.lm.tsg.samplers.metrics.ISamplerMetricsSink;
+import codemining.lm.tsg.samplers.metrics.JsonLinesMetricsSink;
+import codemining.lm.tsg.tui.ParallelTreeLoader;
+import codemining.lm.tsg.tui.ParallelTreeLoader.LoadStats;
 import codemining.util.SettingsLoader;
 import codemining.util.serialization.ISerializationStrategy.SerializationException;
 import codemining.util.serialization.Serializer;
 
+import com.google.common.collect.Lists;
+
 /**
  * Sample a TSG using a blocked sampler.
  *
@@ -47,102 +63,186 @@ public class SampleBlockedTSG {
     private static final boolean USE_METHOD_BODY_ONLY = SettingsLoader.getBooleanSetting("useMethodBodyOnly", true);
     private static final Logger LOGGER = Logger.getLogger(SampleBlockedTSG.class.getName());
 
+    /**
+     * If true, the sample trees are filtered in two passes over the files,
+     * so that the unfiltered corpus is never held in memory.
+     */
+    private static final boolean STREAM_TREE_FILTER = SettingsLoader.getBooleanSetting("streamTreeFilter", false);
+
+    /**
+     * The prefix of the sampler checkpoints. If a checkpoint exists, sampling
+     * is resumed from the latest one.
+     */
+    private static final String CHECKPOINT_PREFIX = "tsgSampler";
+
+    /**
+     * The file where the per-iteration sampler metrics are written as CSV,
+     * if not empty.
+     */
+    private static final String METRICS_CSV_FILE = SettingsLoader.getStringSetting("samplerMetricsCsv", "");
+
+    /**
+     * The file where the per-iteration sampler metrics are written as JSON
+     * lines, if not empty.
+     */
+    private static final String METRICS_JSON_FILE = SettingsLoader.getStringSetting("samplerMetricsJson", "");
+
+    /**
+     * Return the tree extractor of the given training type.
+     *
+     * @param formatName
+     * @return
+     */
+    static AbstractJavaTreeExtractor getFormat(final String formatName) {
+        if (formatName.equals("normal")) {
+            return new JavaAstTreeExtractor();
+        } else if (formatName.equals("binary")) {
+            return new BinaryJavaAstTreeExtractor(new JavaAstTreeExtractor());
+        } else if (formatName.equals("variables")) {
+            return new VariableTypeJavaTreeExtractor();
+        } else if (formatName.equals("binaryVariables")) {
+            return new BinaryJavaAstTreeExtractor(new VariableTypeJavaTreeExtractor());
+        } else if (formatName.equals("binaryVariablesNoAnnotate")) {
+            return new BinaryJavaAstTreeExtractor(new VariableTypeJavaTreeExtractor(), false);
+        } else if (formatName.equals("delegatedVariableNoAnnotate")) {
+            return new BinaryJavaAstTreeExtractor(new DelegatedVariableTypeJavaTreeExtractor(), false);
+        } else {
+            throw new IllegalArgumentException("Unrecognizable training type parameter " + formatName);
+        }
+    }
+
+    /**
+     * Return the trees of the given file that will be used for sampling.
+     *
+     * @param format
+     * @param file
+     * @param percentRootsInit
+     * @return
+     * @throws IOException
+     */
+    static List<TreeNode<TSGNode>> getTrees(final AbstractJavaTreeExtractor format, final File file,
+            final double percentRootsInit) throws IOException {
+        if (!USE_METHOD_BODY_ONLY) {
+            return Collections.singletonList(TSGNode.convertTree(format.getTree(file), percentRootsInit));
+        }
+        final List<TreeNode<TSGNode>> trees = Lists.newArrayList();
+        for (final MethodDeclaration method : MethodExtractor.getMethods(file)) {
+            if (method.getBody() == null) {
+                continue;
+            }
+            trees.add(TSGNode.convertTree(format.getTree(method.getBody()), percentRootsInit));
+        }
+        return trees;
+    }
+
+    /**
+     * Load the sample trees in two passes over the files. The first pass
+     * counts the CFG rules of each file in parallel and merges the counts
+     * into the filter. The second pass extracts the trees again, filters them
+     * in parallel and adds the filtered trees to the sampler.
+     *
+     * @param format
+     * @param files
+     * @param filter
+     * @param percentRootsInit
+     * @param sampler
+     * @throws InterruptedException
+     */
+    static void loadFilteredTrees(final AbstractJavaTreeExtractor format, final Collection<File> files,
+            final TreeCorpusFilter filter, final double percentRootsInit, final BlockCollapsedGibbsSampler sampler)
+            throws InterruptedException {
+        final ParallelTreeLoader<CFGRuleCounts> ruleCounter = new ParallelTreeLoader<CFGRuleCounts>(
+                "CFG rule counts", fi -> Collections.singletonList(filter.countRules(getTrees(format, fi, 0))));
+        ruleCounter.load(files, filter::addRuleCounts);
+
+        final long[] nNodes = new long[1];
+        final ParallelTreeLoader<TreeNode<TSGNode>> loader = new ParallelTreeLoader<TreeNode<TSGNode>>(
+                "Filtered sample trees", fi -> {
+                    final List<TreeNode<TSGNode>> filteredTrees = Lists.newArrayList();
+                    for (final TreeNode<TSGNode> tree : getTrees(format, fi, percentRootsInit)) {
+                        filter.filterTree(tree, filteredTrees::add);
+                    }
+                    return filteredTrees;
+                });
+        final LoadStats stats = loader.load(files, filteredTree -> {
+            nNodes[0] += filteredTree.getTreeSize();
+            sampler.addTree(filteredTree);
+        });
+        LOGGER.info("Loaded " + stats.nFiles + " files containing " + nNodes[0] + " filtered nodes");
+    }
+
     /**
      * @param args
      * @throws SerializationException
+     * @throws InterruptedException
+     * @throws IOException
      */
-    public static void main(final String[] args) throws SerializationException {
+    public static void main(final String[] args)
+            throws SerializationException, InterruptedException, IOException {
         if (args.length < 5) {
             System.err.println(
-                    "Usage <TsgTrainingDir> normal|binary|binaryvariables|variables|binaryvariablesNoAnnotate|delegatedVariableNoAnnotate block|filterblock|icm <alpha> <#iterations> [<CfgExtraTraining>]");
+                    "Usage <TsgTrainingDir> normal|binary|binaryvariables|variables|binaryvariablesNoAnnotate|delegatedVariableNoAnnotate block|filterblock|parallelblock|icm <alpha> <#iterations> [<CfgExtraTraining>]");
             System.exit(-1);
         }
 
         final int nIterations = Integer.parseInt(args[4]);
         final double concentrationParameter = Double.parseDouble(args[3]);
-        final File samplerCheckpoint = new File("tsgSampler.ser");
-        final BlockCollapsedGibbsSampler sampler;
 
-        if (samplerCheckpoint.exists()) {
-            sampler = (BlockCollapsedGibbsSampler) Serializer.getSerializer().deserializeFrom("tsgSampler.ser");
-            LOGGER.info("Resuming sampling");
+        final AbstractJavaTreeExtractor format = getFormat(args[1]);
 
+        final BlockCollapsedGibbsSampler sampler;
+        if (args[2].equals("block")) {
+            sampler = new BlockCollapsedGibbsSampler(100, concentrationParameter, new FormattedTSGrammar(format),
+                    new FormattedTSGrammar(format));
+        } else if (args[2].equals("parallelblock")) {
+            sampler = new ParallelBlockCollapsedGibbsSampler(100, concentrationParameter, new FormattedTSGrammar(
+                    format), new FormattedTSGrammar(format));
+        } else if (args[2].equals("filterblock")) {
+            sampler = new JavaFilteredBlockCollapsedGibbsSampler(100, concentrationParameter,
+                    new FormattedTSGrammar(format), new FormattedTSGrammar(format));
         } else {
+            throw new IllegalArgumentException("Unrecognizable training type parameter " + args[2]);
+        }
 
-            final AbstractJavaTreeExtractor format;
-            if (args[1].equals("normal")) {
-                format = new JavaAstTreeExtractor();
-            } else if (args[1].equals("binary")) {
-                format = new BinaryJavaAstTreeExtractor(new JavaAstTreeExtractor());
-            } else if (args[1].equals("variables")) {
-                format = new VariableTypeJavaTreeExtractor();
-            } else if (args[1].equals("binaryVariables")) {
-                format = new BinaryJavaAstTreeExtractor(new VariableTypeJavaTreeExtractor());
-            } else if (args[1].equals("binaryVariablesNoAnnotate")) {
-                format = new BinaryJavaAstTreeExtractor(new VariableTypeJavaTreeExtractor(), false);
-            } else if (args[1].equals("delegatedVariableNoAnnotate")) {
-                format = new BinaryJavaAstTreeExtractor(new DelegatedVariableTypeJavaTreeExtractor(), false);
-            } else {
-                throw new IllegalArgumentException("Unrecognizable training type parameter " + args[1]);
-            }
-
-            if (args[2].equals("block")) {
-                sampler = new BlockCollapsedGibbsSampler(100, concentrationParameter, new FormattedTSGrammar(format),
-                        new FormattedTSGrammar(format));
-            } else if (args[2].equals("filterblock")) {
-                sampler = new JavaFilteredBlockCollapsedGibbsSampler(100, concentrationParameter,
-                        new FormattedTSGrammar(format), new FormattedTSGrammar(format));
-            } else {
-                throw new IllegalArgumentException("Unrecognizable training type parameter " + args[2]);
-            }
-
+        final PeriodicCheckpointer checkpointer = new PeriodicCheckpointer(new File("."), CHECKPOINT_PREFIX,
+                completedIterations -> SamplerCheckpoint.snapshot(sampler, completedIterations));
+        final File samplerCheckpoint = checkpointer.getLatestCheckpoint();
+        final int startIteration;
+        if (samplerCheckpoint != null) {
+            final SamplerCheckpoint checkpoint = SamplerCheckpoint.readFrom(samplerCheckpoint);
+            checkpoint.restoreInto(sampler);
+            startIteration = checkpoint.getIteration();
+            LOGGER.info("Resuming sampling from " + samplerCheckpoint + " at iteration " + startIteration);
+        } else {
+            startIteration = 0;
             if (args.length > 5) {
                 LOGGER.info("Loading additional CFG prior information from " + args[5]);
-                for (final File fi : FileUtils.listFiles(new File(args[5]), new RegexFileFilter(".*\\.java$"),
-                        DirectoryFileFilter.DIRECTORY)) {
-                    try {
-                        final TreeNode<TSGNode> ast = TSGNode.convertTree(format.getTree(fi), 0);
-                        sampler.addDataToPrior(ast);
-                    } catch (final Exception e) {
-                        LOGGER.warning("Failed to get AST for Cfg Prior " + fi.getAbsolutePath() + " "
-                                + ExceptionUtils.getFullStackTrace(e));
-                    }
-                }
+                final ParallelTreeLoader<TreeNode<TSGNode>> priorLoader = new ParallelTreeLoader<TreeNode<TSGNode>>(
+                        "CFG prior", fi -> Collections.singletonList(TSGNode.convertTree(format.getTree(fi), 0)));
+                priorLoader.load(FileUtils.listFiles(new File(args[5]), new RegexFileFilter(".*\\.java$"),
+                        DirectoryFileFilter.DIRECTORY), sampler::addDataToPrior);
             }
 
             final double percentRootsInit = .9;
-            int nFiles = 0;
-            int nNodes = 0;
             LOGGER.info("Loading sample trees from  " + args[0]);
             final TreeCorpusFilter filter = new TreeCorpusFilter(format, TREE_SPLIT_CFG_COUNT);
-            for (final File fi : FileUtils.listFiles(new File(args[0]), JavaTokenizer.javaCodeFileFilter,
-                    DirectoryFileFilter.DIRECTORY)) {
-                try {
-                    if (!USE_METHOD_BODY_ONLY) {
-                        final TreeNode<TSGNode> ast = TSGNode.convertTree(format.getTree(fi), percentRootsInit);
-                        nNodes += ast.getTreeSize();
-                        filter.addTree(ast);
-                    } else {
-                        for (final MethodDeclaration method : MethodExtractor.getMethods(fi)) {
-                            if (method.getBody() == null) {
-                                continue;
-                            }
-                            final TreeNode<TSGNode> ast = TSGNode.convertTree(format.getTree(method.getBody()),
-                                    percentRootsInit);
-                            nNodes += ast.getTreeSize();
-                            filter.addTree(ast);
-                        }
-                    }
-                    nFiles++;
-                } catch (final Exception e) {
-                    LOGGER.warning("Failed to get AST for " + fi.getAbsolutePath() + " "
-                            + ExceptionUtils.getFullStackTrace(e));
+            final Collection<File> sampleFiles = FileUtils.listFiles(new File(args[0]),
+                    JavaTokenizer.javaCodeFileFilter, DirectoryFileFilter.DIRECTORY);
+            if (STREAM_TREE_FILTER) {
+                loadFilteredTrees(format, sampleFiles, filter, percentRootsInit, sampler);
+            } else {
+                final long[] nNodes = new long[1];
+                final ParallelTreeLoader<TreeNode<TSGNode>> loader = new ParallelTreeLoader<TreeNode<TSGNode>>(
+                        "Sample trees", fi -> getTrees(format, fi, percentRootsInit));
+                final LoadStats stats = loader.load(sampleFiles, ast -> {
+                    nNodes[0] += ast.getTreeSize();
+                    filter.addTree(ast);
+                });
+                LOGGER.info("Loaded " + stats.nFiles + " files containing " + nNodes[0] + " nodes");
+                for (final TreeNode<TSGNode> filteredTree : filter.getFilteredTrees()) {
+                    sampler.addTree(filteredTree);
                 }
             }
-            LOGGER.info("Loaded " + nFiles + " files containing " + nNodes + " nodes");
-            for (final TreeNode<TSGNode> filteredTree : filter.getFilteredTrees()) {
-                sampler.addTree(filteredTree);
-            }
             sampler.lockSamplerData();
         }
 
@@ -162,7 +262,22 @@ public class SampleBlockedTSG {
             }
         });
 
-        final int nItererationCompleted = sampler.performSampling(nIterations);
+        final List<ISamplerMetricsSink> metricsSinks = Lists.newArrayList();
+        if (!METRICS_CSV_FILE.isEmpty()) {
+            metricsSinks.add(new CsvMetricsSink(new FileWriter(METRICS_CSV_FILE, startIteration > 0)));
+        }
+        if (!METRICS_JSON_FILE.isEmpty()) {
+            metricsSinks.add(new JsonLinesMetricsSink(new FileWriter(METRICS_JSON_FILE, startIteration > 0)));
+        }
+        for (final ISamplerMetricsSink sink : metricsSinks) {
+            sampler.addMetricsSink(sink);
+        }
+
+        sampler.setCheckpointer(checkpointer);
+        final int nItererationCompleted = sampler.performSampling(startIteration, nIterations);
+        for (final ISamplerMetricsSink sink : metricsSinks) {
+            sink.close();
+        }
 
         final FormattedTSGrammar grammarToUse;
         if (nItererationCompleted >= nIterations) {
@@ -179,10 +294,11 @@ public class SampleBlockedTSG {
         }
 
         try {
-            Serializer.getSerializer().serialize(sampler, "tsgSamplerCheckpoint.ser");
+            checkpointer.writeCheckpoint(nItererationCompleted);
         } catch (final Throwable e) {
             LOGGER.severe("Failed to checkpoint sampler: " + ExceptionUtils.getFullStackTrace(e));
         }
+        checkpointer.shutdown();
 
         // sampler.pruneNonSurprisingRules(1);
         grammarToUse.prune((int) (AbstractTSGSampler.BURN_IN_PCT * nIterations) - 10);
@@ -0,0 +1,182 @@
+/**
+ *
+ */
+package codemining.lm.tsg.tui.java;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.DirectoryFileFilter;
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import codemining.ast.AstNodeSymbol;
+import codemining.ast.FlatTree;
+import codemining.ast.TreeNode;
+import codemining.ast.java.AbstractJavaTreeExtractor;
+import codemining.java.tokenizers.JavaTokenizer;
+import codemining.lm.tsg.FormattedTSGrammar;
+import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.samplers.blocked.DistributedBlockCollapsedGibbsSampler;
+import codemining.lm.tsg.samplers.blocked.DistributedBlockCollapsedGibbsSampler.CoordinatorConnection;
+import codemining.lm.tsg.samplers.blocked.DistributedSamplerCoordinator;
+import codemining.lm.tsg.tui.ParallelTreeLoader;
+import codemining.lm.tsg.tui.ParallelTreeLoader.LoadStats;
+import codemining.util.serialization.ISerializationStrategy.SerializationException;
+import codemining.util.serialization.Serializer;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Sample a TSG with an approximate distributed blocked sampler. The corpus
+ * files are split across worker processes that synchronize with a coordinator
+ * process over a local socket at the end of each iteration. The first worker
+ * writes the grammar.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class SampleDistributedBlockedTSG {
+
+    private static final Logger LOGGER = Logger.getLogger(SampleDistributedBlockedTSG.class.getName());
+
+    /**
+     * Run the coordinator and the given number of worker processes on this
+     * machine.
+     *
+     * @param nWorkers
+     * @param workerArgs
+     *            the arguments of the workers, after the worker id
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private static void runLocally(final int nWorkers, final String[] workerArgs) throws IOException,
+            InterruptedException {
+        try (final ServerSocket serverSocket = new ServerSocket(0, nWorkers, InetAddress.getLoopbackAddress())) {
+            final List<Process> workers = Lists.newArrayList();
+            for (int i = 0; i < nWorkers; i++) {
+                final List<String> command = Lists.newArrayList(
+                        new File(System.getProperty("java.home"), "bin/java").getAbsolutePath(), "-cp",
+                        System.getProperty("java.class.path"), SampleDistributedBlockedTSG.class.getName(), "worker",
+                        InetAddress.getLoopbackAddress().getHostAddress(),
+                        Integer.toString(serverSocket.getLocalPort()), Integer.toString(i),
+                        Integer.toString(nWorkers));
+                command.addAll(Lists.newArrayList(workerArgs));
+                workers.add(new ProcessBuilder(command).inheritIO().start());
+            }
+            new DistributedSamplerCoordinator(serverSocket, nWorkers).run();
+            for (final Process worker : workers) {
+                worker.waitFor();
+            }
+        }
+    }
+
+    /**
+     * Sample the shard of the corpus of a single worker.
+     *
+     * @param host
+     *            the host of the coordinator
+     * @param port
+     *            the port of the coordinator
+     * @param workerId
+     * @param nWorkers
+     * @param args
+     *            <TsgTrainingDir> <format> <alpha> <#iterations>
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private static void runWorker(final String host, final int port, final int workerId, final int nWorkers,
+            final String[] args) throws IOException, InterruptedException {
+        final double concentrationParameter = Double.parseDouble(args[2]);
+        final int nIterations = Integer.parseInt(args[3]);
+        final CoordinatorConnection coordinator = new CoordinatorConnection(host, port);
+
+        // Load the trees of this worker with a local alphabet
+        final List<File> allFiles = Lists.newArrayList(FileUtils.listFiles(new File(args[0]),
+                JavaTokenizer.javaCodeFileFilter, DirectoryFileFilter.DIRECTORY));
+        Collections.sort(allFiles);
+        final List<File> workerFiles = Lists.newArrayList();
+        for (int i = workerId; i < allFiles.size(); i += nWorkers) {
+            workerFiles.add(allFiles.get(i));
+        }
+        final AbstractJavaTreeExtractor localFormat = SampleBlockedTSG.getFormat(args[1]);
+        final List<TreeNode<TSGNode>> localTrees = Lists.newArrayList();
+        final ParallelTreeLoader<TreeNode<TSGNode>> loader = new ParallelTreeLoader<TreeNode<TSGNode>>(
+                "Sample trees", fi -> SampleBlockedTSG.getTrees(localFormat, fi, .9));
+        final LoadStats stats = loader.load(workerFiles, localTrees::add);
+        LOGGER.info("Worker " + workerId + " loaded " + stats.nFiles + " files");
+
+        // Switch to the alphabet of all workers
+        final Map<Integer, AstNodeSymbol> alphabet = coordinator.exchangeAlphabet(localFormat.getNodeAlphabet());
+        final AbstractJavaTreeExtractor format = SampleBlockedTSG.getFormat(args[1]);
+        final Map<AstNodeSymbol, Integer> globalIds = Maps.newHashMap();
+        for (final Map.Entry<Integer, AstNodeSymbol> symbol : alphabet.entrySet()) {
+            format.getNodeAlphabet().put(symbol.getKey(), symbol.getValue());
+            globalIds.put(symbol.getValue(), symbol.getKey());
+        }
+
+        final DistributedBlockCollapsedGibbsSampler sampler = new DistributedBlockCollapsedGibbsSampler(100,
+                concentrationParameter, new FormattedTSGrammar(format), new FormattedTSGrammar(format), coordinator);
+        for (final TreeNode<TSGNode> tree : localTrees) {
+            final FlatTree flatTree = TSGNode.toFlatTree(tree);
+            sampler.addTree(flatTree.toTree(node -> {
+                final TSGNode data = new TSGNode(globalIds.get(localFormat.getSymbol(flatTree.getSymbol(node))));
+                data.isRoot = flatTree.isRoot(node);
+                return data;
+            }));
+        }
+        localTrees.clear();
+        sampler.synchronizeCorpus();
+
+        final int nIterationsCompleted = sampler.performSampling(nIterations);
+        sampler.disconnect();
+
+        if (workerId == 0) {
+            final FormattedTSGrammar grammarToUse;
+            if (nIterationsCompleted >= nIterations) {
+                LOGGER.info("Sampling complete. Outputing burnin grammar...");
+                grammarToUse = (FormattedTSGrammar) sampler.getBurnInGrammar();
+            } else {
+                LOGGER.warning("Sampling not complete. Outputing sample grammar...");
+                grammarToUse = (FormattedTSGrammar) sampler.getSampleGrammar();
+            }
+            try {
+                Serializer.getSerializer().serialize(grammarToUse, "tsg.ser");
+            } catch (final SerializationException e) {
+                LOGGER.severe("Failed to serialize grammar: " + ExceptionUtils.getFullStackTrace(e));
+            }
+        }
+    }
+
+    /**
+     * @param args
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        if (args.length >= 3 && args[0].equals("coordinator")) {
+            try (final ServerSocket serverSocket = new ServerSocket(Integer.parseInt(args[1]),
+                    Integer.parseInt(args[2]), InetAddress.getLoopbackAddress())) {
+                new DistributedSamplerCoordinator(serverSocket, Integer.parseInt(args[2])).run();
+            }
+        } else if (args.length >= 9 && args[0].equals("worker")) {
+            runWorker(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]),
+                    Arrays.copyOfRange(args, 5, 9));
+        } else if (args.length >= 6 && args[0].equals("local")) {
+            runLocally(Integer.parseInt(args[1]), Arrays.copyOfRange(args, 2, 6));
+        } else {
+            System.err.println("Usage coordinator <port> <#workers>\n"
+                    + "| worker <host> <port> <workerId> <#workers> <TsgTrainingDir> <format> <alpha> <#iterations>\n"
+                    + "| local <#workers> <TsgTrainingDir> <format> <alpha> <#iterations>");
+            System.exit(-1);
+        }
+    }
+}
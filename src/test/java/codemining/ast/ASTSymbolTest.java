@@ -5,6 +5,8 @@ package codemining.ast;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
 
 import org.junit.Test;
 
@@ -46,4 +48,35 @@ public class ASTSymbolTest {
 		assertEquals(symbol1, symbol2);
 	}
 
+	@Test
+	public void testHashAndLocking() {
+		final AstNodeSymbol symbol1 = new AstNodeSymbol(2);
+		final AstNodeSymbol symbol2 = new AstNodeSymbol(2);
+		assertEquals(symbol1.hashCode(), symbol2.hashCode());
+
+		symbol1.addSimpleProperty("b", "2");
+		symbol1.addSimpleProperty("a", "1");
+		symbol1.addAnnotation("ann", 1);
+		assertNotEquals(symbol1.hashCode(), symbol2.hashCode());
+		assertFalse(symbol1.equals(symbol2));
+
+		symbol2.addSimpleProperty("a", "1");
+		symbol2.addSimpleProperty("b", "2");
+		symbol2.addAnnotation("ann", 1);
+		assertEquals(symbol1, symbol2);
+		assertEquals(symbol1.hashCode(), symbol2.hashCode());
+		assertEquals(symbol1.getSimpleProperty("a"), "1");
+
+		final int hash = symbol1.hashCode();
+		symbol1.lockFromChanges();
+		assertEquals(symbol1.hashCode(), hash);
+		assertEquals(symbol1, symbol2);
+		try {
+			symbol1.addSimpleProperty("c", "3");
+			fail();
+		} catch (final UnsupportedOperationException e) {
+			// Locked symbols cannot change
+		}
+	}
+
 }
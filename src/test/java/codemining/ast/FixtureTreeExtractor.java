@@ -0,0 +1,51 @@
+package codemining.ast;
+
+import java.io.File;
+
+import codemining.languagetools.ITokenizer;
+import codemining.languagetools.ParseType;
+
+/**
+ * A tree extractor that does not parse any code. It is serializable and
+ * unchanged since the first serialized test fixtures were written, so that
+ * models written by older versions of the code can be read in the tests.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class FixtureTreeExtractor extends AbstractTreeExtractor {
+
+	private static final long serialVersionUID = 5413358151582738201L;
+
+	@Override
+	public String getCodeFromTree(final TreeNode<Integer> tree) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public TreeNode<Integer> getKeyForCompilationUnit() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public ITokenizer getTokenizer() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public TreeNode<Integer> getTree(final File f) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public TreeNode<Integer> getTree(final String code,
+			final ParseType parseType) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public TreeToString getTreePrinter() {
+		throw new UnsupportedOperationException();
+	}
+
+}
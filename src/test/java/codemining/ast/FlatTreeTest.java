@@ -0,0 +1,120 @@
+/**
+ *
+ */
+package codemining.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import codemining.lm.tsg.TSGNode;
+
+/**
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class FlatTreeTest {
+
+	private TreeNode<Integer> generateSampleTree() {
+		final TreeNode<Integer> root = TreeNode.create(1, 3);
+
+		final TreeNode<Integer> child1 = TreeNode.create(2, 1);
+		final TreeNode<Integer> child2 = TreeNode.create(3, 2);
+
+		root.addChildNode(child1, 2);
+		root.addChildNode(child2, 1);
+
+		final TreeNode<Integer> grandchild1 = TreeNode.create(4, 0);
+		final TreeNode<Integer> grandchild2 = TreeNode.create(5, 0);
+		final TreeNode<Integer> grandchild3 = TreeNode.create(6, 1);
+
+		child1.addChildNode(grandchild1, 0);
+		child2.addChildNode(grandchild2, 1);
+		child2.addChildNode(grandchild3, 0);
+
+		return root;
+	}
+
+	@Test
+	public void testConversion() {
+		final TreeNode<Integer> tree = generateSampleTree();
+		final FlatTree flat = FlatTree.create(tree);
+
+		assertEquals(flat.getTreeSize(), tree.getTreeSize());
+		assertEquals(flat.toTree(), tree);
+		assertEquals(flat.getSymbol(0), 1);
+		assertEquals(flat.nProperties(0), 3);
+		assertEquals(flat.nChildren(0, 0), 0);
+		assertEquals(flat.nChildren(0, 1), 1);
+		assertEquals(flat.getSymbol(flat.getChild(0, 0, 2)), 2);
+		assertEquals(flat.getParent(flat.getChild(0, 0, 2)), 0);
+		assertEquals(flat.getParent(0), -1);
+
+		final int child2 = flat.getChild(0, 0, 1);
+		assertEquals(flat.getSymbol(child2), 3);
+		assertEquals(flat.getTreeSize(child2), 3);
+		assertEquals(flat.getSymbol(flat.getChild(child2, 0, 1)), 5);
+		assertTrue(flat.isLeaf(flat.getChild(child2, 0, 1)));
+		assertFalse(flat.isLeaf(child2));
+		assertFalse(flat.hasRootFlags());
+	}
+
+	@Test
+	public void testEquality() {
+		final FlatTree flat1 = FlatTree.create(generateSampleTree());
+		final FlatTree flat2 = FlatTree.create(generateSampleTree());
+		assertEquals(flat1, flat2);
+		assertEquals(flat1.hashCode(), flat2.hashCode());
+
+		final TreeNode<Integer> otherTree = generateSampleTree();
+		otherTree.addChildNode(TreeNode.create(7, 0), 0);
+		final FlatTree flat3 = FlatTree.create(otherTree);
+		assertNotEquals(flat1, flat3);
+
+		assertTrue(flat1.subtreeEquals(flat1.getChild(0, 0, 1), flat3,
+				flat3.getChild(0, 0, 1)));
+		assertFalse(flat1.subtreeEquals(0, flat3, 0));
+	}
+
+	@Test
+	public void testPartialMatch() {
+		final TreeNode<Integer> tree = generateSampleTree();
+		final TreeNode<Integer> partial = TreeNode.create(1, 3);
+		partial.addChildNode(TreeNode.create(2, 1), 2);
+		partial.addChildNode(TreeNode.create(3, 2), 1);
+
+		final FlatTree flatTree = FlatTree.create(tree);
+		final FlatTree flatPartial = FlatTree.create(partial);
+
+		assertEquals(partial.partialMatch(tree, false),
+				flatPartial.partialMatch(flatTree, false));
+		assertEquals(partial.partialMatch(tree, true),
+				flatPartial.partialMatch(flatTree, true));
+		assertEquals(tree.partialMatch(partial, false),
+				flatTree.partialMatch(flatPartial, false));
+		assertTrue(flatPartial.partialMatch(flatTree, false));
+		assertFalse(flatTree.partialMatch(flatPartial, false));
+	}
+
+	@Test
+	public void testTsgConversion() {
+		final TreeNode<TSGNode> tsgTree = TSGNode.convertTree(
+				generateSampleTree(), 0);
+		tsgTree.getChild(0, 1).getData().isRoot = true;
+
+		final FlatTree flat = TSGNode.toFlatTree(tsgTree);
+		assertTrue(flat.hasRootFlags());
+		assertTrue(flat.isRoot(0));
+		assertTrue(flat.isRoot(flat.getChild(0, 0, 1)));
+		assertFalse(flat.isRoot(flat.getChild(0, 0, 2)));
+
+		assertEquals(TSGNode.fromFlatTree(flat), tsgTree);
+
+		flat.setRoot(flat.getChild(0, 0, 2), true);
+		assertTrue(TSGNode.fromFlatTree(flat).getChild(0, 2).getData().isRoot);
+	}
+
+}
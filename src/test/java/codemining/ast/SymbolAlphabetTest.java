@@ -0,0 +1,84 @@
+/**
+ *
+ */
+package codemining.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+/**
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class SymbolAlphabetTest {
+
+	private AstNodeSymbol createSymbol(final int type) {
+		final AstNodeSymbol symbol = new AstNodeSymbol(type);
+		symbol.addSimpleProperty("prop", "value" + type);
+		return symbol;
+	}
+
+	@Test
+	public void testAlphabet() {
+		final SymbolAlphabet alphabet = new SymbolAlphabet();
+		assertEquals(alphabet.getOrAddId(createSymbol(10)), 0);
+		assertEquals(alphabet.getOrAddId(createSymbol(20)), 1);
+		assertEquals(alphabet.getOrAddId(createSymbol(10)), 0);
+		assertEquals(alphabet.size(), 2);
+
+		assertEquals(alphabet.get(1), createSymbol(20));
+		assertNull(alphabet.get(2));
+		assertEquals(alphabet.getId(createSymbol(20)), 1);
+		assertEquals(alphabet.getId(createSymbol(30)), -1);
+		assertEquals(alphabet.inverse().get(createSymbol(10)),
+				Integer.valueOf(0));
+		assertTrue(alphabet.values().contains(createSymbol(10)));
+
+		alphabet.put(5, createSymbol(30));
+		assertEquals(alphabet.getOrAddId(createSymbol(40)), 6);
+		int nEntries = 0;
+		for (final Entry<Integer, AstNodeSymbol> entry : alphabet.entrySet()) {
+			assertEquals(alphabet.getId(entry.getValue()),
+					entry.getKey().intValue());
+			nEntries++;
+		}
+		assertEquals(nEntries, 4);
+		assertFalse(alphabet.containsKey(3));
+	}
+
+	@Test
+	public void testConcurrentInsertion() throws InterruptedException {
+		final SymbolAlphabet alphabet = new SymbolAlphabet();
+		final List<Thread> threads = Lists.newArrayList();
+		for (int t = 0; t < 8; t++) {
+			final Thread thread = new Thread(() -> {
+				for (int i = 0; i < 1000; i++) {
+					final AstNodeSymbol symbol = createSymbol(i);
+					final int id = alphabet.getOrAddId(symbol);
+					assertEquals(alphabet.get(id), symbol);
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(alphabet.size(), 1000);
+		for (int i = 0; i < 1000; i++) {
+			final int id = alphabet.getId(createSymbol(i));
+			assertTrue(id >= 0 && id < 1000);
+		}
+	}
+
+}
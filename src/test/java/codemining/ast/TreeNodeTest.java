@@ -47,6 +47,39 @@ public class TreeNodeTest {
 		assertEquals(node.getTreeSize(), 4);
 	}
 
+	@Test
+	public void testImmutableHashAndSize() {
+		final TreeNode<Integer> node = TreeNode.create(1, 2);
+		node.addChildNode(TreeNode.create(0, 0), 0);
+		node.addChildNode(TreeNode.create(2, 1), 1);
+		node.getChild(0, 1).addChildNode(TreeNode.create(3, 0), 0);
+
+		final TreeNode<Integer> immutable = node.toImmutable();
+		assertTrue(immutable.isImmutable());
+		assertFalse(node.isImmutable());
+		assertEquals(immutable, node);
+		assertEquals(node, immutable);
+		assertEquals(immutable.hashCode(), node.hashCode());
+		assertEquals(immutable.getTreeSize(), 4);
+
+		// Differences in properties other than the first affect the hash
+		final TreeNode<Integer> other = TreeNode.create(1, 2);
+		other.addChildNode(TreeNode.create(0, 0), 0);
+		other.addChildNode(TreeNode.create(2, 1), 1);
+		final TreeNode<Integer> otherImmutable = other.toImmutable();
+		assertFalse(otherImmutable.hashCode() == immutable.hashCode());
+		assertFalse(otherImmutable.equals(immutable));
+		assertEquals(otherImmutable.getTreeSize(), 3);
+
+		// Moving a child to another property changes the hash
+		final TreeNode<Integer> moved = TreeNode.create(1, 2);
+		moved.addChildNode(TreeNode.create(0, 0), 1);
+		moved.addChildNode(TreeNode.create(2, 1), 1);
+		moved.getChild(1, 1).addChildNode(TreeNode.create(3, 0), 0);
+		assertFalse(moved.hashCode() == node.hashCode());
+		assertFalse(moved.toImmutable().equals(immutable));
+	}
+
 	@Test
 	public void testIsLeaf() {
 		final TreeNode<Integer> node = TreeNode.create(1, 10);
@@ -2,9 +2,12 @@ package codemining.lm.cfg;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.ArrayList;
 
 import org.junit.Before;
@@ -110,19 +113,128 @@ public class ContextFreeGrammarTest {
 
 	}
 
+	@Test
+	public void testImmutableRuleProbabilities() {
+		final ContextFreeGrammar cfg = new ContextFreeGrammar(
+				mock(AbstractJavaTreeExtractor.class));
+		cfg.addRulesFrom(generateSampleTree1());
+		cfg.addRulesFrom(generateSampleTree2());
+		cfg.addRulesFrom(generateSampleTree2());
+
+		final ImmutableContextFreeGrammar immutableCfg = new ImmutableContextFreeGrammar(
+				cfg);
+		final CFGRule rule = new CFGRule(1, getConsequent1());
+		final int ruleId = immutableCfg.getRuleId(rule);
+		assertTrue(ruleId >= 0);
+		assertEquals(immutableCfg.getRuleLog2Probability(ruleId),
+				-Math.log(3) / Math.log(2), 10E-10);
+
+		final CFGRule otherRule = immutableCfg
+				.createCFRuleForNode(generateSampleTree2());
+		assertNotEquals(immutableCfg.getRuleId(otherRule), ruleId);
+		assertEquals(immutableCfg.getRuleLog2Probability(immutableCfg
+				.getRuleId(otherRule)), Math.log(2. / 3) / Math.log(2), 10E-10);
+
+		assertEquals(immutableCfg.getRuleId(new CFGRule(7, getConsequent1())),
+				-1);
+	}
+
+	@Test
+	public void testPackedRules() {
+		final ContextFreeGrammar cfg = new ContextFreeGrammar(
+				mock(AbstractTreeExtractor.class));
+		final CFGRule rule = cfg.createCFRuleForNode(generateSampleTree1());
+		final PackedCFGRule packedRule = PackedCFGRule.create(rule);
+		assertEquals(packedRule, PackedCFGRule.create(generateSampleTree1()));
+		assertEquals(packedRule.hashCode(),
+				PackedCFGRule.create(1, getConsequent1()).hashCode());
+		assertEquals(packedRule.getRoot(), 1);
+		assertEquals(packedRule.getConsequent(), getConsequent1());
+		assertNotEquals(packedRule,
+				PackedCFGRule.create(generateSampleTree2()));
+
+		// Property boundaries are part of the encoding
+		final ContextFreeGrammar.NodeConsequent csq = new ContextFreeGrammar.NodeConsequent();
+		csq.nodes.add(new ArrayList<Integer>());
+		csq.nodes.add(new ArrayList<Integer>());
+		csq.nodes.get(0).add(3);
+		csq.nodes.get(1).add(2);
+		assertNotEquals(PackedCFGRule.create(1, csq),
+				PackedCFGRule.create(1, getConsequent1()));
+
+		final CFGRuleDictionary dictionary = new CFGRuleDictionary();
+		for (int i = 0; i < 100; i++) {
+			final TreeNode<Integer> tree = generateSampleTree1();
+			tree.addChildNode(TreeNode.create(i, 0), 0);
+			assertEquals(dictionary.getOrAddId(PackedCFGRule.create(tree)), i);
+		}
+		assertEquals(dictionary.getId(packedRule), -1);
+		final int id = dictionary.getOrAddId(packedRule);
+		assertEquals(id, 100);
+		assertEquals(dictionary.getOrAddId(PackedCFGRule.create(rule)), id);
+		assertEquals(dictionary.getRule(id), packedRule);
+		assertEquals(dictionary.size(), 101);
+	}
+
+	/**
+	 * Read a grammar that was serialized before the rules were packed. It was
+	 * trained on sample tree 1 twice and sample tree 2 once.
+	 */
+	private AbstractContextFreeGrammar readOldFormat(final String resource)
+			throws IOException, ClassNotFoundException {
+		final ObjectInputStream in = new ObjectInputStream(
+				ContextFreeGrammarTest.class.getClassLoader()
+						.getResourceAsStream(resource));
+		final AbstractContextFreeGrammar cfg = (AbstractContextFreeGrammar) in
+				.readObject();
+		in.close();
+		return cfg;
+	}
+
+	@Test
+	public void testReadOldFormat() throws IOException, ClassNotFoundException {
+		final AbstractContextFreeGrammar cfg = readOldFormat("OldFormatContextFreeGrammar.ser");
+		assertTrue(cfg instanceof ContextFreeGrammar);
+		assertEquals(cfg.getMLProbability(1, getConsequent1()), 2. / 3.,
+				10E-10);
+		assertEquals(cfg.getInternalGrammar().get(2).size(), 3);
+		assertEquals(cfg.getInternalGrammar().get(3).size(), 2);
+		assertEquals(cfg.getInternalGrammar().size(), 3);
+
+		cfg.addRulesFrom(generateSampleTree1());
+		assertEquals(cfg.getMLProbability(1, getConsequent1()), .75, 10E-10);
+		assertEquals(cfg.getInternalGrammar().get(1).count(getConsequent1()),
+				3);
+	}
+
+	@Test
+	public void testReadOldFormatImmutable() throws IOException,
+			ClassNotFoundException {
+		final ImmutableContextFreeGrammar immutableCfg = (ImmutableContextFreeGrammar) readOldFormat("OldFormatImmutableContextFreeGrammar.ser");
+		assertEquals(immutableCfg.getMLProbability(1, getConsequent1()),
+				2. / 3., 10E-10);
+		final int ruleId = immutableCfg.getRuleId(new CFGRule(1,
+				getConsequent1()));
+		assertTrue(ruleId >= 0);
+		assertEquals(immutableCfg.getRuleLog2Probability(ruleId),
+				Math.log(2. / 3) / Math.log(2), 10E-10);
+		assertEquals(immutableCfg.getRuleId(new CFGRule(7, getConsequent1())),
+				-1);
+	}
+
 	@Test
 	public void testRuleExtraction() {
 		final ContextFreeGrammar cfg = new ContextFreeGrammar(
 				mock(AbstractTreeExtractor.class));
 		final CFGRule rule = cfg.createCFRuleForNode(generateSampleTree1());
 		cfg.addCFGRule(rule);
-		assertFalse(cfg.grammar.isEmpty());
-		assertTrue(cfg.grammar.containsKey(1));
-		assertEquals(cfg.grammar.get(1).size(), 1);
+		assertFalse(cfg.getInternalGrammar().isEmpty());
+		assertTrue(cfg.getInternalGrammar().containsKey(1));
+		assertEquals(cfg.getInternalGrammar().get(1).size(), 1);
 
 		final ContextFreeGrammar.NodeConsequent csq = getConsequent1();
 
-		assertTrue(cfg.grammar.get(1).contains(csq));
+		assertTrue(cfg.getInternalGrammar().get(1).contains(csq));
 	}
 
 	@Test
@@ -0,0 +1,124 @@
+package codemining.lm.cfg;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import codemining.ast.AbstractTreeExtractor;
+import codemining.ast.TreeNode;
+import codemining.languagetools.ITokenizer;
+import codemining.languagetools.ParseType;
+
+import com.google.common.collect.Lists;
+
+public class ParallelCFGBuilderTest {
+
+	/**
+	 * A tree extractor where the code is the number passed to
+	 * {@link ParallelCFGBuilderTest#generateTree(int)}.
+	 */
+	private static final class NumberTreeExtractor extends
+			AbstractTreeExtractor {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public String getCodeFromTree(final TreeNode<Integer> tree) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public TreeNode<Integer> getKeyForCompilationUnit() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public ITokenizer getTokenizer() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public TreeNode<Integer> getTree(final File f) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public TreeNode<Integer> getTree(final String code,
+				final ParseType parseType) {
+			return generateTree(Integer.parseInt(code));
+		}
+
+		@Override
+		public TreeToString getTreePrinter() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Return a small tree whose rules depend on the given code.
+	 */
+	private static TreeNode<Integer> generateTree(final int code) {
+		final TreeNode<Integer> root = TreeNode.create(1, 2);
+		final TreeNode<Integer> child = TreeNode.create(2, 1);
+		root.addChildNode(child, 0);
+		root.addChildNode(TreeNode.create(3 + code % 3, 0), 1);
+		child.addChildNode(TreeNode.create(10 + code % 5, 0), 0);
+		return root;
+	}
+
+	@Test
+	public void testBuildMatchesSequentialGrammar() throws IOException {
+		final AbstractTreeExtractor format = new NumberTreeExtractor();
+
+		final ContextFreeGrammar sequentialCfg = new ContextFreeGrammar(format);
+		final List<File> files = Lists.newArrayList();
+		for (int i = 0; i < 40; i++) {
+			final File file = File.createTempFile("cfg", ".java");
+			file.deleteOnExit();
+			FileUtils.writeStringToFile(file, Integer.toString(i));
+			files.add(file);
+			sequentialCfg.addRulesFrom(generateTree(i));
+		}
+		// A file that cannot be parsed is skipped
+		final File badFile = File.createTempFile("cfg", ".java");
+		badFile.deleteOnExit();
+		FileUtils.writeStringToFile(badFile, "not a tree");
+		files.add(badFile);
+
+		final ImmutableContextFreeGrammar cfg = new ParallelCFGBuilder(format,
+				4).build(files);
+		assertEquals(cfg.getInternalGrammar(),
+				sequentialCfg.getInternalGrammar());
+
+		final ImmutableContextFreeGrammar sequentialImmutableCfg = new ImmutableContextFreeGrammar(
+				sequentialCfg);
+		final PackedCFGRule rule = PackedCFGRule.create(generateTree(7));
+		assertEquals(
+				cfg.getRuleLog2Probability(cfg.getRuleId(rule)),
+				sequentialImmutableCfg.getRuleLog2Probability(sequentialImmutableCfg
+						.getRuleId(rule)), 10E-10);
+	}
+
+	@Test
+	public void testMergeCounts() {
+		final CFGRuleCounts counts1 = new CFGRuleCounts();
+		final CFGRuleCounts counts2 = new CFGRuleCounts();
+		counts1.addRulesFrom(generateTree(1));
+		counts2.addRulesFrom(generateTree(1));
+		counts2.addRulesFrom(generateTree(2));
+
+		counts1.addAll(counts2);
+		assertEquals(counts1.size(), 4);
+		assertEquals(counts1.getTotalCount(), 6);
+		assertEquals(counts1.count(PackedCFGRule.create(generateTree(1))), 2);
+		assertEquals(counts1.count(PackedCFGRule.create(generateTree(2))), 1);
+		assertEquals(counts1.count(PackedCFGRule.create(generateTree(1)
+				.getChild(0, 0))), 2);
+	}
+
+}
@@ -0,0 +1,187 @@
+/**
+ *
+ */
+package codemining.lm.tsg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import codemining.ast.TreeNode;
+
+import com.google.common.base.Functions;
+import com.google.common.base.Predicates;
+
+/**
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class FrozenTSGrammarTest {
+
+	private static TreeNode<String> createRule(final String root,
+			final String... children) {
+		final TreeNode<String> rule = TreeNode.create(root, 1);
+		for (final String child : children) {
+			rule.addChildNode(TreeNode.create(child, 1), 0);
+		}
+		return rule;
+	}
+
+	private TSGrammar<String> grammar;
+
+	private TreeNode<String> createTree() {
+		final TreeNode<String> tree = createRule("A", "B", "C");
+		tree.getChild(0, 0).addChildNode(TreeNode.create("D", 1), 0);
+		tree.getChild(0, 0).addChildNode(TreeNode.create("E", 1), 0);
+		return tree;
+	}
+
+	@Before
+	public void setUp() {
+		grammar = new TSGrammar<String>();
+		grammar.setPosteriorComputer(new TreeProbabilityComputerTest.MlPosteriorComputer(
+				grammar));
+		grammar.addTree(createTree());
+		grammar.addTree(createRule("A", "B", "C"), 2);
+		grammar.addTree(createRule("B", "D", "E"));
+		grammar.addTree(createRule("B", "D", "F"), 3);
+		grammar.addTree(createRule("D", "A", "C"));
+		grammar.addTree(createRule("C"), 2);
+	}
+
+	@Test
+	public void testCounts() {
+		final FrozenTSGrammar<String> frozen = grammar.freeze();
+
+		assertEquals(grammar.countAllTrees(), frozen.countAllTrees());
+		assertEquals(grammar.countDistinctTrees(), frozen.countDistinctTrees());
+		for (final String root : new String[] { "A", "B", "C", "D", "E" }) {
+			assertEquals(grammar.countTreesWithRoot(root),
+					frozen.countTreesWithRoot(root));
+		}
+		for (final TreeNode<String> rule : new TreeNode[] { createTree(),
+				createRule("A", "B", "C"), createRule("B", "D", "E"),
+				createRule("B", "D", "F"), createRule("D", "A", "C"),
+				createRule("C"), createRule("E") }) {
+			assertEquals(grammar.countTreeOccurences(rule),
+					frozen.countTreeOccurences(rule));
+			assertEquals(grammar.countTreeOccurences(rule.hashCode(),
+					Predicates.equalTo(rule)), frozen.countTreeOccurences(
+					rule.hashCode(), Predicates.equalTo(rule)));
+		}
+		assertEquals(grammar.computeGrammarTreeSizeStats(),
+				frozen.computeGrammarTreeSizeStats());
+		assertEquals(grammar.getInternalGrammar(), frozen.getInternalGrammar());
+	}
+
+	@Test
+	public void testPrunedCounts() {
+		grammar.prune(2);
+		final FrozenTSGrammar<String> frozen = grammar.freeze();
+
+		assertEquals(grammar.countAllTrees(), frozen.countAllTrees());
+		assertEquals(grammar.countDistinctTrees(), frozen.countDistinctTrees());
+		for (final String root : new String[] { "A", "B", "C", "D" }) {
+			assertEquals(grammar.countTreesWithRoot(root),
+					frozen.countTreesWithRoot(root));
+		}
+		assertEquals(0, frozen.countTreeOccurences(createRule("D", "A", "C")));
+		assertEquals(3, frozen.countTreeOccurences(createRule("B", "D", "F")));
+		assertEquals(grammar.computeGrammarTreeSizeStats(),
+				frozen.computeGrammarTreeSizeStats());
+	}
+
+	@Test
+	public void testGenerateRandom() {
+		final TSGrammar<String> acyclicGrammar = new TSGrammar<String>();
+		acyclicGrammar.addTree(createRule("B", "D", "E"));
+		acyclicGrammar.addTree(createRule("B", "D", "F"), 3);
+		acyclicGrammar.addTree(createRule("D", "C"));
+		final FrozenTSGrammar<String> frozen = acyclicGrammar.freeze();
+		for (int i = 0; i < 100; i++) {
+			final TreeNode<String> tree = frozen.generateRandom(TreeNode
+					.create("B", 1));
+			assertEquals(2, tree.getChildrenByProperty().get(0).size());
+			assertEquals("C", tree.getChild(0, 0).getChild(0, 0).getData());
+		}
+	}
+
+	@Test
+	public void testImmutable() {
+		final FrozenTSGrammar<String> frozen = grammar.freeze();
+		try {
+			frozen.addTree(createRule("C"));
+			fail();
+		} catch (final UnsupportedOperationException e) {
+			// Expected
+		}
+		try {
+			frozen.removeTree(createRule("C"));
+			fail();
+		} catch (final UnsupportedOperationException e) {
+			// Expected
+		}
+		try {
+			frozen.prune(1);
+			fail();
+		} catch (final UnsupportedOperationException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testPosteriors() {
+		final FrozenTSGrammar<String> frozen = grammar.freeze();
+		for (final TreeNode<String> rule : new TreeNode[] {
+				createRule("A", "B", "C"), createRule("B", "D", "F"),
+				createRule("C"), createRule("B", "D", "E") }) {
+			assertEquals(grammar.computeRulePosteriorLog2Probability(rule),
+					frozen.computeRulePosteriorLog2Probability(rule), 10E-10);
+		}
+	}
+
+	@Test
+	public void testPosteriorsAfterChangingOriginal() {
+		final FrozenTSGrammar<String> frozen = grammar.freeze();
+		final TreeNode<String> newRule = createRule("B", "D", "G");
+		final double ruleLog2Prob = frozen
+				.computeRulePosteriorLog2Probability(createRule("B", "D", "F"));
+		final double newRuleLog2Prob = frozen
+				.computeRulePosteriorLog2Probability(newRule);
+
+		grammar.addTree(newRule, 4);
+		grammar.removeTree(createRule("B", "D", "F"));
+
+		assertEquals(ruleLog2Prob,
+				frozen.computeRulePosteriorLog2Probability(createRule("B",
+						"D", "F")), 10E-10);
+		assertEquals(newRuleLog2Prob,
+				frozen.computeRulePosteriorLog2Probability(newRule), 10E-10);
+	}
+
+	@Test
+	public void testTreeProbability() {
+		final FrozenTSGrammar<String> frozen = grammar.freeze();
+		final TreeNode<String> fullTree = createTree();
+		fullTree.getChild(0, 0).getChild(0, 0)
+				.addChildNode(TreeNode.create("D", 1), 0);
+
+		for (final boolean requireAllChildren : new boolean[] { true, false }) {
+			final TreeProbabilityComputer<String> computer = new TreeProbabilityComputer<String>(
+					grammar, requireAllChildren,
+					TreeProbabilityComputerTest.DEFAULT_MATCHER);
+			final TreeProbabilityComputer<String> frozenComputer = new TreeProbabilityComputer<String>(
+					frozen, requireAllChildren,
+					TreeProbabilityComputerTest.DEFAULT_MATCHER,
+					Functions.<String> identity());
+			for (final TreeNode<String> tree : new TreeNode[] { createTree(),
+					fullTree, createRule("B", "D", "F") }) {
+				assertEquals(computer.getLog2ProbabilityOf(tree),
+						frozenComputer.getLog2ProbabilityOf(tree), 10E-10);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,203 @@
+/**
+ *
+ */
+package codemining.lm.tsg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import codemining.ast.AbstractTreeExtractor;
+import codemining.ast.AstNodeSymbol;
+import codemining.ast.TreeNode;
+import codemining.languagetools.ITokenizer;
+import codemining.languagetools.ParseType;
+
+import com.google.common.base.Predicates;
+import com.google.common.math.DoubleMath;
+
+/**
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class MappedTSGrammarTest {
+
+	/**
+	 * A tree extractor that only holds an alphabet.
+	 */
+	private static final class AlphabetOnlyExtractor extends
+			AbstractTreeExtractor {
+
+		private static final long serialVersionUID = 8112416311512302418L;
+
+		@Override
+		public String getCodeFromTree(final TreeNode<Integer> tree) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public TreeNode<Integer> getKeyForCompilationUnit() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public ITokenizer getTokenizer() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public TreeNode<Integer> getTree(final File f) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public TreeNode<Integer> getTree(final String code,
+				final ParseType parseType) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public TreeToString getTreePrinter() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private static final class MlPosteriorComputer implements
+			ITsgPosteriorProbabilityComputer<TSGNode> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final TSGrammar<TSGNode> grammar;
+
+		MlPosteriorComputer(final TSGrammar<TSGNode> grammar) {
+			this.grammar = grammar;
+		}
+
+		@Override
+		public double computeLog2PosteriorProbabilityOfRule(
+				final TreeNode<TSGNode> tree, final boolean remove) {
+			return DoubleMath.log2(((double) grammar.countTreeOccurences(tree))
+					/ grammar.countTreesWithRoot(tree.getData()));
+		}
+
+		@Override
+		public ITsgPosteriorProbabilityComputer<TSGNode> copyFor(
+				final TSGrammar<TSGNode> grammar) {
+			return new MlPosteriorComputer(grammar);
+		}
+	}
+
+	private static TreeNode<TSGNode> createRule(final int root,
+			final int... children) {
+		final TSGNode rootNode = new TSGNode(root);
+		rootNode.isRoot = true;
+		final TreeNode<TSGNode> rule = TreeNode.create(rootNode, 1);
+		for (final int child : children) {
+			rule.addChildNode(TreeNode.create(new TSGNode(child), 1), 0);
+		}
+		return rule;
+	}
+
+	private FormattedTSGrammar grammar;
+
+	private AbstractTreeExtractor format;
+
+	private TreeNode<TSGNode>[] rules;
+
+	private File grammarFile;
+
+	@SuppressWarnings("unchecked")
+	@Before
+	public void setUp() throws IOException {
+		format = new AlphabetOnlyExtractor();
+		for (int i = 0; i < 5; i++) {
+			format.getOrAddSymbolId(new AstNodeSymbol(i));
+		}
+		grammar = new FormattedTSGrammar(format);
+		grammar.setPosteriorComputer(new MlPosteriorComputer(grammar));
+
+		final TreeNode<TSGNode> deepRule = createRule(0, 1, 2);
+		deepRule.getChild(0, 0).addChildNode(
+				TreeNode.create(new TSGNode(3), 1), 0);
+		rules = (TreeNode<TSGNode>[]) new TreeNode<?>[] { deepRule,
+				createRule(0, 1, 2), createRule(1, 3, 4), createRule(1, 3),
+				createRule(2), createRule(3, 0, 0, 0) };
+		for (int i = 0; i < rules.length; i++) {
+			grammar.addTree(rules[i], i + 1);
+		}
+
+		grammarFile = File.createTempFile("grammar", ".tsgm");
+		grammarFile.deleteOnExit();
+		MappedTSGrammar.write(grammar, grammarFile);
+	}
+
+	@Test
+	public void testCounts() throws IOException {
+		final MappedTSGrammar mapped = MappedTSGrammar.open(grammarFile);
+
+		assertEquals(grammar.countAllTrees(), mapped.countAllTrees());
+		assertEquals(grammar.countDistinctTrees(), mapped.countDistinctTrees());
+		for (final TreeNode<TSGNode> rule : rules) {
+			assertEquals(grammar.countTreeOccurences(rule),
+					mapped.countTreeOccurences(rule));
+			assertEquals(grammar.countTreeOccurences(rule),
+					mapped.countTreeOccurences(rule.hashCode(),
+							Predicates.equalTo(rule)));
+			assertEquals(grammar.countTreesWithRoot(rule.getData()),
+					mapped.countTreesWithRoot(rule.getData()));
+			assertEquals(grammar.computeRulePosteriorLog2Probability(rule),
+					mapped.computeRulePosteriorLog2Probability(rule), 10E-10);
+		}
+		assertEquals(0, mapped.countTreeOccurences(createRule(2, 1)));
+		assertEquals(0, mapped.countTreesWithRoot(new TSGNode(4)));
+		assertEquals(grammar.computeGrammarTreeSizeStats(),
+				mapped.computeGrammarTreeSizeStats());
+		assertEquals(grammar.getInternalGrammar(), mapped.getInternalGrammar());
+	}
+
+	@Test
+	public void testExtractor() throws IOException {
+		final MappedTSGrammar mapped = MappedTSGrammar.open(grammarFile);
+		assertEquals(format.getNodeAlphabet(), mapped.getTreeExtractor()
+				.getNodeAlphabet());
+	}
+
+	@Test
+	public void testFileFormat() throws Exception {
+		assertTrue(MappedTSGrammar.isMappedGrammar(grammarFile));
+		assertTrue(MappedTSGrammar.readGrammar(grammarFile.getAbsolutePath()) instanceof MappedTSGrammar);
+
+		final File otherFile = File.createTempFile("grammar", ".ser");
+		otherFile.deleteOnExit();
+		assertFalse(MappedTSGrammar.isMappedGrammar(otherFile));
+	}
+
+	@Test(expected = IOException.class)
+	public void testForeignHashFunction() throws IOException {
+		try (final RandomAccessFile file = new RandomAccessFile(grammarFile,
+				"rw")) {
+			file.seek(8);
+			file.writeInt(MappedTSGrammar.getRuleHashFingerprint() + 1);
+		}
+		MappedTSGrammar.open(grammarFile);
+	}
+
+	@Test
+	public void testFreeze() throws IOException {
+		final FrozenTSGrammar<TSGNode> frozen = MappedTSGrammar.open(
+				grammarFile).freeze();
+		assertEquals(grammar.getInternalGrammar(), frozen.getInternalGrammar());
+		for (final TreeNode<TSGNode> rule : rules) {
+			assertEquals(grammar.computeRulePosteriorLog2Probability(rule),
+					frozen.computeRulePosteriorLog2Probability(rule), 10E-10);
+		}
+	}
+
+}
@@ -0,0 +1,103 @@
+/**
+ *
+ */
+package codemining.lm.tsg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.junit.Test;
+
+import codemining.ast.TreeNode;
+
+/**
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class TreeInternerTest {
+
+	private TreeNode<Integer> generateTree(final int leaf) {
+		final TreeNode<Integer> root = TreeNode.create(1, 2);
+		final TreeNode<Integer> child = TreeNode.create(2, 1);
+		root.addChildNode(child, 0);
+		root.addChildNode(TreeNode.create(3, 0), 1);
+		child.addChildNode(TreeNode.create(leaf, 0), 0);
+		return root;
+	}
+
+	@Test
+	public void testIntern() {
+		final TreeInterner<Integer> interner = new TreeInterner<Integer>();
+		final int id1 = interner.intern(generateTree(4));
+		final int id2 = interner.intern(generateTree(5));
+		assertNotEquals(id1, id2);
+		assertEquals(interner.intern(generateTree(4)), id1);
+		assertEquals(interner.getId(generateTree(5)), id2);
+		assertEquals(interner.getId(generateTree(6)), -1);
+		assertEquals(interner.size(), 2);
+
+		assertEquals(interner.getTree(id1), generateTree(4));
+		assertTrue(interner.getTree(id1).isImmutable());
+
+		interner.release(id1);
+		assertEquals(interner.getId(generateTree(4)), -1);
+		assertEquals(interner.getId(generateTree(5)), id2);
+		assertEquals(interner.size(), 1);
+
+		// Ids are reused
+		assertEquals(interner.intern(generateTree(6)), id1);
+		assertEquals(interner.getIdUpperBound(), 2);
+	}
+
+	@Test
+	public void testManyTrees() {
+		final TreeInterner<Integer> interner = new TreeInterner<Integer>();
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(interner.intern(generateTree(i)), i);
+		}
+		for (int i = 0; i < 1000; i += 2) {
+			interner.release(i);
+		}
+		for (int i = 0; i < 1000; i++) {
+			if (i % 2 == 0) {
+				assertEquals(interner.getId(generateTree(i)), -1);
+			} else {
+				assertEquals(interner.getId(generateTree(i)), i);
+			}
+		}
+		assertEquals(interner.size(), 500);
+	}
+
+	@Test
+	public void testSerialization() throws IOException, ClassNotFoundException {
+		final TreeInterner<Integer> interner = new TreeInterner<Integer>();
+		for (int i = 0; i < 100; i++) {
+			interner.intern(generateTree(i));
+		}
+		interner.release(10);
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(interner);
+		out.close();
+		final ObjectInputStream in = new ObjectInputStream(
+				new ByteArrayInputStream(bytes.toByteArray()));
+		@SuppressWarnings("unchecked")
+		final TreeInterner<Integer> readInterner = (TreeInterner<Integer>) in
+				.readObject();
+
+		// The table is rebuilt
+		assertEquals(readInterner.size(), 99);
+		assertEquals(readInterner.getId(generateTree(10)), -1);
+		assertEquals(readInterner.getId(generateTree(42)), 42);
+		assertEquals(readInterner.intern(generateTree(100)), 10);
+	}
+
+}
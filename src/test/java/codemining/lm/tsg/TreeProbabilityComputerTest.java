@@ -5,8 +5,13 @@ package codemining.lm.tsg;
 
 import static org.junit.Assert.assertEquals;
 
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
 import org.junit.Test;
 
+import com.google.common.base.Functions;
 import com.google.common.base.Predicate;
 import com.google.common.math.DoubleMath;
 
@@ -44,6 +49,12 @@ public class TreeProbabilityComputerTest {
 
 			return DoubleMath.log2(nRulesInGrammar / nRulesCommonRoot);
 		}
+
+		@Override
+		public ITsgPosteriorProbabilityComputer<String> copyFor(
+				final TSGrammar<String> grammar) {
+			return new MlPosteriorComputer(grammar);
+		}
 	}
 
 	/**
@@ -169,4 +180,79 @@ public class TreeProbabilityComputerTest {
 				Double.NEGATIVE_INFINITY, 10E-10);
 
 	}
+
+	@Test
+	public void testIndexedMatchesScan() {
+		final TSGrammar<String> grammar = new TSGrammar<String>();
+		grammar.setPosteriorComputer(new MlPosteriorComputer(grammar));
+
+		grammar.addTree(generateTree());
+		grammar.addTree(generateRule1());
+		grammar.addTree(generateRule2());
+		grammar.addTree(generateRule3());
+		grammar.addTree(generateRule4());
+
+		final TreeNode<String> fullTree = generateTree();
+		fullTree.getChild(0, 0).getChild(0, 0)
+				.addChildNode(TreeNode.create("D", 1), 0);
+
+		for (final boolean requireAllChildren : new boolean[] { true, false }) {
+			final TreeProbabilityComputer<String> scanning = new TreeProbabilityComputer<String>(
+					grammar, requireAllChildren, DEFAULT_MATCHER);
+			final TreeProbabilityComputer<String> indexed = new TreeProbabilityComputer<String>(
+					grammar, requireAllChildren, DEFAULT_MATCHER,
+					Functions.<String> identity());
+			for (final TreeNode<String> tree : new TreeNode[] {
+					generateTree(), fullTree, generateRule1(),
+					generateRule2(), generateRule3(), generateRule4() }) {
+				assertEquals(scanning.getLog2ProbabilityOf(tree),
+						indexed.getLog2ProbabilityOf(tree), 10E-10);
+			}
+		}
+	}
+
+	@Test
+	public void testIndexUpdatedWithGrammar() {
+		final TSGrammar<String> grammar = new TSGrammar<String>();
+		grammar.setPosteriorComputer(new MlPosteriorComputer(grammar));
+
+		grammar.addTree(generateTree());
+		grammar.addTree(generateRule1());
+		grammar.addTree(generateRule2());
+		grammar.addTree(generateRule3());
+
+		final TreeProbabilityComputer<String> computer = new TreeProbabilityComputer<String>(
+				grammar, true, DEFAULT_MATCHER, Functions.<String> identity());
+		assertEquals(computer.getLog2ProbabilityOf(generateTree()),
+				DoubleMath.log2(3. / 4.), 10E-10);
+
+		final TreeNode<String> fullTree = generateTree();
+		fullTree.getChild(0, 0).getChild(0, 0)
+				.addChildNode(TreeNode.create("D", 1), 0);
+
+		grammar.addTree(generateRule4());
+		assertEquals(computer.getLog2ProbabilityOf(fullTree),
+				Double.NEGATIVE_INFINITY, 10E-10);
+	}
+
+	@Test
+	public void testConcurrentScoring() {
+		final TSGrammar<String> grammar = new TSGrammar<String>();
+		grammar.setPosteriorComputer(new MlPosteriorComputer(grammar));
+		grammar.addTree(generateTree());
+		grammar.addTree(generateRule1());
+		grammar.addTree(generateRule2());
+		grammar.addTree(generateRule3());
+
+		final TreeProbabilityComputer<String> computer = new TreeProbabilityComputer<String>(
+				grammar, false, DEFAULT_MATCHER, Functions.<String> identity());
+		final double expected = computer.getLog2ProbabilityOf(generateTree());
+
+		final List<Double> scores = IntStream.range(0, 1000).parallel()
+				.mapToObj(i -> computer.getLog2ProbabilityOf(generateTree()))
+				.collect(Collectors.toList());
+		for (final double score : scores) {
+			assertEquals(score, expected, 10E-10);
+		}
+	}
 }
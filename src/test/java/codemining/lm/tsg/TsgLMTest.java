@@ -0,0 +1,185 @@
+/**
+ *
+ */
+package codemining.lm.tsg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import codemining.ast.AbstractTreeExtractor;
+import codemining.ast.TreeNode;
+import codemining.java.tokenizers.JavaTokenizer;
+import codemining.languagetools.ITokenizer;
+import codemining.languagetools.ParseType;
+import codemining.lm.tsg.TsgLM.CodeScore;
+import codemining.lm.tsg.samplers.CollapsedGibbsSampler;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class TsgLMTest {
+
+	/**
+	 * A tree extractor where the code is a list of numbers, the children of
+	 * the root.
+	 */
+	private static final class NumberTreeExtractor extends
+			AbstractTreeExtractor {
+
+		private static final long serialVersionUID = 1L;
+
+		private final ITokenizer tokenizer = new JavaTokenizer();
+
+		@Override
+		public String getCodeFromTree(final TreeNode<Integer> tree) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public TreeNode<Integer> getKeyForCompilationUnit() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public ITokenizer getTokenizer() {
+			return tokenizer;
+		}
+
+		@Override
+		public TreeNode<Integer> getTree(final File f) throws IOException {
+			return getTree(FileUtils.readFileToString(f),
+					ParseType.COMPILATION_UNIT);
+		}
+
+		@Override
+		public TreeNode<Integer> getTree(final String code,
+				final ParseType parseType) {
+			final TreeNode<Integer> root = TreeNode.create(1, 1);
+			for (final String child : code.trim().split("\\s+")) {
+				if (!child.isEmpty()) {
+					root.addChildNode(
+							TreeNode.create(Integer.parseInt(child), 0), 0);
+				}
+			}
+			return root;
+		}
+
+		@Override
+		public TreeToString getTreePrinter() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Check the score against the single file API of the LM.
+	 */
+	private static void assertScore(final CodeScore score,
+			final String source, final String code, final TsgLM lm) {
+		final int nTokens = new JavaTokenizer().tokenListFromCode(
+				code.toCharArray()).size();
+		assertEquals(score.source, source);
+		assertEquals(score.log2Prob, lm.getAbsoluteEntropy(code), 10E-10);
+		assertTrue(score.log2Prob < 0);
+		assertFalse(Double.isInfinite(score.log2Prob));
+		assertEquals(score.nTokens, nTokens);
+		assertEquals(score.crossEntropy, score.log2Prob / nTokens, 10E-10);
+		assertEquals(score.crossEntropy, lm.getExtrinsticEntropy(code),
+				10E-10);
+	}
+
+	/**
+	 * Return an LM trained on the code "2 3" (three times) and "2".
+	 */
+	private static TsgLM createLM() {
+		final AbstractTreeExtractor format = new NumberTreeExtractor();
+		final FormattedTSGrammar grammar = new FormattedTSGrammar(format);
+		final CollapsedGibbsSampler sampler = new CollapsedGibbsSampler(10,
+				10, grammar, grammar);
+		for (int i = 0; i < 3; i++) {
+			sampler.addTree(TSGNode.convertTree(
+					format.getTree("2 3", ParseType.COMPILATION_UNIT), 0), true);
+		}
+		sampler.addTree(TSGNode.convertTree(
+				format.getTree("2", ParseType.COMPILATION_UNIT), 0), true);
+		sampler.lockSamplerData();
+		return new TsgLM(sampler.getSampleGrammar());
+	}
+
+	@Test
+	public void testCodeScore() {
+		final CodeScore score = new CodeScore("a", -6, 3);
+		assertEquals(score.crossEntropy, -2, 10E-10);
+		assertEquals(score.toString(), "a,-6.0,3,-2.0");
+		assertEquals(new CodeScore("b", -6, 0).crossEntropy, 0, 10E-10);
+	}
+
+	@Test
+	public void testScoreCode() {
+		final TsgLM lm = createLM();
+		final Map<String, CodeScore> scores = Maps.newConcurrentMap();
+		lm.scoreCode(ImmutableMap.of("a", "2 3", "b", "2")).forEach(
+				score -> scores.put(score.source, score));
+		assertEquals(scores.size(), 2);
+		assertScore(scores.get("a"), "a", "2 3", lm);
+		assertScore(scores.get("b"), "b", "2", lm);
+		// The more frequent code is more probable
+		assertTrue(scores.get("a").log2Prob > scores.get("b").log2Prob);
+	}
+
+	@Test
+	public void testScoreFiles() throws IOException {
+		final TsgLM lm = createLM();
+		final File file1 = File.createTempFile("tsglm", ".txt");
+		file1.deleteOnExit();
+		final File file2 = File.createTempFile("tsglm", ".txt");
+		file2.deleteOnExit();
+		final File missingFile = new File(file1.getPath() + ".missing");
+
+		// The files are only read and scored as the stream is consumed
+		final Stream<CodeScore> scoreStream = lm.scoreFiles(Lists
+				.newArrayList(file1, missingFile, file2));
+		FileUtils.writeStringToFile(file1, "2 3");
+		FileUtils.writeStringToFile(file2, "2");
+
+		final Map<String, CodeScore> scores = Maps.newConcurrentMap();
+		scoreStream.forEach(score -> scores.put(score.source, score));
+		assertEquals(scores.size(), 2);
+		assertScore(scores.get(file1.toString()), file1.toString(), "2 3",
+				lm);
+		assertScore(scores.get(file2.toString()), file2.toString(), "2", lm);
+	}
+
+	@Test
+	public void testSerialization() throws IOException, ClassNotFoundException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(createLM());
+		out.close();
+		final ObjectInputStream in = new ObjectInputStream(
+				new ByteArrayInputStream(bytes.toByteArray()));
+		final TsgLM lm = (TsgLM) in.readObject();
+
+		assertScore(lm.score("a", "2 3"), "a", "2 3", lm);
+		assertEquals(lm.score("a", "2 3").log2Prob,
+				createLM().score("a", "2 3").log2Prob, 10E-10);
+	}
+
+}
@@ -0,0 +1,116 @@
+/**
+ *
+ */
+package codemining.lm.tsg.samplers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import org.junit.Test;
+
+import codemining.ast.TreeNode;
+import codemining.ast.java.AbstractJavaTreeExtractor;
+import codemining.lm.cfg.ContextFreeGrammar;
+import codemining.lm.tsg.TSGNode;
+
+/**
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class CFGPriorTest {
+
+	private TreeNode<Integer> generateSampleTree(final int leaf) {
+		final TreeNode<Integer> root = TreeNode.create(1, 2);
+		final TreeNode<Integer> child1 = TreeNode.create(2, 1);
+		final TreeNode<Integer> child2 = TreeNode.create(3, 1);
+		root.addChildNode(child1, 0);
+		root.addChildNode(child2, 1);
+		child1.addChildNode(TreeNode.create(leaf, 0), 0);
+		child2.addChildNode(TreeNode.create(5, 0), 0);
+		return root;
+	}
+
+	private CFGPrior createPrior() {
+		final ContextFreeGrammar cfgForRules = new ContextFreeGrammar(
+				mock(AbstractJavaTreeExtractor.class));
+		return new CFGPrior(mock(AbstractJavaTreeExtractor.class),
+				node -> cfgForRules.createCFRuleForNode(TSGNode
+						.tsgTreeToInt(node)));
+	}
+
+	@Test
+	public void testLockedPriorIsCachedInCorpusNodes() {
+		final CFGPrior prior = createPrior();
+		final TreeNode<TSGNode> tree1 = TSGNode.convertTree(
+				generateSampleTree(4), 0).toImmutable();
+		final TreeNode<TSGNode> tree2 = TSGNode.convertTree(
+				generateSampleTree(6), 0).toImmutable();
+		prior.addCFGRulesFrom(tree1);
+		prior.addCFGRulesFrom(tree2);
+		prior.addCFGRulesFrom(tree2);
+
+		final double unlockedLog2Prob = prior.getTreeCFLog2Probability(tree1);
+		final double unlockedSubTreeLog2Prob = prior
+				.getSubTreeFromRootCFLog2Probability(tree2);
+		assertEquals(unlockedLog2Prob, unlockedSubTreeLog2Prob
+				+ Math.log(1. / 2) / Math.log(2), 10E-10);
+		assertFalse(tree1.getData().hasCfgLog2Prob(prior));
+
+		prior.lockPrior();
+		assertTrue(prior.isLocked());
+		assertEquals(prior.getTreeCFLog2Probability(tree1), unlockedLog2Prob,
+				10E-10);
+		assertTrue(tree1.getData().hasCfgLog2Prob(prior));
+		assertTrue(tree1.getChild(0, 0).getData().hasCfgLog2Prob(prior));
+
+		// Cached values are used
+		assertEquals(prior.getTreeCFLog2Probability(tree1), unlockedLog2Prob,
+				10E-10);
+		assertEquals(prior.getSubTreeFromRootCFLog2Probability(tree2),
+				unlockedSubTreeLog2Prob, 10E-10);
+
+		// Joined trees are the sum of their parts
+		tree1.getChild(0, 0).getData().isRoot = true;
+		assertEquals(
+				prior.getSubTreeFromRootCFLog2Probability(tree1)
+						+ prior.getSubTreeFromRootCFLog2Probability(tree1
+								.getChild(0, 0)), unlockedLog2Prob, 10E-10);
+
+		// Copies are not cached
+		final TreeNode<TSGNode> copy = TSGNode.getSubTreeFromRoot(tree1);
+		assertEquals(prior.getTreeCFLog2Probability(copy),
+				prior.getSubTreeFromRootCFLog2Probability(tree1), 10E-10);
+		assertFalse(copy.getData().hasCfgLog2Prob(prior));
+	}
+
+	@Test
+	public void testLockedCopiesDoNotShareCachedValues() {
+		final CFGPrior prior = createPrior();
+		final TreeNode<TSGNode> tree1 = TSGNode.convertTree(
+				generateSampleTree(4), 0).toImmutable();
+		final TreeNode<TSGNode> tree2 = TSGNode.convertTree(
+				generateSampleTree(6), 0).toImmutable();
+		prior.addCFGRulesFrom(tree1);
+		prior.addCFGRulesFrom(tree2);
+		prior.addCFGRulesFrom(tree2);
+		prior.lockPrior();
+
+		final double log2Prob = prior.getTreeCFLog2Probability(tree1);
+		assertEquals(log2Prob, Math.log(1. / 3) / Math.log(2), 10E-10);
+		assertTrue(tree1.getData().hasCfgLog2Prob(prior));
+
+		// The copy shares the locked CFG, but sees every node as the root rule
+		final CFGPrior copy = prior.copy(node -> prior.getInternalGrammar()
+				.createCFRuleForNode(TSGNode.tsgTreeToInt(tree2)));
+		assertFalse(tree1.getData().hasCfgLog2Prob(copy));
+		assertEquals(copy.getTreeCFLog2Probability(tree1), 0, 10E-10);
+		assertTrue(tree1.getData().hasCfgLog2Prob(copy));
+
+		// and the values of the original prior are recomputed
+		assertFalse(tree1.getData().hasCfgLog2Prob(prior));
+		assertEquals(prior.getTreeCFLog2Probability(tree1), log2Prob, 10E-10);
+	}
+
+}
@@ -1,9 +1,11 @@
 package codemining.lm.tsg.samplers;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.mockito.Mockito.mock;
 
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.Test;
 
@@ -12,6 +14,7 @@ import codemining.ast.java.AbstractJavaTreeExtractor;
 import codemining.lm.cfg.AbstractContextFreeGrammar;
 import codemining.lm.cfg.AbstractContextFreeGrammar.NodeConsequent;
 import codemining.lm.tsg.FormattedTSGrammar;
+import codemining.lm.tsg.FrozenTSGrammar;
 import codemining.lm.tsg.TSGNode;
 import codemining.lm.tsg.samplers.AbstractCollapsedGibbsSampler;
 import codemining.lm.tsg.samplers.CollapsedGibbsSampler;
@@ -82,6 +85,41 @@ public class CollapsedGibbsSamplerTest {
 				DoubleMath.log2((1. + 10 * prior) / 11), 10E-10);
 	}
 
+	@Test
+	public void testFrozenPosteriors() {
+		final FormattedTSGrammar mockGrammar = new FormattedTSGrammar(
+				mock(AbstractJavaTreeExtractor.class));
+		final CollapsedGibbsSampler sampler = new CollapsedGibbsSampler(10, 10,
+				mockGrammar, mockGrammar);
+		sampler.addTree(generateSampleTree(), true);
+
+		final TreeNode<TSGNode> otherTree = generateSampleTree();
+		otherTree.getChild(0, 0).addChildNode(
+				TreeNode.create(new TSGNode(7), 0), 0);
+
+		final FrozenTSGrammar<TSGNode> frozen = sampler.getSampleGrammar()
+				.freeze();
+		final double treeLog2Prob = frozen
+				.computeRulePosteriorLog2Probability(generateSampleTree());
+		final double otherTreeLog2Prob = frozen
+				.computeRulePosteriorLog2Probability(otherTree);
+		assertEquals(treeLog2Prob, sampler.getSampleGrammar()
+				.computeRulePosteriorLog2Probability(generateSampleTree()),
+				10E-10);
+
+		// Change both the counts and the prior of the original grammar
+		sampler.addTree(otherTree, true);
+		assertFalse(Math.abs(otherTreeLog2Prob
+				- sampler.getSampleGrammar()
+						.computeRulePosteriorLog2Probability(otherTree)) < 1);
+
+		assertEquals(
+				frozen.computeRulePosteriorLog2Probability(generateSampleTree()),
+				treeLog2Prob, 10E-10);
+		assertEquals(frozen.computeRulePosteriorLog2Probability(otherTree),
+				otherTreeLog2Prob, 10E-10);
+	}
+
 	@Test
 	public void testGetPosteriorProbabilityForTree() {
 		final FormattedTSGrammar mockGrammar = new FormattedTSGrammar(
@@ -209,6 +247,61 @@ public class CollapsedGibbsSamplerTest {
 		assertEquals(((double) countRoot) / 10000, .09, .1);
 	}
 
+	/**
+	 * A sampler that keeps its sample fixed and is stopped during the given
+	 * iteration.
+	 */
+	private static class StoppingSampler extends CollapsedGibbsSampler {
+		private static final long serialVersionUID = 1L;
+
+		int stopAtIteration = -1;
+
+		StoppingSampler(final FormattedTSGrammar sampleGrammar,
+				final FormattedTSGrammar burninGrammar) {
+			super(10, 10, sampleGrammar, burninGrammar);
+		}
+
+		@Override
+		public void sampleAllTreesOnce(final int currentIteration,
+				final int totalIterations, final AtomicBoolean stop) {
+			if (currentIteration == stopAtIteration) {
+				stop.set(true);
+			}
+		}
+	}
+
+	@Test
+	public void testResumeAfterStop() {
+		final AbstractJavaTreeExtractor extractor = mock(AbstractJavaTreeExtractor.class);
+		final StoppingSampler sampler = new StoppingSampler(
+				new FormattedTSGrammar(extractor), new FormattedTSGrammar(
+						extractor));
+		sampler.addTree(generateSampleTree(), true);
+
+		final int iterations = 20;
+		int burninIterations = 0;
+		for (int i = 0; i < iterations; i++) {
+			if (i > AbstractTSGSampler.BURN_IN_PCT * iterations) {
+				burninIterations++;
+			}
+		}
+
+		// Stop during the second to last iteration, which is after burn-in
+		sampler.stopAtIteration = iterations - 2;
+		final int completedIterations = sampler.performSampling(0, iterations);
+		assertEquals(completedIterations, iterations - 2);
+		assertEquals(sampler.getBurnInGrammar().countAllTrees(),
+				(burninIterations - 2)
+						* sampler.getSampleGrammar().countAllTrees());
+
+		// Resuming samples the interrupted iteration again, but adds it once
+		sampler.stopAtIteration = -1;
+		assertEquals(sampler.performSampling(completedIterations, iterations),
+				iterations);
+		assertEquals(sampler.getBurnInGrammar().countAllTrees(),
+				burninIterations * sampler.getSampleGrammar().countAllTrees());
+	}
+
 	@Test
 	public void testSampleWithLock() {
 		final FormattedTSGrammar mockGrammar = new FormattedTSGrammar(
@@ -0,0 +1,73 @@
+/**
+ *
+ */
+package codemining.lm.tsg.samplers;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.commons.math3.util.ArithmeticUtils;
+import org.junit.Test;
+
+import codemining.util.StatsUtil;
+
+import com.google.common.math.DoubleMath;
+
+/**
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class Log2TableTest {
+
+	@Test
+	public void testBinomials() {
+		for (final int n : new int[] { 0, 1, 5, 100, 3000 }) {
+			for (int k = 0; k <= n; k += Math.max(1, n / 20)) {
+				assertEquals(
+						ArithmeticUtils.binomialCoefficientLog(n, k)
+								/ Math.log(2),
+						Log2Table.INTEGERS.log2Binomial(n, k), 10E-6);
+			}
+		}
+	}
+
+	@Test
+	public void testLargeValues() {
+		final Log2Table table = new Log2Table(.5);
+		final long n = Log2Table.MAX_SIZE + 10L;
+		assertEquals(DoubleMath.log2(n + .5), table.get(n), 10E-10);
+		double sum = 0;
+		for (long i = Log2Table.MAX_SIZE - 5; i < n; i++) {
+			sum += DoubleMath.log2(i + .5);
+		}
+		assertEquals(sum, table.sum(Log2Table.MAX_SIZE - 5, n), 10E-6);
+	}
+
+	@Test
+	public void testLog2SumOfExponentials() {
+		for (final double[] pair : new double[][] { { 0, 0 }, { -3, 2.5 },
+				{ -1000, -1001 }, { Double.NEGATIVE_INFINITY, -2 },
+				{ 10, -60 } }) {
+			assertEquals(StatsUtil.log2SumOfExponentials(pair[0], pair[1]),
+					Log2Table.log2SumOfExponentials(pair[0], pair[1]), 10E-10);
+		}
+		assertEquals(Double.NEGATIVE_INFINITY,
+				Log2Table.log2SumOfExponentials(Double.NEGATIVE_INFINITY,
+						Double.NEGATIVE_INFINITY), 0);
+	}
+
+	@Test
+	public void testValues() {
+		final Log2Table table = new Log2Table(2.5);
+		for (final long n : new long[] { 0, 1, 7, 1023, 1024, 5000, 100000 }) {
+			assertEquals(DoubleMath.log2(n + 2.5), table.get(n), 10E-10);
+			assertEquals(DoubleMath.log2(n), Log2Table.INTEGERS.get(n), 10E-10);
+		}
+
+		double sum = 0;
+		for (int i = 3; i < 4000; i++) {
+			sum += DoubleMath.log2(i + 2.5);
+		}
+		assertEquals(sum, table.sum(3, 4000), 10E-8);
+		assertEquals(0, table.sum(10, 10), 0);
+	}
+}
@@ -0,0 +1,71 @@
+package codemining.lm.tsg.samplers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import codemining.lm.tsg.samplers.PeriodicCheckpointer.ISamplerSnapshot;
+
+public class PeriodicCheckpointerTest {
+
+	private static ISamplerSnapshot snapshotOf(final int completedIterations) {
+		return file -> Files.write(file.toPath(),
+				Integer.toString(completedIterations).getBytes());
+	}
+
+	private static String read(final File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()));
+	}
+
+	@Test
+	public void testIterationInterval() throws IOException {
+		final File directory = Files.createTempDirectory("checkpoints")
+				.toFile();
+		final PeriodicCheckpointer checkpointer = new PeriodicCheckpointer(
+				directory, "sampler", PeriodicCheckpointerTest::snapshotOf, 2,
+				0, 2);
+		assertNull(checkpointer.getLatestCheckpoint());
+
+		for (int i = 1; i <= 7; i++) {
+			checkpointer.iterationCompleted(i);
+			checkpointer.awaitPendingWrite();
+		}
+		checkpointer.shutdown();
+
+		assertEquals(checkpointer.getLatestCheckpoint(),
+				checkpointer.getCheckpointFile(6));
+		assertEquals(read(checkpointer.getCheckpointFile(6)), "6");
+		assertEquals(read(checkpointer.getCheckpointFile(4)), "4");
+		assertFalse(checkpointer.getCheckpointFile(2).exists());
+		assertFalse(checkpointer.getCheckpointFile(7).exists());
+		assertEquals(directory.list().length, 2);
+	}
+
+	@Test
+	public void testWriteCheckpoint() throws IOException {
+		final File directory = Files.createTempDirectory("checkpoints")
+				.toFile();
+		final PeriodicCheckpointer checkpointer = new PeriodicCheckpointer(
+				directory, "sampler", PeriodicCheckpointerTest::snapshotOf, 0,
+				0, 1);
+		for (int i = 1; i <= 3; i++) {
+			checkpointer.iterationCompleted(i);
+		}
+		assertNull(checkpointer.getLatestCheckpoint());
+
+		checkpointer.writeCheckpoint(3);
+		checkpointer.writeCheckpoint(3);
+		checkpointer.shutdown();
+		assertTrue(checkpointer.getCheckpointFile(3).exists());
+		assertEquals(read(checkpointer.getLatestCheckpoint()), "3");
+		assertEquals(directory.list().length, 1);
+	}
+
+}
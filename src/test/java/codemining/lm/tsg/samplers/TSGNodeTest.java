@@ -10,6 +10,8 @@ import codemining.ast.TreeNode;
 import codemining.lm.tsg.TSGNode;
 import codemining.lm.tsg.samplers.blocked.TreeWithNodeIndex;
 
+import com.google.common.collect.ImmutableList;
+
 public class TSGNodeTest {
 
 	/**
@@ -80,6 +82,40 @@ public class TSGNodeTest {
 
 	}
 
+	@Test
+	public void testSubTreeFromRootProbing() {
+		final TreeNode<TSGNode> tree = generateSampleTree()
+				.toImmutableStructure();
+		final TreeNode<TSGNode> child1 = tree.getChild(0, 0);
+		final TreeNode<TSGNode> child2 = tree.getChild(0, 1);
+
+		for (int i = 0; i < 4; i++) {
+			child1.getData().isRoot = (i & 1) != 0;
+			child2.getData().isRoot = (i & 2) != 0;
+			for (final TreeNode<TSGNode> top : ImmutableList.of(tree, child1,
+					child2)) {
+				if (!top.getData().isRoot) {
+					continue;
+				}
+				final TreeNode<TSGNode> subTree = TSGNode
+						.getSubTreeFromRoot(top);
+				assertEquals(TSGNode.getSubTreeFromRootHash(top),
+						subTree.hashCode());
+				assertEquals(TSGNode.getSubTreeFromRootSize(top),
+						subTree.getTreeSize());
+				assertTrue(TSGNode.getSubTreeFromRootMatcher(top).apply(
+						subTree));
+				assertTrue(TSGNode.getSubTreeFromRootMatcher(top).apply(
+						subTree.toImmutable()));
+			}
+		}
+
+		child1.getData().isRoot = true;
+		final TreeNode<TSGNode> split = TSGNode.getSubTreeFromRoot(tree);
+		child1.getData().isRoot = false;
+		assertFalse(TSGNode.getSubTreeFromRootMatcher(tree).apply(split));
+	}
+
 	@Test
 	public void testConversion() {
 		final TreeNode<TSGNode> tree1 = generateSampleTree();
@@ -104,6 +140,25 @@ public class TSGNodeTest {
 		assertEquals(tree1, TSGNode.getSubTreeFromRoot(tree1));
 	}
 
+	@Test
+	public void testImmutableStructureHash() {
+		final TreeNode<TSGNode> tree = generateSampleTree()
+				.toImmutableStructure();
+		final TreeNode<TSGNode> unchanged = generateSampleTree().toImmutable();
+		assertEquals(tree, unchanged);
+		assertEquals(tree.hashCode(), unchanged.hashCode());
+
+		// The root flags of the corpus trees change during sampling
+		tree.getChild(0, 1).getData().isRoot = true;
+		final TreeNode<TSGNode> changed = generateSampleTree();
+		changed.getChild(0, 1).getData().isRoot = true;
+		assertFalse(tree.equals(unchanged));
+		assertFalse(unchanged.equals(tree));
+		assertEquals(tree, changed.toImmutable());
+		assertEquals(changed.toImmutable(), tree);
+		assertEquals(tree.hashCode(), changed.toImmutable().hashCode());
+	}
+
 	@Test
 	public void testTreesMatchToRoot() {
 		final TreeWithNodeIndex tree1 = TreeWithNodeIndex.generateTree1();
@@ -2,13 +2,29 @@ package codemining.lm.tsg.samplers;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 
+import codemining.ast.FixtureTreeExtractor;
 import codemining.ast.TreeNode;
+import codemining.lm.tsg.FormattedTSGrammar;
 import codemining.lm.tsg.ITreeSubstitutionGrammar;
+import codemining.lm.tsg.TSGNode;
 import codemining.lm.tsg.TSGrammar;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
+
 public class TSGrammarTest {
 
 	private TreeNode<Integer> generateSampleTree1() {
@@ -75,6 +91,143 @@ public class TSGrammarTest {
 		return root;
 	}
 
+	private TreeNode<Integer> generatePairTree(final int root, final int child) {
+		final TreeNode<Integer> tree = TreeNode.create(root, 1);
+		tree.addChildNode(TreeNode.create(child, 0), 0);
+		return tree;
+	}
+
+	private TreeNode<TSGNode> generateRareSampledTree() {
+		final TreeNode<TSGNode> root = generateSampledNode(7, true, 1);
+		root.addChildNode(generateSampledNode(8, false, 0), 0);
+		return root;
+	}
+
+	private TreeNode<TSGNode> generateSampledNode(final int symbol,
+			final boolean isRoot, final int nProperties) {
+		final TSGNode node = new TSGNode(symbol);
+		node.isRoot = isRoot;
+		return TreeNode.create(node, nProperties);
+	}
+
+	private TreeNode<TSGNode> generateSampledTree(final boolean split) {
+		final TreeNode<TSGNode> root = generateSampledNode(1, true, 2);
+
+		final TreeNode<TSGNode> child1 = generateSampledNode(2, false, 1);
+		final TreeNode<TSGNode> child2 = generateSampledNode(3, split, 1);
+
+		root.addChildNode(child1, 0);
+		root.addChildNode(child2, 1);
+
+		child1.addChildNode(generateSampledNode(4, false, 0), 0);
+		child2.addChildNode(generateSampledNode(5, false, 0), 0);
+		child2.addChildNode(generateSampledNode(6, false, 0), 0);
+
+		return root;
+	}
+
+	/**
+	 * Sample a grammar the same way as the grammar in OldFormatTSGrammar.ser
+	 * was sampled.
+	 */
+	private FormattedTSGrammar sampleGrammar() {
+		final FixtureTreeExtractor format = new FixtureTreeExtractor();
+		final CollapsedGibbsSampler sampler = new CollapsedGibbsSampler(10, 10,
+				new FormattedTSGrammar(format), new FormattedTSGrammar(format));
+		for (int i = 0; i < 3; i++) {
+			sampler.addTree(generateSampledTree(false), true);
+		}
+		for (int i = 0; i < 2; i++) {
+			sampler.addTree(generateSampledTree(true), true);
+		}
+		sampler.addTree(generateRareSampledTree(), true);
+		sampler.lockSamplerData();
+		sampler.pruneRareTrees(2);
+		return (FormattedTSGrammar) sampler.getSampleGrammar();
+	}
+
+	@Test
+	public void testCachedRootViews() {
+		final TSGrammar<Integer> grammar = new TSGrammar<Integer>();
+		grammar.addTree(generateSampleTree1(), 3);
+		grammar.addTree(generateSampleTree2());
+
+		final Map<Integer, ? extends Multiset<TreeNode<Integer>>> internal = grammar
+				.getInternalGrammar();
+		assertTrue(grammar.getInternalGrammar() == internal);
+
+		grammar.addTree(generateSampleTree3());
+		final Map<Integer, ? extends Multiset<TreeNode<Integer>>> changed = grammar
+				.getInternalGrammar();
+		// Only the changed root is rebuilt and the old view is a snapshot
+		assertTrue(changed.get(6) == internal.get(6));
+		assertEquals(internal.get(1).size(), 3);
+		assertEquals(changed.get(1).size(), 4);
+		assertEquals(changed.get(1).count(generateSampleTree3()), 1);
+
+		grammar.removeTree(generateSampleTree1(), 3);
+		grammar.removeTree(generateSampleTree3());
+		assertEquals(grammar.getInternalGrammar().size(), 1);
+		grammar.addTree(generateSampleTree3());
+		assertEquals(grammar.getInternalGrammar().get(1).size(), 1);
+		assertEquals(
+				grammar.getInternalGrammar().get(1)
+						.count(generateSampleTree3()), 1);
+	}
+
+	@Test
+	public void testConcurrentUpdates() throws Exception {
+		final TSGrammar<Integer> grammar = new TSGrammar<Integer>();
+		grammar.addTree(generatePairTree(0, 0), 2);
+		final Map<Integer, ? extends Multiset<TreeNode<Integer>>> internal = grammar
+				.getInternalGrammar();
+		// Changing the count of an existing tree invalidates the views
+		grammar.addTree(generatePairTree(0, 0));
+		assertEquals(internal.get(0).size(), 2);
+		assertEquals(grammar.getInternalGrammar().get(0).size(), 3);
+		grammar.removeTree(generatePairTree(0, 0));
+		assertEquals(grammar.getInternalGrammar().get(0).size(), 2);
+
+		final int nThreads = 4;
+		final ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+		final List<Future<?>> results = Lists.newArrayList();
+		for (int thread = 1; thread <= nThreads; thread++) {
+			final int root = thread;
+			results.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 2000; i++) {
+						// Trees of the same and of different roots
+						grammar.addTree(generatePairTree(root, i % 5));
+						grammar.addTree(generatePairTree(0, i % 3));
+						if (i % 2 == 1) {
+							grammar.removeTree(generatePairTree(root, i % 5));
+							grammar.removeTree(generatePairTree(0, i % 3));
+						}
+					}
+				}
+			}));
+		}
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+		for (final Future<?> result : results) {
+			result.get();
+		}
+
+		assertEquals(grammar.countTreesWithRoot(0), 2 + nThreads * 1000);
+		for (int root = 1; root <= nThreads; root++) {
+			assertEquals(grammar.countTreesWithRoot(root), 1000);
+			long total = 0;
+			for (int child = 0; child < 5; child++) {
+				total += grammar.countTreeOccurences(generatePairTree(root,
+						child));
+			}
+			assertEquals(total, 1000);
+			assertEquals(grammar.getInternalGrammar().get(root).size(), 1000);
+		}
+		assertEquals(grammar.countAllTrees(), 2 + 2 * nThreads * 1000);
+	}
+
 	@Test
 	public void testGrammar() {
 		final ITreeSubstitutionGrammar<Integer> grammar = new TSGrammar<Integer>();
@@ -112,4 +265,77 @@ public class TSGrammarTest {
 		assertEquals(grammar.countTreesWithRoot(1), 2);
 	}
 
+	@Test
+	public void testInternalGrammarAndPrune() {
+		final TSGrammar<Integer> grammar = new TSGrammar<Integer>();
+		grammar.addTree(generateSampleTree1(), 3);
+		grammar.addTree(generateSampleTree3());
+		grammar.addTree(generateSampleTree2());
+
+		Map<Integer, ? extends Multiset<TreeNode<Integer>>> internal = grammar
+				.getInternalGrammar();
+		assertEquals(internal.size(), 2);
+		assertEquals(internal.get(1).count(generateSampleTree1()), 3);
+		assertEquals(internal.get(1).count(generateSampleTree3()), 1);
+		assertEquals(internal.get(6).size(), 1);
+
+		grammar.prune(2);
+		internal = grammar.getInternalGrammar();
+		assertEquals(internal.size(), 1);
+		assertEquals(internal.get(1).count(generateSampleTree1()), 3);
+		assertEquals(internal.get(1).count(grammar.UNK_NODE), 1);
+		assertEquals(grammar.countTreeOccurences(generateSampleTree3()), 0);
+		assertEquals(grammar.countTreesWithRoot(1), 4);
+		assertEquals(grammar.countTreesWithRoot(6), 0);
+
+		assertEquals(grammar.removeTree(generateSampleTree1(), 5), -2);
+		assertEquals(grammar.countTreeOccurences(generateSampleTree1()), 0);
+		assertEquals(grammar.countTreesWithRoot(1), 1);
+	}
+
+	@Test
+	public void testReadOldFormat() throws IOException, ClassNotFoundException {
+		// The pruned sample grammar of a CollapsedGibbsSampler, serialized
+		// before the productions were interned
+		final ObjectInputStream in = new ObjectInputStream(
+				TSGrammarTest.class.getClassLoader().getResourceAsStream(
+						"OldFormatTSGrammar.ser"));
+		final FormattedTSGrammar grammar = (FormattedTSGrammar) in
+				.readObject();
+		in.close();
+		final FormattedTSGrammar sampledGrammar = sampleGrammar();
+
+		assertEquals(grammar.countAllTrees(), 7);
+		assertEquals(grammar.getInternalGrammar(),
+				sampledGrammar.getInternalGrammar());
+		final List<TreeNode<TSGNode>> rules = Lists.newArrayList(TSGNode
+				.getAllRootsOf(generateSampledTree(true)));
+		rules.addAll(TSGNode.getAllRootsOf(generateSampledTree(false)));
+		rules.add(generateRareSampledTree());
+		for (final TreeNode<TSGNode> rule : rules) {
+			assertEquals(grammar.countTreeOccurences(rule),
+					sampledGrammar.countTreeOccurences(rule));
+			assertEquals(grammar.countTreesWithRoot(rule.getData()),
+					sampledGrammar.countTreesWithRoot(rule.getData()));
+			assertEquals(grammar.computeRulePosteriorLog2Probability(rule),
+					sampledGrammar.computeRulePosteriorLog2Probability(rule),
+					10E-10);
+		}
+		assertEquals(grammar.countTreeOccurences(generateSampledTree(false)),
+				3);
+		// As computed by the code that wrote the grammar
+		assertEquals(grammar
+				.computeRulePosteriorLog2Probability(generateSampledTree(false)),
+				-2.0627098511895676, 10E-10);
+		assertEquals(grammar.countTreeOccurences(generateRareSampledTree()),
+				0);
+
+		grammar.addTree(generateRareSampledTree());
+		assertEquals(
+				grammar.countTreesWithRoot(generateRareSampledTree().getData()),
+				1);
+		grammar.removeTree(generateSampledTree(false), 3);
+		assertEquals(grammar.countAllTrees(), 5);
+	}
+
 }
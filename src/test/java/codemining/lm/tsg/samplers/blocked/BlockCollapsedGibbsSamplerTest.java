@@ -1,24 +1,69 @@
 package codemining.lm.tsg.samplers.blocked;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.commons.math3.util.ArithmeticUtils;
 import org.junit.Test;
 
 import com.google.common.math.DoubleMath;
 
+import codemining.ast.FixtureTreeExtractor;
 import codemining.ast.TreeNode;
 import codemining.ast.java.AbstractJavaTreeExtractor;
 import codemining.lm.cfg.AbstractContextFreeGrammar;
 import codemining.lm.cfg.AbstractContextFreeGrammar.NodeConsequent;
 import codemining.lm.tsg.FormattedTSGrammar;
 import codemining.lm.tsg.TSGNode;
-import codemining.lm.tsg.samplers.blocked.BlockCollapsedGibbsSampler;
+import codemining.lm.tsg.samplers.blocked.BlockCollapsedGibbsSampler.CandidateTreeStats;
+import codemining.lm.tsg.samplers.metrics.InMemoryMetricsSink;
+import codemining.lm.tsg.samplers.metrics.IterationMetrics;
+import codemining.util.StatsUtil;
 
 public class BlockCollapsedGibbsSamplerTest {
 
+    /**
+     * The distribution of m, computed term by term.
+     */
+    private static double[] naiveMDistribution(final CandidateTreeStats c, final int n, final int nSplit,
+            final double a) {
+        final long upperCount = c.upperCount - nSplit - (c.upperIsSameAsLower ? nSplit : 0L);
+        final long lowerCount = c.lowerCount - nSplit - (c.upperIsSameAsLower ? nSplit : 0L);
+        final long lowerRootCount = c.lowerRootCount - nSplit - (c.upperIsSameTypeAsLower ? n : 0L);
+        final long jointCount = c.joinedCount - (n - nSplit);
+        final long topRootCount = c.upperRootCount - n - (c.upperIsSameTypeAsLower ? nSplit : 0L);
+        final double log2a = DoubleMath.log2(a);
+
+        final double[] mLogProbs = new double[n + 1];
+        for (int m = 0; m <= n; m++) {
+            double log2Prob = ArithmeticUtils.binomialCoefficientLog(n, m) / Math.log(2);
+            for (int i = 0; i < m; i++) {
+                final int toAddNominator = i + (c.upperIsSameAsLower ? i : 0);
+                final int toAddDenominator = i + (c.upperIsSameTypeAsLower ? i : 0);
+                log2Prob += StatsUtil.log2SumOfExponentials(DoubleMath.log2(upperCount + toAddNominator),
+                        log2a + c.upperPriorLog2Prob)
+                        - DoubleMath.log2(topRootCount + toAddDenominator + a)
+                        + StatsUtil.log2SumOfExponentials(DoubleMath.log2(lowerCount + toAddNominator),
+                                log2a + c.lowerPriorLog2Prob)
+                        - DoubleMath.log2(lowerRootCount + toAddDenominator + a);
+            }
+            for (int i = 0; i < n - m; i++) {
+                log2Prob += StatsUtil.log2SumOfExponentials(DoubleMath.log2(jointCount + i),
+                        log2a + c.joinedPriorLog2Prob)
+                        - DoubleMath.log2(topRootCount + i + m + (c.upperIsSameTypeAsLower ? m : 0) + a);
+            }
+            mLogProbs[m] = log2Prob;
+        }
+        return mLogProbs;
+    }
+
     public TreeNode<TSGNode> generateSampleTree() {
         final TSGNode rootNode = new TSGNode(1);
         rootNode.isRoot = true;
@@ -158,6 +203,41 @@ public class BlockCollapsedGibbsSamplerTest {
         assertEquals(((double) countRoot) / 10000, .5, .1);
     }
 
+    @Test
+    public void testReadOldFormat() throws IOException, ClassNotFoundException {
+        // A sampler serialized before the corpus nodes were given dense ids,
+        // after adding five sample trees and locking the prior
+        final ObjectInputStream in = new ObjectInputStream(BlockCollapsedGibbsSamplerTest.class.getClassLoader()
+                .getResourceAsStream("OldFormatBlockCollapsedGibbsSampler.ser"));
+        final BlockCollapsedGibbsSampler sampler = (BlockCollapsedGibbsSampler) in.readObject();
+        in.close();
+
+        final FixtureTreeExtractor format = new FixtureTreeExtractor();
+        final BlockCollapsedGibbsSampler newSampler = new BlockCollapsedGibbsSampler(10, 10,
+                new FormattedTSGrammar(format), new FormattedTSGrammar(format));
+        for (int i = 0; i < 5; i++) {
+            newSampler.addTree(generateSampleTree(), true);
+        }
+        newSampler.lockSamplerData();
+
+        assertEquals(sampler.getSampleGrammar().getInternalGrammar(), newSampler.getSampleGrammar()
+                .getInternalGrammar());
+        assertEquals(sampler.getSampleGrammar().computeRulePosteriorLog2Probability(generateSampleTree()),
+                newSampler.getSampleGrammar().computeRulePosteriorLog2Probability(generateSampleTree()), 10E-10);
+        assertEquals(sampler.nodeType.getNumberOfNodes(), newSampler.nodeType.getNumberOfNodes());
+        assertEquals(sampler.nodeType.getSamplingSiteIds().length, newSampler.nodeType.getSamplingSiteIds().length);
+        final TreeNode<TSGNode> site = sampler.getTreeCorpus().get(0).getChild(0, 1);
+        assertEquals(sampler.nodeType.getSameTypeNodeIds(site).length, 5);
+        assertEquals(sampler.nodeType.getRootForNode(site), sampler.getTreeCorpus().get(0));
+
+        sampler.sampleAllTreesOnce(0, 1, new AtomicBoolean(false));
+        long nRoots = 0;
+        for (final TreeNode<TSGNode> tree : sampler.getTreeCorpus()) {
+            nRoots += TSGNode.getAllRootsOf(tree).size();
+        }
+        assertEquals(sampler.getSampleGrammar().countAllTrees(), nRoots);
+    }
+
     @Test
     public void testSampleWithLock() {
         final FormattedTSGrammar mockGrammar = new FormattedTSGrammar(mock(AbstractJavaTreeExtractor.class));
@@ -171,4 +251,71 @@ public class BlockCollapsedGibbsSamplerTest {
         testSampler(addedTree, toBeSampled, sampler);
     }
 
+
+    @Test
+    public void testSampleM() {
+        final FormattedTSGrammar mockGrammar = new FormattedTSGrammar(mock(AbstractJavaTreeExtractor.class));
+        final BlockCollapsedGibbsSampler sampler = new BlockCollapsedGibbsSampler(10, 3.5, mockGrammar, mockGrammar);
+
+        for (final boolean sameType : new boolean[] { false, true }) {
+            for (final boolean same : new boolean[] { false, true }) {
+                if (same && !sameType) {
+                    continue;
+                }
+                final int n = 40;
+                final int nSplit = 15;
+                final CandidateTreeStats stats = new CandidateTreeStats();
+                stats.upperIsSameTypeAsLower = sameType;
+                stats.upperIsSameAsLower = same;
+                stats.upperCount = 2 * nSplit + 3;
+                stats.lowerCount = 2 * nSplit;
+                stats.joinedCount = n - nSplit + 7;
+                stats.upperRootCount = 2 * n + 11;
+                stats.lowerRootCount = 2 * n + 5;
+                stats.upperPriorLog2Prob = -3.2;
+                stats.lowerPriorLog2Prob = -1200; // The pseudocount underflows
+                stats.joinedPriorLog2Prob = -7.9;
+
+                final double[] expected = naiveMDistribution(stats, n, nSplit, 3.5);
+                final double[] actual = sampler.sampleM(stats, n, nSplit);
+                assertEquals(expected.length, actual.length);
+                for (int m = 0; m <= n; m++) {
+                    assertEquals(expected[m], actual[m], 10E-6);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSweepTypeBlocks() {
+        final AbstractJavaTreeExtractor format = mock(AbstractJavaTreeExtractor.class);
+        final BlockCollapsedGibbsSampler sampler = new BlockCollapsedGibbsSampler(10, 10,
+                new FormattedTSGrammar(format), new FormattedTSGrammar(format));
+        for (int i = 0; i < 5; i++) {
+            sampler.addTree(generateSampleTree(), true);
+        }
+        sampler.lockSamplerData();
+        sampler.setSweepTypeBlocks(true);
+        final int nSites = sampler.nodeType.getSamplingSiteIds().length;
+
+        final InMemoryMetricsSink sink = new InMemoryMetricsSink();
+        sampler.addMetricsSink(sink);
+        sampler.performSampling(5);
+
+        final List<IterationMetrics> metrics = sink.getMetrics();
+        assertEquals(metrics.size(), 5);
+        for (final IterationMetrics iteration : metrics) {
+            // All the copies of a site are in the same block
+            assertTrue(iteration.skippedBlockSamples >= nSites * 4 / 5);
+            assertTrue(iteration.skippedBlockSamples < nSites);
+            assertTrue(iteration.nodesSampled >= nSites);
+        }
+
+        long nRoots = 0;
+        for (final TreeNode<TSGNode> tree : sampler.getTreeCorpus()) {
+            nRoots += TSGNode.getAllRootsOf(tree).size();
+        }
+        assertEquals(sampler.getSampleGrammar().countAllTrees(), nRoots);
+    }
+
 }
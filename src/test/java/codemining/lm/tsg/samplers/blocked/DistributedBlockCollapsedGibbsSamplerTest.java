@@ -0,0 +1,85 @@
+package codemining.lm.tsg.samplers.blocked;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+import codemining.ast.TreeNode;
+import codemining.ast.java.AbstractJavaTreeExtractor;
+import codemining.lm.tsg.FormattedTSGrammar;
+import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.samplers.blocked.DistributedBlockCollapsedGibbsSampler.CoordinatorConnection;
+
+public class DistributedBlockCollapsedGibbsSamplerTest {
+
+    private static final int N_WORKERS = 3;
+
+    @Test
+    public void testWorkersShareGrammar() throws Exception {
+        final AbstractJavaTreeExtractor format = mock(AbstractJavaTreeExtractor.class);
+        final ServerSocket serverSocket = new ServerSocket(0, N_WORKERS, InetAddress.getLoopbackAddress());
+        final ExecutorService executor = Executors.newFixedThreadPool(N_WORKERS + 1);
+        try {
+            final Future<?> coordinator = executor.submit(() -> {
+                new DistributedSamplerCoordinator(serverSocket, N_WORKERS).run();
+                return null;
+            });
+
+            final List<Future<DistributedBlockCollapsedGibbsSampler>> workers = Lists.newArrayList();
+            for (int i = 0; i < N_WORKERS; i++) {
+                final int nTrees = i + 2;
+                workers.add(executor.submit(() -> {
+                    final CoordinatorConnection connection = new CoordinatorConnection(InetAddress
+                            .getLoopbackAddress().getHostAddress(), serverSocket.getLocalPort());
+                    connection.exchangeAlphabet(Collections.emptyMap());
+                    final DistributedBlockCollapsedGibbsSampler sampler = new DistributedBlockCollapsedGibbsSampler(10,
+                            10, new FormattedTSGrammar(format), new FormattedTSGrammar(format), connection);
+                    for (int j = 0; j < nTrees; j++) {
+                        sampler.addTree(new BlockCollapsedGibbsSamplerTest().generateSampleTree(), true);
+                    }
+                    sampler.synchronizeCorpus();
+                    for (int j = 0; j < 5; j++) {
+                        sampler.sampleAllTreesOnce(j, 5, new AtomicBoolean(false));
+                    }
+                    sampler.disconnect();
+                    return sampler;
+                }));
+            }
+
+            // Every worker has the grammar of the whole corpus
+            final FormattedTSGrammar corpusGrammar = new FormattedTSGrammar(format);
+            final List<DistributedBlockCollapsedGibbsSampler> samplers = Lists.newArrayList();
+            for (final Future<DistributedBlockCollapsedGibbsSampler> worker : workers) {
+                samplers.add(worker.get());
+                for (final TreeNode<TSGNode> tree : worker.get().getTreeCorpus()) {
+                    for (final TreeNode<TSGNode> rule : TSGNode.getAllRootsOf(tree)) {
+                        corpusGrammar.addTree(rule);
+                    }
+                }
+            }
+            coordinator.get();
+
+            for (final DistributedBlockCollapsedGibbsSampler sampler : samplers) {
+                assertEquals(sampler.getSampleGrammar().getInternalGrammar(), corpusGrammar.getInternalGrammar());
+                assertEquals(sampler.getPrior().getInternalGrammar().getInternalGrammar(), samplers.get(0)
+                        .getPrior().getInternalGrammar().getInternalGrammar());
+            }
+        } finally {
+            executor.shutdownNow();
+            serverSocket.close();
+        }
+    }
+
+}
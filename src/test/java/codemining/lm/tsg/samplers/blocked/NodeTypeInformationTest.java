@@ -4,8 +4,13 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.Collection;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
 import org.junit.Test;
@@ -16,6 +21,7 @@ import codemining.lm.tsg.samplers.blocked.NodeTypeInformation;
 import codemining.lm.tsg.samplers.blocked.NodeTypeInformation.NodeType;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 public class NodeTypeInformationTest {
 
@@ -116,6 +122,90 @@ public class NodeTypeInformationTest {
 
 	}
 
+	@Test
+	public void testIncrementalSameTypeNodes() {
+		final NodeTypeInformation nti = new NodeTypeInformation();
+		final List<TreeWithNodeIndex> trees = Lists.newArrayList();
+		for (int i = 0; i < 4; i++) {
+			trees.add(TreeWithNodeIndex.generateTree1());
+			trees.add(TreeWithNodeIndex.generateTree2());
+		}
+		for (final TreeWithNodeIndex tree : trees) {
+			nti.updateCorpusStructures(tree.tree);
+		}
+
+		final Random random = new Random(42);
+		for (int step = 0; step < 50; step++) {
+			// Check all the sites against the sets computed from scratch
+			for (final TreeWithNodeIndex tree : trees) {
+				for (final TreeNode<TSGNode> node : tree.nodeIndex.values()) {
+					if (node == tree.tree) {
+						continue;
+					}
+					final Set<TreeNode<TSGNode>> incremental = Sets
+							.newIdentityHashSet();
+					for (final int id : nti.getSameTypeNodeIds(node)) {
+						incremental.add(nti.getNode(id));
+					}
+					final Collection<TreeNode<TSGNode>> fromScratch = nti
+							.getSameTypeNodes(node);
+					assertEquals(fromScratch.size(), incremental.size());
+					assertTrue(incremental.containsAll(fromScratch));
+				}
+			}
+
+			// Flip a few root flags and report them
+			final int[] flipped = new int[3];
+			for (int i = 0; i < flipped.length; i++) {
+				final TreeWithNodeIndex tree = trees.get(random.nextInt(trees
+						.size()));
+				final TreeNode<TSGNode> node = tree.nodeIndex.get(2 + random
+						.nextInt(tree.nodeIndex.size() - 1));
+				node.getData().isRoot = !node.getData().isRoot;
+				flipped[i] = nti.getNodeId(node);
+			}
+			nti.rootFlagsChanged(flipped, flipped.length);
+		}
+	}
+
+	@Test
+	public void testNodeIds() throws Exception {
+		NodeTypeInformation nti = new NodeTypeInformation();
+		final TreeWithNodeIndex tree1 = TreeWithNodeIndex.generateTree1();
+		final TreeWithNodeIndex tree2 = TreeWithNodeIndex.generateTree1();
+		nti.updateCorpusStructures(tree1.tree);
+		nti.updateCorpusStructures(tree2.tree);
+		assertEquals(24, nti.getNumberOfNodes());
+		assertFalse(nti.containsNode(tree1.tree));
+		assertEquals(-1, nti.getNodeId(TreeNode.create(new TSGNode(1), 2)));
+
+		for (int i = 1; i <= 12; i++) {
+			final TreeNode<TSGNode> node = tree2.nodeIndex.get(i);
+			assertTrue(nti.getNode(nti.getNodeId(node)) == node);
+		}
+
+		// The ids are kept after serialization
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(tree1.tree);
+		out.writeObject(nti);
+		out.close();
+		final ObjectInputStream in = new ObjectInputStream(
+				new ByteArrayInputStream(bytes.toByteArray()));
+		@SuppressWarnings("unchecked")
+		final TreeNode<TSGNode> readTree = (TreeNode<TSGNode>) in.readObject();
+		nti = (NodeTypeInformation) in.readObject();
+		final TreeNode<TSGNode> child = readTree.getChild(0, 0);
+		assertTrue(nti.getParentOf(child) == readTree);
+
+		final int[] sameTypeNodeIds = nti.getSameTypeNodeIds(child);
+		assertEquals(2, sameTypeNodeIds.length);
+		for (final int id : sameTypeNodeIds) {
+			assertEquals(child.getData().nodeKey,
+					nti.getNode(id).getData().nodeKey);
+		}
+	}
+
 	@Test
 	public void testNodeType() {
 		final NodeTypeInformation nti = new NodeTypeInformation();
@@ -196,6 +286,33 @@ public class NodeTypeInformationTest {
 		}
 	}
 
+	@Test
+	public void testRejectedCandidateKeepsRootFlags() {
+		final NodeTypeInformation nti = new NodeTypeInformation();
+		final TreeWithNodeIndex rejectedTree = TreeWithNodeIndex
+				.generateTree1();
+		final TreeWithNodeIndex tree = TreeWithNodeIndex.generateTree1();
+		// Add the rejected tree first, so that its candidate gets the smaller id
+		nti.updateCorpusStructures(rejectedTree.tree);
+		nti.updateCorpusStructures(tree.tree);
+
+		// Node 4 has the same path to the upper root in both trees, but a
+		// different joined tree, since node 6 is a root in the rejected tree
+		rejectedTree.nodeIndex.get(4).getData().isRoot = true;
+		rejectedTree.nodeIndex.get(6).getData().isRoot = true;
+
+		final TreeNode<TSGNode> sampleNode = tree.nodeIndex.get(4);
+		final int[] sameTypeNodeIds = nti.getSameTypeNodeIds(sampleNode);
+		assertEquals(sameTypeNodeIds.length, 1);
+		assertEquals(sameTypeNodeIds[0], nti.getNodeId(sampleNode));
+
+		for (int i = 1; i <= 12; i++) {
+			assertEquals(rejectedTree.nodeIndex.get(i).getData().isRoot,
+					i == 1 || i == 4 || i == 6);
+			assertEquals(tree.nodeIndex.get(i).getData().isRoot, i == 1);
+		}
+	}
+
 	@Test
 	public void testSameType() {
 		final NodeTypeInformation nti = new NodeTypeInformation();
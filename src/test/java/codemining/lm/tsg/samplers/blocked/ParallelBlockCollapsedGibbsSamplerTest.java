@@ -0,0 +1,72 @@
+package codemining.lm.tsg.samplers.blocked;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import codemining.ast.TreeNode;
+import codemining.ast.java.AbstractJavaTreeExtractor;
+import codemining.lm.tsg.FormattedTSGrammar;
+import codemining.lm.tsg.TSGNode;
+
+public class ParallelBlockCollapsedGibbsSamplerTest {
+
+    private static void assertGrammarMatchesCorpus(final boolean sweepTypeBlocks) {
+        final AbstractJavaTreeExtractor format = mock(AbstractJavaTreeExtractor.class);
+        final ParallelBlockCollapsedGibbsSampler sampler = new ParallelBlockCollapsedGibbsSampler(10, 10,
+                new FormattedTSGrammar(format), new FormattedTSGrammar(format), 3, 2);
+        final BlockCollapsedGibbsSamplerTest samplerTest = new BlockCollapsedGibbsSamplerTest();
+        for (int i = 0; i < 20; i++) {
+            sampler.addTree(samplerTest.generateSampleTree(), true);
+        }
+        sampler.lockSamplerData();
+        sampler.setSweepTypeBlocks(sweepTypeBlocks);
+
+        for (int i = 0; i < 10; i++) {
+            sampler.sampleAllTreesOnce(i, 10, new AtomicBoolean(false));
+        }
+
+        // After the deltas are merged, the sample grammar contains exactly
+        // the rules of the corpus
+        final FormattedTSGrammar corpusGrammar = new FormattedTSGrammar(format);
+        for (final TreeNode<TSGNode> tree : sampler.getTreeCorpus()) {
+            for (final TreeNode<TSGNode> rule : TSGNode.getAllRootsOf(tree)) {
+                corpusGrammar.addTree(rule);
+            }
+        }
+        assertEquals(sampler.getSampleGrammar().getInternalGrammar(), corpusGrammar.getInternalGrammar());
+    }
+
+    @Test
+    public void testGrammarMatchesCorpus() {
+        assertGrammarMatchesCorpus(false);
+    }
+
+    @Test
+    public void testGrammarMatchesCorpusWithTypeBlockSweep() {
+        assertGrammarMatchesCorpus(true);
+    }
+
+    @Test
+    public void testSampleAt() {
+        final AbstractJavaTreeExtractor format = mock(AbstractJavaTreeExtractor.class);
+        final ParallelBlockCollapsedGibbsSampler sampler = new ParallelBlockCollapsedGibbsSampler(10, 10,
+                new FormattedTSGrammar(format), new FormattedTSGrammar(format), 2, 1);
+        final BlockCollapsedGibbsSamplerTest samplerTest = new BlockCollapsedGibbsSamplerTest();
+        for (int i = 0; i < 4; i++) {
+            sampler.addTree(samplerTest.generateSampleTree(), true);
+        }
+
+        // Sampling a node only changes the root bits within its shard
+        final TreeNode<TSGNode> tree = sampler.getTreeCorpus().get(0);
+        for (int i = 0; i < 10; i++) {
+            sampler.sampleAt(tree.getChild(0, 1));
+        }
+        assertEquals(sampler.getNodeTypeInformationOf(tree.getChild(0, 1)).getSameTypeNodes(tree.getChild(0, 1))
+                .size(), 2);
+    }
+
+}
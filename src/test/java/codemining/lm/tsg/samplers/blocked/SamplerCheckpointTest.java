@@ -0,0 +1,74 @@
+package codemining.lm.tsg.samplers.blocked;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.Multiset;
+
+import codemining.ast.TreeNode;
+import codemining.ast.java.AbstractJavaTreeExtractor;
+import codemining.lm.tsg.FormattedTSGrammar;
+import codemining.lm.tsg.TSGNode;
+
+public class SamplerCheckpointTest {
+
+    private BlockCollapsedGibbsSampler createSampler() {
+        final AbstractJavaTreeExtractor format = mock(AbstractJavaTreeExtractor.class);
+        return new BlockCollapsedGibbsSampler(10, 10, new FormattedTSGrammar(format), new FormattedTSGrammar(format));
+    }
+
+    @Test
+    public void testRestore() throws IOException {
+        final BlockCollapsedGibbsSamplerTest samplerTest = new BlockCollapsedGibbsSamplerTest();
+        final BlockCollapsedGibbsSampler sampler = createSampler();
+        for (int i = 0; i < 5; i++) {
+            sampler.addTree(samplerTest.generateSampleTree(), true);
+        }
+        sampler.lockSamplerData();
+        for (int i = 0; i < 5; i++) {
+            for (final TreeNode<TSGNode> tree : sampler.getTreeCorpus()) {
+                sampler.sampleAt(tree.getChild(0, 1));
+            }
+            sampler.getBurnInGrammar().addAll(sampler.getSampleGrammar());
+        }
+
+        final Map<TSGNode, ? extends Multiset<TreeNode<TSGNode>>> sampleGrammar = sampler.getSampleGrammar()
+                .getInternalGrammar();
+        final SamplerCheckpoint checkpoint = SamplerCheckpoint.snapshot(sampler, 5);
+
+        // Changes after the snapshot should not be written
+        for (final TreeNode<TSGNode> tree : sampler.getTreeCorpus()) {
+            tree.getChild(0, 1).getData().isRoot = !tree.getChild(0, 1).getData().isRoot;
+        }
+
+        final File checkpointFile = File.createTempFile("sampler", ".ckpt");
+        checkpointFile.deleteOnExit();
+        checkpoint.writeTo(checkpointFile);
+
+        final SamplerCheckpoint restoredCheckpoint = SamplerCheckpoint.readFrom(checkpointFile);
+        assertEquals(restoredCheckpoint.getIteration(), 5);
+        final BlockCollapsedGibbsSampler restored = createSampler();
+        restoredCheckpoint.restoreInto(restored);
+
+        // Undo the changes, so that the corpus matches the snapshot again
+        for (final TreeNode<TSGNode> tree : sampler.getTreeCorpus()) {
+            tree.getChild(0, 1).getData().isRoot = !tree.getChild(0, 1).getData().isRoot;
+        }
+        assertEquals(restored.getTreeCorpus(), sampler.getTreeCorpus());
+        assertEquals(restored.getTreeCorpus().hashCode(), sampler.getTreeCorpus().hashCode());
+        assertEquals(restored.getSampleGrammar().getInternalGrammar(), sampleGrammar);
+        assertEquals(restored.getBurnInGrammar().getInternalGrammar(), sampler.getBurnInGrammar()
+                .getInternalGrammar());
+        assertTrue(restored.getPrior().isLocked());
+        assertEquals(restored.getPrior().getInternalGrammar().getInternalGrammar(), sampler.getPrior()
+                .getInternalGrammar().getInternalGrammar());
+    }
+
+}
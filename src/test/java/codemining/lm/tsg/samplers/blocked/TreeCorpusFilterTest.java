@@ -0,0 +1,67 @@
+package codemining.lm.tsg.samplers.blocked;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Lists;
+
+import codemining.ast.AbstractTreeExtractor;
+import codemining.ast.TreeNode;
+import codemining.lm.cfg.CFGRuleCounts;
+import codemining.lm.tsg.TSGNode;
+
+public class TreeCorpusFilterTest {
+
+    /**
+     * Return a corpus with three copies of the sample tree and one tree with
+     * a rare rule at its root.
+     */
+    private static List<List<TreeNode<TSGNode>>> generateCorpus() {
+        final BlockCollapsedGibbsSamplerTest samplerTest = new BlockCollapsedGibbsSamplerTest();
+        final List<List<TreeNode<TSGNode>>> files = Lists.newArrayList();
+        files.add(Lists.newArrayList(samplerTest.generateSampleTree(), samplerTest.generateSampleTree()));
+        files.add(Lists.newArrayList(samplerTest.generateSampleTree()));
+
+        final TreeNode<TSGNode> rareTree = samplerTest.generateSampleTree();
+        rareTree.addChildNode(samplerTest.generateSampleTree().getChild(0, 0), 1);
+        files.add(Lists.newArrayList(rareTree));
+        return files;
+    }
+
+    @Test
+    public void testStreamingMatchesInMemory() {
+        final AbstractTreeExtractor format = mock(AbstractTreeExtractor.class);
+
+        final TreeCorpusFilter inMemoryFilter = new TreeCorpusFilter(format, 2);
+        for (final List<TreeNode<TSGNode>> file : generateCorpus()) {
+            file.forEach(inMemoryFilter::addTree);
+        }
+        final List<TreeNode<TSGNode>> inMemoryTrees = inMemoryFilter.getFilteredTrees();
+        // The children of the rare rule become separate trees
+        assertEquals(inMemoryTrees.size(), 6);
+
+        final TreeCorpusFilter streamingFilter = new TreeCorpusFilter(format, 2);
+        final CFGRuleCounts totalCounts = new CFGRuleCounts();
+        for (final List<TreeNode<TSGNode>> file : generateCorpus()) {
+            final CFGRuleCounts fileCounts = streamingFilter.countRules(file);
+            totalCounts.addAll(fileCounts);
+            streamingFilter.addRuleCounts(fileCounts);
+        }
+        assertEquals(totalCounts.size(), 4);
+        assertEquals(totalCounts.getTotalCount(), 13);
+
+        final List<TreeNode<TSGNode>> streamedTrees = Lists.newArrayList();
+        for (final List<TreeNode<TSGNode>> file : generateCorpus()) {
+            for (final TreeNode<TSGNode> tree : file) {
+                streamingFilter.filterTree(tree, streamedTrees::add);
+            }
+        }
+        assertEquals(HashMultiset.create(streamedTrees), HashMultiset.create(inMemoryTrees));
+    }
+
+}
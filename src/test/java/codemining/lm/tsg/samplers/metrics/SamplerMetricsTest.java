@@ -0,0 +1,93 @@
+package codemining.lm.tsg.samplers.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+
+import org.junit.Test;
+
+import codemining.ast.java.AbstractJavaTreeExtractor;
+import codemining.lm.tsg.FormattedTSGrammar;
+import codemining.lm.tsg.samplers.blocked.BlockCollapsedGibbsSampler;
+import codemining.lm.tsg.samplers.blocked.BlockCollapsedGibbsSamplerTest;
+
+public class SamplerMetricsTest {
+
+	private static IterationMetrics sampleMetrics() {
+		return new IterationMetrics(3, 2, 100, 25, .5, .25, .125, 10, 40,
+				1024, Double.NaN, 5);
+	}
+
+	@Test
+	public void testCsvSink() throws IOException {
+		final StringWriter writer = new StringWriter();
+		final CsvMetricsSink sink = new CsvMetricsSink(writer);
+		sink.iterationCompleted(sampleMetrics());
+		sink.iterationCompleted(sampleMetrics());
+
+		final String[] lines = writer.toString().split("\n");
+		assertEquals(lines.length, 3);
+		assertEquals(lines[0], "iteration,seconds,nodesSampled,nodesPerSecond,"
+				+ "rootFlips,acceptanceRate,posteriorSeconds,treeCopySeconds,"
+				+ "grammarUpdateSeconds,distinctRules,totalRuleCount,"
+				+ "heapUsedBytes,corpusLog2Prob,skippedBlockSamples");
+		assertEquals(lines[1],
+				"3,2.0,100,50.0,25,0.25,0.5,0.25,0.125,10,40,1024,NaN,5");
+		assertEquals(lines[1], lines[2]);
+	}
+
+	@Test
+	public void testJsonLinesSink() throws IOException {
+		final StringWriter writer = new StringWriter();
+		final JsonLinesMetricsSink sink = new JsonLinesMetricsSink(writer);
+		sink.iterationCompleted(sampleMetrics());
+
+		assertEquals(writer.toString(),
+				"{\"iteration\":3,\"seconds\":2.0,\"nodesSampled\":100,"
+						+ "\"nodesPerSecond\":50.0,\"rootFlips\":25,"
+						+ "\"acceptanceRate\":0.25,\"posteriorSeconds\":0.5,"
+						+ "\"treeCopySeconds\":0.25,"
+						+ "\"grammarUpdateSeconds\":0.125,\"distinctRules\":10,"
+						+ "\"totalRuleCount\":40,\"heapUsedBytes\":1024,"
+						+ "\"corpusLog2Prob\":null,\"skippedBlockSamples\":5}\n");
+	}
+
+	@Test
+	public void testSamplerPublishesMetrics() {
+		final AbstractJavaTreeExtractor format = mock(AbstractJavaTreeExtractor.class);
+		final BlockCollapsedGibbsSampler sampler = new BlockCollapsedGibbsSampler(
+				10, 10, new FormattedTSGrammar(format), new FormattedTSGrammar(
+						format));
+		for (int i = 0; i < 5; i++) {
+			sampler.addTree(
+					new BlockCollapsedGibbsSamplerTest().generateSampleTree(),
+					true);
+		}
+		sampler.lockSamplerData();
+
+		final InMemoryMetricsSink sink = new InMemoryMetricsSink();
+		sampler.addMetricsSink(sink);
+		sampler.performSampling(4);
+
+		final List<IterationMetrics> metrics = sink.getMetrics();
+		assertEquals(metrics.size(), 4);
+		for (int i = 0; i < metrics.size(); i++) {
+			final IterationMetrics iteration = metrics.get(i);
+			assertEquals(iteration.iteration, i);
+			assertTrue(iteration.nodesSampled > 0);
+			assertTrue(iteration.rootFlips <= iteration.nodesSampled);
+			assertTrue(iteration.seconds >= 0);
+			assertTrue(iteration.heapUsedBytes > 0);
+		}
+		final IterationMetrics last = metrics.get(metrics.size() - 1);
+		assertEquals(last.distinctRules, sampler.getSampleGrammar()
+				.countDistinctTrees());
+		assertEquals(last.totalRuleCount, sampler.getSampleGrammar()
+				.countAllTrees());
+	}
+
+}